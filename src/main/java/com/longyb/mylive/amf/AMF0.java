@@ -1,15 +1,23 @@
 package com.longyb.mylive.amf;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * AMF0 values to and from a {@link ByteBuf}.
+ * <p>
+ * Strings are UTF-8 and written straight into the buffer, numbers are written
+ * from their double value without any boxing on the way. Use an
+ * {@link Amf0Reader} to read values one at a time.
+ */
 @Slf4j
 public class AMF0 {
 
@@ -74,42 +82,43 @@ public class AMF0 {
 
 	private static final byte BOOLEAN_TRUE = 0x01;
 	private static final byte BOOLEAN_FALSE = 0x00;
-	private static final byte[] OBJECT_END_MARKER = new byte[] { 0x00, 0x00, 0x09 };
+	// an empty property name followed by the object end type 0x09
+	static final int OBJECT_END_MARKER = 0x000009;
+
+	private static final int MAX_SHORT_STRING = 0xffff;
 
 	public static void encode(final ByteBuf out, final Object value) {
 		final Type type = Type.getType(value);
+		if (log.isTraceEnabled()) {
+			log.trace(">> {}", toString(type, value));
+		}
 
-		log.debug(">> " + toString(type, value));
-
-		out.writeByte((byte) type.value);
 		switch (type) {
 		case NUMBER:
-			if (value instanceof Double) {
-				out.writeLong(Double.doubleToLongBits((Double) value));
-			} else { // this coverts int also
-				out.writeLong(Double.doubleToLongBits(Double.parseDouble(value.toString())));
-			}
+			out.writeByte(type.value);
+			out.writeDouble(((Number) value).doubleValue());
 			return;
 		case BOOLEAN:
+			out.writeByte(type.value);
 			out.writeByte((Boolean) value ? BOOLEAN_TRUE : BOOLEAN_FALSE);
 			return;
 		case STRING:
-			encodeString(out, (String) value);
+			encodeStringValue(out, (String) value);
 			return;
 		case NULL:
+			out.writeByte(type.value);
 			return;
 		case MAP:
+			out.writeByte(type.value);
 			out.writeInt(0);
-			// no break; remaining processing same as OBJECT
+			encodeProperties(out, (Map<?, ?>) value);
+			return;
 		case OBJECT:
-			final Map<String, Object> map = (Map) value;
-			for (final Map.Entry<String, Object> entry : map.entrySet()) {
-				encodeString(out, entry.getKey());
-				encode(out, entry.getValue());
-			}
-			out.writeBytes(OBJECT_END_MARKER);
+			out.writeByte(type.value);
+			encodeProperties(out, (Map<?, ?>) value);
 			return;
 		case ARRAY:
+			out.writeByte(type.value);
 			final Object[] array = (Object[]) value;
 			out.writeInt(array.length);
 			for (Object o : array) {
@@ -117,9 +126,9 @@ public class AMF0 {
 			}
 			return;
 		case DATE:
-			final long time = ((Date) value).getTime();
-			out.writeLong(Double.doubleToLongBits(time));
-			out.writeShort((short) 0);
+			out.writeByte(type.value);
+			out.writeDouble(((Date) value).getTime());
+			out.writeShort(0);
 			return;
 		default:
 			// ignoring other types client doesn't require for now
@@ -127,17 +136,36 @@ public class AMF0 {
 		}
 	}
 
-	private static String decodeString(final ByteBuf in) {
-		final short size = in.readShort();
-		final byte[] bytes = new byte[size];
-		in.readBytes(bytes);
-		return new String(bytes); // should we force encode to UTF-8 ?
+	private static void encodeProperties(final ByteBuf out, final Map<?, ?> map) {
+		for (final Map.Entry<?, ?> entry : map.entrySet()) {
+			encodeString(out, (String) entry.getKey());
+			encode(out, entry.getValue());
+		}
+		out.writeMedium(OBJECT_END_MARKER);
+	}
+
+	/**
+	 * a string value, a long string if it does not fit 16 bit length
+	 */
+	private static void encodeStringValue(final ByteBuf out, final String value) {
+		final int length = ByteBufUtil.utf8Bytes(value);
+		if (length > MAX_SHORT_STRING) {
+			out.writeByte(Type.LONG_STRING.value);
+			out.writeInt(length);
+		} else {
+			out.writeByte(Type.STRING.value);
+			out.writeShort(length);
+		}
+		ByteBufUtil.reserveAndWriteUtf8(out, value, length);
 	}
 
+	/**
+	 * a property name, no type marker
+	 */
 	private static void encodeString(final ByteBuf out, final String value) {
-		final byte[] bytes = value.getBytes(); // UTF-8 ?
-		out.writeShort((short) bytes.length);
-		out.writeBytes(bytes);
+		final int length = ByteBufUtil.utf8Bytes(value);
+		out.writeShort(length);
+		ByteBufUtil.reserveAndWriteUtf8(out, value, length);
 	}
 
 	public static void encode(final ByteBuf out, final List<Object> values) {
@@ -147,92 +175,23 @@ public class AMF0 {
 	}
 
 	public static Object decode(final ByteBuf in) {
-		final Type type = Type.valueToEnum(in.readByte());
-		final Object value = decode(in, type);
-
-		log.debug("<< " + toString(type, value));
-
-		return value;
+		return new Amf0Reader(in).read();
 	}
-	
-	public static List<Object> decodeAll(final ByteBuf in){
-		List<Object> result=new ArrayList<>();
-		while(in.isReadable()) {
-			Object decode = decode(in);
-			result.add(decode);
+
+	public static List<Object> decodeAll(final ByteBuf in) {
+		Amf0Reader reader = new Amf0Reader(in);
+		List<Object> result = new ArrayList<>();
+		while (reader.isReadable()) {
+			result.add(reader.read());
 		}
 		return result;
-		
 	}
 
-	private static Object decode(final ByteBuf in, final Type type) {
-		switch (type) {
-			case NUMBER -> {
-				return Double.longBitsToDouble(in.readLong());
-			}
-			case BOOLEAN -> {
-				return in.readByte() == BOOLEAN_TRUE;
-			}
-			case STRING -> {
-				return decodeString(in);
-			}
-			case ARRAY -> {
-				final int arraySize = in.readInt();
-				final Object[] array = new Object[arraySize];
-				for (int i = 0; i < arraySize; i++) {
-					array[i] = decode(in);
-				}
-				return array;
-			}
-			case MAP, OBJECT -> {
-				final int count;
-				final Map<String, Object> map;
-				if (type == Type.MAP) {
-					count = in.readInt(); // should always be 0
-					map = new LinkedHashMap<>();
-					if (count > 0) {
-						log.debug("non-zero size for MAP type: {}", count);
-					}
-				} else {
-					count = 0;
-					map = new Amf0Object();
-				}
-				int i = 0;
-				final byte[] endMarker = new byte[3];
-				while (in.isReadable()) {
-					in.getBytes(in.readerIndex(), endMarker);
-					if (Arrays.equals(endMarker, OBJECT_END_MARKER)) {
-						in.skipBytes(3);
-						log.debug("end MAP / OBJECT, found object end marker [000009]");
-						break;
-					}
-					if (count > 0 && i++ == count) {
-						log.debug("stopping map decode after reaching count: {}", count);
-						break;
-					}
-					map.put(decodeString(in), decode(in));
-				}
-				return map;
-			}
-			case DATE -> {
-				final long dateValue = in.readLong();
-				in.readShort(); // consume the timezone
-				return new Date((long) Double.longBitsToDouble(dateValue));
-			}
-			case LONG_STRING -> {
-				final int stringSize = in.readInt();
-				final byte[] bytes = new byte[stringSize];
-				in.readBytes(bytes);
-				return new String(bytes); // UTF-8 ?
-			}
-			case NULL, UNDEFINED, UNSUPPORTED -> {
-				return null;
-			}
-			default -> throw new RuntimeException("unexpected type: " + type);
-		}
+	static String decodeString(final ByteBuf in, final int length) {
+		return in.readCharSequence(length, StandardCharsets.UTF_8).toString();
 	}
 
-	private static String toString(final Type type, final Object value) {
+	static String toString(final Type type, final Object value) {
 		StringBuilder sb = new StringBuilder();
 		sb.append('[').append(type).append(" ");
 		if (type == Type.ARRAY) {
@@ -244,4 +203,4 @@ public class AMF0 {
 		return sb.toString();
 	}
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,122 @@
+package com.longyb.mylive.amf;
+
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.longyb.mylive.amf.AMF0.Type;
+
+import io.netty.buffer.ByteBuf;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Reads AMF0 values one at a time from the reader index of a buffer. A caller
+ * that only needs the leading values of a body, like the name and the
+ * transaction id of a command, stops there and never builds the objects
+ * after them.
+ */
+@Slf4j
+public class Amf0Reader {
+
+	private final ByteBuf in;
+
+	public Amf0Reader(ByteBuf in) {
+		this.in = in;
+	}
+
+	public boolean isReadable() {
+		return in.isReadable();
+	}
+
+	public Type peekType() {
+		return Type.valueToEnum(in.getByte(in.readerIndex()));
+	}
+
+	/**
+	 * @return null for an AMF0 null
+	 */
+	public String readString() {
+		Type type = Type.valueToEnum(in.readByte());
+		return switch (type) {
+		case STRING -> AMF0.decodeString(in, in.readUnsignedShort());
+		case LONG_STRING -> AMF0.decodeString(in, in.readInt());
+		case NULL, UNDEFINED -> null;
+		default -> throw new RuntimeException("expected a string but got: " + type);
+		};
+	}
+
+	public double readNumber() {
+		Type type = Type.valueToEnum(in.readByte());
+		if (type != Type.NUMBER) {
+			throw new RuntimeException("expected a number but got: " + type);
+		}
+		return in.readDouble();
+	}
+
+	/**
+	 * the next value, numbers are Double, objects Amf0Object and ecma arrays
+	 * LinkedHashMap
+	 */
+	public Object read() {
+		final Type type = Type.valueToEnum(in.readByte());
+		final Object value = read(type);
+		if (log.isTraceEnabled()) {
+			log.trace("<< {}", AMF0.toString(type, value));
+		}
+		return value;
+	}
+
+	private Object read(final Type type) {
+		switch (type) {
+			case NUMBER -> {
+				return in.readDouble();
+			}
+			case BOOLEAN -> {
+				return in.readByte() != 0;
+			}
+			case STRING -> {
+				return AMF0.decodeString(in, in.readUnsignedShort());
+			}
+			case LONG_STRING -> {
+				return AMF0.decodeString(in, in.readInt());
+			}
+			case ARRAY -> {
+				final int arraySize = in.readInt();
+				final Object[] array = new Object[arraySize];
+				for (int i = 0; i < arraySize; i++) {
+					array[i] = read();
+				}
+				return array;
+			}
+			case MAP -> {
+				// the count is a hint only, the end marker terminates the map
+				in.skipBytes(4);
+				return readProperties(new LinkedHashMap<>());
+			}
+			case OBJECT -> {
+				return readProperties(new Amf0Object());
+			}
+			case DATE -> {
+				final double time = in.readDouble();
+				in.skipBytes(2); // the timezone
+				return new Date((long) time);
+			}
+			case NULL, UNDEFINED, UNSUPPORTED -> {
+				return null;
+			}
+			default -> throw new RuntimeException("unexpected type: " + type);
+		}
+	}
+
+	private Map<String, Object> readProperties(Map<String, Object> map) {
+		while (in.isReadable()) {
+			if (in.readableBytes() >= 3 && in.getUnsignedMedium(in.readerIndex()) == AMF0.OBJECT_END_MARKER) {
+				in.skipBytes(3);
+				break;
+			}
+			String key = AMF0.decodeString(in, in.readUnsignedShort());
+			map.put(key, read());
+		}
+		return map;
+	}
+}
@@ -0,0 +1,85 @@
+package com.longyb.mylive.amf;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+/**
+ * The values of an AMF0 body. The leading ones are decoded right away, the
+ * rest is kept encoded until something asks for it. Handlers of commands they
+ * ignore never pay for the objects those carry.
+ * <p>
+ * Not thread safe, like the messages it is part of.
+ */
+public class LazyAmf0List extends AbstractList<Object> {
+
+	private final Object[] head;
+
+	// null once decoded
+	private byte[] rest;
+	private List<Object> values;
+
+	private LazyAmf0List(Object[] head, byte[] rest) {
+		this.head = head;
+		this.rest = rest;
+	}
+
+	/**
+	 * decodes up to eager values of in and copies the remaining bytes
+	 */
+	public static LazyAmf0List decode(ByteBuf in, int eager) {
+		Amf0Reader reader = new Amf0Reader(in);
+		Object[] head = new Object[eager];
+		int n = 0;
+		while (n < eager && reader.isReadable()) {
+			head[n++] = reader.read();
+		}
+		byte[] rest = in.isReadable() ? ByteBufUtil.getBytes(in) : null;
+		in.skipBytes(in.readableBytes());
+		return new LazyAmf0List(n == eager ? head : Arrays.copyOf(head, n), rest);
+	}
+
+	@Override
+	public Object get(int index) {
+		if (index < head.length) {
+			return head[index];
+		}
+		return values().get(index);
+	}
+
+	@Override
+	public int size() {
+		return values().size();
+	}
+
+	private List<Object> values() {
+		if (values == null) {
+			values = new ArrayList<>(Arrays.asList(head));
+			if (rest != null) {
+				values.addAll(AMF0.decodeAll(Unpooled.wrappedBuffer(rest)));
+				rest = null;
+			}
+		}
+		return values;
+	}
+
+	/**
+	 * does not decode, what still is encoded shows as its length
+	 */
+	@Override
+	public String toString() {
+		if (rest == null) {
+			return values == null ? Arrays.toString(head) : values.toString();
+		}
+		StringBuilder sb = new StringBuilder("[");
+		for (Object value : head) {
+			sb.append(value).append(", ");
+		}
+		return sb.append('<').append(rest.length).append(" bytes>]").toString();
+	}
+}
@@ -0,0 +1,185 @@
+package com.longyb.mylive.server;
+
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.cfg.HttpConfig;
+import com.longyb.mylive.server.handlers.HttpBodyEncoder;
+import com.longyb.mylive.server.handlers.HttpRouterHandler;
+import com.longyb.mylive.server.metrics.ServerMetrics;
+import com.longyb.mylive.server.metrics.ServerMetrics.Role;
+
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelPipeline;
+import io.netty.handler.codec.http.HttpServerCodec;
+import io.netty.handler.codec.http.HttpServerUpgradeHandler;
+import io.netty.handler.codec.http.websocketx.extensions.compression.WebSocketServerCompressionHandler;
+import io.netty.handler.codec.http2.CleartextHttp2ServerUpgradeHandler;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2ServerUpgradeCodec;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.ApplicationProtocolNegotiationHandler;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.AsciiString;
+
+/**
+ * The pipeline of an http connection. A plain connection speaks HTTP/1.1,
+ * and h2c when http2 is on, by prior knowledge or by Upgrade: h2c. With tls,
+ * alpn picks h2 or http/1.1.
+ * <p>
+ * Every HTTP/2 stream is a child channel running the same router as an
+ * HTTP/1.1 connection, its frames converted to and from HttpObjects, so the
+ * route handlers and subscribers do not tell them apart. A child channel is
+ * writable while its stream's flow control window is open, a viewer that
+ * stops reading one stream falls behind and skips frames on its own while
+ * the other streams of the connection go on.
+ */
+class HttpChannelInitializer extends ChannelInitializer<Channel> {
+
+	private final HttpRouterHandler router;
+	private final HttpConfig http;
+	// null for plain connections
+	private final SslContext sslContext;
+
+	private final ChannelHandler streamInitializer = new ChannelInitializer<Channel>() {
+		@Override
+		protected void initChannel(Channel ch) {
+			ch.pipeline().addLast(new Http2StreamFrameToHttpObjectCodec(true), HttpBodyEncoder.INSTANCE,
+					new ChunkedWriteHandler(), router);
+		}
+	};
+
+	HttpChannelInitializer(HttpRouterHandler router, HttpConfig http, SslContext sslContext) {
+		this.router = router;
+		this.http = http;
+		this.sslContext = sslContext;
+	}
+
+	@Override
+	protected void initChannel(Channel ch) {
+		ServerMetrics.INSTANCE.connected(Role.HTTP, ch);
+		ChannelPipeline pipeline = ch.pipeline();
+		// an HTTP/2 connection carries several viewers, its streams are only
+		// writable while it is
+		ch.config().setWriteBufferWaterMark(ApplicationServerConfig.INSTANCE.getSubscriberWriteBuffer().toWaterMark());
+		if (sslContext != null) {
+			pipeline.addLast(sslContext.newHandler(ch.alloc()), new Alpn());
+		} else if (http.isHttp2()) {
+			HttpServerCodec codec = new HttpServerCodec();
+			HttpServerUpgradeHandler upgrade = new HttpServerUpgradeHandler(codec,
+					protocol -> AsciiString.contentEquals(Http2CodecUtil.HTTP_UPGRADE_PROTOCOL_NAME, protocol)
+							? new Http2ServerUpgradeCodec(frameCodec(), flushConsolidation(), multiplex(), dropHttp1())
+							: null);
+			// adds the codec and the upgrade handler in its place, or the http2
+			// handlers on a connection preface
+			pipeline.addLast(new CleartextHttp2ServerUpgradeHandler(codec, upgrade, priorKnowledge()));
+			http1(pipeline);
+		} else {
+			pipeline.addLast(new HttpServerCodec());
+			http1(pipeline);
+		}
+	}
+
+	private void http1(ChannelPipeline pipeline) {
+		// recordings on transports that can not send a FileRegion
+		pipeline.addLast(new ChunkedWriteHandler());
+		if (ApplicationServerConfig.INSTANCE.getWebSocket().isDeflate()) {
+			// only acts on websocket upgrades
+			pipeline.addLast(new WebSocketServerCompressionHandler());
+		}
+		pipeline.addLast(router);
+	}
+
+	/**
+	 * in place of the cleartext upgrade handler on a connection preface
+	 */
+	private ChannelHandler priorKnowledge() {
+		return new ChannelInitializer<Channel>() {
+			@Override
+			protected void initChannel(Channel ch) {
+				dropHttp1(ch.pipeline());
+				http2(ch.pipeline());
+			}
+		};
+	}
+
+	/**
+	 * the HTTP/1.1 handlers behind the upgrade would stay idle, every stream
+	 * has its own
+	 */
+	private ChannelHandler dropHttp1() {
+		return new ChannelInitializer<Channel>() {
+			@Override
+			protected void initChannel(Channel ch) {
+				dropHttp1(ch.pipeline());
+			}
+		};
+	}
+
+	private void dropHttp1(ChannelPipeline pipeline) {
+		if (pipeline.get(ChunkedWriteHandler.class) != null) {
+			pipeline.remove(ChunkedWriteHandler.class);
+		}
+		if (pipeline.get(WebSocketServerCompressionHandler.class) != null) {
+			pipeline.remove(WebSocketServerCompressionHandler.class);
+		}
+		if (pipeline.context(router) != null) {
+			pipeline.remove(router);
+		}
+	}
+
+	/**
+	 * the same handlers as {@link Http2ServerUpgradeCodec} adds after an
+	 * Upgrade: h2c
+	 */
+	private void http2(ChannelPipeline pipeline) {
+		pipeline.addLast(frameCodec(), flushConsolidation(), multiplex());
+	}
+
+	private Http2FrameCodec frameCodec() {
+		return Http2FrameCodecBuilder.forServer().initialSettings(settings()).build();
+	}
+
+	/**
+	 * a frame goes to every viewer of the connection in the same event loop
+	 * tick, the flushes of their streams become one write to the socket
+	 */
+	private static FlushConsolidationHandler flushConsolidation() {
+		return new FlushConsolidationHandler(FlushConsolidationHandler.DEFAULT_EXPLICIT_FLUSH_AFTER_FLUSHES, true);
+	}
+
+	private Http2MultiplexHandler multiplex() {
+		return new Http2MultiplexHandler(streamInitializer, streamInitializer);
+	}
+
+	private Http2Settings settings() {
+		return Http2Settings.defaultSettings().maxConcurrentStreams(http.getMaxConcurrentStreams());
+	}
+
+	private final class Alpn extends ApplicationProtocolNegotiationHandler {
+
+		Alpn() {
+			super(ApplicationProtocolNames.HTTP_1_1);
+		}
+
+		@Override
+		protected void configurePipeline(ChannelHandlerContext ctx, String protocol) {
+			if (ApplicationProtocolNames.HTTP_2.equals(protocol)) {
+				http2(ctx.pipeline());
+			} else if (ApplicationProtocolNames.HTTP_1_1.equals(protocol)) {
+				ctx.pipeline().addLast(new HttpServerCodec());
+				http1(ctx.pipeline());
+			} else {
+				throw new IllegalStateException("unsupported protocol: " + protocol);
+			}
+		}
+	}
+}
@@ -1,18 +1,38 @@
 package com.longyb.mylive.server;
 
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.net.ssl.SSLException;
+
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.cfg.ExecutionMode;
+import com.longyb.mylive.server.cfg.HttpConfig;
 import com.longyb.mylive.server.handlers.HttpRouterHandler;
 import com.longyb.mylive.server.manager.StreamManager;
+import com.longyb.mylive.server.metrics.ServerMetrics;
 
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelFuture;
-import io.netty.channel.ChannelInitializer;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
-import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
-import io.netty.handler.codec.http.HttpRequestDecoder;
-import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.codec.http2.Http2SecurityUtil;
+import io.netty.handler.ssl.ApplicationProtocolConfig;
+import io.netty.handler.ssl.ApplicationProtocolConfig.Protocol;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectedListenerFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolConfig.SelectorFailureBehavior;
+import io.netty.handler.ssl.ApplicationProtocolNames;
+import io.netty.handler.ssl.SslContext;
+import io.netty.handler.ssl.SslContextBuilder;
+import io.netty.handler.ssl.SslProvider;
+import io.netty.handler.ssl.SupportedCipherSuiteFilter;
+import io.netty.util.concurrent.DefaultEventExecutorGroup;
 import lombok.extern.slf4j.Slf4j;
 
 /**
@@ -23,47 +43,103 @@ import lombok.extern.slf4j.Slf4j;
 public class HttpServer implements AutoCloseable{
 
 	private final int port;
-	ChannelFuture channelFuture;
+	List<Channel> channels;
 
-	EventLoopGroup eventLoopGroup;
+	ServerTransport transport;
 	StreamManager streamManager;
-	//not used currently
+	// for routes configured to run on the pool
 	int handlerThreadPoolSize;
 
+	private DefaultEventExecutorGroup executor;
+	private ExecutorService virtualThreads;
 
-	public HttpServer(int port, StreamManager sm, int threadPoolSize) {
+
+	public HttpServer(int port, ServerTransport transport, StreamManager sm, int threadPoolSize) {
 		this.port = port;
+		this.transport = transport;
 		this.streamManager = sm;
 		this.handlerThreadPoolSize = threadPoolSize;
 	}
 
 
 	public void run() throws Exception {
-		eventLoopGroup = new NioEventLoopGroup();
-
-		ServerBootstrap b = new ServerBootstrap();
+		ServerBootstrap b = transport.bootstrap();
+		HttpConfig http = ApplicationServerConfig.INSTANCE.getHttp();
+		// one router for all connections
+		HttpRouterHandler router = new HttpRouterHandler(streamManager, http.isKeepAlive(), routeExecutors(http));
 
-		b.group(eventLoopGroup).channel(NioServerSocketChannel.class)
-				.childHandler(new ChannelInitializer<SocketChannel>() {
-					@Override
-					public void initChannel(SocketChannel ch) throws Exception {
-						ch.pipeline().addLast(new HttpRequestDecoder());
+		b.childHandler(new HttpChannelInitializer(router, http, sslContext(http)))
+				.option(ChannelOption.SO_BACKLOG, 128).childOption(ChannelOption.SO_KEEPALIVE, true)
+				// flv tags share the pooled media payloads of the rtmp side
+				.childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
 
-						ch.pipeline().addLast(new HttpResponseEncoder());
+		channels = transport.bind(b, port);
+		log.info("HTTP server started, listening at :{}, tls {}, http2 {}", port, http.getTlsCertificateFile() != null,
+				http.isHttp2());
 
-						ch.pipeline().addLast(new HttpRouterHandler(streamManager));
-					}
-				}).option(ChannelOption.SO_BACKLOG, 128).childOption(ChannelOption.SO_KEEPALIVE, true);
+	}
 
-		channelFuture = b.bind(port).sync();
-		log.info("HTTP server started, listening at :{}",port);
+	/**
+	 * null unless a certificate is configured
+	 */
+	private static SslContext sslContext(HttpConfig http) throws SSLException {
+		if (http.getTlsCertificateFile() == null || http.getTlsPrivateKeyFile() == null) {
+			return null;
+		}
+		List<String> protocols = new ArrayList<>();
+		if (http.isHttp2()) {
+			protocols.add(ApplicationProtocolNames.HTTP_2);
+		}
+		protocols.add(ApplicationProtocolNames.HTTP_1_1);
+		SslProvider provider = SslProvider.isAlpnSupported(SslProvider.OPENSSL) ? SslProvider.OPENSSL : SslProvider.JDK;
+		return SslContextBuilder.forServer(new File(http.getTlsCertificateFile()), new File(http.getTlsPrivateKeyFile()))
+				.sslProvider(provider)
+				// h2 forbids the weaker suites
+				.ciphers(Http2SecurityUtil.CIPHERS, SupportedCipherSuiteFilter.INSTANCE)
+				.applicationProtocolConfig(new ApplicationProtocolConfig(Protocol.ALPN,
+						SelectorFailureBehavior.NO_ADVERTISE, SelectedListenerFailureBehavior.ACCEPT, protocols))
+				.build();
+	}
 
+	private Map<String, Executor> routeExecutors(HttpConfig http) {
+		Map<String, Executor> executors = new HashMap<>();
+		Map<String, ExecutionMode> modes = new HashMap<>(HttpConfig.DEFAULT_ROUTE_EXECUTION);
+		modes.putAll(http.getRouteExecution());
+		modes.forEach((route, mode) -> {
+			switch (mode) {
+			case POOL -> {
+				if (executor == null) {
+					executor = new DefaultEventExecutorGroup(handlerThreadPoolSize);
+					ServerMetrics.INSTANCE.register("http-route", executor);
+				}
+				executors.put(route, executor);
+			}
+			case ORDERED_VIRTUAL -> {
+				if (virtualThreads == null) {
+					virtualThreads = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("http-route-", 0).factory());
+				}
+				executors.put(route, virtualThreads);
+			}
+			default -> {
+			}
+			}
+		});
+		return executors;
 	}
 
 	@Override
 	public void close() {
 		try{
-			channelFuture.channel().close();
+			for (Channel channel : channels) {
+				channel.close().sync();
+			}
+			if (executor != null) {
+				ServerMetrics.INSTANCE.unregister("http-route", executor);
+				executor.close();
+			}
+			if (virtualThreads != null) {
+				virtualThreads.close();
+			}
 		}catch (Exception ex){
 			log.error("Error closing HTTP Server", ex);
 		}
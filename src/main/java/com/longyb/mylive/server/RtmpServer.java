@@ -1,20 +1,26 @@
 package com.longyb.mylive.server;
 
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.longyb.mylive.server.cfg.ExecutionMode;
 import com.longyb.mylive.server.handlers.ChunkDecoder;
 import com.longyb.mylive.server.handlers.ChunkEncoder;
 import com.longyb.mylive.server.handlers.ConnectionAdapter;
 import com.longyb.mylive.server.handlers.HandShakeDecoder;
 import com.longyb.mylive.server.handlers.RtmpMessageHandler;
 import com.longyb.mylive.server.manager.StreamManager;
+import com.longyb.mylive.server.metrics.ServerMetrics;
+import com.longyb.mylive.server.metrics.ServerMetrics.Role;
 
 import io.netty.bootstrap.ServerBootstrap;
-import io.netty.channel.ChannelFuture;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
 import io.netty.channel.ChannelInitializer;
 import io.netty.channel.ChannelOption;
-import io.netty.channel.EventLoopGroup;
-import io.netty.channel.nio.NioEventLoopGroup;
 import io.netty.channel.socket.SocketChannel;
-import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.concurrent.DefaultEventExecutor;
 import io.netty.util.concurrent.DefaultEventExecutorGroup;
 import lombok.extern.slf4j.Slf4j;
 
@@ -23,49 +29,80 @@ public class RtmpServer implements AutoCloseable {
 
     private final int port;
 
-    ChannelFuture channelFuture;
+    List<Channel> channels;
 
-    EventLoopGroup eventLoopGroup;
+    ServerTransport transport;
     StreamManager streamManager;
+    ExecutionMode executionMode;
     int handlerThreadPoolSize;
 
     private DefaultEventExecutorGroup executor;
+    private ThreadFactory virtualThreads;
 
-    public RtmpServer(int port, StreamManager sm, int threadPoolSize) {
+    public RtmpServer(int port, ServerTransport transport, StreamManager sm, ExecutionMode executionMode,
+            int threadPoolSize) {
         this.port = port;
+        this.transport = transport;
         this.streamManager = sm;
+        this.executionMode = executionMode;
         this.handlerThreadPoolSize = threadPoolSize;
     }
 
     public void run() throws Exception {
-        eventLoopGroup = new NioEventLoopGroup();
-
-        ServerBootstrap b = new ServerBootstrap();
-        executor = new DefaultEventExecutorGroup(handlerThreadPoolSize);
-
+        ServerBootstrap b = transport.bootstrap();
+        switch (executionMode) {
+            case POOL -> {
+                executor = new DefaultEventExecutorGroup(handlerThreadPoolSize);
+                ServerMetrics.INSTANCE.register("rtmp-handler", executor);
+            }
+            case ORDERED_VIRTUAL -> virtualThreads = Thread.ofVirtual().name("rtmp-handler-", 0).factory();
+            default -> {
+            }
+        }
 
-        b.group(eventLoopGroup).channel(NioServerSocketChannel.class)
-                .childHandler(new ChannelInitializer<SocketChannel>() {
+        b.childHandler(new ChannelInitializer<SocketChannel>() {
                     @Override
                     public void initChannel(SocketChannel ch) throws Exception {
+                        ServerMetrics.INSTANCE.connected(Role.RTMP, ch);
                         ch.pipeline().addLast(new ConnectionAdapter()).addLast(new HandShakeDecoder())
-                                .addLast(new ChunkDecoder()).addLast(new ChunkEncoder())
-                                .addLast(executor, new RtmpMessageHandler(streamManager));
+                                .addLast(new ChunkDecoder()).addLast(new ChunkEncoder());
+                        addMessageHandler(ch);
                     }
-                }).option(ChannelOption.SO_BACKLOG, 128).childOption(ChannelOption.SO_KEEPALIVE, true);
+                }).option(ChannelOption.SO_BACKLOG, 128).childOption(ChannelOption.SO_KEEPALIVE, true)
+                // media payloads are slices of inbound buffers, keep them pooled and off heap
+                .childOption(ChannelOption.ALLOCATOR, PooledByteBufAllocator.DEFAULT);
 
-        channelFuture = b.bind(port).sync();
+        channels = transport.bind(b, port);
 
-        log.info("RTMP Server started, listening at :{}", port);
+        log.info("RTMP Server started, listening at :{}, handlers run {}", port, executionMode);
 
     }
 
+    private void addMessageHandler(Channel ch) {
+        RtmpMessageHandler handler = new RtmpMessageHandler(streamManager);
+        switch (executionMode) {
+            case INLINE -> ch.pipeline().addLast(handler);
+            case POOL -> ch.pipeline().addLast(executor, handler);
+            case ORDERED_VIRTUAL -> {
+                // messages of one connection stay in order, connections do not wait for each other
+                DefaultEventExecutor mailbox = new DefaultEventExecutor(virtualThreads);
+                // the quiet period lets the inactive and removal events that follow the close run
+                ch.closeFuture().addListener(f -> mailbox.shutdownGracefully(1, 15, TimeUnit.SECONDS));
+                ch.pipeline().addLast(mailbox, handler);
+            }
+        }
+    }
+
     @Override
     public void close() {
         try {
-            executor.close();
-            channelFuture.channel().closeFuture().sync();
-            eventLoopGroup.shutdownGracefully();
+            for (Channel channel : channels) {
+                channel.close().sync();
+            }
+            if (executor != null) {
+                ServerMetrics.INSTANCE.unregister("rtmp-handler", executor);
+                executor.close();
+            }
         } catch (Exception e) {
             log.error("close rtmp server failed", e);
         }
@@ -2,11 +2,18 @@ package com.longyb.mylive.server;
 
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.dataformat.yaml.YAMLFactory;
 import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.entities.Stream;
+import com.longyb.mylive.server.flv.FlvRecorder;
 import com.longyb.mylive.server.manager.StreamManager;
+import com.longyb.mylive.server.manager.StreamStatsSampler;
 
 import lombok.extern.slf4j.Slf4j;
 
@@ -19,21 +26,56 @@ public class ServerApplication {
 
         readConfig();
         StreamManager streamManager = new StreamManager();
+        StreamStatsSampler statsSampler = new StreamStatsSampler(streamManager, ApplicationServerConfig.INSTANCE.getStats());
+        statsSampler.start();
 
         int rtmpPort = ApplicationServerConfig.INSTANCE.getRtmpPort();
         int handlerThreadPoolSize = ApplicationServerConfig.INSTANCE.getHandlerThreadPoolSize();
 
-        RtmpServer rtmpServer = new RtmpServer(rtmpPort, streamManager, handlerThreadPoolSize);
+        ServerTransport transport = new ServerTransport(ApplicationServerConfig.INSTANCE.getTransport());
+
+        RtmpServer rtmpServer = new RtmpServer(rtmpPort, transport, streamManager,
+                ApplicationServerConfig.INSTANCE.getExecutionMode(), handlerThreadPoolSize);
         rtmpServer.run();
 
-        if (!ApplicationServerConfig.INSTANCE.isEnableHttp()) {
-            return;
+        HttpServer httpServer = null;
+        if (ApplicationServerConfig.INSTANCE.isEnableHttp()) {
+            int httpPort = ApplicationServerConfig.INSTANCE.getHttpPort();
+            httpServer = new HttpServer(httpPort, transport, streamManager, handlerThreadPoolSize);
+            httpServer.run();
         }
 
-        int httpPort = ApplicationServerConfig.INSTANCE.getHttpPort();
-        HttpServer httpServer = new HttpServer(httpPort, streamManager, handlerThreadPoolSize);
-        httpServer.run();
+        HttpServer startedHttpServer = httpServer;
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            if (startedHttpServer != null) {
+                startedHttpServer.close();
+            }
+            rtmpServer.close();
+            closeRecorders(streamManager);
+            transport.close();
+            statsSampler.close();
+        }, "shutdown"));
+
+    }
 
+    /**
+     * the writer threads are daemons, without waiting here the queued frames
+     * would be lost and the segments left unfinalized
+     */
+    private static void closeRecorders(StreamManager streamManager) {
+        CompletableFuture<?>[] closed = streamManager.getAllStreams().values().stream()
+                .map(Stream::closeRecorder).toArray(CompletableFuture[]::new);
+        int timeout = ApplicationServerConfig.INSTANCE.getRecorder().getShutdownTimeoutMillis();
+        try {
+            CompletableFuture.allOf(closed).get(timeout, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            log.warn("recorders did not finish within {} ms, their segments are left to FlvRecovery", timeout);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            log.error("closing a recorder failed", e.getCause());
+        }
+        FlvRecorder.shutdown();
     }
 
     private static void readConfig() {
@@ -0,0 +1,156 @@
+package com.longyb.mylive.server;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.longyb.mylive.server.cfg.TransportConfig;
+import com.longyb.mylive.server.cfg.TransportConfig.Type;
+import com.longyb.mylive.server.metrics.ServerMetrics;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.ServerChannel;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.handler.codec.http2.Http2StreamChannel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.incubator.channel.uring.IOUring;
+import io.netty.incubator.channel.uring.IOUringChannelOption;
+import io.netty.incubator.channel.uring.IOUringEventLoopGroup;
+import io.netty.incubator.channel.uring.IOUringServerSocketChannel;
+import io.netty.incubator.channel.uring.IOUringSocketChannel;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The boss and worker event loops of the rtmp and the http server, on the best
+ * native transport the platform offers.
+ * <p>
+ * Both servers share the loops, a subscriber's http-flv channel and the rtmp
+ * channel of its publisher may be served by the same thread.
+ */
+@Slf4j
+public class ServerTransport implements AutoCloseable {
+
+	@Getter
+	private final Type type;
+
+	@Getter
+	private final EventLoopGroup bossGroup;
+
+	@Getter
+	private final EventLoopGroup workerGroup;
+
+	private final int acceptors;
+
+	public ServerTransport(TransportConfig config) {
+		type = resolve(config.getType());
+		if (config.isReusePort() && type != Type.NIO) {
+			acceptors = Math.max(1, config.getAcceptorThreads());
+		} else {
+			if (config.isReusePort()) {
+				log.warn("SO_REUSEPORT needs epoll or io_uring, binding a single acceptor");
+			}
+			acceptors = 1;
+		}
+		// each acceptor is registered on its own boss loop
+		bossGroup = newGroup(Math.max(config.getBossThreads(), acceptors), "boss");
+		workerGroup = newGroup(config.getWorkerThreads(), "worker");
+		ServerMetrics.INSTANCE.register("boss", bossGroup);
+		ServerMetrics.INSTANCE.register("worker", workerGroup);
+		log.info("{} transport, {} acceptor(s) per port", type, acceptors);
+	}
+
+	private static Type resolve(Type wanted) {
+		boolean uring = IOUring.isAvailable();
+		boolean epoll = Epoll.isAvailable();
+		switch (wanted) {
+		case IO_URING:
+			if (uring) {
+				return Type.IO_URING;
+			}
+			log.warn("io_uring is not available, falling back: {}", String.valueOf(IOUring.unavailabilityCause()));
+			break;
+		case EPOLL:
+			if (epoll) {
+				return Type.EPOLL;
+			}
+			log.warn("epoll is not available, falling back: {}", String.valueOf(Epoll.unavailabilityCause()));
+			break;
+		case NIO:
+			return Type.NIO;
+		default:
+			break;
+		}
+		if (uring) {
+			return Type.IO_URING;
+		}
+		return epoll ? Type.EPOLL : Type.NIO;
+	}
+
+	private EventLoopGroup newGroup(int threads, String name) {
+		DefaultThreadFactory threadFactory = new DefaultThreadFactory(name);
+		return switch (type) {
+		case IO_URING -> new IOUringEventLoopGroup(threads, threadFactory);
+		case EPOLL -> new EpollEventLoopGroup(threads, threadFactory);
+		default -> new NioEventLoopGroup(threads, threadFactory);
+		};
+	}
+
+	private Class<? extends ServerChannel> serverChannelClass() {
+		return switch (type) {
+		case IO_URING -> IOUringServerSocketChannel.class;
+		case EPOLL -> EpollServerSocketChannel.class;
+		default -> NioServerSocketChannel.class;
+		};
+	}
+
+	/**
+	 * a bootstrap on the shared loops, the caller adds its handlers and options
+	 */
+	public ServerBootstrap bootstrap() {
+		ServerBootstrap b = new ServerBootstrap().group(bossGroup, workerGroup).channel(serverChannelClass());
+		if (acceptors > 1) {
+			if (type == Type.IO_URING) {
+				b.option(IOUringChannelOption.SO_REUSEPORT, true);
+			} else {
+				b.option(EpollChannelOption.SO_REUSEPORT, true);
+			}
+		}
+		return b;
+	}
+
+	/**
+	 * whether channel can send a FileRegion without copying. io_uring can not
+	 * send one at all, tls and HTTP/2 streams have to see the bytes
+	 */
+	public static boolean supportsFileRegion(Channel channel) {
+		return !(channel instanceof IOUringSocketChannel) && !(channel instanceof Http2StreamChannel)
+				&& channel.pipeline().get(SslHandler.class) == null;
+	}
+
+	/**
+	 * binds port once per acceptor
+	 */
+	public List<Channel> bind(ServerBootstrap b, int port) throws InterruptedException {
+		List<Channel> channels = new ArrayList<>(acceptors);
+		for (int i = 0; i < acceptors; i++) {
+			channels.add(b.bind(port).sync().channel());
+		}
+		return channels;
+	}
+
+	@Override
+	public void close() {
+		ServerMetrics.INSTANCE.unregister("boss", bossGroup);
+		ServerMetrics.INSTANCE.unregister("worker", workerGroup);
+		bossGroup.shutdownGracefully();
+		workerGroup.shutdownGracefully();
+	}
+}
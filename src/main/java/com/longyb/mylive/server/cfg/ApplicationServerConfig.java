@@ -1,5 +1,8 @@
 package com.longyb.mylive.server.cfg;
 
+import java.util.HashMap;
+import java.util.Map;
+
 import lombok.Data;
 
 /**
@@ -17,9 +20,50 @@ public class ApplicationServerConfig {
 
 	boolean saveFlvFile;
 	String saveFlVFilePath;
+	RecorderConfig recorder = new RecorderConfig();
 
 	int handlerThreadPoolSize;
 
+	ExecutionMode executionMode = ExecutionMode.POOL;
+
 	FfmpegConfig ffmpeg;
 
+	HlsConfig hls = new HlsConfig();
+
+	CmafConfig cmaf = new CmafConfig();
+
+	WebSocketConfig webSocket = new WebSocketConfig();
+
+	HttpConfig http = new HttpConfig();
+
+	StatsConfig stats = new StatsConfig();
+
+	MetricsConfig metrics = new MetricsConfig();
+
+	TransportConfig transport = new TransportConfig();
+
+	WriteBufferConfig publisherWriteBuffer = new WriteBufferConfig(32 * 1024, 64 * 1024);
+	WriteBufferConfig subscriberWriteBuffer = new WriteBufferConfig(512 * 1024, 2 * 1024 * 1024);
+
+	// a viewer that stays unable to keep up for this long is disconnected
+	long slowSubscriberTimeoutMillis = 30_000;
+
+	GopCacheConfig gopCache = new GopCacheConfig();
+
+	FlushConfig flush = new FlushConfig();
+	// overrides flush for the apps listed
+	Map<String, FlushConfig> appFlush = new HashMap<>();
+
+	public FlushConfig flushConfigOf(String app) {
+		return appFlush.getOrDefault(app, flush);
+	}
+
+	JoinConfig join = new JoinConfig();
+	// overrides join for the apps listed, a viewer may still ask for a mode
+	Map<String, JoinConfig> appJoin = new HashMap<>();
+
+	public JoinConfig joinConfigOf(String app) {
+		return appJoin.getOrDefault(app, join);
+	}
+
 }
@@ -0,0 +1,26 @@
+package com.longyb.mylive.server.cfg;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * low latency hls and dash of every published stream from the same fragmented
+ * mp4 parts, served at /cmaf/{app}/{stream}.m3u8 and .mpd
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class CmafConfig {
+
+    boolean enabled = false;
+
+    // a segment ends at the first key frame after this
+    int targetDurationMillis = 2000;
+
+    // a part ends before it would grow longer than this
+    int partTargetMillis = 500;
+
+    // complete segments kept in memory and listed per stream
+    int segments = 6;
+}
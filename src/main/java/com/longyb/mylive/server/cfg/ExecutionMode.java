@@ -0,0 +1,20 @@
+package com.longyb.mylive.server.cfg;
+
+/**
+ * where the rtmp message handler of a connection, or an http route, runs
+ */
+public enum ExecutionMode {
+    /**
+     * on the channel's event loop, no thread hop. The handler must not block
+     */
+    INLINE,
+    /**
+     * on a DefaultEventExecutorGroup of handlerThreadPoolSize threads, every
+     * decoded message hops from the event loop to the pool
+     */
+    POOL,
+    /**
+     * on a mailbox of its own per connection, drained by a virtual thread
+     */
+    ORDERED_VIRTUAL
+}
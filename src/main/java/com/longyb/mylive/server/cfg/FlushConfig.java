@@ -0,0 +1,30 @@
+package com.longyb.mylive.server.cfg;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * how live media is flushed to the viewers of an app
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class FlushConfig {
+
+    public enum Profile {
+        /**
+         * every message is flushed right away
+         */
+        LATENCY,
+        /**
+         * messages written within one event loop tick, or within windowMillis
+         * if above 0, share one flush
+         */
+        THROUGHPUT
+    }
+
+    Profile profile = Profile.LATENCY;
+
+    int windowMillis = 0;
+}
@@ -0,0 +1,23 @@
+package com.longyb.mylive.server.cfg;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * limits of what a stream keeps to replay to joining viewers. Whole gops are
+ * dropped, oldest first, until the cache is within all three
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class GopCacheConfig {
+
+    int maxGops = 1;
+
+    // media payload bytes, the decoder configuration records are not counted
+    long maxBytes = 32L * 1024 * 1024;
+
+    // from the first to the last cached message
+    int maxDurationMillis = 30_000;
+}
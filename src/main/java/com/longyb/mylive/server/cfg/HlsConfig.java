@@ -0,0 +1,25 @@
+package com.longyb.mylive.server.cfg;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * hls packaging of every published stream, served at /hls/{app}/{stream}.m3u8
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HlsConfig {
+
+    boolean enabled = false;
+
+    // a segment ends at the first key frame after this, or any audio frame of an audio only stream
+    int targetDurationMillis = 2000;
+
+    // segments kept in memory per stream
+    int segments = 8;
+
+    // the latest segments listed in the playlist, at most segments
+    int playlistSegments = 5;
+}
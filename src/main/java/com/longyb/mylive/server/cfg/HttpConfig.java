@@ -0,0 +1,42 @@
+package com.longyb.mylive.server.cfg;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * the http server's router
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class HttpConfig {
+
+    // recordings stat their file and load its key frame index, off the event loops that also
+    // carry rtmp ingest. A route listed in routeExecution overrides its default
+    public static final Map<String, ExecutionMode> DEFAULT_ROUTE_EXECUTION = Map.of("/vod/flv/{file}",
+            ExecutionMode.POOL);
+
+    // responses keep the connection open for the next request when the client asks for it,
+    // pipelined requests are answered in order. A live flv or websocket viewer keeps it for the stream
+    boolean keepAlive = true;
+
+    // where a route runs, by its template such as /api/streams. INLINE on the connection's event
+    // loop, POOL on the handlerThreadPoolSize threads, ORDERED_VIRTUAL on a virtual thread.
+    // Routes not listed run INLINE, except those in DEFAULT_ROUTE_EXECUTION
+    Map<String, ExecutionMode> routeExecution = new HashMap<>();
+
+    // HTTP/2 next to HTTP/1.1: h2c by prior knowledge or Upgrade: h2c, with tls h2 by alpn.
+    // A player can then carry several flv streams and api calls on one connection
+    boolean http2 = true;
+
+    // streams one HTTP/2 connection may have open at once
+    int maxConcurrentStreams = 100;
+
+    // PEM certificate chain and PKCS#8 private key, with both set the http port speaks tls
+    String tlsCertificateFile;
+    String tlsPrivateKeyFile;
+}
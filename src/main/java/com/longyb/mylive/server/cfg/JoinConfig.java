@@ -0,0 +1,19 @@
+package com.longyb.mylive.server.cfg;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * how viewers of an app join a stream
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class JoinConfig {
+
+    JoinMode mode = JoinMode.FULL_GOP;
+
+    // the span a LATEST_KEYFRAME_BURST replay is squeezed into
+    int burstMillis = 200;
+}
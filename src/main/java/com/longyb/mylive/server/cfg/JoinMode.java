@@ -0,0 +1,38 @@
+package com.longyb.mylive.server.cfg;
+
+/**
+ * what a viewer gets from the gop cache when it starts to play
+ */
+public enum JoinMode {
+    /**
+     * everything cached, the viewer starts as far behind live as the cache
+     * reaches back
+     */
+    FULL_GOP,
+    /**
+     * the latest gop with its timestamps squeezed into burstMillis, players
+     * decode it at once and catch up with the live edge
+     */
+    LATEST_KEYFRAME_BURST,
+    /**
+     * nothing but the decoder configuration, the viewer waits for the next key
+     * frame
+     */
+    LIVE_EDGE;
+
+    /**
+     * @param value as in {@code ?join=live-edge}
+     * @return null if value names no mode
+     */
+    public static JoinMode fromParameter(String value) {
+        if (value == null) {
+            return null;
+        }
+        for (JoinMode mode : values()) {
+            if (mode.name().replace('_', '-').equalsIgnoreCase(value)) {
+                return mode;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,18 @@
+package com.longyb.mylive.server.cfg;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * the prometheus /metrics route
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class MetricsConfig {
+
+    // streams that get series of their own, by app and name. The others of an app are summed up
+    // under stream="_other", 0 reports every stream that way
+    int streamLabelLimit = 100;
+}
@@ -0,0 +1,51 @@
+package com.longyb.mylive.server.cfg;
+
+import lombok.Data;
+
+/**
+ * how streams are recorded to flv files when saveFlvFile is on
+ */
+@Data
+public class RecorderConfig {
+
+    public enum Fsync {
+        /**
+         * leave it to the operating system
+         */
+        NONE,
+        /**
+         * when a segment is complete
+         */
+        SEGMENT,
+        /**
+         * at most every fsyncIntervalMillis, and when a segment is complete
+         */
+        INTERVAL
+    }
+
+    // threads writing the files of all streams
+    int threads = 2;
+
+    // per stream, beyond this frames are dropped until the next key frame
+    long maxQueuedBytes = 16L * 1024 * 1024;
+
+    // tags written with one gathering write
+    int maxBatch = 64;
+
+    Fsync fsync = Fsync.SEGMENT;
+    int fsyncIntervalMillis = 1000;
+
+    // a new file is started at the first key frame beyond either limit, 0 for none
+    long segmentMaxBytes = 0;
+    int segmentMaxDurationMillis = 0;
+
+    // room left in a segment's onMetaData for the key frame index, 18 bytes a key frame and
+    // at most 65535. An index that does not fit makes finalizing rewrite the whole file
+    int metadataPaddingBytes = 32768;
+
+    // how often the key frame index of the current segment goes to its sidecar file
+    int indexCheckpointMillis = 5000;
+
+    // on shutdown, how long to wait for the recorders to write their queues and finalize
+    int shutdownTimeoutMillis = 30000;
+}
@@ -0,0 +1,24 @@
+package com.longyb.mylive.server.cfg;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * live statistics of the streams api
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class StatsConfig {
+
+    // how often the counters are turned into rates, the api's json is rebuilt at most this often
+    long intervalMillis = 1000;
+
+    // samples kept per stream
+    int history = 60;
+
+    // one in this many published messages is timed from its first chunk to the write of each
+    // viewer, 0 turns latency tracking off
+    int latencySampleEvery = 32;
+}
@@ -0,0 +1,28 @@
+package com.longyb.mylive.server.cfg;
+
+import lombok.Data;
+
+/**
+ * event loops shared by the rtmp and the http server
+ */
+@Data
+public class TransportConfig {
+
+    public enum Type {
+        /**
+         * io_uring, else epoll, else nio
+         */
+        AUTO, IO_URING, EPOLL, NIO
+    }
+
+    Type type = Type.AUTO;
+
+    int bossThreads = 1;
+    // 0 means netty's default of twice the number of cores
+    int workerThreads = 0;
+
+    // bind every server port acceptorThreads times with SO_REUSEPORT, the kernel
+    // spreads new connections over them. Needs epoll or io_uring
+    boolean reusePort = false;
+    int acceptorThreads = 1;
+}
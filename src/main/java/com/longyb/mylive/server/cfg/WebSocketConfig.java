@@ -0,0 +1,21 @@
+package com.longyb.mylive.server.cfg;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * websocket-flv at /ws/flv/{app}/{stream}
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WebSocketConfig {
+
+    // negotiate permessage-deflate with clients that offer it. Every socket then compresses
+    // its own copy of the already compressed media, so it is off unless a proxy needs it
+    boolean deflate = false;
+
+    // the largest frame a client may send, viewers only send control frames
+    int maxFramePayloadLength = 8192;
+}
@@ -0,0 +1,22 @@
+package com.longyb.mylive.server.cfg;
+
+import io.netty.channel.WriteBufferWaterMark;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * outbound buffer limits of a connection in bytes, the channel turns
+ * unwritable above highWaterMark and writable again below lowWaterMark
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WriteBufferConfig {
+    int lowWaterMark;
+    int highWaterMark;
+
+    public WriteBufferWaterMark toWaterMark() {
+        return new WriteBufferWaterMark(lowWaterMark, highWaterMark);
+    }
+}
@@ -0,0 +1,299 @@
+package com.longyb.mylive.server.entities;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.longyb.mylive.server.cfg.GopCacheConfig;
+import com.longyb.mylive.server.rtmp.messages.AudioMessage;
+import com.longyb.mylive.server.rtmp.messages.RtmpMediaMessage;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+/**
+ * One generation of the gop cache: the decoder configuration at the time it
+ * was started and the latest gops.
+ * <p>
+ * Only the publisher appends, joining subscribers read a prefix of it without
+ * taking a lock. Readers hold a reference ({@link #tryRetain()}) so that the
+ * publisher moving on to the next generation does not free the messages they
+ * are still replaying.
+ * <p>
+ * Entries are never removed from a generation. Once it exceeds the limits the
+ * publisher replaces it by a {@link #trim trimmed} copy.
+ * <p>
+ * Messages are sliced from the publisher's inbound buffers, a slice kept for
+ * seconds would keep the whole buffer around. The cache holds copies of its
+ * own size instead, so the bytes it counts are the memory it takes.
+ */
+class Gop {
+
+	private static final int INITIAL_CAPACITY = 64;
+
+	private final AtomicInteger refCnt = new AtomicInteger(1);
+
+	private final VideoMessage avcDecoderConfigurationRecord;
+	private final AudioMessage aacAudioSpecificConfig;
+
+	/**
+	 * the stream sequence this generation was started at, everything up to it
+	 * is covered by the configuration records
+	 */
+	private final long baseSequence;
+
+	// the array is replaced before count is raised, a reader that sees count
+	// sees an array holding at least count entries
+	private volatile Entry[] entries = new Entry[INITIAL_CAPACITY];
+	private volatile int count;
+
+	// written by the publisher only, read by anyone
+	private volatile long bytes;
+	private volatile int keyFrames;
+
+	/**
+	 * @param avc retained if not null, a {@link RtmpMediaMessage#copy() copy}
+	 *            unless carried over from another generation
+	 * @param aac retained if not null, like avc
+	 */
+	Gop(VideoMessage avc, AudioMessage aac, long baseSequence) {
+		this.avcDecoderConfigurationRecord = avc;
+		this.aacAudioSpecificConfig = aac;
+		this.baseSequence = baseSequence;
+		if (avc != null) {
+			avc.retain();
+		}
+		if (aac != null) {
+			aac.retain();
+		}
+	}
+
+	/**
+	 * publisher only, msg is copied
+	 */
+	void add(RtmpMediaMessage msg, long sequence, boolean keyFrame) {
+		append(msg.copy(), sequence, keyFrame);
+	}
+
+	/**
+	 * takes over the reference to msg
+	 */
+	private void append(RtmpMediaMessage msg, long sequence, boolean keyFrame) {
+		int n = count;
+		Entry[] current = entries;
+		if (n == current.length) {
+			current = Arrays.copyOf(current, n * 2);
+			entries = current;
+		}
+		int size = msg.content().capacity();
+		current[n] = new Entry(msg, sequence, keyFrame, size);
+		bytes += size;
+		if (keyFrame) {
+			keyFrames++;
+		}
+		count = n + 1;
+	}
+
+	/**
+	 * publisher only, starts a generation with other configuration records that
+	 * still holds everything of this one
+	 */
+	Gop withConfig(VideoMessage avc, AudioMessage aac, long sequence) {
+		Gop next = new Gop(avc, aac, sequence);
+		int n = count;
+		Entry[] current = entries;
+		for (int i = 0; i < n; i++) {
+			next.add(current[i]);
+		}
+		return next;
+	}
+
+	private void add(Entry entry) {
+		append(entry.message().retain(), entry.sequence(), entry.keyFrame());
+	}
+
+	boolean hasKeyFrame() {
+		return keyFrames > 0;
+	}
+
+	boolean exceeds(GopCacheConfig limits) {
+		return keyFrames > limits.getMaxGops() || bytes > limits.getMaxBytes()
+				|| durationMillis() > limits.getMaxDurationMillis();
+	}
+
+	/**
+	 * publisher only, starts a generation with the latest gops that are within
+	 * limits. If not even the last gop is, the new generation is empty and takes
+	 * no video until the next key frame. Without any key frame, as for audio
+	 * only streams, every message is a point to start at: the oldest ones are
+	 * dropped until a quarter of the limits is free again, so that this copy is
+	 * not repeated for every message.
+	 */
+	Gop trim(GopCacheConfig limits) {
+		int n = count;
+		Entry[] current = entries;
+		int from = n;
+		long size = 0;
+		if (keyFrames > 0) {
+			int gops = 0;
+			for (int i = n - 1; i >= 0; i--) {
+				size += current[i].size();
+				if (!current[i].keyFrame()) {
+					continue;
+				}
+				if (++gops > limits.getMaxGops() || size > limits.getMaxBytes()
+						|| duration(current[i], current[n - 1]) > limits.getMaxDurationMillis()) {
+					break;
+				}
+				from = i;
+			}
+		} else {
+			long maxBytes = limits.getMaxBytes() / 4 * 3;
+			long maxDuration = limits.getMaxDurationMillis() / 4 * 3;
+			for (int i = n - 1; i >= 0; i--) {
+				size += current[i].size();
+				if (size > maxBytes || duration(current[i], current[n - 1]) > maxDuration) {
+					break;
+				}
+				from = i;
+			}
+		}
+		long base = from == 0 ? baseSequence : Math.max(baseSequence, current[from - 1].sequence());
+		Gop next = new Gop(avcDecoderConfigurationRecord, aacAudioSpecificConfig, base);
+		for (int i = from; i < n; i++) {
+			next.add(current[i]);
+		}
+		return next;
+	}
+
+	int durationMillis() {
+		int n = count;
+		Entry[] current = entries;
+		return n == 0 ? 0 : duration(current[0], current[n - 1]);
+	}
+
+	private static int duration(Entry first, Entry last) {
+		return Math.max(0, timestamp(last) - timestamp(first));
+	}
+
+	private static int timestamp(Entry entry) {
+		Integer timestamp = entry.message().getTimestamp();
+		return timestamp == null ? 0 : timestamp;
+	}
+
+	GopCacheStats stats() {
+		long total = bytes;
+		if (avcDecoderConfigurationRecord != null) {
+			total += avcDecoderConfigurationRecord.content().capacity();
+		}
+		if (aacAudioSpecificConfig != null) {
+			total += aacAudioSpecificConfig.content().capacity();
+		}
+		return new GopCacheStats(count, keyFrames, total, durationMillis());
+	}
+
+	/**
+	 * a stable view of what has been appended so far, only valid while the
+	 * caller holds a reference
+	 */
+	Snapshot snapshot() {
+		int n = count;
+		return new Snapshot(entries, n);
+	}
+
+	VideoMessage getAvcDecoderConfigurationRecord() {
+		return avcDecoderConfigurationRecord;
+	}
+
+	AudioMessage getAacAudioSpecificConfig() {
+		return aacAudioSpecificConfig;
+	}
+
+	/**
+	 * @return false if the generation has already been freed
+	 */
+	boolean tryRetain() {
+		for (;;) {
+			int current = refCnt.get();
+			if (current == 0) {
+				return false;
+			}
+			if (refCnt.compareAndSet(current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	void release() {
+		if (refCnt.decrementAndGet() != 0) {
+			return;
+		}
+		Snapshot snapshot = snapshot();
+		for (int i = 0; i < snapshot.size(); i++) {
+			snapshot.get(i).release();
+		}
+		if (avcDecoderConfigurationRecord != null) {
+			avcDecoderConfigurationRecord.release();
+		}
+		if (aacAudioSpecificConfig != null) {
+			aacAudioSpecificConfig.release();
+		}
+	}
+
+	private record Entry(RtmpMediaMessage message, long sequence, boolean keyFrame, int size) {
+	}
+
+	class Snapshot {
+		private final Entry[] entries;
+		private final int size;
+
+		private Snapshot(Entry[] entries, int size) {
+			this.entries = entries;
+			this.size = size;
+		}
+
+		int size() {
+			return size;
+		}
+
+		RtmpMediaMessage get(int i) {
+			return entries[i].message();
+		}
+
+		int timestamp(int i) {
+			return Gop.timestamp(entries[i]);
+		}
+
+		/**
+		 * @return index of the last key frame, -1 if there is none
+		 */
+		int latestKeyFrame() {
+			for (int i = size - 1; i >= 0; i--) {
+				if (entries[i].keyFrame()) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/**
+		 * sequence of the last message a subscriber replaying this snapshot has
+		 * seen
+		 */
+		long lastSequence() {
+			// messages carried over by withConfig are older than the generation
+			return size == 0 ? baseSequence : Math.max(baseSequence, entries[size - 1].sequence());
+		}
+
+		/**
+		 * timestamp to stamp the configuration records with, same as the first
+		 * frame so players start at it
+		 */
+		int firstTimestamp() {
+			if (size > 0 && entries[0].message().getTimestamp() != null) {
+				return entries[0].message().getTimestamp();
+			}
+			if (avcDecoderConfigurationRecord != null && avcDecoderConfigurationRecord.getTimestamp() != null) {
+				return avcDecoderConfigurationRecord.getTimestamp();
+			}
+			return 0;
+		}
+	}
+}
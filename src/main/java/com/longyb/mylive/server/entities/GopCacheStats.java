@@ -0,0 +1,16 @@
+package com.longyb.mylive.server.entities;
+
+/**
+ * what a stream's gop cache holds right now
+ *
+ * @param messages     media messages, without the configuration records
+ * @param gops         key frames among them
+ * @param bytes        payload bytes including the configuration records, all
+ *                     held in buffers of their own, so the memory the cache
+ *                     takes
+ * @param durationMillis from the first to the last message
+ */
+public record GopCacheStats(int messages, int gops, long bytes, int durationMillis) {
+
+	public static final GopCacheStats EMPTY = new GopCacheStats(0, 0, 0, 0);
+}
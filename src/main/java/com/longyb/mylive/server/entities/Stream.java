@@ -1,48 +1,87 @@
 package com.longyb.mylive.server.entities;
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Iterator;
-import java.util.LinkedHashSet;
-import java.util.List;
+import java.nio.file.Path;
+import java.util.EnumMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArraySet;
 
-import com.longyb.mylive.amf.AMF0;
 import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.cfg.GopCacheConfig;
+import com.longyb.mylive.server.cfg.JoinMode;
+import com.longyb.mylive.server.entities.StreamCounters.Timing;
+import com.longyb.mylive.server.entities.Subscriber.Frame;
+import com.longyb.mylive.server.entities.Subscriber.Protocol;
+import com.longyb.mylive.server.flv.FlvPrelude;
+import com.longyb.mylive.server.flv.FlvRecorder;
+import com.longyb.mylive.server.flv.FlvWriter;
+import com.longyb.mylive.server.flv.RecorderStats;
+import com.longyb.mylive.server.hls.CmafPackager;
+import com.longyb.mylive.server.hls.HlsPackager;
+import com.longyb.mylive.server.metrics.ServerMetrics;
 import com.longyb.mylive.server.rtmp.Constants;
 import com.longyb.mylive.server.rtmp.messages.AudioMessage;
 import com.longyb.mylive.server.rtmp.messages.RtmpMediaMessage;
-import com.longyb.mylive.server.rtmp.messages.RtmpMessage;
+import com.longyb.mylive.server.rtmp.messages.SharedMediaMessage;
 import com.longyb.mylive.server.rtmp.messages.UserControlMessageEvent;
 import com.longyb.mylive.server.rtmp.messages.VideoMessage;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.ByteBufAllocator;
 import io.netty.channel.Channel;
-import io.netty.channel.ChannelFutureListener;
-import io.netty.handler.codec.http.DefaultLastHttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * A live stream: one publisher feeding the gop cache, the recorder, the hls
+ * and cmaf packagers and the subscribers.
+ * <p>
+ * Ingest ({@link #addContent}) never waits for viewers. Subscribers are kept
+ * in copy-on-write sets, so the publisher iterates an immutable snapshot, and
+ * a joining viewer replays the cached gop on its own event loop while holding
+ * a reference to that generation instead of the stream's monitor.
+ */
 @Data
 @Slf4j
 public class Stream {
 
-	public static final byte[] FLV_HEADER = new byte[] { 0x46, 0x4C, 0x56, 0x01, 0x05, 0x00, 0x00, 0x00, 0x09 };
-
-	private Map<String, Object> metadata;
+	private volatile Map<String, Object> metadata;
 
 	private Channel publisher;
 
-	private VideoMessage avcDecoderConfigurationRecord;
+	private final Set<Subscriber> subscribers = new CopyOnWriteArraySet<>();
+
+	/**
+	 * http-flv and websocket-flv viewers, they share every encoded tag
+	 */
+	private final Set<Subscriber> httpFLvSubscribers = new CopyOnWriteArraySet<>();
+
+	/**
+	 * current generation of the gop cache, null once the stream is closed
+	 */
+	private volatile Gop gop = new Gop(null, null, 0);
+
+	/**
+	 * what http-flv viewers get before the gop, rebuilt by the first join after
+	 * the metadata or a sequence header changed
+	 */
+	private volatile FlvPrelude flvPrelude;
 
-	private AudioMessage aacAudioSpecificConfig;
-	private Set<Channel> subscribers;
+	/**
+	 * numbers every published message, publisher only
+	 */
+	private long sequence;
 
-	private List<RtmpMediaMessage> content;
+	/**
+	 * set by the publisher, an audio only stream caches without key frames and
+	 * its viewers do not wait for one
+	 */
+	private volatile boolean hasVideo;
 
 	private StreamName streamName;
 
@@ -51,22 +90,56 @@ public class Stream {
 
 	private int obsTimeStamp;
 
-	private FileOutputStream flvOutStream;
-	private boolean flvHeadAndMetadataWritten = false;
+	/**
+	 * what the stats api reports, fed without taking the monitor
+	 */
+	@Getter(AccessLevel.NONE)
+	@Setter(AccessLevel.NONE)
+	private final StreamCounters counters;
 
-	private Set<Channel> httpFLvSubscribers;
+	/**
+	 * null unless saveFlvFile is on
+	 */
+	private FlvRecorder recorder;
+
+	/**
+	 * null unless hls is enabled
+	 */
+	private HlsPackager hls;
+
+	/**
+	 * null unless cmaf is enabled
+	 */
+	private CmafPackager cmaf;
 
 	public Stream(StreamName streamName) {
-		subscribers = new LinkedHashSet<>();
-		httpFLvSubscribers = new LinkedHashSet<>();
-		content = new ArrayList<>();
 		this.streamName = streamName;
-		if (ApplicationServerConfig.INSTANCE.isSaveFlvFile()) {
-			createFileStream();
+		this.counters = new StreamCounters(ServerMetrics.INSTANCE.app(streamName.getApp()));
+		ApplicationServerConfig cfg = ApplicationServerConfig.INSTANCE;
+		if (cfg.isSaveFlvFile()) {
+			recorder = new FlvRecorder(Path.of(cfg.getSaveFlVFilePath()),
+					streamName.getApp() + "_" + streamName.getName(), this::getMetadata, cfg.getRecorder());
+		}
+		if (cfg.getHls().isEnabled()) {
+			hls = new HlsPackager(streamName.getName(), cfg.getHls());
+		}
+		if (cfg.getCmaf().isEnabled()) {
+			cmaf = new CmafPackager(streamName.getName(), cfg.getCmaf(), this::getMetadata);
 		}
 	}
 
+	/**
+	 * msg is borrowed, everything that keeps it beyond this call retains it.
+	 * Only the publisher calls this, the monitor is never contended by viewers.
+	 */
 	public synchronized void addContent(RtmpMediaMessage msg) {
+		Gop current = gop;
+		if (current == null) {
+			log.warn("content for closed stream :{} dropped", streamName);
+			return;
+		}
+		int sampleEvery = ApplicationServerConfig.INSTANCE.getStats().getLatencySampleEvery();
+		Timing timing = sampleEvery > 0 && (sequence + 1) % sampleEvery == 0 ? counters.timing(msg) : null;
 
 		if (streamName.isObsClient()) {
 			handleObsStream(msg);
@@ -74,30 +147,132 @@ public class Stream {
 			handleNonObsStream(msg);
 		}
 
-		if(msg instanceof VideoMessage vm) {
+		long seq = ++sequence;
+		Frame frame = Frame.INTER;
+		if (msg instanceof VideoMessage vm) {
+			if (!hasVideo) {
+				hasVideo = true;
+			}
 			if (vm.isAVCDecoderConfigurationRecord()) {
+				frame = Frame.CONFIG;
 				log.info("avcDecoderConfigurationRecord  ok");
-				avcDecoderConfigurationRecord = vm;
-			}
-
-			if (vm.isH264KeyFrame()) {
+				// kept by the generation instead of being part of it
+				VideoMessage avc = vm.copy();
+				startGop(new Gop(avc, current.getAacAudioSpecificConfig(), seq));
+				avc.release();
+			} else if (vm.isH264KeyFrame()) {
 				log.debug("video key frame in stream :{}", streamName);
-				content.clear();
+				frame = Frame.KEY;
+				current.add(vm, seq, true);
+			} else if (current.hasKeyFrame()) {
+				current.add(vm, seq, false);
 			}
 		}
 
-		if(msg instanceof AudioMessage am) {
+		if (msg instanceof AudioMessage am) {
 			if (am.isAACAudioSpecificConfig()) {
-				aacAudioSpecificConfig = am;
+				frame = Frame.CONFIG;
+				AudioMessage aac = am.copy();
+				startGop(current.withConfig(current.getAvcDecoderConfigurationRecord(), aac, seq));
+				aac.release();
+			} else if (!hasVideo || current.hasKeyFrame()) {
+				// video streams only cache what follows a key frame, a viewer could
+				// not decode anything before it
+				current.add(am, seq, false);
 			}
 		}
 
+		GopCacheConfig limits = ApplicationServerConfig.INSTANCE.getGopCache();
+		if (gop.exceeds(limits)) {
+			startGop(gop.trim(limits));
+		}
 
-		content.add(msg);
-		if (ApplicationServerConfig.INSTANCE.isSaveFlvFile()) {
-			writeFlv(msg);
+		if (recorder != null) {
+			recorder.record(msg);
+		}
+		if (hls != null) {
+			hls.add(msg);
+		}
+		if (cmaf != null) {
+			cmaf.add(msg);
+		}
+		counters.published(msg, frame);
+		broadCastToSubscribers(msg, seq, frame, timing);
+	}
+
+	/**
+	 * viewers still replaying the previous generation keep it alive until they
+	 * are done
+	 */
+	private void startGop(Gop next) {
+		Gop previous = gop;
+		gop = next;
+		previous.release();
+	}
+
+	/**
+	 * null if the stream is not recorded
+	 */
+	public RecorderStats getRecorderStats() {
+		return recorder == null ? null : recorder.stats();
+	}
+
+	/**
+	 * what the gop cache holds, for capacity planning
+	 */
+	public GopCacheStats getGopCacheStats() {
+		Gop current = acquireGop();
+		if (current == null) {
+			return GopCacheStats.EMPTY;
+		}
+		try {
+			return current.stats();
+		} finally {
+			current.release();
+		}
+	}
+
+	/**
+	 * as of the last sample, never blocks the publisher
+	 */
+	public StreamStats getStats() {
+		return counters.latest();
+	}
+
+	/**
+	 * turns the counters into rates since the previous call, only the stats
+	 * sampler calls this
+	 *
+	 * @param history samples to keep
+	 */
+	public StreamStats sampleStats(int history) {
+		Map<Protocol, Integer> viewers = new EnumMap<>(Protocol.class);
+		for (Protocol protocol : Protocol.values()) {
+			viewers.put(protocol, 0);
+		}
+		for (Subscriber subscriber : subscribers) {
+			viewers.merge(subscriber.getProtocol(), 1, Integer::sum);
+		}
+		for (Subscriber subscriber : httpFLvSubscribers) {
+			viewers.merge(subscriber.getProtocol(), 1, Integer::sum);
+		}
+		return counters.sample(viewers, history);
+	}
+
+	/**
+	 * @return the current generation retained, null if the stream is closed
+	 */
+	private Gop acquireGop() {
+		for (;;) {
+			Gop current = gop;
+			if (current == null) {
+				return null;
+			}
+			if (current.tryRetain()) {
+				return current;
+			}
+			// released after being replaced, the next read sees its successor
 		}
-		broadCastToSubscribers(msg);
 	}
 
 	private void handleNonObsStream(RtmpMediaMessage msg) {
@@ -149,199 +324,312 @@ public class Stream {
 		}
 	}
 
-	private byte[] encodeMediaAsFlvTagAndPrevTagSize(RtmpMediaMessage msg) {
-		int tagType = msg.getMsgType();
-		byte[] data = msg.raw();
-		int dataSize = data.length;
-		int timestamp = msg.getTimestamp() & 0xffffff;
-		int timestampExtended = ((msg.getTimestamp() & 0xff000000) >> 24);
+	public void addSubscriber(Channel channel) {
+		addSubscriber(channel, null);
+	}
+
+	/**
+	 * @param joinMode null for the app's default
+	 */
+	public void addSubscriber(Channel channel, JoinMode joinMode) {
+		Subscriber subscriber = newSubscriber(channel, Protocol.RTMP, joinMode);
+		subscriber.execute(() -> join(subscriber, subscribers));
+	}
 
-		ByteBuf buffer = Unpooled.buffer();
+	public void addHttpFlvSubscriber(Channel channel) {
+		addHttpFlvSubscriber(channel, null);
+	}
 
-		buffer.writeByte(tagType);
-		buffer.writeMedium(dataSize);
-		buffer.writeMedium(timestamp);
-		buffer.writeByte(timestampExtended);// timestampExtended
-		buffer.writeMedium(0);// streamid
-		buffer.writeBytes(data);
-		buffer.writeInt(data.length + 11); // previousTagSize
+	/**
+	 * @param joinMode null for the app's default
+	 */
+	public void addHttpFlvSubscriber(Channel channel, JoinMode joinMode) {
+		Subscriber subscriber = newSubscriber(channel, Protocol.HTTP_FLV, joinMode);
+		subscriber.execute(() -> join(subscriber, httpFLvSubscribers));
+	}
 
-		byte[] r = new byte[buffer.readableBytes()];
-		buffer.readBytes(r);
+	/**
+	 * the channel's pipeline turns the flv tags into binary frames
+	 *
+	 * @param joinMode null for the app's default
+	 */
+	public void addWebSocketFlvSubscriber(Channel channel, JoinMode joinMode) {
+		Subscriber subscriber = newSubscriber(channel, Protocol.WS_FLV, joinMode);
+		subscriber.execute(() -> join(subscriber, httpFLvSubscribers));
+	}
 
-		return r;
+	private Subscriber newSubscriber(Channel channel, Protocol protocol, JoinMode joinMode) {
+		ApplicationServerConfig cfg = ApplicationServerConfig.INSTANCE;
+		String app = streamName.getApp();
+		JoinMode mode = joinMode != null ? joinMode : cfg.joinConfigOf(app).getMode();
+		return new Subscriber(channel, protocol, mode, cfg.flushConfigOf(app), counters);
 	}
 
-	private void writeFlv(RtmpMediaMessage msg) {
-		if (flvOutStream == null) {
-			log.error("no flv file existed for stream : {}", streamName);
+	/**
+	 * runs on the subscriber's event loop. The subscriber is registered before
+	 * the gop is read, whatever the publisher adds in between reaches it twice
+	 * and the copy with an already replayed sequence is dropped.
+	 */
+	private void join(Subscriber subscriber, Set<Subscriber> registry) {
+		Channel channel = subscriber.getChannel();
+		registry.add(subscriber);
+		channel.closeFuture().addListener(future -> registry.remove(subscriber));
+		log.info("{} subscriber : {} is added to stream :{}", subscriber.getProtocol(), channel, streamName);
+
+		Gop current = acquireGop();
+		if (current == null) {
+			registry.remove(subscriber);
+			subscriber.close(eof(subscriber));
 			return;
 		}
 		try {
-			if (!flvHeadAndMetadataWritten) {
-				writeFlvHeaderAndMetadata();
-				flvHeadAndMetadataWritten = true;
+			Replay replay = new Replay(current.snapshot(), subscriber.getJoinMode(),
+					ApplicationServerConfig.INSTANCE.joinConfigOf(streamName.getApp()).getBurstMillis());
+			int written;
+			if (subscriber.getProtocol() == Protocol.RTMP) {
+				written = replay(channel, current, replay);
+			} else {
+				written = replayFlv(channel, current, replay);
 			}
-			byte[] encodeMediaAsFlv = encodeMediaAsFlvTagAndPrevTagSize(msg);
-			flvOutStream.write(encodeMediaAsFlv);
-			flvOutStream.flush();
-
-		} catch (IOException e) {
-			log.error("writting flv file failed , stream is :{}", streamName, e);
+			subscriber.flush();
+			subscriber.replayed(written, replay.snapshot.lastSequence());
+			if (replay.from < replay.snapshot.size()) {
+				subscriber.firstFrame(replay.delayMillis());
+			} else {
+				subscriber.awaitFirstFrame(hasVideo);
+			}
+		} finally {
+			current.release();
 		}
 	}
 
-	private byte[] encodeFlvHeaderAndMetadata() {
-		ByteBuf encodeMetaData = encodeMetaData();
-		ByteBuf buf = Unpooled.buffer();
-
-		RtmpMediaMessage msg = content.get(0);
-		int timestamp = msg.getTimestamp() & 0xffffff;
-		int timestampExtended = ((msg.getTimestamp() & 0xff000000) >> 24);
-
-		buf.writeBytes(FLV_HEADER);
-		buf.writeInt(0); // previousTagSize0
-
-		int readableBytes = encodeMetaData.readableBytes();
-		buf.writeByte(0x12); // script
-		buf.writeMedium(readableBytes);
-		// make the first script tag timestamp same as the keyframe
-		buf.writeMedium(timestamp);
-		buf.writeByte(timestampExtended);
-//		buf.writeInt(0); // timestamp + timestampExtended
-		buf.writeMedium(0);// streamid
-		buf.writeBytes(encodeMetaData);
-		buf.writeInt(readableBytes + 11);
-
-		byte[] result = new byte[buf.readableBytes()];
-		buf.readBytes(result);
-
-		return result;
-
-	}
-
-	private void writeFlvHeaderAndMetadata() throws IOException {
-		byte[] encodeFlvHeaderAndMetadata = encodeFlvHeaderAndMetadata();
-		flvOutStream.write(encodeFlvHeaderAndMetadata);
-		flvOutStream.flush();
-
-	}
-
-	private ByteBuf encodeMetaData() {
-		ByteBuf buffer = Unpooled.buffer();
-		List<Object> meta = new ArrayList<>();
-		meta.add("onMetaData");
-		meta.add(metadata);
-		log.info("Metadata:{}", metadata);
-		AMF0.encode(buffer, meta);
-
-		return buffer;
+	/**
+	 * @return number of messages written
+	 */
+	private int replay(Channel channel, Gop gop, Replay replay) {
+		Gop.Snapshot snapshot = replay.snapshot;
+		int start = replay.startTimestamp();
+		int written = snapshot.size() - replay.from;
+		// restamped duplicates, the records themselves are shared with other viewers
+		if (gop.getAvcDecoderConfigurationRecord() != null) {
+			RtmpMediaMessage avc = gop.getAvcDecoderConfigurationRecord().retainedDuplicate();
+			avc.setTimestamp(start);
+			counters.sent(avc.content().readableBytes());
+			channel.write(avc);
+			written++;
+		}
+		if (gop.getAacAudioSpecificConfig() != null) {
+			RtmpMediaMessage aac = gop.getAacAudioSpecificConfig().retainedDuplicate();
+			aac.setTimestamp(start);
+			counters.sent(aac.content().readableBytes());
+			channel.write(aac);
+			written++;
+		}
+		long bytes = 0;
+		for (int i = replay.from; i < snapshot.size(); i++) {
+			bytes += snapshot.get(i).content().readableBytes();
+		}
+		counters.sent(bytes);
+		// every write hands one reference to the channel, the encoder releases it
+		if (!replay.compressed) {
+			for (int i = replay.from; i < snapshot.size(); i++) {
+				channel.write(snapshot.get(i).retain());
+			}
+			return written;
+		}
+		int previousVideo = start;
+		int previousAudio = start;
+		for (int i = replay.from; i < snapshot.size(); i++) {
+			RtmpMediaMessage msg = snapshot.get(i).retainedDuplicate();
+			int timestamp = replay.timestamp(i);
+			msg.setTimestamp(timestamp);
+			if (msg instanceof VideoMessage) {
+				msg.setTimestampDelta(timestamp - previousVideo);
+				previousVideo = timestamp;
+			} else {
+				msg.setTimestampDelta(timestamp - previousAudio);
+				previousAudio = timestamp;
+			}
+			channel.write(msg);
+		}
+		return written;
 	}
 
-	private void createFileStream() {
-		File f = new File(
-				ApplicationServerConfig.INSTANCE.getSaveFlVFilePath() + "/" + streamName.getApp() + "_" + streamName.getName());
-		try {
-
-			flvOutStream = new FileOutputStream(f);
-
-		} catch (IOException e) {
-			log.error("create file failed", e);
-
+	private int replayFlv(Channel channel, Gop gop, Replay replay) {
+		ByteBufAllocator alloc = channel.alloc();
+		Gop.Snapshot snapshot = replay.snapshot;
+
+		// 1. flv header, metaData and the configuration records in one write
+		FlvPrelude prelude = flvPreludeOf(gop);
+		ByteBuf head = prelude.stamped(replay.startTimestamp());
+		long bytes = head.readableBytes();
+		channel.write(head);
+
+		// 2. write content
+		for (int i = replay.from; i < snapshot.size(); i++) {
+			ByteBuf tag = FlvWriter.encodeMediaTag(alloc, snapshot.get(i), replay.timestamp(i));
+			bytes += tag.readableBytes();
+			channel.write(tag);
 		}
-
+		counters.sent(bytes);
+		return snapshot.size() - replay.from + prelude.tagCount();
 	}
 
-	public synchronized void addSubscriber(Channel channel) {
-		subscribers.add(channel);
-		log.info("subscriber : {} is added to stream :{}", channel, streamName);
-		avcDecoderConfigurationRecord.setTimestamp(content.get(0).getTimestamp());
-		log.info("avcDecoderConfigurationRecord:{}", avcDecoderConfigurationRecord);
-		channel.writeAndFlush(avcDecoderConfigurationRecord);
-
-		for (RtmpMessage msg : content) {
-			channel.writeAndFlush(msg);
+	/**
+	 * joins on several event loops may rebuild it at once, they all build the
+	 * same bytes
+	 */
+	private FlvPrelude flvPreludeOf(Gop gop) {
+		Map<String, Object> meta = metadata;
+		VideoMessage avc = gop.getAvcDecoderConfigurationRecord();
+		AudioMessage aac = gop.getAacAudioSpecificConfig();
+		FlvPrelude prelude = flvPrelude;
+		if (prelude == null || !prelude.isFor(meta, avc, aac)) {
+			prelude = FlvPrelude.of(meta, avc, aac);
+			flvPrelude = prelude;
 		}
-
+		return prelude;
 	}
 
-	public synchronized void addHttpFlvSubscriber(Channel channel) {
-		httpFLvSubscribers.add(channel);
-		log.info("http flv subscriber : {} is added to stream :{}", channel, streamName);
-
-		// 1. write flv header and metaData
-		byte[] meta = encodeFlvHeaderAndMetadata();
-		channel.writeAndFlush(Unpooled.wrappedBuffer(meta));
+	/**
+	 * The part of the gop cache a join replays and the timestamps it is sent
+	 * with. A burst squeezes the time from its key frame to the last message
+	 * of each type into burstMillis, so that last message keeps its timestamp
+	 * and the live messages after it follow on seamlessly.
+	 */
+	private static final class Replay {
+		final Gop.Snapshot snapshot;
+		final int from;
+		final boolean compressed;
+		private final int window;
+		private int base;
+		private int lastVideo = Integer.MIN_VALUE;
+		private int lastAudio = Integer.MIN_VALUE;
+
+		Replay(Gop.Snapshot snapshot, JoinMode mode, int burstMillis) {
+			this.snapshot = snapshot;
+			this.from = switch (mode) {
+			case FULL_GOP -> 0;
+			case LATEST_KEYFRAME_BURST -> Math.max(0, snapshot.latestKeyFrame());
+			case LIVE_EDGE -> snapshot.size();
+			};
+			this.window = burstMillis;
+			if (from < snapshot.size()) {
+				base = snapshot.timestamp(from);
+				for (int i = from; i < snapshot.size(); i++) {
+					if (snapshot.get(i) instanceof VideoMessage) {
+						lastVideo = Math.max(lastVideo, snapshot.timestamp(i));
+					} else {
+						lastAudio = Math.max(lastAudio, snapshot.timestamp(i));
+					}
+				}
+			}
+			this.compressed = mode == JoinMode.LATEST_KEYFRAME_BURST && lastTimestamp() - base > window;
+		}
 
-		// 2. write avcDecoderConfigurationRecord
-		avcDecoderConfigurationRecord.setTimestamp(content.get(0).getTimestamp());
-		byte[] config = encodeMediaAsFlvTagAndPrevTagSize(avcDecoderConfigurationRecord);
-		channel.writeAndFlush(Unpooled.wrappedBuffer(config));
+		int timestamp(int i) {
+			int timestamp = snapshot.timestamp(i);
+			if (!compressed) {
+				return timestamp;
+			}
+			long last = snapshot.get(i) instanceof VideoMessage ? lastVideo : lastAudio;
+			long span = last - base;
+			if (span <= window) {
+				return timestamp;
+			}
+			return (int) (last - (last - timestamp) * window / span);
+		}
 
-		// 3. write aacAudioSpecificConfig
-		if (aacAudioSpecificConfig != null) {
-			aacAudioSpecificConfig.setTimestamp(content.get(0).getTimestamp());
-			byte[] aac = encodeMediaAsFlvTagAndPrevTagSize(aacAudioSpecificConfig);
-			channel.writeAndFlush(Unpooled.wrappedBuffer(aac));
+		/**
+		 * what the configuration records are stamped with
+		 */
+		int startTimestamp() {
+			if (from < snapshot.size()) {
+				return timestamp(from);
+			}
+			return snapshot.size() > 0 ? snapshot.timestamp(snapshot.size() - 1) : snapshot.firstTimestamp();
 		}
-		// 4. write content
 
-		for (RtmpMediaMessage msg : content) {
-			channel.writeAndFlush(Unpooled.wrappedBuffer(encodeMediaAsFlvTagAndPrevTagSize(msg)));
+		/**
+		 * how far behind live the first replayed frame is
+		 */
+		int delayMillis() {
+			return compressed ? window : lastTimestamp() - base;
 		}
 
+		private int lastTimestamp() {
+			return Math.max(lastVideo, lastAudio);
+		}
 	}
 
-	private synchronized void broadCastToSubscribers(RtmpMediaMessage msg) {
-		Iterator<Channel> iterator = subscribers.iterator();
-		while (iterator.hasNext()) {
-			Channel next = iterator.next();
-			if (next.isActive()) {
-				next.writeAndFlush(msg);
-			} else {
-				iterator.remove();
+	/**
+	 * @param timing null unless msg is timed
+	 */
+	private void broadCastToSubscribers(RtmpMediaMessage msg, long seq, Frame frame, Timing timing) {
+		if (!subscribers.isEmpty()) {
+			// chunked once per chunk size, not once per subscriber
+			SharedMediaMessage shared = new SharedMediaMessage(msg);
+			try {
+				for (Subscriber subscriber : subscribers) {
+					subscriber.send(shared.retain(), seq, frame, timing);
+				}
+			} finally {
+				shared.release();
 			}
 		}
 
 		if (!httpFLvSubscribers.isEmpty()) {
-			byte[] encoded = encodeMediaAsFlvTagAndPrevTagSize(msg);
-
-			Iterator<Channel> httpIte = httpFLvSubscribers.iterator();
-			while (httpIte.hasNext()) {
-				Channel next = httpIte.next();
-				ByteBuf wrappedBuffer = Unpooled.wrappedBuffer(encoded);
-				if (next.isActive()) {
-					next.writeAndFlush(wrappedBuffer);
-				} else {
-					log.info("HTTP Channel: {} is not active anymore, removing it", next);
-					httpIte.remove();
+			// one tag for all http subscribers, each writes a duplicate of it
+			ByteBuf tag = FlvWriter.encodeMediaTag(ByteBufAllocator.DEFAULT, msg);
+			try {
+				for (Subscriber subscriber : httpFLvSubscribers) {
+					subscriber.send(tag.retainedDuplicate(), seq, frame, timing);
 				}
-
+			} finally {
+				tag.release();
 			}
 		}
 
 	}
 
+	/**
+	 * completes once the recorder has written what it queued and finalized
+	 * its segment, right away when there is none
+	 */
+	public synchronized CompletableFuture<Void> closeRecorder() {
+		return recorder == null ? CompletableFuture.completedFuture(null) : recorder.close();
+	}
+
 	public synchronized void sendEofToAllSubscriberAndClose() {
-		if (ApplicationServerConfig.INSTANCE.isSaveFlvFile() && flvOutStream != null) {
-			try {
-				flvOutStream.flush();
-				flvOutStream.close();
-			} catch (IOException e) {
-				log.error("close file:{} failed", flvOutStream);
-			}
+		if (recorder != null) {
+			recorder.close();
 		}
-		for (Channel sc : subscribers) {
-			sc.writeAndFlush(UserControlMessageEvent.streamEOF(Constants.DEFAULT_STREAM_ID))
-					.addListener(ChannelFutureListener.CLOSE);
-
+		if (hls != null) {
+			hls.close();
+		}
+		if (cmaf != null) {
+			cmaf.close();
+		}
+		Gop last = gop;
+		gop = null;
+		if (last != null) {
+			last.release();
+		}
+		// viewers joining from now on find no gop and close themselves
+		for (Subscriber subscriber : subscribers) {
+			subscriber.close(eof(subscriber));
+		}
+		for (Subscriber subscriber : httpFLvSubscribers) {
+			subscriber.close(eof(subscriber));
 		}
 
-		for (Channel sc : httpFLvSubscribers) {
-			sc.writeAndFlush(DefaultLastHttpContent.EMPTY_LAST_CONTENT).addListener(ChannelFutureListener.CLOSE);
+	}
 
+	private static Object eof(Subscriber subscriber) {
+		if (subscriber.getProtocol() == Protocol.RTMP) {
+			return UserControlMessageEvent.streamEOF(Constants.DEFAULT_STREAM_ID);
 		}
-
+		return LastHttpContent.EMPTY_LAST_CONTENT;
 	}
 
 }
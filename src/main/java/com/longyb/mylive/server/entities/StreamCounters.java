@@ -0,0 +1,192 @@
+package com.longyb.mylive.server.entities;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.longyb.mylive.server.entities.StreamStats.Latency;
+import com.longyb.mylive.server.entities.StreamStats.Sample;
+import com.longyb.mylive.server.entities.Subscriber.Frame;
+import com.longyb.mylive.server.entities.Subscriber.Protocol;
+import com.longyb.mylive.server.metrics.LatencyHistogram;
+import com.longyb.mylive.server.metrics.ServerMetrics.AppTraffic;
+import com.longyb.mylive.server.rtmp.messages.AudioMessage;
+import com.longyb.mylive.server.rtmp.messages.RtmpMediaMessage;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+/**
+ * Counters a stream keeps on its hot paths and the sampler turns into
+ * {@link StreamStats}. Nothing here takes a lock: the publisher's fields
+ * have a single writer, the viewers' event loops add to a {@link LongAdder},
+ * and only the sampler thread reads the previous sample. Bytes and dropped
+ * frames are also added to the app's totals, which outlive the stream.
+ */
+final class StreamCounters {
+
+	private final AppTraffic app;
+
+	private final LongAdder ingressBytes = new LongAdder();
+	private final LongAdder videoFrames = new LongAdder();
+	private final LongAdder egressBytes = new LongAdder();
+
+	// of the timed messages only
+	private final LatencyHistogram decodeLatency = new LatencyHistogram();
+	private final LatencyHistogram handoffLatency = new LatencyHistogram();
+	private final LatencyHistogram[] egressLatency = histograms();
+	private final LatencyHistogram[] endToEndLatency = histograms();
+
+	// publisher only
+	private int lastKeyFrameTimestamp = -1;
+	private int framesSinceKeyFrame;
+
+	// written by the publisher, read by the sampler
+	private volatile int gopMillis;
+	private volatile int gopFrames;
+	private volatile int videoTimestamp = -1;
+	private volatile int audioTimestamp = -1;
+
+	StreamCounters(AppTraffic app) {
+		this.app = app;
+	}
+
+	private static LatencyHistogram[] histograms() {
+		LatencyHistogram[] histograms = new LatencyHistogram[Protocol.values().length];
+		for (int i = 0; i < histograms.length; i++) {
+			histograms[i] = new LatencyHistogram();
+		}
+		return histograms;
+	}
+
+	/**
+	 * when a timed message was read and reached the stream
+	 */
+	record Timing(long receivedNanos, long publishedNanos) {
+	}
+
+	/**
+	 * publisher only, msg is to be timed as it reaches the viewers
+	 */
+	Timing timing(RtmpMediaMessage msg) {
+		long now = System.nanoTime();
+		long received = msg.getReceivedNanos();
+		// messages that were not read from a connection have no ingest stages
+		if (received != 0) {
+			decodeLatency.recordNanos(msg.getDecodedNanos() - received);
+			handoffLatency.recordNanos(now - msg.getDecodedNanos());
+		}
+		return new Timing(received, now);
+	}
+
+	/**
+	 * any thread, a viewer's write of a timed message completed
+	 */
+	void written(Protocol protocol, Timing timing) {
+		long now = System.nanoTime();
+		egressLatency[protocol.ordinal()].recordNanos(now - timing.publishedNanos());
+		if (timing.receivedNanos() != 0) {
+			endToEndLatency[protocol.ordinal()].recordNanos(now - timing.receivedNanos());
+		}
+	}
+
+	// sampler only
+	private long sampledAtNanos = System.nanoTime();
+	private long sampledIngress;
+	private long sampledVideoFrames;
+	private long sampledEgress;
+	private final ArrayDeque<Sample> history = new ArrayDeque<>();
+
+	private volatile StreamStats latest = StreamStats.EMPTY;
+
+	/**
+	 * publisher only, with the message's timestamp already made absolute
+	 */
+	void published(RtmpMediaMessage msg, Frame frame) {
+		int bytes = msg.content().readableBytes();
+		ingressBytes.add(bytes);
+		app.received(bytes);
+		if (frame == Frame.CONFIG) {
+			return;
+		}
+		Integer timestamp = msg.getTimestamp();
+		int ts = timestamp == null ? 0 : timestamp;
+		if (msg instanceof VideoMessage) {
+			videoFrames.increment();
+			videoTimestamp = ts;
+			if (frame == Frame.KEY) {
+				if (lastKeyFrameTimestamp >= 0) {
+					gopMillis = ts - lastKeyFrameTimestamp;
+					gopFrames = framesSinceKeyFrame;
+				}
+				lastKeyFrameTimestamp = ts;
+				framesSinceKeyFrame = 0;
+			}
+			framesSinceKeyFrame++;
+		} else if (msg instanceof AudioMessage) {
+			audioTimestamp = ts;
+		}
+	}
+
+	/**
+	 * any thread
+	 */
+	void sent(long bytes) {
+		egressBytes.add(bytes);
+		app.sent(bytes);
+	}
+
+	/**
+	 * any thread, a viewer skipped a frame
+	 */
+	void dropped() {
+		app.dropped();
+	}
+
+	/**
+	 * sampler only
+	 */
+	StreamStats sample(Map<Protocol, Integer> subscribers, int historySize) {
+		long now = System.nanoTime();
+		double seconds = Math.max(1, now - sampledAtNanos) / (double) TimeUnit.SECONDS.toNanos(1);
+		long ingress = ingressBytes.sum();
+		long frames = videoFrames.sum();
+		long egress = egressBytes.sum();
+		double ingressKbps = (ingress - sampledIngress) * 8 / 1000.0 / seconds;
+		double fps = (frames - sampledVideoFrames) / seconds;
+		double egressKbps = (egress - sampledEgress) * 8 / 1000.0 / seconds;
+		sampledAtNanos = now;
+		sampledIngress = ingress;
+		sampledVideoFrames = frames;
+		sampledEgress = egress;
+
+		long at = System.currentTimeMillis();
+		int viewers = subscribers.values().stream().mapToInt(Integer::intValue).sum();
+		history.addLast(new Sample(at, ingressKbps, fps, egressKbps, viewers));
+		while (history.size() > historySize) {
+			history.removeFirst();
+		}
+		int video = videoTimestamp;
+		int audio = audioTimestamp;
+		StreamStats stats = new StreamStats(at, ingressKbps, fps, gopMillis, gopFrames,
+				video < 0 || audio < 0 ? 0 : video - audio, subscribers, egress, egressKbps, new ArrayList<>(history),
+				latency());
+		latest = stats;
+		return stats;
+	}
+
+	private Latency latency() {
+		Map<Protocol, LatencyHistogram.Percentiles> egressByProtocol = new EnumMap<>(Protocol.class);
+		Map<Protocol, LatencyHistogram.Percentiles> endToEndByProtocol = new EnumMap<>(Protocol.class);
+		for (Protocol protocol : Protocol.values()) {
+			egressByProtocol.put(protocol, egressLatency[protocol.ordinal()].interval());
+			endToEndByProtocol.put(protocol, endToEndLatency[protocol.ordinal()].interval());
+		}
+		return new Latency(decodeLatency.interval(), handoffLatency.interval(), egressByProtocol, endToEndByProtocol);
+	}
+
+	StreamStats latest() {
+		return latest;
+	}
+}
@@ -0,0 +1,52 @@
+package com.longyb.mylive.server.entities;
+
+import java.util.List;
+import java.util.Map;
+
+import com.longyb.mylive.server.entities.Subscriber.Protocol;
+import com.longyb.mylive.server.metrics.LatencyHistogram.Percentiles;
+
+/**
+ * A stream's live statistics as of the last sample, rates are over the
+ * sample interval.
+ *
+ * @param ingressKbps    published bitrate
+ * @param videoFps       published video frames per second
+ * @param gopMillis      between the last two key frames, 0 before the second
+ * @param gopFrames      video frames in that gop
+ * @param avDriftMillis  latest video timestamp minus latest audio timestamp
+ * @param subscribers    viewers per protocol
+ * @param egressBytes    sent to viewers since the stream started
+ * @param egressKbps     sent to viewers
+ * @param history        the latest samples, oldest first
+ * @param latency        of the messages timed in the interval
+ */
+public record StreamStats(long sampledAtMillis, double ingressKbps, double videoFps, int gopMillis, int gopFrames,
+		int avDriftMillis, Map<Protocol, Integer> subscribers, long egressBytes, double egressKbps,
+		List<Sample> history, Latency latency) {
+
+	public static final StreamStats EMPTY = new StreamStats(0, 0, 0, 0, 0, 0, Map.of(), 0, 0, List.of(),
+			new Latency(Percentiles.EMPTY, Percentiles.EMPTY, Map.of(), Map.of()));
+
+	/**
+	 * Where a message spends its time on the server. Together the stages add
+	 * up to endToEnd, the network before the first chunk is not included.
+	 *
+	 * @param decode   from the read of its first chunk to that of its last,
+	 *                 the time chunks of other messages are interleaved
+	 * @param handoff  from decoding to the stream, the hop to the handler
+	 *                 executor
+	 * @param egress   from the stream to the viewer's write completing, the
+	 *                 viewer's event loop, its flushes and its socket
+	 * @param endToEnd from the first chunk to the viewer's write completing
+	 */
+	public record Latency(Percentiles decode, Percentiles handoff, Map<Protocol, Percentiles> egress,
+			Map<Protocol, Percentiles> endToEnd) {
+	}
+
+	/**
+	 * one entry of the history
+	 */
+	public record Sample(long atMillis, double ingressKbps, double videoFps, double egressKbps, int subscribers) {
+	}
+}
@@ -1,9 +1,315 @@
 package com.longyb.mylive.server.entities;
+
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.cfg.FlushConfig;
+import com.longyb.mylive.server.cfg.FlushConfig.Profile;
+import com.longyb.mylive.server.cfg.JoinMode;
+import com.longyb.mylive.server.entities.StreamCounters.Timing;
+import com.longyb.mylive.server.handlers.ChunkEncoder;
+import com.longyb.mylive.server.rtmp.messages.RtmpMediaMessage;
+import com.longyb.mylive.server.rtmp.messages.SharedMediaMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.EventLoop;
+import io.netty.util.ReferenceCountUtil;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
 /**
-@author longyubo
-2020年1月2日 下午3:52:59
-**/
+ * A viewer of a stream.
+ * <p>
+ * Everything written to a subscriber runs on its channel's event loop: the
+ * publisher only queues the message there and moves on, and the gop replay of
+ * a join cannot interleave with the live messages. Live messages the replay
+ * already covered are recognized by their stream sequence and dropped.
+ * <p>
+ * A subscriber whose channel turns unwritable skips frames until the next key
+ * frame it can write, then carries on at the live edge. It is disconnected if
+ * it stays behind for longer than the configured timeout.
+ * <p>
+ * With the {@link Profile#THROUGHPUT} flush profile live messages are only
+ * written, one flush per event loop tick or flush window sends them all.
+ * <p>
+ * The time from the play request to the first frame written and how far
+ * behind live that frame is are recorded once per join. The writes of the
+ * messages the stream picked for timing report when they complete.
+ *
+ * @author longyubo 2020年1月2日 下午3:52:59
+ **/
+@Slf4j
 public class Subscriber {
 
-}
+	public enum Protocol {
+		RTMP, HTTP_FLV, WS_FLV
+	}
+
+	/**
+	 * what skipping a message would cost the viewer
+	 */
+	public enum Frame {
+		/**
+		 * decoder configuration, never skipped
+		 */
+		CONFIG,
+		/**
+		 * a point to resume at after skipping
+		 */
+		KEY,
+		/**
+		 * everything else, including audio
+		 */
+		INTER
+	}
+
+	@Getter
+	private final Channel channel;
+
+	@Getter
+	private final Protocol protocol;
+
+	@Getter
+	private final JoinMode joinMode;
+
+	private final long joinedAt = System.nanoTime();
+
+	private final long slowTimeoutNanos;
+
+	private final boolean coalesceFlushes;
+	private final int flushWindowMillis;
+	private final Runnable flushTask = this::flushPending;
+
+	// shared by all viewers of the stream
+	private final StreamCounters counters;
+
+	// only touched on the event loop
+	private long lastSequence;
+	private boolean closed;
+	private boolean skipping;
+	private long behindSince;
+	private boolean flushPending;
+	private boolean awaitingFirstFrame;
+	private boolean awaitingKeyFrame;
+
+	// written on the event loop only, read by anyone
+	@Getter
+	private volatile long droppedFrames;
+	@Getter
+	private volatile long skips;
+	@Getter
+	private volatile long writes;
+	@Getter
+	private volatile long flushes;
 
+	// -1 until the first frame is written
+	@Getter
+	private volatile long timeToFirstFrameMicros = -1;
+	@Getter
+	private volatile int joinDelayMillis;
+
+	/**
+	 * @param counters of the stream, what is written and dropped is added to them
+	 */
+	Subscriber(Channel channel, Protocol protocol, JoinMode joinMode, FlushConfig flush, StreamCounters counters) {
+		this.channel = channel;
+		this.counters = counters;
+		this.protocol = protocol;
+		this.joinMode = joinMode;
+		this.coalesceFlushes = flush.getProfile() == Profile.THROUGHPUT;
+		this.flushWindowMillis = flush.getWindowMillis();
+		ApplicationServerConfig cfg = ApplicationServerConfig.INSTANCE;
+		this.slowTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(cfg.getSlowSubscriberTimeoutMillis());
+		channel.config().setWriteBufferWaterMark(cfg.getSubscriberWriteBuffer().toWaterMark());
+	}
+
+	/**
+	 * runs task on the event loop, inline if already there
+	 *
+	 * @return false if the event loop is shut down
+	 */
+	boolean execute(Runnable task) {
+		EventLoop loop = channel.eventLoop();
+		if (loop.inEventLoop()) {
+			task.run();
+			return true;
+		}
+		try {
+			loop.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			log.debug("event loop of subscriber {} is shut down", channel);
+			return false;
+		}
+	}
+
+	/**
+	 * msg is handed over, it is released if it does not get written
+	 *
+	 * @param timing null unless the completion of the write is to be timed
+	 */
+	void send(Object msg, long sequence, Frame frame, Timing timing) {
+		if (!execute(() -> write(msg, sequence, frame, timing))) {
+			ReferenceCountUtil.release(msg);
+		}
+	}
+
+	private void write(Object msg, long sequence, Frame frame, Timing timing) {
+		if (closed || sequence <= lastSequence || !channel.isActive()) {
+			ReferenceCountUtil.release(msg);
+			return;
+		}
+		lastSequence = sequence;
+		if (frame != Frame.CONFIG && awaitingFirstFrame) {
+			if (awaitingKeyFrame && frame != Frame.KEY) {
+				ReferenceCountUtil.release(msg);
+				return;
+			}
+			awaitingFirstFrame = false;
+			// the configuration records were stamped with some earlier time
+			restartMediaTimestamps();
+			firstFrame(0);
+		}
+		if (frame != Frame.CONFIG && !keepUp(frame)) {
+			ReferenceCountUtil.release(msg);
+			droppedFrames++;
+			counters.dropped();
+			return;
+		}
+		counters.sent(sizeOf(msg));
+		if (timing == null) {
+			channel.write(msg);
+		} else {
+			// completes once the bytes are handed to the socket
+			channel.write(msg).addListener(f -> {
+				if (f.isSuccess()) {
+					counters.written(protocol, timing);
+				}
+			});
+		}
+		writes++;
+		if (!coalesceFlushes) {
+			flush();
+		} else if (!flushPending) {
+			flushPending = true;
+			// runs after every write the publisher has queued so far
+			if (flushWindowMillis > 0) {
+				channel.eventLoop().schedule(flushTask, flushWindowMillis, TimeUnit.MILLISECONDS);
+			} else {
+				channel.eventLoop().execute(flushTask);
+			}
+		}
+	}
+
+	/**
+	 * payload bytes of an rtmp message, the tag bytes of http viewers
+	 */
+	private static long sizeOf(Object msg) {
+		if (msg instanceof ByteBuf buf) {
+			return buf.readableBytes();
+		}
+		if (msg instanceof SharedMediaMessage shared) {
+			return shared.getMessage().content().readableBytes();
+		}
+		if (msg instanceof RtmpMediaMessage media) {
+			return media.content().readableBytes();
+		}
+		return 0;
+	}
+
+	private void flushPending() {
+		flushPending = false;
+		flush();
+	}
+
+	/**
+	 * event loop only
+	 */
+	void flush() {
+		channel.flush();
+		flushes++;
+	}
+
+	/**
+	 * @return false if the frame is to be skipped
+	 */
+	private boolean keepUp(Frame frame) {
+		if (!skipping) {
+			if (channel.isWritable()) {
+				return true;
+			}
+			skipping = true;
+			skips++;
+			behindSince = System.nanoTime();
+			log.info("subscriber {} can not keep up, skipping to the next key frame", channel);
+		} else if (frame == Frame.KEY && channel.isWritable()) {
+			skipping = false;
+			log.info("subscriber {} resumes after {} dropped frames", channel, droppedFrames);
+			restartMediaTimestamps();
+			return true;
+		}
+		if (System.nanoTime() - behindSince > slowTimeoutNanos) {
+			log.warn("subscriber {} has been behind for too long, disconnecting", channel);
+			closed = true;
+			channel.close();
+		}
+		return false;
+	}
+
+	private void restartMediaTimestamps() {
+		ChunkEncoder encoder = channel.pipeline().get(ChunkEncoder.class);
+		if (encoder != null) {
+			encoder.restartMediaTimestamps();
+		}
+	}
+
+	/**
+	 * event loop only, the first frame has been written
+	 *
+	 * @param delayMillis how far behind live it is
+	 */
+	void firstFrame(int delayMillis) {
+		joinDelayMillis = delayMillis;
+		timeToFirstFrameMicros = TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - joinedAt);
+		log.info("subscriber {} joined {}: first frame after {} us, {} ms behind live", channel, joinMode,
+				timeToFirstFrameMicros, delayMillis);
+	}
+
+	/**
+	 * event loop only, nothing was replayed. Live messages are dropped until a
+	 * key frame if keyFrame is set, the first one written starts the viewer
+	 */
+	void awaitFirstFrame(boolean keyFrame) {
+		awaitingFirstFrame = true;
+		awaitingKeyFrame = keyFrame;
+	}
+
+	/**
+	 * event loop only, live messages up to sequence have been replayed and
+	 * written
+	 */
+	void replayed(int written, long sequence) {
+		writes += written;
+		lastSequence = sequence;
+	}
+
+	/**
+	 * writes last and closes the channel, whatever is sent afterwards is dropped
+	 */
+	void close(Object last) {
+		if (!execute(() -> {
+			if (closed) {
+				ReferenceCountUtil.release(last);
+				return;
+			}
+			closed = true;
+			channel.writeAndFlush(last).addListener(ChannelFutureListener.CLOSE);
+		})) {
+			ReferenceCountUtil.release(last);
+		}
+	}
+
+}
@@ -0,0 +1,143 @@
+package com.longyb.mylive.server.flv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+/**
+ * Gives a recorded flv file the onMetaData players need to seek: duration,
+ * filesize and the keyframes object with filepositions and times.
+ * <p>
+ * The recorder starts every file with an onMetaData padded by a string
+ * property, see {@link #padded(Map, int)}. When the new metadata fits, it is
+ * written over the old one with the padding shrunk to what is left, and the
+ * tags are not touched.
+ * <p>
+ * Otherwise the file is rewritten: the new head, then the tags copied by the
+ * kernel with {@link FileChannel#transferTo}. The result replaces the file
+ * atomically, a crash in between leaves the old file as it was.
+ */
+public class FlvFinalizer {
+
+	static final String PADDING = "padding";
+
+	// property name and short string, the padding itself not counted
+	private static final int PADDING_OVERHEAD = 2 + PADDING.length() + 1 + 2;
+	static final int MAX_PADDING = 0xffff;
+
+	private FlvFinalizer() {
+	}
+
+	/**
+	 * metadata with a padding property of length bytes, at most
+	 * {@link #MAX_PADDING}
+	 */
+	public static Map<String, Object> padded(Map<String, Object> metadata, int length) {
+		Map<String, Object> meta = new LinkedHashMap<>();
+		if (metadata != null) {
+			meta.putAll(metadata);
+		}
+		meta.put(PADDING, " ".repeat(Math.min(length, MAX_PADDING)));
+		return meta;
+	}
+
+	/**
+	 * @param bodyStart where the first tag after the old onMetaData starts
+	 * @param bodyEnd   where the last complete tag ends, anything after it is
+	 *                  dropped
+	 * @param metadata  what the publisher sent, kept apart from the fields
+	 *                  written here
+	 */
+	public static void finish(Path file, long bodyStart, long bodyEnd, Map<String, Object> metadata,
+			KeyframeIndex index, int durationMillis, boolean fsync) throws IOException {
+		Map<String, Object> meta = new LinkedHashMap<>();
+		if (metadata != null) {
+			meta.putAll(metadata);
+			meta.remove(PADDING);
+		}
+		meta.put("duration", durationMillis / 1000.0);
+		meta.put("filesize", (double) bodyEnd);
+		meta.put("hasKeyframes", index.size() > 0);
+		meta.put("keyframes", index.toMetadata(0));
+		if (patch(file, bodyStart, bodyEnd, meta, fsync)) {
+			return;
+		}
+
+		meta.put("filesize", 0.0);
+		// amf numbers have a fixed size, so the head's length only depends on
+		// the number of key frames and the positions can be shifted beforehand
+		ByteBuf head = FlvWriter.encodeHeaderAndMetadata(ByteBufAllocator.DEFAULT, meta, 0);
+		long shift = head.readableBytes() - bodyStart;
+		meta.put("filesize", (double) (head.readableBytes() + bodyEnd - bodyStart));
+		meta.put("keyframes", index.toMetadata(shift));
+		head.release();
+		head = FlvWriter.encodeHeaderAndMetadata(ByteBufAllocator.DEFAULT, meta, 0);
+
+		Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING)) {
+			ByteBuffer[] buffers = head.nioBuffers();
+			long remaining = head.readableBytes();
+			while (remaining > 0) {
+				remaining -= out.write(buffers);
+			}
+			long position = bodyStart;
+			while (position < bodyEnd) {
+				long copied = in.transferTo(position, bodyEnd - position, out);
+				if (copied <= 0) {
+					throw new IOException(file + " ends before " + bodyEnd);
+				}
+				position += copied;
+			}
+			if (fsync) {
+				out.force(false);
+			}
+		} catch (IOException e) {
+			Files.deleteIfExists(tmp);
+			throw e;
+		} finally {
+			head.release();
+		}
+		Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * writes the head over the old one if it can be padded to the same
+	 * length, false if it does not fit
+	 */
+	private static boolean patch(Path file, long bodyStart, long bodyEnd, Map<String, Object> meta, boolean fsync)
+			throws IOException {
+		ByteBuf head = FlvWriter.encodeHeaderAndMetadata(ByteBufAllocator.DEFAULT, meta, 0);
+		long room = bodyStart - head.readableBytes() - PADDING_OVERHEAD;
+		head.release();
+		if (room < 0 || room > MAX_PADDING) {
+			return false;
+		}
+		head = FlvWriter.encodeHeaderAndMetadata(ByteBufAllocator.DEFAULT, padded(meta, (int) room), 0);
+		try (FileChannel out = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			ByteBuffer[] buffers = head.nioBuffers();
+			long position = 0;
+			while (position < bodyStart) {
+				position += out.write(buffers);
+			}
+			out.truncate(bodyEnd);
+			if (fsync) {
+				out.force(false);
+			}
+		} finally {
+			head.release();
+		}
+		return true;
+	}
+
+}
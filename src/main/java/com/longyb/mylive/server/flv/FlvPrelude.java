@@ -0,0 +1,112 @@
+package com.longyb.mylive.server.flv;
+
+import java.util.Map;
+
+import com.longyb.mylive.server.rtmp.messages.RtmpMediaMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+/**
+ * What an http-flv viewer gets before any frame: the flv header, the
+ * onMetaData tag and the avc and aac sequence header tags, encoded once and
+ * kept as immutable bytes.
+ * <p>
+ * A prelude belongs to the metadata map and the configuration records it was
+ * built from, compared by identity: a new {@code @setDataFrame} or a new
+ * sequence header replaces them and so makes it stale. The bytes are on the
+ * heap, not reference counted, so any number of viewers can write them
+ * without racing the publisher replacing the prelude.
+ */
+public final class FlvPrelude {
+
+	private static final int TIMESTAMP_OFFSET = 4;
+	private static final int TIMESTAMP_LENGTH = 4;
+
+	// only compared, never read
+	private final Map<String, Object> metadata;
+	private final RtmpMediaMessage avc;
+	private final RtmpMediaMessage aac;
+
+	private final byte[] bytes;
+	/**
+	 * where each tag starts, all of them stamped with 0
+	 */
+	private final int[] tags;
+
+	private FlvPrelude(Map<String, Object> metadata, RtmpMediaMessage avc, RtmpMediaMessage aac, byte[] bytes,
+			int[] tags) {
+		this.metadata = metadata;
+		this.avc = avc;
+		this.aac = aac;
+		this.bytes = bytes;
+		this.tags = tags;
+	}
+
+	/**
+	 * @param avc may be null, not retained
+	 * @param aac may be null, not retained
+	 */
+	public static FlvPrelude of(Map<String, Object> metadata, RtmpMediaMessage avc, RtmpMediaMessage aac) {
+		ByteBufAllocator alloc = ByteBufAllocator.DEFAULT;
+		ByteBuf all = alloc.compositeBuffer(3);
+		int[] tags = new int[1 + (avc != null ? 1 : 0) + (aac != null ? 1 : 0)];
+		try {
+			ByteBuf headerAndMetadata = FlvWriter.encodeHeaderAndMetadata(alloc, metadata, 0);
+			tags[0] = FlvWriter.FLV_HEADER.length + 4;
+			all.writeBytes(headerAndMetadata);
+			headerAndMetadata.release();
+			int n = 1;
+			for (RtmpMediaMessage config : new RtmpMediaMessage[] { avc, aac }) {
+				if (config != null) {
+					tags[n++] = all.writerIndex();
+					ByteBuf tag = FlvWriter.encodeMediaTag(alloc, config, 0);
+					all.writeBytes(tag);
+					tag.release();
+				}
+			}
+			byte[] bytes = new byte[all.readableBytes()];
+			all.readBytes(bytes);
+			return new FlvPrelude(metadata, avc, aac, bytes, tags);
+		} finally {
+			all.release();
+		}
+	}
+
+	public boolean isFor(Map<String, Object> metadata, RtmpMediaMessage avc, RtmpMediaMessage aac) {
+		return this.metadata == metadata && this.avc == avc && this.aac == aac;
+	}
+
+	/**
+	 * number of flv tags, the metadata and the sequence headers
+	 */
+	public int tagCount() {
+		return tags.length;
+	}
+
+	/**
+	 * the prelude with every tag stamped with timestamp. Only the timestamps
+	 * are new, the rest are wrapped slices of the cached bytes.
+	 */
+	public ByteBuf stamped(int timestamp) {
+		if (timestamp == 0) {
+			return Unpooled.wrappedBuffer(bytes);
+		}
+		ByteBuf stamps = Unpooled.buffer(tags.length * TIMESTAMP_LENGTH);
+		ByteBuf[] components = new ByteBuf[tags.length * 2 + 1];
+		int from = 0;
+		for (int i = 0; i < tags.length; i++) {
+			int at = tags[i] + TIMESTAMP_OFFSET;
+			components[i * 2] = Unpooled.wrappedBuffer(bytes, from, at - from);
+			stamps.writeMedium(timestamp & 0xffffff);
+			stamps.writeByte(timestamp >>> 24);
+			components[i * 2 + 1] = stamps.retainedSlice(i * TIMESTAMP_LENGTH, TIMESTAMP_LENGTH);
+			from = at + TIMESTAMP_LENGTH;
+		}
+		components[components.length - 1] = Unpooled.wrappedBuffer(bytes, from, bytes.length - from);
+		stamps.release();
+		return Unpooled.wrappedBuffer(components.length, components);
+	}
+
+}
@@ -0,0 +1,476 @@
+package com.longyb.mylive.server.flv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.cfg.RecorderConfig;
+import com.longyb.mylive.server.cfg.RecorderConfig.Fsync;
+import com.longyb.mylive.server.rtmp.messages.AudioMessage;
+import com.longyb.mylive.server.rtmp.messages.RtmpMediaMessage;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.concurrent.DefaultThreadFactory;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Records one stream to flv files without blocking its publisher.
+ * <p>
+ * The publisher only retains each message and queues it. A writer thread,
+ * shared by all recorders, drains the queue in batches and writes the tags of
+ * a batch with one gathering write, so the payloads go from the network
+ * buffers to the file without being copied.
+ * <p>
+ * The queue is bounded by the bytes it holds. When the writer falls behind,
+ * frames are dropped until the next key frame that fits, decoder
+ * configurations are never dropped.
+ * <p>
+ * A new segment is started at the first key frame beyond the configured size
+ * or duration. Each segment is a complete file: header, metadata and the
+ * decoder configurations, with timestamps starting at 0.
+ * <p>
+ * The positions of the key frames are collected while recording and
+ * checkpointed to a sidecar file. A completed segment is finalized with an
+ * onMetaData that has the duration and the keyframes index, see
+ * {@link FlvFinalizer}. Each segment starts with a padded onMetaData the index
+ * is written over, finalizing only rewrites the file when it does not fit, and
+ * does so on a thread of its own so the writers go on. A segment a crash
+ * interrupted keeps its sidecar and is repaired with {@link FlvRecovery}.
+ */
+@Slf4j
+public class FlvRecorder {
+
+	private static final class Writers {
+		static final ExecutorService POOL = Executors.newFixedThreadPool(
+				Math.max(1, ApplicationServerConfig.INSTANCE.getRecorder().getThreads()),
+				new DefaultThreadFactory("flv-recorder", true));
+	}
+
+	private static final class Finalizers {
+		static final ExecutorService POOL = Executors
+				.newSingleThreadExecutor(new DefaultThreadFactory("flv-finalizer", true));
+	}
+
+	/**
+	 * a segment handed from the writer to the finalizer
+	 */
+	private record Segment(Path path, FileChannel file, FileChannel sidecar, KeyframeIndex index, long bodyStart,
+			long bodyEnd, int durationMillis, Map<String, Object> metadata, boolean complete) {
+	}
+
+	private enum Kind {
+		VIDEO_CONFIG, AUDIO_CONFIG, KEY, INTER, AUDIO
+	}
+
+	private record Entry(RtmpMediaMessage message, int timestamp, Kind kind, int size, long queuedAt) {
+	}
+
+	private final Path directory;
+	private final String name;
+	private final Supplier<Map<String, Object>> metadata;
+	private final RecorderConfig config;
+	private final Executor writer;
+	private final Executor finalizer;
+
+	private final Queue<Entry> queue = new ConcurrentLinkedQueue<>();
+	private final AtomicLong queuedBytes = new AtomicLong();
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private final CompletableFuture<Void> closed = new CompletableFuture<>();
+	private volatile boolean closing;
+
+	// publisher only
+	private boolean skipping;
+
+	// writer only, one drain runs at a time
+	private final ByteBufAllocator alloc = ByteBufAllocator.DEFAULT;
+	private final List<ByteBuf> pending = new ArrayList<>();
+	private FileChannel file;
+	private int segmentStart;
+	private long segmentBytes;
+	private long lastFsync;
+	private long segmentMillis;
+	private long bodyStart;
+	private int segmentDuration;
+	private KeyframeIndex index;
+	private FileChannel sidecar;
+	private long lastCheckpoint;
+	private boolean failed;
+	private RtmpMediaMessage avcConfig;
+	private RtmpMediaMessage aacConfig;
+	private boolean finished;
+	// completes when the segments closed so far are finalized
+	private CompletableFuture<Void> finalized = CompletableFuture.completedFuture(null);
+
+	// written by one side only, read by anyone
+	@Getter
+	private volatile long droppedFrames;
+	@Getter
+	private volatile long writtenBytes;
+	@Getter
+	private volatile int segments;
+	@Getter
+	private volatile long lagMillis;
+	@Getter
+	private volatile Path segment;
+
+	public FlvRecorder(Path directory, String name, Supplier<Map<String, Object>> metadata, RecorderConfig config) {
+		this(directory, name, metadata, config, Writers.POOL, Finalizers.POOL);
+	}
+
+	FlvRecorder(Path directory, String name, Supplier<Map<String, Object>> metadata, RecorderConfig config,
+			Executor writer, Executor finalizer) {
+		this.directory = directory;
+		this.name = name;
+		this.metadata = metadata;
+		this.config = config;
+		this.writer = writer;
+		this.finalizer = finalizer;
+	}
+
+	/**
+	 * publisher only, msg is borrowed and retained if it gets queued
+	 */
+	public void record(RtmpMediaMessage msg) {
+		if (closing) {
+			return;
+		}
+		Kind kind = kindOf(msg);
+		int size = msg.content().readableBytes();
+		if (kind == Kind.INTER && skipping) {
+			droppedFrames++;
+			return;
+		}
+		if (kind != Kind.VIDEO_CONFIG && kind != Kind.AUDIO_CONFIG
+				&& queuedBytes.get() + size > config.getMaxQueuedBytes()) {
+			if (kind != Kind.AUDIO && !skipping) {
+				skipping = true;
+				log.warn("recorder of {} is behind, dropping frames until the next key frame", name);
+			}
+			droppedFrames++;
+			return;
+		}
+		if (kind == Kind.KEY) {
+			skipping = false;
+		}
+		int timestamp = msg.getTimestamp() == null ? 0 : msg.getTimestamp();
+		queuedBytes.addAndGet(size);
+		queue.offer(new Entry(msg.retain(), timestamp, kind, size, System.nanoTime()));
+		schedule();
+	}
+
+	private static Kind kindOf(RtmpMediaMessage msg) {
+		if (msg instanceof VideoMessage vm) {
+			if (vm.isAVCDecoderConfigurationRecord()) {
+				return Kind.VIDEO_CONFIG;
+			}
+			return vm.isH264KeyFrame() ? Kind.KEY : Kind.INTER;
+		}
+		if (msg instanceof AudioMessage am && am.isAACAudioSpecificConfig()) {
+			return Kind.AUDIO_CONFIG;
+		}
+		return Kind.AUDIO;
+	}
+
+	/**
+	 * writes what is queued and closes the file, nothing is recorded
+	 * afterwards. Completes once the last segment is finalized.
+	 */
+	public CompletableFuture<Void> close() {
+		closing = true;
+		schedule();
+		return closed;
+	}
+
+	/**
+	 * stops the writer and finalizer threads once the recorders are closed,
+	 * what is still queued is not written
+	 */
+	public static void shutdown() {
+		Writers.POOL.shutdown();
+		Finalizers.POOL.shutdown();
+	}
+
+	public long getQueuedBytes() {
+		return queuedBytes.get();
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			try {
+				writer.execute(this::drain);
+			} catch (RejectedExecutionException e) {
+				scheduled.set(false);
+				log.warn("recorder of {} can not be scheduled", name);
+			}
+		}
+	}
+
+	private void drain() {
+		try {
+			List<Entry> batch = new ArrayList<>(config.getMaxBatch());
+			Entry entry;
+			do {
+				while (batch.size() < config.getMaxBatch() && (entry = queue.poll()) != null) {
+					batch.add(entry);
+				}
+				if (!batch.isEmpty()) {
+					write(batch);
+					batch.clear();
+				}
+			} while (!queue.isEmpty());
+			if (closing && !finished) {
+				finish();
+			}
+		} finally {
+			scheduled.set(false);
+		}
+		// something was queued after the last poll
+		if (!queue.isEmpty() || (closing && !finished)) {
+			schedule();
+		}
+	}
+
+	private void write(List<Entry> batch) {
+		try {
+			for (Entry e : batch) {
+				if (failed || finished) {
+					break;
+				}
+				int timestamp = Math.max(0, e.timestamp() - segmentStart);
+				switch (e.kind()) {
+				case VIDEO_CONFIG -> {
+					avcConfig = replace(avcConfig, e.message());
+					if (file != null) {
+						append(FlvWriter.encodeMediaTag(alloc, e.message(), timestamp), timestamp);
+					}
+				}
+				case AUDIO_CONFIG -> {
+					aacConfig = replace(aacConfig, e.message());
+					if (file != null) {
+						append(FlvWriter.encodeMediaTag(alloc, e.message(), timestamp), timestamp);
+					}
+				}
+				case KEY -> {
+					if (file == null || segmentFull(e.timestamp())) {
+						startSegment(e.timestamp());
+					}
+					int keyTimestamp = e.timestamp() - segmentStart;
+					index.add(segmentBytes, keyTimestamp);
+					append(FlvWriter.encodeMediaTag(alloc, e.message(), keyTimestamp), keyTimestamp);
+				}
+				case AUDIO -> {
+					// an audio only stream starts with its first frame
+					if (file == null && avcConfig == null) {
+						startSegment(e.timestamp());
+					}
+					if (file != null) {
+						int audioTimestamp = Math.max(0, e.timestamp() - segmentStart);
+						append(FlvWriter.encodeMediaTag(alloc, e.message(), audioTimestamp), audioTimestamp);
+					}
+				}
+				default -> {
+					// nothing decodes before the first key frame
+					if (file != null) {
+						append(FlvWriter.encodeMediaTag(alloc, e.message(), timestamp), timestamp);
+					}
+				}
+				}
+			}
+			flush();
+			if (config.getFsync() == Fsync.INTERVAL && file != null
+					&& System.nanoTime() - lastFsync >= TimeUnit.MILLISECONDS.toNanos(config.getFsyncIntervalMillis())) {
+				file.force(false);
+				lastFsync = System.nanoTime();
+			}
+			if (sidecar != null && System.nanoTime() - lastCheckpoint >= TimeUnit.MILLISECONDS
+					.toNanos(config.getIndexCheckpointMillis())) {
+				index.checkpoint(sidecar);
+				lastCheckpoint = System.nanoTime();
+			}
+			lagMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - batch.get(0).queuedAt());
+		} catch (IOException e) {
+			failed = true;
+			log.error("recording {} failed, nothing more is written", name, e);
+			closeSegment();
+		} finally {
+			release(pending);
+			for (Entry e : batch) {
+				queuedBytes.addAndGet(-e.size());
+				e.message().release();
+			}
+		}
+	}
+
+	private static RtmpMediaMessage replace(RtmpMediaMessage old, RtmpMediaMessage config) {
+		if (old != null) {
+			old.release();
+		}
+		return config.retain();
+	}
+
+	private boolean segmentFull(int timestamp) {
+		return config.getSegmentMaxBytes() > 0 && segmentBytes >= config.getSegmentMaxBytes()
+				|| config.getSegmentMaxDurationMillis() > 0
+						&& timestamp - segmentStart >= config.getSegmentMaxDurationMillis();
+	}
+
+	private void append(ByteBuf tag, int timestamp) {
+		pending.add(tag);
+		segmentBytes += tag.readableBytes();
+		segmentDuration = Math.max(segmentDuration, timestamp);
+	}
+
+	/**
+	 * gathering write of all pending tags
+	 */
+	private void flush() throws IOException {
+		if (pending.isEmpty()) {
+			return;
+		}
+		List<ByteBuffer> buffers = new ArrayList<>(pending.size() * 3);
+		long remaining = 0;
+		for (ByteBuf tag : pending) {
+			for (ByteBuffer buffer : tag.nioBuffers()) {
+				buffers.add(buffer);
+			}
+			remaining += tag.readableBytes();
+		}
+		ByteBuffer[] array = buffers.toArray(new ByteBuffer[0]);
+		long written = 0;
+		while (written < remaining) {
+			written += file.write(array);
+		}
+		writtenBytes += written;
+		release(pending);
+	}
+
+	private static void release(List<ByteBuf> tags) {
+		for (ByteBuf tag : tags) {
+			tag.release();
+		}
+		tags.clear();
+	}
+
+	private void startSegment(int timestamp) throws IOException {
+		if (file != null) {
+			flush();
+			closeSegment();
+		}
+		// named after the wall clock, unique even if two start within a millisecond
+		segmentMillis = Math.max(System.currentTimeMillis(), segmentMillis + 1);
+		Path path = directory.resolve(name + "_" + segmentMillis + ".flv");
+		file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		segment = path;
+		segments++;
+		segmentStart = timestamp;
+		segmentBytes = 0;
+		segmentDuration = 0;
+		lastFsync = System.nanoTime();
+		index = new KeyframeIndex();
+		sidecar = KeyframeIndex.openSidecar(path);
+		lastCheckpoint = System.nanoTime();
+		log.info("recording {} to {}", name, path);
+		int padding = config.getMetadataPaddingBytes();
+		append(FlvWriter.encodeHeaderAndMetadata(alloc,
+				padding > 0 ? FlvFinalizer.padded(metadata.get(), padding) : metadata.get(), 0), 0);
+		// replaced when the segment is finalized
+		bodyStart = segmentBytes;
+		if (avcConfig != null) {
+			append(FlvWriter.encodeMediaTag(alloc, avcConfig, 0), 0);
+		}
+		if (aacConfig != null) {
+			append(FlvWriter.encodeMediaTag(alloc, aacConfig, 0), 0);
+		}
+	}
+
+	/**
+	 * hands the file over to the finalizer, a rewrite that copies the whole
+	 * segment must not hold up the recorders sharing this thread
+	 */
+	private void closeSegment() {
+		if (file == null) {
+			return;
+		}
+		Segment closedSegment = new Segment(segment, file, sidecar, index, bodyStart, segmentBytes, segmentDuration,
+				metadata.get(), !failed);
+		file = null;
+		sidecar = null;
+		finalized = finalized.thenRunAsync(() -> finalizeSegment(closedSegment), finalizer);
+	}
+
+	private void finalizeSegment(Segment s) {
+		boolean fsync = config.getFsync() != Fsync.NONE;
+		FileChannel sidecarLeft = s.sidecar();
+		try {
+			s.file().close();
+			if (s.complete()) {
+				FlvFinalizer.finish(s.path(), s.bodyStart(), s.bodyEnd(), s.metadata(), s.index(), s.durationMillis(),
+						fsync);
+				sidecarLeft.close();
+				sidecarLeft = null;
+				Files.deleteIfExists(KeyframeIndex.sidecarOf(s.path()));
+			}
+		} catch (IOException e) {
+			log.error("finalizing {} failed, FlvRecovery repairs it", s.path(), e);
+		} finally {
+			if (sidecarLeft != null) {
+				// as far as it got, for the recovery
+				try (FileChannel last = sidecarLeft) {
+					s.index().checkpoint(last);
+				} catch (IOException e) {
+					log.error("writing the index of {} failed", s.path(), e);
+				}
+			}
+		}
+	}
+
+	private void finish() {
+		try {
+			flush();
+		} catch (IOException e) {
+			log.error("recording {} failed", name, e);
+		} finally {
+			release(pending);
+			closeSegment();
+			if (avcConfig != null) {
+				avcConfig.release();
+				avcConfig = null;
+			}
+			if (aacConfig != null) {
+				aacConfig.release();
+				aacConfig = null;
+			}
+			finished = true;
+			finalized.whenComplete((done, e) -> closed.complete(null));
+		}
+	}
+
+	public RecorderStats stats() {
+		Path current = segment;
+		return new RecorderStats(current == null ? null : current.toString(), segments, writtenBytes, getQueuedBytes(),
+				lagMillis, droppedFrames);
+	}
+
+}
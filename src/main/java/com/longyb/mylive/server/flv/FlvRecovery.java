@@ -0,0 +1,212 @@
+package com.longyb.mylive.server.flv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Map;
+
+import com.longyb.mylive.amf.AMF0;
+import com.longyb.mylive.server.rtmp.Constants;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Repairs flv files a crash left behind: drops the incomplete last tag,
+ * rebuilds the key frame index and finalizes the file like the recorder would
+ * have.
+ * <p>
+ * The index is read from the sidecar as far as it got, only the tags after the
+ * last indexed key frame are scanned. Scanning reads the file sequentially in
+ * large blocks and only looks at the tag headers, a payload larger than a
+ * block is skipped without being read.
+ *
+ * <pre>
+ * java -cp mylive.jar com.longyb.mylive.server.flv.FlvRecovery recording.flv...
+ * </pre>
+ */
+@Slf4j
+public class FlvRecovery {
+
+	private static final int FLV_HEAD_LENGTH = 13;
+	private static final int TAG_HEADER_LENGTH = 11;
+	private static final int BLOCK_SIZE = 1024 * 1024;
+
+	/**
+	 * what a recovery found
+	 *
+	 * @param keyFrames      in the rebuilt index
+	 * @param durationMillis timestamp of the last complete tag
+	 * @param droppedBytes   of the incomplete last tag
+	 */
+	public record Result(int keyFrames, int durationMillis, long droppedBytes) {
+	}
+
+	private FlvRecovery() {
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("usage: FlvRecovery <file.flv>...");
+			System.exit(1);
+		}
+		for (String arg : args) {
+			long start = System.nanoTime();
+			Result result = recover(Path.of(arg));
+			log.info("recovered {} in {} ms: {}", arg, (System.nanoTime() - start) / 1_000_000, result);
+		}
+	}
+
+	public static Result recover(Path file) throws IOException {
+		Map<String, Object> metadata = null;
+		long bodyStart = FLV_HEAD_LENGTH;
+		long position;
+		int lastTimestamp = 0;
+		KeyframeIndex index;
+		long size;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			size = channel.size();
+			Blocks blocks = new Blocks(channel, size);
+			if (!blocks.load(0, FLV_HEAD_LENGTH) || blocks.get(0) != 'F' || blocks.get(1) != 'L'
+					|| blocks.get(2) != 'V') {
+				throw new IOException(file + " is not an flv file");
+			}
+
+			// the onMetaData the recorder started the file with
+			if (blocks.load(bodyStart, TAG_HEADER_LENGTH) && blocks.get(bodyStart) == FlvWriter.TAG_TYPE_SCRIPT) {
+				int dataSize = blocks.getMedium(bodyStart + 1);
+				long end = bodyStart + TAG_HEADER_LENGTH + dataSize + 4;
+				if (end <= size) {
+					metadata = readMetadata(channel, bodyStart + TAG_HEADER_LENGTH, dataSize);
+					bodyStart = end;
+				}
+			}
+
+			// trust the sidecar up to its last entry that points at a key frame
+			index = KeyframeIndex.readSidecar(file);
+			int trusted = index.size();
+			while (trusted > 0 && !isKeyFrame(blocks, index.position(trusted - 1), bodyStart)) {
+				trusted--;
+			}
+			position = bodyStart;
+			if (trusted > 0) {
+				position = index.position(trusted - 1);
+				trusted--;
+			}
+			index.truncate(trusted);
+
+			while (blocks.load(position, TAG_HEADER_LENGTH)) {
+				int type = blocks.get(position);
+				int dataSize = blocks.getMedium(position + 1);
+				int timestamp = blocks.getMedium(position + 4) | blocks.get(position + 7) << 24;
+				// loading moves the window, the header has to be read before
+				long end = position + TAG_HEADER_LENGTH + dataSize + 4;
+				if (end > size || !blocks.load(end - 4, 4) || blocks.getInt(end - 4) != dataSize + TAG_HEADER_LENGTH) {
+					break;
+				}
+				if (isKeyFrame(blocks, position, bodyStart)) {
+					index.add(position, timestamp);
+				}
+				if (type != FlvWriter.TAG_TYPE_SCRIPT) {
+					lastTimestamp = Math.max(lastTimestamp, timestamp);
+				}
+				position = end;
+			}
+		}
+		FlvFinalizer.finish(file, bodyStart, position, metadata, index, lastTimestamp, true);
+		Files.deleteIfExists(KeyframeIndex.sidecarOf(file));
+		return new Result(index.size(), lastTimestamp, size - position);
+	}
+
+	private static boolean isKeyFrame(Blocks blocks, long position, long bodyStart) throws IOException {
+		if (position < bodyStart || !blocks.load(position, TAG_HEADER_LENGTH + 2)) {
+			return false;
+		}
+		if (blocks.get(position) != Constants.MSG_TYPE_VIDEO_MESSAGE || blocks.getMedium(position + 1) < 2) {
+			return false;
+		}
+		// a key frame, but not the avc sequence header
+		int frame = blocks.get(position + TAG_HEADER_LENGTH);
+		return (frame & 0xf0) == 0x10 && ((frame & 0x0f) != 7 || blocks.get(position + TAG_HEADER_LENGTH + 1) == 1);
+	}
+
+	/**
+	 * the ecma array of the onMetaData tag whose data starts at position, null if
+	 * it can not be decoded
+	 */
+	@SuppressWarnings("unchecked")
+	static Map<String, Object> readMetadata(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer data = ByteBuffer.allocate(length);
+		while (data.hasRemaining() && channel.read(data, position + data.position()) > 0) {
+			// keep reading
+		}
+		data.flip();
+		ByteBuf in = Unpooled.wrappedBuffer(data);
+		try {
+			List<Object> values = AMF0.decodeAll(in);
+			if (values.size() > 1 && values.get(1) instanceof Map) {
+				return (Map<String, Object>) values.get(1);
+			}
+		} catch (RuntimeException e) {
+			log.warn("unreadable onMetaData, starting from scratch", e);
+		} finally {
+			in.release();
+		}
+		return null;
+	}
+
+	/**
+	 * a window on the file, refilled from whatever position is asked for next
+	 */
+	private static class Blocks {
+		private final FileChannel channel;
+		private final long size;
+		private final ByteBuffer block = ByteBuffer.allocateDirect(BLOCK_SIZE);
+		private long start;
+
+		Blocks(FileChannel channel, long size) {
+			this.channel = channel;
+			this.size = size;
+			block.limit(0);
+		}
+
+		/**
+		 * @return false if the file ends before position + length
+		 */
+		boolean load(long position, int length) throws IOException {
+			if (position + length > size) {
+				return false;
+			}
+			if (position >= start && position + length <= start + block.limit()) {
+				return true;
+			}
+			block.clear();
+			start = position;
+			while (block.hasRemaining() && start + block.position() < size) {
+				if (channel.read(block, start + block.position()) < 0) {
+					break;
+				}
+			}
+			block.flip();
+			return position + length <= start + block.limit();
+		}
+
+		int get(long position) {
+			return block.get((int) (position - start)) & 0xff;
+		}
+
+		int getMedium(long position) {
+			return get(position) << 16 | get(position + 1) << 8 | get(position + 2);
+		}
+
+		int getInt(long position) {
+			return block.getInt((int) (position - start));
+		}
+	}
+
+}
@@ -0,0 +1,77 @@
+package com.longyb.mylive.server.flv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+
+/**
+ * What goes before the key frame a recording is played from with ?start=:
+ * the flv header, an onMetaData for the spliced file, and the decoder
+ * configuration tags the recording starts with, which are sent from the file.
+ * <p>
+ * The tags keep their timestamps. The keyframes object, duration and filesize
+ * describe the whole recording and would send a seeking player to the wrong
+ * bytes, so they are left out, a player seeks by asking for another start.
+ *
+ * @param head        header and onMetaData, not to be modified
+ * @param configStart where the tags after the recording's onMetaData start
+ * @param configEnd   where the first key frame starts
+ */
+public record FlvSplice(byte[] head, long configStart, long configEnd) {
+
+	private static final int TAG_HEADER_LENGTH = 11;
+
+	private static final List<String> WHOLE_FILE_KEYS = List.of("duration", "filesize", "hasKeyframes", "keyframes",
+			FlvFinalizer.PADDING);
+
+	/**
+	 * @param firstKeyFrame where the body of the recording starts
+	 */
+	public static FlvSplice of(Path file, long firstKeyFrame) throws IOException {
+		Map<String, Object> metadata = null;
+		long configStart = FlvWriter.FLV_HEADER.length + 4;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			ByteBuffer tag = ByteBuffer.allocate(TAG_HEADER_LENGTH);
+			while (tag.hasRemaining() && channel.read(tag, configStart + tag.position()) > 0) {
+				// keep reading
+			}
+			if (!tag.hasRemaining() && tag.get(0) == FlvWriter.TAG_TYPE_SCRIPT) {
+				int dataSize = tag.getInt(0) & 0xffffff;
+				metadata = FlvRecovery.readMetadata(channel, configStart + TAG_HEADER_LENGTH, dataSize);
+				configStart += TAG_HEADER_LENGTH + dataSize + 4;
+			}
+		}
+
+		Map<String, Object> meta = new LinkedHashMap<>();
+		if (metadata != null) {
+			meta.putAll(metadata);
+			meta.keySet().removeAll(WHOLE_FILE_KEYS);
+		}
+		ByteBuf head = FlvWriter.encodeHeaderAndMetadata(ByteBufAllocator.DEFAULT, meta, 0);
+		try {
+			return new FlvSplice(ByteBufUtil.getBytes(head), Math.min(configStart, firstKeyFrame), firstKeyFrame);
+		} finally {
+			head.release();
+		}
+	}
+
+	/**
+	 * the length of the spliced file
+	 *
+	 * @param from where the key frame played from starts
+	 * @param size of the recording
+	 */
+	public long length(long from, long size) {
+		return head.length + configEnd - configStart + size - from;
+	}
+
+}
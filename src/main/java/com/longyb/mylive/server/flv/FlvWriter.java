@@ -1,9 +1,91 @@
 package com.longyb.mylive.server.flv;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import com.longyb.mylive.amf.AMF0;
+import com.longyb.mylive.server.rtmp.messages.RtmpMediaMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+
 /**
-@author longyubo
-2020年1月6日 下午1:55:40
-**/
+ * Encodes flv tags for http-flv subscribers and the flv recorder.
+ * <p>
+ * A tag is a composite of the 11 byte tag header, a retained slice of the
+ * payload and the 4 byte previous tag size, so the payload is never copied.
+ * The caller owns the returned buffer; to send one tag to many channels write
+ * a retained duplicate to each.
+ *
+ * @author longyubo 2020年1月6日 下午1:55:40
+ **/
 public class FlvWriter {
 
-}
+	public static final byte[] FLV_HEADER = new byte[] { 0x46, 0x4C, 0x56, 0x01, 0x05, 0x00, 0x00, 0x00, 0x09 };
+
+	public static final int TAG_TYPE_SCRIPT = 0x12;
+
+	private static final int TAG_HEADER_LENGTH = 11;
+	private static final int PREVIOUS_TAG_SIZE_LENGTH = 4;
+
+	private FlvWriter() {
+	}
+
+	public static ByteBuf encodeMediaTag(ByteBufAllocator alloc, RtmpMediaMessage msg) {
+		return encodeTag(alloc, msg.getMsgType(), msg.getTimestamp(), msg.content());
+	}
 
+	/**
+	 * same as {@link #encodeMediaTag(ByteBufAllocator, RtmpMediaMessage)} but
+	 * stamped with the given timestamp instead of the message's own
+	 */
+	public static ByteBuf encodeMediaTag(ByteBufAllocator alloc, RtmpMediaMessage msg, int timestamp) {
+		return encodeTag(alloc, msg.getMsgType(), timestamp, msg.content());
+	}
+
+	/**
+	 * @param payload not consumed, the tag keeps its own reference to it
+	 */
+	public static ByteBuf encodeTag(ByteBufAllocator alloc, int tagType, int timestamp, ByteBuf payload) {
+		int dataSize = payload.readableBytes();
+
+		// tag header and previous tag size share one small allocation
+		ByteBuf frame = alloc.buffer(TAG_HEADER_LENGTH + PREVIOUS_TAG_SIZE_LENGTH);
+		frame.writeByte(tagType);
+		frame.writeMedium(dataSize);
+		frame.writeMedium(timestamp & 0xffffff);
+		frame.writeByte(timestamp >>> 24);// timestampExtended
+		frame.writeMedium(0);// streamid
+		frame.writeInt(dataSize + TAG_HEADER_LENGTH); // previousTagSize
+
+		CompositeByteBuf tag = alloc.compositeBuffer(3);
+		tag.addComponents(true, frame.retainedSlice(0, TAG_HEADER_LENGTH), payload.retainedSlice(),
+				frame.retainedSlice(TAG_HEADER_LENGTH, PREVIOUS_TAG_SIZE_LENGTH));
+		frame.release();
+		return tag;
+	}
+
+	/**
+	 * flv file header followed by the onMetaData script tag
+	 */
+	public static ByteBuf encodeHeaderAndMetadata(ByteBufAllocator alloc, Map<String, Object> metadata, int timestamp) {
+		ByteBuf encodeMetaData = alloc.buffer();
+		List<Object> meta = new ArrayList<>();
+		meta.add("onMetaData");
+		meta.add(metadata);
+		AMF0.encode(encodeMetaData, meta);
+
+		ByteBuf header = alloc.buffer(FLV_HEADER.length + PREVIOUS_TAG_SIZE_LENGTH);
+		header.writeBytes(FLV_HEADER);
+		header.writeInt(0); // previousTagSize0
+
+		CompositeByteBuf result = alloc.compositeBuffer(2);
+		// make the first script tag timestamp same as the keyframe
+		result.addComponents(true, header, encodeTag(alloc, TAG_TYPE_SCRIPT, timestamp, encodeMetaData));
+		encodeMetaData.release();
+		return result;
+	}
+
+}
@@ -0,0 +1,185 @@
+package com.longyb.mylive.server.flv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
+
+import com.longyb.mylive.amf.Amf0Object;
+
+/**
+ * File positions and timestamps of the key frames of an flv file, in the order
+ * they were written.
+ * <p>
+ * While a file is recorded the index is appended to a sidecar file from time
+ * to time, so a file left behind by a crash does not have to be scanned from
+ * the start. The sidecar is a magic number followed by 12 byte entries: the
+ * position as a long and the timestamp in milliseconds as an int.
+ */
+public class KeyframeIndex {
+
+	static final int SIDECAR_MAGIC = 0x464c5649; // FLVI
+	private static final int ENTRY_LENGTH = 12;
+
+	private long[] positions = new long[64];
+	private int[] timestamps = new int[64];
+	private int size;
+
+	// entries already in the sidecar
+	private int checkpointed;
+
+	public void add(long position, int timestamp) {
+		if (size == positions.length) {
+			positions = Arrays.copyOf(positions, size * 2);
+			timestamps = Arrays.copyOf(timestamps, size * 2);
+		}
+		positions[size] = position;
+		timestamps[size] = timestamp;
+		size++;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * the last key frame at or before timestamp, -1 if there is none
+	 */
+	public int floor(int timestamp) {
+		int i = Arrays.binarySearch(timestamps, 0, size, timestamp);
+		if (i >= 0) {
+			// the first of equal timestamps
+			while (i > 0 && timestamps[i - 1] == timestamp) {
+				i--;
+			}
+			return i;
+		}
+		return -i - 2;
+	}
+
+	public long position(int i) {
+		return positions[i];
+	}
+
+	public int timestamp(int i) {
+		return timestamps[i];
+	}
+
+	/**
+	 * drops the entries from i on
+	 */
+	void truncate(int i) {
+		size = Math.min(size, i);
+		checkpointed = Math.min(checkpointed, size);
+	}
+
+	/**
+	 * the keyframes object of onMetaData, times in seconds
+	 *
+	 * @param shift added to every position, for when the data before the first
+	 *              tag changes size
+	 */
+	public Amf0Object toMetadata(long shift) {
+		Object[] filepositions = new Object[size];
+		Object[] times = new Object[size];
+		for (int i = 0; i < size; i++) {
+			filepositions[i] = (double) (positions[i] + shift);
+			times[i] = timestamps[i] / 1000.0;
+		}
+		return new Amf0Object().addProperty("filepositions", filepositions).addProperty("times", times);
+	}
+
+	/**
+	 * the index of a recording: its sidecar while it is recorded or after a
+	 * crash, else the keyframes of its onMetaData. Empty if it has neither.
+	 */
+	public static KeyframeIndex load(Path file) throws IOException {
+		if (Files.exists(sidecarOf(file))) {
+			return readSidecar(file);
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			// flv header, previous tag size and the header of the first tag
+			ByteBuffer head = ByteBuffer.allocate(FlvWriter.FLV_HEADER.length + 4 + 11);
+			while (head.hasRemaining() && channel.read(head, head.position()) > 0) {
+				// keep reading
+			}
+			if (head.hasRemaining() || head.get(13) != FlvWriter.TAG_TYPE_SCRIPT) {
+				return new KeyframeIndex();
+			}
+			int dataSize = (head.getInt(13) & 0xffffff);
+			return fromMetadata(FlvRecovery.readMetadata(channel, head.capacity(), dataSize));
+		}
+	}
+
+	static KeyframeIndex fromMetadata(Map<?, ?> metadata) {
+		KeyframeIndex index = new KeyframeIndex();
+		if (metadata != null && metadata.get("keyframes") instanceof Map<?, ?> keyframes
+				&& keyframes.get("filepositions") instanceof Object[] positions
+				&& keyframes.get("times") instanceof Object[] times) {
+			for (int i = 0; i < Math.min(positions.length, times.length); i++) {
+				if (positions[i] instanceof Number position && times[i] instanceof Number time) {
+					index.add(position.longValue(), (int) Math.round(time.doubleValue() * 1000));
+				}
+			}
+		}
+		return index;
+	}
+
+	public static Path sidecarOf(Path file) {
+		return file.resolveSibling(file.getFileName() + ".idx");
+	}
+
+	static FileChannel openSidecar(Path file) throws IOException {
+		FileChannel sidecar = FileChannel.open(sidecarOf(file), StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING);
+		ByteBuffer magic = ByteBuffer.allocate(4).putInt(0, SIDECAR_MAGIC);
+		while (magic.hasRemaining()) {
+			sidecar.write(magic);
+		}
+		return sidecar;
+	}
+
+	/**
+	 * appends the entries added since the last checkpoint
+	 */
+	void checkpoint(FileChannel sidecar) throws IOException {
+		if (checkpointed == size) {
+			return;
+		}
+		ByteBuffer entries = ByteBuffer.allocate((size - checkpointed) * ENTRY_LENGTH);
+		for (int i = checkpointed; i < size; i++) {
+			entries.putLong(positions[i]).putInt(timestamps[i]);
+		}
+		entries.flip();
+		while (entries.hasRemaining()) {
+			sidecar.write(entries);
+		}
+		checkpointed = size;
+	}
+
+	/**
+	 * the index last checkpointed for file, empty if there is none. A partly
+	 * written last entry is ignored.
+	 */
+	static KeyframeIndex readSidecar(Path file) throws IOException {
+		KeyframeIndex index = new KeyframeIndex();
+		Path sidecar = sidecarOf(file);
+		if (!Files.exists(sidecar)) {
+			return index;
+		}
+		ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(sidecar));
+		if (in.remaining() < 4 || in.getInt() != SIDECAR_MAGIC) {
+			return index;
+		}
+		while (in.remaining() >= ENTRY_LENGTH) {
+			index.add(in.getLong(), in.getInt());
+		}
+		index.checkpointed = index.size;
+		return index;
+	}
+
+}
@@ -0,0 +1,15 @@
+package com.longyb.mylive.server.flv;
+
+/**
+ * how a stream's recording keeps up
+ *
+ * @param segment      the file being written, null before the first frame
+ * @param segments     files started so far
+ * @param writtenBytes to all of them
+ * @param queuedBytes  payload waiting for the writer
+ * @param lagMillis    how long the last batch waited for the writer
+ * @param droppedFrames frames dropped because the queue was full
+ */
+public record RecorderStats(String segment, int segments, long writtenBytes, long queuedBytes, long lagMillis,
+		long droppedFrames) {
+}
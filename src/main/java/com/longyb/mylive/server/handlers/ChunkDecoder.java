@@ -4,222 +4,246 @@ import com.longyb.mylive.server.rtmp.RtmpMessageDecoder;
 import com.longyb.mylive.server.rtmp.messages.RtmpMessage;
 import com.longyb.mylive.server.rtmp.messages.SetChunkSize;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
+import io.netty.buffer.CompositeByteBuf;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.ReplayingDecoder;
+import io.netty.handler.codec.ByteToMessageDecoder;
 import lombok.extern.slf4j.Slf4j;
 
-import java.util.HashMap;
+import java.util.Arrays;
 import java.util.List;
 
 import static com.longyb.mylive.server.rtmp.Constants.*;
 
 /**
+ * Reassembles rtmp chunks into messages.
+ * <p>
+ * A chunk is only consumed once its complete header and its whole body are
+ * readable, so nothing is ever replayed. Single-chunk messages are a retained
+ * slice of the inbound buffer, larger ones a composite of such slices. Only
+ * when the client keeps a tiny chunk size are chunks gathered into one pooled
+ * buffer instead.
+ *
  * @author longyubo
  * @version 2019年12月14日 下午3:40:18
  */
 @Slf4j
-public class ChunkDecoder extends ReplayingDecoder<DecodeState> {
+public class ChunkDecoder extends ByteToMessageDecoder {
 
-    // changed by client command
-    int clientChunkSize = 128;
+    // 2 + 64 + 65535, the largest csid the 3 byte basic header can express
+    private static final int MAX_CSID = 65599;
 
-    HashMap<Integer/* csid */, RtmpHeader> previousHeaders = HashMap.newHashMap(4);
-    HashMap<Integer/* csid */, ByteBuf> inCompletePayload = HashMap.newHashMap(4);
+    // below this chunk size a composite would hold so many tiny components that
+    // gathering them into one pooled buffer is cheaper for every later reader
+    private static final int COMPOSITE_MIN_CHUNK_SIZE = 1024;
 
-    ByteBuf currentPayload = null;
-    int currentCsid;
+    // changed by client command
+    int clientChunkSize = 128;
 
-    int ackWindowSize = -1;
+    // per csid state, indexed by csid and grown on demand
+    RtmpHeader[] previousHeaders = new RtmpHeader[16];
+    ByteBuf[] inCompletePayload = new ByteBuf[16];
+    // when the first chunk of the incomplete payload was read
+    long[] firstChunkNanos = new long[16];
 
     @Override
     protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
-
-        DecodeState state = state();
-
-        if (state == null) {
-            state(DecodeState.STATE_HEADER);
-        }
-        if (state == DecodeState.STATE_HEADER) {
-            RtmpHeader rtmpHeader = readHeader(in);
-            log.debug("rtmpHeader read:{}", rtmpHeader);
-
-            completeHeader(rtmpHeader);
-            currentCsid = rtmpHeader.getCsid();
-
-            // initialize the payload
-            if (rtmpHeader.getFmt() != CHUNK_FMT_3) {
-                ByteBuf buffer = Unpooled.buffer(rtmpHeader.getMessageLength(), rtmpHeader.getMessageLength());
-                inCompletePayload.put(rtmpHeader.getCsid(), buffer);
-                previousHeaders.put(rtmpHeader.getCsid(), rtmpHeader);
-            }
-
-            currentPayload = inCompletePayload.get(rtmpHeader.getCsid());
-            if (currentPayload == null) {
-                // when fmt=3 and previous body completely read, the previous msgLength play the
-                // role of length
-                RtmpHeader previousHeader = previousHeaders.get(rtmpHeader.getCsid());
-                log.debug("current payload null,previous header:{}", previousHeader);
-                currentPayload = Unpooled.buffer(previousHeader.getMessageLength(), previousHeader.getMessageLength());
-                inCompletePayload.put(rtmpHeader.getCsid(), currentPayload);
-                log.debug("current payload assign as :{}", currentPayload);
-            }
-
-            checkpoint(DecodeState.STATE_PAYLOAD);
-        } else if (state == DecodeState.STATE_PAYLOAD) {
-
-            final byte[] bytes = new byte[Math.min(currentPayload.writableBytes(), clientChunkSize)];
-            in.readBytes(bytes);
-            currentPayload.writeBytes(bytes);
-            checkpoint(DecodeState.STATE_HEADER);
-
-            if (currentPayload.isWritable()) {
-                return;
-            }
-            inCompletePayload.remove(currentCsid);
-
-            // then we can decode out payload
-            ByteBuf payload = currentPayload;
-            RtmpHeader header = previousHeaders.get(currentCsid);
-
-            RtmpMessage msg = RtmpMessageDecoder.decode(header, payload);
-            if (msg == null) {
-                log.error("RtmpMessageDecoder.decode NULL");
+        // one clock read per socket read, every chunk in it arrived together
+        long now = System.nanoTime();
+        while (in.isReadable()) {
+            if (!decodeChunk(ctx, in, out, now)) {
                 return;
             }
-
-            if (msg instanceof SetChunkSize scs) {
-                // we need chunksize to decode the chunk
-                clientChunkSize = scs.getChunkSize();
-                log.debug("------------>client set chunkSize to :{}", clientChunkSize);
-            } else {
-                out.add(msg);
-            }
         }
-
     }
 
-    private RtmpHeader readHeader(ByteBuf in) {
-        RtmpHeader rtmpHeader = new RtmpHeader();
-
-        // alway from the beginning
-        int headerLength = 0;
-
-        byte firstByte = in.readByte();
-        headerLength += 1;
-
-        // CHUNK HEADER is divided into
-        // BASIC HEADER
-        // MESSAGE HEADER
-        // EXTENDED TIMESTAMP
+    /**
+     * @return false when the next chunk is not completely readable yet
+     */
+    private boolean decodeChunk(ChannelHandlerContext ctx, ByteBuf in, List<Object> out, long now) {
+        final int start = in.readerIndex();
+        final int readable = in.readableBytes();
 
         // BASIC HEADER
         // fmt and chunk steam id in first byte
-        int fmt = (firstByte & 0xff) >> 6;
-        int csid = (firstByte & 0x3f);
+        int firstByte = in.getUnsignedByte(start);
+        int fmt = firstByte >> 6;
+        int csid = firstByte & 0x3f;
+        int basicHeaderLength = 1;
 
         if (csid == 0) {
             // 2 byte form
-            csid = in.readByte() & 0xff + 64;
-            headerLength += 1;
+            if (readable < 2) {
+                return false;
+            }
+            csid = in.getUnsignedByte(start + 1) + 64;
+            basicHeaderLength = 2;
         } else if (csid == 1) {
             // 3 byte form
-            byte secondByte = in.readByte();
-            byte thirdByte = in.readByte();
-            csid = ((thirdByte & 0xff) << 8) + (secondByte & 0xff) + 64;
-            headerLength += 2;
-        }  // that's it!
-
-
-        rtmpHeader.setCsid(csid);
-        rtmpHeader.setFmt(fmt);
+            if (readable < 3) {
+                return false;
+            }
+            csid = (in.getUnsignedByte(start + 2) << 8) + in.getUnsignedByte(start + 1) + 64;
+            basicHeaderLength = 3;
+        }
 
-        // basic header complete
+        ensureCsidCapacity(csid);
+        RtmpHeader previous = previousHeaders[csid];
+        if (previous == null && (fmt == CHUNK_FMT_2 || fmt == CHUNK_FMT_3)) {
+            throw new IllegalStateException("chunk fmt:" + fmt + " without previous header on csid:" + csid);
+        }
 
         // MESSAGE HEADER
-        switch (fmt) {
-            case CHUNK_FMT_0 -> {
-                int timestamp = in.readMedium();
-                int messageLength = in.readMedium();
-                short messageTypeId = (short) (in.readByte() & 0xff);
-                int messageStreamId = in.readIntLE();
-                headerLength += 11;
-                if (timestamp == MAX_TIMESTAMP) {
-                    long extendedTimestamp = in.readInt();
-                    rtmpHeader.setExtendedTimestamp(extendedTimestamp);
-                    headerLength += 4;
-                }
+        int messageHeaderLength = switch (fmt) {
+            case CHUNK_FMT_0 -> 11;
+            case CHUNK_FMT_1 -> 7;
+            case CHUNK_FMT_2 -> 3;
+            default -> 0;
+        };
+        if (readable < basicHeaderLength + messageHeaderLength) {
+            return false;
+        }
 
-                rtmpHeader.setTimestamp(timestamp);
-                rtmpHeader.setMessageTypeId(messageTypeId);
-                rtmpHeader.setMessageStreamId(messageStreamId);
-                rtmpHeader.setMessageLength(messageLength);
+        // EXTENDED TIMESTAMP
+        int messageHeaderStart = start + basicHeaderLength;
+        boolean extended;
+        if (fmt == CHUNK_FMT_3) {
+            // type 3 chunks repeat the extended timestamp of the chunk they continue
+            extended = previous.getExtendedTimestamp() != 0;
+        } else {
+            extended = in.getUnsignedMedium(messageHeaderStart) == MAX_TIMESTAMP;
+        }
+        int headerLength = basicHeaderLength + messageHeaderLength + (extended ? 4 : 0);
+        if (readable < headerLength) {
+            return false;
+        }
 
-            }
-            case CHUNK_FMT_1 -> {
-                int timestampDelta = in.readMedium();
-                int messageLength = in.readMedium();
-                short messageType = (short) (in.readByte() & 0xff);
-
-                headerLength += 7;
-                if (timestampDelta == MAX_TIMESTAMP) {
-                    long extendedTimestamp = in.readInt();
-                    rtmpHeader.setExtendedTimestamp(extendedTimestamp);
-                    headerLength += 4;
-                }
+        // chunk body
+        int messageLength = fmt == CHUNK_FMT_0 || fmt == CHUNK_FMT_1 ? in.getUnsignedMedium(messageHeaderStart + 3)
+                : previous.getMessageLength();
+        ByteBuf payload = fmt == CHUNK_FMT_3 ? inCompletePayload[csid] : null;
+        int received = payload == null ? 0 : payload.readableBytes();
+        int chunkLength = Math.min(clientChunkSize, messageLength - received);
+        if (readable < headerLength + chunkLength) {
+            return false;
+        }
 
-                rtmpHeader.setTimestampDelta(timestampDelta);
-                rtmpHeader.setMessageLength(messageLength);
-                rtmpHeader.setMessageTypeId(messageType);
+        // the whole chunk is here, consume it
+        RtmpHeader header = previous == null ? new RtmpHeader() : previous;
+        if (fmt != CHUNK_FMT_3) {
+            readMessageHeader(in, messageHeaderStart, fmt, header);
+            if (extended) {
+                long extendedTimestamp = in.getUnsignedInt(start + basicHeaderLength + messageHeaderLength);
+                header.setExtendedTimestamp(extendedTimestamp);
+                if (fmt == CHUNK_FMT_0) {
+                    header.setTimestamp((int) extendedTimestamp);
+                } else {
+                    header.setTimestampDelta((int) extendedTimestamp);
+                }
+            } else {
+                header.setExtendedTimestamp(0);
+            }
+            header.setCsid(csid);
+            header.setFmt(fmt);
+            header.setHeaderLength(headerLength);
+            previousHeaders[csid] = header;
+
+            // a new message header discards whatever was left of the previous one
+            ByteBuf dropped = inCompletePayload[csid];
+            if (dropped != null) {
+                log.warn("incomplete message on csid:{} replaced by a new message", csid);
+                dropped.release();
+                inCompletePayload[csid] = null;
             }
-            case CHUNK_FMT_2 -> {
-                int timestampDelta = in.readMedium();
-                headerLength += 3;
-                rtmpHeader.setTimestampDelta(timestampDelta);
-
-                if (timestampDelta == MAX_TIMESTAMP) {
-                    long extendedTimestamp = in.readInt();
-                    rtmpHeader.setExtendedTimestamp(extendedTimestamp);
-                    headerLength += 4;
+        }
+        in.readerIndex(start + headerLength);
+
+        long receivedNanos = now;
+        if (payload == null && chunkLength == messageLength) {
+            // the common case, the whole message is in one chunk
+            payload = in.readRetainedSlice(chunkLength);
+        } else {
+            if (payload == null) {
+                if (clientChunkSize < COMPOSITE_MIN_CHUNK_SIZE) {
+                    payload = ctx.alloc().buffer(messageLength, messageLength);
+                } else {
+                    int chunks = (messageLength + clientChunkSize - 1) / clientChunkSize;
+                    payload = ctx.alloc().compositeBuffer(Math.max(chunks, 2));
                 }
-
+                inCompletePayload[csid] = payload;
+                firstChunkNanos[csid] = now;
+            }
+            if (payload instanceof CompositeByteBuf composite) {
+                composite.addComponent(true, in.readRetainedSlice(chunkLength));
+            } else {
+                payload.writeBytes(in, chunkLength);
             }
-            case CHUNK_FMT_3 -> {
-                // nothing
+            if (payload.readableBytes() < messageLength) {
+                return true;
             }
-            default -> throw new RuntimeException("illegal fmt type:" + fmt);
+            inCompletePayload[csid] = null;
+            receivedNanos = firstChunkNanos[csid];
         }
 
-        rtmpHeader.setHeaderLength(headerLength);
+        // then we can decode out payload
+        RtmpMessage msg;
+        try {
+            msg = RtmpMessageDecoder.decode(header, payload);
+        } finally {
+            payload.release();
+        }
+        if (msg == null) {
+            log.error("RtmpMessageDecoder.decode NULL");
+            return true;
+        }
+        msg.setReceivedNanos(receivedNanos);
+        msg.setDecodedNanos(now);
+
+        if (msg instanceof SetChunkSize scs) {
+            // we need chunksize to decode the chunk
+            clientChunkSize = scs.getChunkSize();
+            log.debug("------------>client set chunkSize to :{}", clientChunkSize);
+        } else {
+            out.add(msg);
+        }
+        return true;
+    }
 
-        return rtmpHeader;
+    private void readMessageHeader(ByteBuf in, int index, int fmt, RtmpHeader header) {
+        switch (fmt) {
+            case CHUNK_FMT_0 -> {
+                header.setTimestamp(in.getUnsignedMedium(index));
+                header.setMessageLength(in.getUnsignedMedium(index + 3));
+                header.setMessageTypeId(in.getUnsignedByte(index + 6));
+                header.setMessageStreamId(in.getIntLE(index + 7));
+            }
+            case CHUNK_FMT_1 -> {
+                header.setTimestampDelta(in.getUnsignedMedium(index));
+                header.setMessageLength(in.getUnsignedMedium(index + 3));
+                header.setMessageTypeId(in.getUnsignedByte(index + 6));
+            }
+            case CHUNK_FMT_2 -> header.setTimestampDelta(in.getUnsignedMedium(index));
+            default -> throw new IllegalArgumentException("illegal fmt type:" + fmt);
+        }
     }
 
-    private void completeHeader(RtmpHeader rtmpHeader) {
-        RtmpHeader prev = previousHeaders.get(rtmpHeader.getCsid());
-        if (prev == null) {
+    private void ensureCsidCapacity(int csid) {
+        if (csid < previousHeaders.length) {
             return;
         }
-        switch (rtmpHeader.getFmt()) {
-            case CHUNK_FMT_1 -> rtmpHeader.setMessageStreamId(prev.getMessageStreamId());
-
-//			rtmpHeader.setTimestamp(prev.getTimestamp());
-            case CHUNK_FMT_2 -> {
-//			rtmpHeader.setTimestamp(prev.getTimestamp());
-                rtmpHeader.setMessageLength(prev.getMessageLength());
-                rtmpHeader.setMessageStreamId(prev.getMessageStreamId());
-                rtmpHeader.setMessageTypeId(prev.getMessageTypeId());
-            }
-            case CHUNK_FMT_3 -> {
-                rtmpHeader.setMessageStreamId(prev.getMessageStreamId());
-                rtmpHeader.setMessageTypeId(prev.getMessageTypeId());
-                rtmpHeader.setTimestamp(prev.getTimestamp());
-                rtmpHeader.setTimestampDelta(prev.getTimestampDelta());
-            }
-            default -> {
+        int size = Math.min(Math.max(previousHeaders.length << 1, csid + 1), MAX_CSID + 1);
+        previousHeaders = Arrays.copyOf(previousHeaders, size);
+        inCompletePayload = Arrays.copyOf(inCompletePayload, size);
+        firstChunkNanos = Arrays.copyOf(firstChunkNanos, size);
+    }
+
+    @Override
+    protected void handlerRemoved0(ChannelHandlerContext ctx) {
+        for (int i = 0; i < inCompletePayload.length; i++) {
+            if (inCompletePayload[i] != null) {
+                inCompletePayload[i].release();
+                inCompletePayload[i] = null;
             }
         }
-
     }
 
 }
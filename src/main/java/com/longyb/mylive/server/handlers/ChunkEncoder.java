@@ -3,8 +3,8 @@ package com.longyb.mylive.server.handlers;
 import com.longyb.mylive.server.rtmp.Constants;
 import com.longyb.mylive.server.rtmp.messages.*;
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
 import io.netty.handler.codec.MessageToByteEncoder;
 import lombok.extern.slf4j.Slf4j;
 
@@ -20,16 +20,32 @@ public class ChunkEncoder extends MessageToByteEncoder<RtmpMessage> {
     boolean firstVideo = true;
     boolean firstAudio = true;
 
-    private static byte[] encodeFmtAndCsid(final int fmt, final int csid) {
+    private static void writeFmtAndCsid(ByteBuf out, final int fmt, final int csid) {
         if (csid <= 63) {
-            return new byte[]{(byte) ((fmt << 6) + csid)};
+            out.writeByte((fmt << 6) + csid);
         } else if (csid <= 320) {
-            return new byte[]{(byte) (fmt << 6), (byte) (csid - 64)};
+            out.writeByte(fmt << 6).writeByte(csid - 64);
         } else {
-            return new byte[]{(byte) ((fmt << 6) | 1), (byte) ((csid - 64) & 0xff), (byte) ((csid - 64) >> 8)};
+            out.writeByte((fmt << 6) | 1).writeByte((csid - 64) & 0xff).writeByte((csid - 64) >> 8);
         }
     }
 
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof SharedMediaMessage shared) {
+            // already chunked for some other subscriber with the same chunk size, reuse those bytes
+            ByteBuf chunks;
+            try {
+                chunks = shared.chunks(chunkSize, takeFirst(shared.getMessage()), ctx.alloc());
+            } finally {
+                shared.release();
+            }
+            ctx.write(chunks, promise);
+            return;
+        }
+        super.write(ctx, msg, promise);
+    }
+
     @Override
     protected void encode(ChannelHandlerContext ctx, RtmpMessage msg, ByteBuf out) {
 
@@ -38,123 +54,115 @@ public class ChunkEncoder extends MessageToByteEncoder<RtmpMessage> {
             log.info("chunksize in encoder changed to:{}", chunkSize);
         }
 
-        if (msg instanceof AudioMessage) {
-            encodeAudio((AudioMessage) msg, out);
-        } else if (msg instanceof VideoMessage) {
-            encodeVideo((VideoMessage) msg, out);
+        if (msg instanceof RtmpMediaMessage media) {
+            encodeMedia(media, takeFirst(media), chunkSize, out);
         } else {
 //			 we encode all msg as fmt_0 and fmt_3 except video and audio
-            encodeWithFmt0And3(msg, out);
+            encodeWithFmt0And3(msg, getRelativeTime(), chunkSize, out);
         }
 
     }
 
-    private void encodeVideo(VideoMessage msg, ByteBuf out) {
-        if (firstVideo) {
-            encodeWithFmt0And3(msg, out);
-            firstVideo = false;
+    /**
+     * the next video and audio message carry their absolute timestamp again,
+     * the deltas of messages skipped before them never reached the peer
+     */
+    public void restartMediaTimestamps() {
+        firstVideo = true;
+        firstAudio = true;
+    }
 
+    private boolean takeFirst(RtmpMediaMessage msg) {
+        boolean first;
+        if (msg instanceof VideoMessage) {
+            first = firstVideo;
+            firstVideo = false;
         } else {
-            encodeWithFmt1(msg, out, msg.getTimestampDelta());
-
+            first = firstAudio;
+            firstAudio = false;
         }
-
+        return first;
     }
 
-    private void encodeAudio(AudioMessage msg, ByteBuf out) {
-        if (firstAudio) {
-            encodeWithFmt0And3(msg, out);
-            firstAudio = false;
-
+    /**
+     * The first video and audio message of a channel carries a full fmt 0 header
+     * with its absolute timestamp, all later ones a fmt 1 header with the delta.
+     * The result only depends on the arguments, so it may be shared between
+     * channels.
+     */
+    public static void encodeMedia(RtmpMediaMessage msg, boolean firstOfType, int chunkSize, ByteBuf out) {
+        if (firstOfType) {
+            long timestamp = msg.getTimestamp() == null ? 0 : msg.getTimestamp() & 0xffffffffL;
+            encodeWithFmt0And3(msg, timestamp, chunkSize, out);
         } else {
-            encodeWithFmt1(msg, out, msg.getTimestampDelta());
-
+            encodeWithFmt1(msg, msg.getTimestampDelta(), chunkSize, out);
         }
-
     }
 
-    private void encodeWithFmt1(RtmpMessage msg, ByteBuf out, int timestampDelta) {
+    private static void encodeWithFmt1(RtmpMessage msg, int timestampDelta, int chunkSize, ByteBuf out) {
 
         int outboundCsid = msg.getOutboundCsid();
-        ByteBuf buffer = Unpooled.buffer();
-
-        buffer.writeBytes(encodeFmtAndCsid(1, outboundCsid));
-
         ByteBuf payload = msg.encodePayload();
-        buffer.writeMedium(timestampDelta);
-        buffer.writeMedium(payload.readableBytes());
-        buffer.writeByte(msg.getMsgType());
-
-        boolean fmt1Part = true;
-        while (payload.isReadable()) {
-            int min = Math.min(chunkSize, payload.readableBytes());
 
-            if (fmt1Part) {
-                buffer.writeBytes(payload, min);
-                fmt1Part = false;
-            } else {
-                byte[] fmt3BasicHeader = encodeFmtAndCsid(Constants.CHUNK_FMT_3, outboundCsid);
-                buffer.writeBytes(fmt3BasicHeader);
-                buffer.writeBytes(payload, min);
-
-            }
-            out.writeBytes(buffer);
-            buffer = Unpooled.buffer();
+        writeFmtAndCsid(out, Constants.CHUNK_FMT_1, outboundCsid);
+        boolean needExtraTime = timestampDelta >= Constants.MAX_TIMESTAMP;
+        out.writeMedium(needExtraTime ? Constants.MAX_TIMESTAMP : timestampDelta);
+        out.writeMedium(payload.readableBytes());
+        out.writeByte(msg.getMsgType());
+        if (needExtraTime) {
+            out.writeInt(timestampDelta);
         }
 
+        writeChunks(payload, outboundCsid, needExtraTime ? timestampDelta : null, chunkSize, out);
     }
 
-    private void encodeWithFmt0And3(RtmpMessage msg, ByteBuf out) {
+    private static void encodeWithFmt0And3(RtmpMessage msg, long timestamp, int chunkSize, ByteBuf out) {
         int csid = msg.getOutboundCsid();
 
-        byte[] basicHeader = encodeFmtAndCsid(0, csid);
-
         // as for control msg, we always use 0 timestamp
 
         ByteBuf payload = msg.encodePayload();
         int messageLength = payload.readableBytes();
-        ByteBuf buffer = Unpooled.buffer();
 
-        buffer.writeBytes(basicHeader);
+        writeFmtAndCsid(out, Constants.CHUNK_FMT_0, csid);
 
-        long timestamp = getRelativeTime();
         boolean needExtraTime = false;
         if (timestamp >= Constants.MAX_TIMESTAMP) {
             needExtraTime = true;
-            buffer.writeMedium(Constants.MAX_TIMESTAMP);
+            out.writeMedium(Constants.MAX_TIMESTAMP);
         } else {
-            buffer.writeMedium((int) timestamp);
+            out.writeMedium((int) timestamp);
         }
         // message length
-        buffer.writeMedium(messageLength);
+        out.writeMedium(messageLength);
 
-        buffer.writeByte(msg.getMsgType());
+        out.writeByte(msg.getMsgType());
         if (msg instanceof UserControlMessageEvent) {
             // message stream id in UserControlMessageEvent is always 0
-            buffer.writeIntLE(0);
+            out.writeIntLE(0);
         } else {
-            buffer.writeIntLE(Constants.DEFAULT_STREAM_ID);
+            out.writeIntLE(Constants.DEFAULT_STREAM_ID);
         }
 
         if (needExtraTime) {
-            buffer.writeInt((int) (timestamp));
+            out.writeInt((int) (timestamp));
         }
         // split by chunk size
+        writeChunks(payload, csid, needExtraTime ? (int) timestamp : null, chunkSize, out);
+    }
 
-        boolean fmt0Part = true;
+    /**
+     * writes the payload after the message header, every further chunk gets a
+     * fmt 3 header which repeats the extended timestamp if there is one
+     */
+    private static void writeChunks(ByteBuf payload, int csid, Integer extendedTimestamp, int chunkSize, ByteBuf out) {
+        out.writeBytes(payload, Math.min(chunkSize, payload.readableBytes()));
         while (payload.isReadable()) {
-            int min = Math.min(chunkSize, payload.readableBytes());
-            if (fmt0Part) {
-                buffer.writeBytes(payload, min);
-                fmt0Part = false;
-            } else {
-                byte[] fmt3BasicHeader = encodeFmtAndCsid(Constants.CHUNK_FMT_3, csid);
-                buffer.writeBytes(fmt3BasicHeader);
-                buffer.writeBytes(payload, min);
-
+            writeFmtAndCsid(out, Constants.CHUNK_FMT_3, csid);
+            if (extendedTimestamp != null) {
+                out.writeInt(extendedTimestamp);
             }
-            out.writeBytes(buffer);
-            buffer = Unpooled.buffer();
+            out.writeBytes(payload, Math.min(chunkSize, payload.readableBytes()));
         }
     }
 
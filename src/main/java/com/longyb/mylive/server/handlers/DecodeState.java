@@ -1,11 +0,0 @@
-package com.longyb.mylive.server.handlers;
-
-/**
- *
-* @author longyubo
-* @version 2019年12月14日 下午3:59:40
-*
- */
-public enum DecodeState {
-	STATE_HEADER, STATE_PAYLOAD
-}
@@ -1,54 +1,56 @@
 package com.longyb.mylive.server.handlers;
 
 import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
 
+import com.longyb.mylive.server.metrics.ServerMetrics;
 import com.longyb.mylive.server.rtmp.Tools;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.ByteToMessageDecoder;
 import lombok.extern.slf4j.Slf4j;
 
 /**
+ * The simple rtmp handshake. S1 carries random bytes taken from a block that
+ * is generated once per server, S2 echoes C1 as the spec asks, read straight
+ * from the inbound buffer into the reply. Apart from that one reply nothing
+ * is allocated, and the decoder removes itself as soon as C2 is in.
+ *
  * @author longyubo 2019年12月30日 下午6:09:11
  **/
 @Slf4j
 public class HandShakeDecoder extends ByteToMessageDecoder {
 
-	boolean c0c1done;
-
-	boolean c2done;
-
 	static final int HANDSHAKE_LENGTH = 1536;
 	static final int VERSION_LENGTH = 1;
 
 	// server rtmp version
-	static byte S0 = 3;
+	static final byte S0 = 3;
+
+	// time and zero fields of s1
+	private static final int S1_HEADER_LENGTH = 8;
+	private static final int S1_RANDOM_LENGTH = HANDSHAKE_LENGTH - S1_HEADER_LENGTH;
+
+	// the simple handshake does not verify s1, it only has to differ between
+	// connections. Each one starts at a random offset of this block
+	private static final byte[] RANDOM_POOL = Tools.generateRandomData(64 * 1024);
 
-	byte[] CLIENT_HANDSHAKE = new byte[HANDSHAKE_LENGTH];
-	boolean handshakeDone;
+	boolean c0c1done;
 
 	@Override
 	protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) throws Exception {
 
-		if (handshakeDone) {
-			ctx.fireChannelRead(in);
-			return;
-		}
-
 		if (!c0c1done) {
 			// read c0 and c1
 			if (in.readableBytes() < VERSION_LENGTH + HANDSHAKE_LENGTH) {
 				return;
 			}
 
-			in.readByte();
-
-			in.readBytes(CLIENT_HANDSHAKE);
-
-			writeS0S1S2(ctx);
+			in.skipBytes(VERSION_LENGTH);
+			writeS0S1S2(ctx, in);
 			c0c1done = true;
+			ServerMetrics.INSTANCE.handshakeStarted();
 
 		} else {
 			// read c2
@@ -56,33 +58,30 @@ public class HandShakeDecoder extends ByteToMessageDecoder {
 				return;
 			}
 
-			in.readBytes(CLIENT_HANDSHAKE);
+			in.skipBytes(HANDSHAKE_LENGTH);
 
-			// handshake done
-			CLIENT_HANDSHAKE = null;
-			handshakeDone = true;
-			ctx.channel().pipeline().remove(this);
+			// handshake done, whatever follows is passed on
+			ServerMetrics.INSTANCE.handshakeCompleted();
+			ctx.pipeline().remove(this);
 		}
 
 	}
 
-	private void writeS0S1S2(ChannelHandlerContext ctx) {
+	/**
+	 * consumes c1 from in
+	 */
+	private void writeS0S1S2(ChannelHandlerContext ctx, ByteBuf in) {
 		// S0+S1+S2
-		ByteBuf responseBuf = Unpooled.buffer(VERSION_LENGTH + HANDSHAKE_LENGTH + HANDSHAKE_LENGTH);
+		ByteBuf responseBuf = ctx.alloc().ioBuffer(VERSION_LENGTH + HANDSHAKE_LENGTH + HANDSHAKE_LENGTH);
 		// version = 3
 		responseBuf.writeByte(S0);
-		// s1 time
-		responseBuf.writeInt(0);
-		// s1 zero
-		responseBuf.writeInt(0);
+		// s1 time and zero
+		responseBuf.writeLong(0);
 		// s1 random bytes
-		responseBuf.writeBytes(Tools.generateRandomData(HANDSHAKE_LENGTH - 8));
-		// s2 time
-		responseBuf.writeInt(0);
-		// s2 time2
-		responseBuf.writeInt(0);
-		// s2 random bytes
-		responseBuf.writeBytes(Tools.generateRandomData(HANDSHAKE_LENGTH - 8));
+		int offset = ThreadLocalRandom.current().nextInt(RANDOM_POOL.length - S1_RANDOM_LENGTH + 1);
+		responseBuf.writeBytes(RANDOM_POOL, offset, S1_RANDOM_LENGTH);
+		// s2 is c1
+		responseBuf.writeBytes(in, HANDSHAKE_LENGTH);
 
 		ctx.writeAndFlush(responseBuf);
 	}
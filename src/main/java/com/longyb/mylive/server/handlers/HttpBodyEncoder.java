@@ -0,0 +1,28 @@
+package com.longyb.mylive.server.handlers;
+
+import java.util.List;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToMessageEncoder;
+import io.netty.handler.codec.http.DefaultHttpContent;
+
+/**
+ * On an HTTP/2 stream, turns the plain buffers that HTTP/1.1 sends as the
+ * body (flv tags, chunks of a recording) into HttpContent for
+ * {@link io.netty.handler.codec.http2.Http2StreamFrameToHttpObjectCodec}.
+ */
+@ChannelHandler.Sharable
+public class HttpBodyEncoder extends MessageToMessageEncoder<ByteBuf> {
+
+	public static final HttpBodyEncoder INSTANCE = new HttpBodyEncoder();
+
+	private HttpBodyEncoder() {
+	}
+
+	@Override
+	protected void encode(ChannelHandlerContext ctx, ByteBuf msg, List<Object> out) {
+		out.add(new DefaultHttpContent(msg.retain()));
+	}
+}
@@ -1,87 +1,222 @@
 package com.longyb.mylive.server.handlers;
 
 import java.nio.charset.StandardCharsets;
-import java.util.HashMap;
+import java.util.ArrayDeque;
 import java.util.Map;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Executor;
 
 import com.longyb.mylive.server.handlers.http.AbstractHttpRouterHandler;
+import com.longyb.mylive.server.handlers.http.GetCmafHandler;
 import com.longyb.mylive.server.handlers.http.GetFlvStreamHandler;
+import com.longyb.mylive.server.handlers.http.GetHlsHandler;
+import com.longyb.mylive.server.handlers.http.GetMetricsHandler;
+import com.longyb.mylive.server.handlers.http.GetRecordingHandler;
 import com.longyb.mylive.server.handlers.http.GetStreamsHandler;
+import com.longyb.mylive.server.handlers.http.GetWebSocketFlvHandler;
 import com.longyb.mylive.server.manager.StreamManager;
 
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandler;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
 import io.netty.handler.codec.http.*;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
 import lombok.extern.slf4j.Slf4j;
 
-
+/**
+ * One instance serves every http connection. Routes are compiled once into a
+ * {@link RouteTrie}, a request costs a walk over its path.
+ * <p>
+ * A route runs on the connection's event loop unless it was given an
+ * executor. A connection is busy from the dispatch of a request until its
+ * handler reports the last content written, see
+ * {@link AbstractHttpRouterHandler#complete}. Requests pipelined meanwhile
+ * wait, so responses leave in the order the requests came in, also behind a
+ * parked cmaf reload. A live stream or a websocket never completes and keeps
+ * the connection to itself. Request bodies are not read.
+ */
 @Slf4j
+@ChannelHandler.Sharable
 public class HttpRouterHandler extends SimpleChannelInboundHandler<HttpObject> {
 
-    private final StreamManager streamManager;
+    private static final AttributeKey<InFlight> IN_FLIGHT = AttributeKey.valueOf("httpInFlight");
+
+    private final RouteTrie<Target> routes = new RouteTrie<>();
 
-    private final Map<String, AbstractHttpRouterHandler> httpHandlers =  new HashMap<>();
-    private final Map<String, Pattern> routePatterns = new HashMap<>();
+    private final boolean keepAlive;
 
+    /**
+     * every route on the event loop, keep-alive on
+     */
     public HttpRouterHandler(StreamManager streamManager) {
-        this.streamManager = streamManager;
+        this(streamManager, true, Map.of());
+    }
+
+    /**
+     * @param executors by route template, routes not listed run on the event loop
+     */
+    public HttpRouterHandler(StreamManager streamManager, boolean keepAlive, Map<String, Executor> executors) {
+        this.keepAlive = keepAlive;
+
+        AbstractHttpRouterHandler flv = new GetFlvStreamHandler(streamManager);
+        AbstractHttpRouterHandler hls = new GetHlsHandler(streamManager);
+        AbstractHttpRouterHandler cmaf = new GetCmafHandler(streamManager);
+        AbstractHttpRouterHandler streams = new GetStreamsHandler(streamManager);
 
         // Define routes with {} placeholders and corresponding handlers
-        httpHandlers.put("/stream/flv/{app}/{stream}", new GetFlvStreamHandler(streamManager));
-        httpHandlers.put("/stream/flv/{app}/{stream}.flv", new GetFlvStreamHandler(streamManager));
-        httpHandlers.put("/api/streams", new GetStreamsHandler(streamManager));
+        Map<String, AbstractHttpRouterHandler> httpHandlers = Map.ofEntries(
+                Map.entry("/stream/flv/{app}/{stream}", flv),
+                Map.entry("/stream/flv/{app}/{stream}.flv", flv),
+                Map.entry("/ws/flv/{app}/{stream}", new GetWebSocketFlvHandler(streamManager)),
+                Map.entry("/api/streams", streams),
+                Map.entry("/api/streams/{app}/{stream}", streams),
+                Map.entry("/metrics", new GetMetricsHandler(streamManager)),
+                Map.entry("/vod/flv/{file}", new GetRecordingHandler(streamManager)),
+                Map.entry("/hls/{app}/{stream}.m3u8", hls),
+                Map.entry("/hls/{app}/{stream}/{segment}.ts", hls),
+                Map.entry("/cmaf/{app}/{stream}.m3u8", cmaf),
+                Map.entry("/cmaf/{app}/{stream}.mpd", cmaf),
+                Map.entry("/cmaf/{app}/{stream}/{track}/{file}", cmaf));
+        httpHandlers.forEach((route, handler) -> routes.add(route, new Target(handler, executors.get(route))));
+    }
 
-        // Compile patterns for routes
-        for (String route : httpHandlers.keySet()) {
-            routePatterns.put(route, createPatternFromRoute(route));
+    @Override
+    protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
+        // bodies are released on return, no route reads one
+        if (!(msg instanceof HttpRequest req)) {
+            return;
+        }
+        InFlight inFlight = ctx.channel().attr(IN_FLIGHT).get();
+        if (inFlight == null) {
+            inFlight = new InFlight();
+            ctx.channel().attr(IN_FLIGHT).set(inFlight);
         }
+        if (inFlight.busy) {
+            inFlight.queued.add(ReferenceCountUtil.retain(req));
+            return;
+        }
+        dispatch(ctx, req, inFlight);
     }
 
     @Override
-    protected void channelRead0(ChannelHandlerContext ctx, HttpObject msg) throws Exception {
-        if (msg instanceof HttpRequest req) {
-            String uri = req.uri();
-            log.info("API: Requested URL {}", uri);
-
-            boolean matched = false;
-
-            for (Map.Entry<String, Pattern> entry : routePatterns.entrySet()) {
-                Matcher matcher = entry.getValue().matcher(uri);
-                if (matcher.matches()) {
-                    // Extract path variables
-                    Map<String, String> pathVariables = extractPathVariables(matcher, entry.getKey());
-
-                    try {
-                        // Call the appropriate handler
-                        AbstractHttpRouterHandler handler = httpHandlers.get(entry.getKey());
-                        handler.handle(ctx, req, pathVariables);
-                        matched = true;
-                    } catch (Exception e) {
-                        // Handle unexpected exceptions with a 500 error response
-                        log.error("Internal server error: ", e);
-                        handle500(ctx, e.getMessage());
-                        return;
-                    }
-                    break;
+    public void userEventTriggered(ChannelHandlerContext ctx, Object evt) throws Exception {
+        if (evt != AbstractHttpRouterHandler.ResponseComplete.INSTANCE) {
+            super.userEventTriggered(ctx, evt);
+            return;
+        }
+        InFlight inFlight = ctx.channel().attr(IN_FLIGHT).get();
+        if (inFlight != null) {
+            next(ctx, inFlight);
+        }
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        drop(ctx);
+        super.channelInactive(ctx);
+    }
+
+    /**
+     * a websocket upgrade replaces the router, requests pipelined before the
+     * handshake are not answered
+     */
+    @Override
+    public void handlerRemoved(ChannelHandlerContext ctx) throws Exception {
+        drop(ctx);
+        super.handlerRemoved(ctx);
+    }
+
+    private void dispatch(ChannelHandlerContext ctx, HttpRequest req, InFlight inFlight) {
+        // cleared by ResponseComplete, which may fire before the handler returns
+        inFlight.busy = true;
+        String uri = req.uri();
+        log.debug("API: Requested URL {}", uri);
+        if (!keepAlive) {
+            HttpUtil.setKeepAlive(req, false);
+        }
+
+        RouteTrie.Match<Target> match = routes.match(pathOf(uri));
+        if (match == null) {
+            handle404(ctx, req);
+            return;
+        }
+        Target target = match.route().value();
+        if (target.executor() == null) {
+            run(ctx, req, target.handler(), match);
+            return;
+        }
+
+        ReferenceCountUtil.retain(req);
+        target.executor().execute(() -> {
+            try {
+                run(ctx, req, target.handler(), match);
+            } finally {
+                ReferenceCountUtil.release(req);
+            }
+        });
+    }
+
+    /**
+     * event loop only
+     */
+    private void next(ChannelHandlerContext ctx, InFlight inFlight) {
+        inFlight.busy = false;
+        HttpRequest req;
+        while (!inFlight.busy && (req = inFlight.queued.poll()) != null) {
+            try {
+                if (ctx.channel().isActive()) {
+                    dispatch(ctx, req, inFlight);
                 }
+            } finally {
+                ReferenceCountUtil.release(req);
             }
+        }
+    }
 
-            if (!matched) {
-                // Handle 404 Not Found
-                handle404(ctx, uri);
+    /**
+     * releases the requests still waiting, event loop only
+     */
+    private static void drop(ChannelHandlerContext ctx) {
+        InFlight inFlight = ctx.channel().attr(IN_FLIGHT).getAndSet(null);
+        if (inFlight != null) {
+            inFlight.busy = true;
+            for (HttpRequest req; (req = inFlight.queued.poll()) != null;) {
+                ReferenceCountUtil.release(req);
             }
-        } else {
-            ctx.fireChannelRead(msg);
         }
     }
 
+    private void run(ChannelHandlerContext ctx, HttpRequest req, AbstractHttpRouterHandler handler,
+            Map<String, String> pathVariables) {
+        try {
+            handler.handle(ctx, req, pathVariables);
+        } catch (Exception e) {
+            // Handle unexpected exceptions with a 500 error response
+            log.error("Internal server error: ", e);
+            handle500(ctx, e.getMessage());
+        }
+    }
+
+    /**
+     * routes match the path, handlers read the query themselves. Only a path
+     * with escapes is decoded.
+     */
+    private static String pathOf(String uri) {
+        int end = uri.indexOf('?');
+        int fragment = uri.indexOf('#');
+        if (fragment >= 0 && (end < 0 || fragment < end)) {
+            end = fragment;
+        }
+        String path = end < 0 ? uri : uri.substring(0, end);
+        return path.indexOf('%') < 0 ? path : new QueryStringDecoder(uri).path();
+    }
+
     // Utility method to create a 404 Not Found response
-    private void handle404(ChannelHandlerContext ctx, String uri) {
+    private void handle404(ChannelHandlerContext ctx, HttpRequest req) {
+        String uri = req.uri();
         log.error("API: Requested URL [{}] was not found", uri);
         String notFoundMessage = "404 Not Found: The requested URL [" + uri + "] was not found on this server.";
         ByteBuf content = Unpooled.copiedBuffer(notFoundMessage, StandardCharsets.UTF_8);
@@ -89,8 +224,8 @@ public class HttpRouterHandler extends SimpleChannelInboundHandler<HttpObject> {
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
         response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
 
-        // Write the response and close the connection
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        // a poller that got a path wrong keeps its connection
+        AbstractHttpRouterHandler.sendResponse(ctx, req, response);
     }
 
     // Utility method to create a 500 Internal Server Error response
@@ -105,26 +240,15 @@ public class HttpRouterHandler extends SimpleChannelInboundHandler<HttpObject> {
         ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
     }
 
-
-    // Utility method to create a regex pattern from a route with {}
-    private Pattern createPatternFromRoute(String route) {
-        String regex = route.replaceAll("\\{\\w+\\}", "([^/]+)"); // Replace {variable} with a capturing group
-        return Pattern.compile(regex);
+    private record Target(AbstractHttpRouterHandler handler, Executor executor) {
     }
 
-    // Utility method to extract path variables based on route
-    private Map<String, String> extractPathVariables(Matcher matcher, String route) {
-        Map<String, String> pathVariables = new HashMap<>();
-        Pattern variablePattern = Pattern.compile("\\{(\\w+)\\}");
-        Matcher variableMatcher = variablePattern.matcher(route);
-
-        int groupIndex = 1; // Start from group 1 because group 0 is the entire match
-        while (variableMatcher.find()) {
-            String variableName = variableMatcher.group(1);
-            pathVariables.put(variableName, matcher.group(groupIndex));
-            groupIndex++;
-        }
-
-        return pathVariables;
+    /**
+     * requests of one connection waiting for the response in progress, event
+     * loop only
+     */
+    private static final class InFlight {
+        final ArrayDeque<HttpRequest> queued = new ArrayDeque<>();
+        boolean busy;
     }
 }
@@ -0,0 +1,183 @@
+package com.longyb.mylive.server.handlers;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Routes such as /hls/{app}/{stream}/{segment}.ts compiled into a trie of
+ * path segments. A segment is either literal or a variable with an optional
+ * literal suffix, a variable matches one non empty segment.
+ * <p>
+ * Matching walks the path in place, it neither splits the path nor runs a
+ * regex. Nothing is allocated until a route matches, then only its variables.
+ * Literal segments are tried before variables, and variables with a longer
+ * suffix before shorter ones, so /stream/flv/live/a.flv matches
+ * {stream}.flv rather than {stream}. The trie is immutable once built and
+ * shared by all connections.
+ */
+final class RouteTrie<T> {
+
+	private final Node<T> root = new Node<>(-1, "");
+
+	void add(String route, T value) {
+		if (!route.startsWith("/")) {
+			throw new IllegalArgumentException("route must start with / : " + route);
+		}
+		Node<T> node = root;
+		List<String> names = new ArrayList<>();
+		for (String segment : route.substring(1).split("/", -1)) {
+			if (segment.startsWith("{")) {
+				int close = segment.indexOf('}');
+				names.add(segment.substring(1, close));
+				node = node.variable(names.size() - 1, segment.substring(close + 1));
+			} else {
+				node = node.literal(segment);
+			}
+		}
+		if (node.route != null) {
+			throw new IllegalArgumentException("duplicate route " + route);
+		}
+		node.route = new Route<>(route, names.toArray(new String[0]), value);
+	}
+
+	/**
+	 * @param path the path of the request uri, without the query
+	 * @return null if no route matches
+	 */
+	Match<T> match(String path) {
+		return path.startsWith("/") ? match(root, path, 0) : null;
+	}
+
+	/**
+	 * @param pos the / before the next segment, or the end of the path
+	 */
+	private static <T> Match<T> match(Node<T> node, String path, int pos) {
+		if (pos == path.length()) {
+			return node.route == null ? null : new Match<>(node.route);
+		}
+		int start = pos + 1;
+		int end = path.indexOf('/', start);
+		if (end < 0) {
+			end = path.length();
+		}
+		int length = end - start;
+		for (Node<T> literal : node.literals) {
+			if (literal.text.length() == length && path.regionMatches(start, literal.text, 0, length)) {
+				Match<T> match = match(literal, path, end);
+				if (match != null) {
+					return match;
+				}
+			}
+		}
+		for (Node<T> variable : node.variables) {
+			int suffix = variable.text.length();
+			if (length > suffix && path.regionMatches(end - suffix, variable.text, 0, suffix)) {
+				Match<T> match = match(variable, path, end);
+				if (match != null) {
+					// filled in on the way back, only for the branch that matched
+					match.values[variable.ordinal] = path.substring(start, end - suffix);
+					return match;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static final class Node<T> {
+		/**
+		 * the literal segment, or the suffix of a variable
+		 */
+		final String text;
+		/**
+		 * position of the variable in its route, -1 for literals
+		 */
+		final int ordinal;
+
+		@SuppressWarnings("unchecked")
+		Node<T>[] literals = new Node[0];
+		@SuppressWarnings("unchecked")
+		Node<T>[] variables = new Node[0];
+		Route<T> route;
+
+		Node(int ordinal, String text) {
+			this.ordinal = ordinal;
+			this.text = text;
+		}
+
+		Node<T> literal(String segment) {
+			for (Node<T> literal : literals) {
+				if (literal.text.equals(segment)) {
+					return literal;
+				}
+			}
+			Node<T> child = new Node<>(-1, segment);
+			literals = Arrays.copyOf(literals, literals.length + 1);
+			literals[literals.length - 1] = child;
+			return child;
+		}
+
+		Node<T> variable(int ordinal, String suffix) {
+			for (Node<T> variable : variables) {
+				if (variable.text.equals(suffix) && variable.ordinal == ordinal) {
+					return variable;
+				}
+			}
+			Node<T> child = new Node<>(ordinal, suffix);
+			variables = Arrays.copyOf(variables, variables.length + 1);
+			variables[variables.length - 1] = child;
+			Arrays.sort(variables, Comparator.comparingInt((Node<T> v) -> v.text.length()).reversed());
+			return child;
+		}
+	}
+
+	record Route<T>(String template, String[] names, T value) {
+	}
+
+	/**
+	 * the route that matched and its variables by name. A read only map that
+	 * looks names up in the route instead of hashing them.
+	 */
+	static final class Match<T> extends AbstractMap<String, String> {
+		private final Route<T> route;
+		private final String[] values;
+
+		private Match(Route<T> route) {
+			this.route = route;
+			this.values = new String[route.names().length];
+		}
+
+		Route<T> route() {
+			return route;
+		}
+
+		@Override
+		public String get(Object key) {
+			String[] names = route.names();
+			for (int i = 0; i < names.length; i++) {
+				if (names[i].equals(key)) {
+					return values[i];
+				}
+			}
+			return null;
+		}
+
+		@Override
+		public boolean containsKey(Object key) {
+			return get(key) != null;
+		}
+
+		@Override
+		public Set<Entry<String, String>> entrySet() {
+			Set<Entry<String, String>> entries = new LinkedHashSet<>();
+			for (int i = 0; i < values.length; i++) {
+				entries.add(new SimpleImmutableEntry<>(route.names()[i], values[i]));
+			}
+			return entries;
+		}
+	}
+}
@@ -1,6 +1,8 @@
 package com.longyb.mylive.server.handlers;
 
 import com.longyb.mylive.amf.Amf0Object;
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.cfg.JoinMode;
 import com.longyb.mylive.server.entities.Role;
 import com.longyb.mylive.server.entities.Stream;
 import com.longyb.mylive.server.entities.StreamName;
@@ -9,9 +11,11 @@ import com.longyb.mylive.server.rtmp.Constants;
 import com.longyb.mylive.server.rtmp.messages.*;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.SimpleChannelInboundHandler;
+import io.netty.handler.codec.http.QueryStringDecoder;
 import lombok.extern.slf4j.Slf4j;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 
@@ -24,6 +28,24 @@ import java.util.Map;
 @Slf4j
 public class RtmpMessageHandler extends SimpleChannelInboundHandler<RtmpMessage> {
 
+    // replies that never change are encoded once for all connections
+    private static final RtmpCommandMessage PLAY_STREAM_NOT_FOUND = onStatus("error", "NetStream.Play.StreamNotFound",
+            "No Such Stream");
+    private static final RtmpCommandMessage PLAY_START = onStatus("status", "NetStream.Play.Start", "Start live");
+    private static final RtmpCommandMessage PUBLISH_START = onStatus("status", "NetStream.Publish.Start",
+            "Start publishing");
+    private static final RtmpCommandMessage UNPUBLISH_SUCCESS = onStatus("status", "NetStream.Unpublish.Success",
+            "Stop publishing");
+    private static final RtmpCommandMessage RTMP_SAMPLE_ACCESS = RtmpCommandMessage
+            .encodedOnce(List.of("|RtmpSampleAccess", true, true));
+    // answered with the transaction id of the request patched in
+    private static final RtmpCommandMessage CONNECT_RESULT = RtmpCommandMessage.encodedOnce(List.of("_result", 1,
+            new Amf0Object().addProperty("fmsVer", "FMS/3,0,1,123").addProperty("capabilities", 31),
+            new Amf0Object().addProperty("level", "status").addProperty("code", "NetConnection.Connect.Success")
+                    .addProperty("description", "Connection succeeded").addProperty("objectEncoding", 0)));
+    private static final RtmpCommandMessage CREATE_STREAM_RESULT = RtmpCommandMessage
+            .encodedOnce(Arrays.asList("_result", 1, null, Constants.DEFAULT_STREAM_ID));
+
     private int ackWindowSize;
     private int lastSentbackSize;
     private int bytesReceived;
@@ -32,6 +54,7 @@ public class RtmpMessageHandler extends SimpleChannelInboundHandler<RtmpMessage>
     private boolean normalShutdown;
 
     private StreamName streamName;
+    private JoinMode joinMode;
 
     private final StreamManager streamManager;
 
@@ -132,8 +155,7 @@ public class RtmpMessageHandler extends SimpleChannelInboundHandler<RtmpMessage>
             return;
         }
         // send back 'NetStream.Unpublish.Success' to publisher
-        RtmpCommandMessage onStatus = onStatus("status", "NetStream.Unpublish.Success", "Stop publishing");
-        ctx.write(onStatus);
+        ctx.write(UNPUBLISH_SUCCESS);
         // send User Control Message Stream EOF (1) to all subscriber
         // and we close all publisher and subscribers
         Stream stream = streamManager.getStream(streamName);
@@ -151,16 +173,17 @@ public class RtmpMessageHandler extends SimpleChannelInboundHandler<RtmpMessage>
     private void handlePlay(ChannelHandlerContext ctx, RtmpCommandMessage msg) {
         role = Role.Subscriber;
 
-        String name = (String) msg.getCommand().get(3);
-        streamName.setName(name);
+        // the name may carry parameters, as in name?join=live-edge
+        QueryStringDecoder query = new QueryStringDecoder((String) msg.getCommand().get(3));
+        streamName.setName(query.path());
+        List<String> join = query.parameters().get("join");
+        joinMode = join == null ? null : JoinMode.fromParameter(join.get(0));
 
         Stream stream = streamManager.getStream(streamName);
         if (stream == null) {
             log.info("client play request for stream:{} but not exist.", streamName);
             // NetStream.Play.StreamNotFound
-            RtmpCommandMessage onStatus = onStatus("error", "NetStream.Play.StreamNotFound", "No Such Stream");
-
-            ctx.writeAndFlush(onStatus);
+            ctx.writeAndFlush(PLAY_STREAM_NOT_FOUND);
 
             normalShutdown = true;
             ctx.channel().close();
@@ -177,17 +200,9 @@ public class RtmpMessageHandler extends SimpleChannelInboundHandler<RtmpMessage>
 
         ctx.writeAndFlush(UserControlMessageEvent.streamBegin(Constants.DEFAULT_STREAM_ID));
 
-        RtmpCommandMessage onStatus = onStatus("status", "NetStream.Play.Start", "Start live");
+        ctx.writeAndFlush(PLAY_START);
 
-        ctx.writeAndFlush(onStatus);
-
-        List<Object> args = new ArrayList<>();
-        args.add("|RtmpSampleAccess");
-        args.add(true);
-        args.add(true);
-        RtmpCommandMessage rtmpSampleAccess = new RtmpCommandMessage(args);
-
-        ctx.writeAndFlush(rtmpSampleAccess);
+        ctx.writeAndFlush(RTMP_SAMPLE_ACCESS);
 
         List<Object> metadata = new ArrayList<>();
         metadata.add("onMetaData");
@@ -199,12 +214,14 @@ public class RtmpMessageHandler extends SimpleChannelInboundHandler<RtmpMessage>
 //		AudioMessage emptt = new AudioMessage(Unpooled.EMPTY_BUFFER);
 //		ctx.writeAndFlush(emptt);
 
-        stream.addSubscriber(ctx.channel());
+        stream.addSubscriber(ctx.channel(), joinMode);
     }
 
     private void handlePublish(ChannelHandlerContext ctx, RtmpCommandMessage msg) {
         log.info("publish :{}", msg);
         role = Role.Publisher;
+        ctx.channel().config().setWriteBufferWaterMark(
+                ApplicationServerConfig.INSTANCE.getPublisherWriteBuffer().toWaterMark());
 
         String streamType = (String) msg.getCommand().get(4);
         if (!"live".equals(streamType)) {
@@ -218,9 +235,7 @@ public class RtmpMessageHandler extends SimpleChannelInboundHandler<RtmpMessage>
 
         createStream(ctx);
         // reply a onStatus
-        RtmpCommandMessage onStatus = onStatus("status", "NetStream.Publish.Start", "Start publishing");
-
-        ctx.writeAndFlush(onStatus);
+        ctx.writeAndFlush(PUBLISH_START);
 
     }
 
@@ -234,15 +249,7 @@ public class RtmpMessageHandler extends SimpleChannelInboundHandler<RtmpMessage>
 
         log.info("create stream received : {}", msg);
 
-        List<Object> result = new ArrayList<>();
-        result.add("_result");
-        result.add(msg.getCommand().get(1));// transaction id
-        result.add(null);// properties
-        result.add(Constants.DEFAULT_STREAM_ID);// stream id
-
-        RtmpCommandMessage response = new RtmpCommandMessage(result);
-
-        ctx.writeAndFlush(response);
+        ctx.writeAndFlush(CREATE_STREAM_RESULT.withTransactionId(msg.getCommand().get(1)));
 
     }
 
@@ -254,8 +261,9 @@ public class RtmpMessageHandler extends SimpleChannelInboundHandler<RtmpMessage>
         log.info("client connected {} ", msg);
 
         String app = (String) ((Map<?, ?>) msg.getCommand().get(2)).get("app");
-        Integer clientRequestEncode = (Integer) ((Map<?, ?>) msg.getCommand().get(2)).get("objectEncoding");
-        if (clientRequestEncode != null && clientRequestEncode == 3) {
+        // amf0 numbers are decoded as Double
+        Number clientRequestEncode = (Number) ((Map<?, ?>) msg.getCommand().get(2)).get("objectEncoding");
+        if (clientRequestEncode != null && clientRequestEncode.intValue() == 3) {
             log.error("client :{} request AMF3 encoding but server currently doesn't support", ctx);
             ctx.close();
             return;
@@ -274,16 +282,7 @@ public class RtmpMessageHandler extends SimpleChannelInboundHandler<RtmpMessage>
         ctx.writeAndFlush(spb);
         ctx.writeAndFlush(setChunkSize);
 
-        List<Object> result = new ArrayList<>();
-        result.add("_result");
-        result.add(msg.getCommand().get(1));// transaction id
-        result.add(new Amf0Object().addProperty("fmsVer", "FMS/3,0,1,123").addProperty("capabilities", 31));
-        result.add(new Amf0Object().addProperty("level", "status").addProperty("code", "NetConnection.Connect.Success")
-                .addProperty("description", "Connection succeeded").addProperty("objectEncoding", 0));
-
-        RtmpCommandMessage response = new RtmpCommandMessage(result);
-
-        ctx.writeAndFlush(response);
+        ctx.writeAndFlush(CONNECT_RESULT.withTransactionId(msg.getCommand().get(1)));
 
     }
 
@@ -314,7 +313,7 @@ public class RtmpMessageHandler extends SimpleChannelInboundHandler<RtmpMessage>
         }
     }
 
-    public RtmpCommandMessage onStatus(String level, String code, String description) {
+    private static RtmpCommandMessage onStatus(String level, String code, String description) {
         List<Object> result = new ArrayList<>();
         result.add("onStatus");
         result.add(0);// always 0
@@ -322,7 +321,7 @@ public class RtmpMessageHandler extends SimpleChannelInboundHandler<RtmpMessage>
         result.add(new Amf0Object().addProperty("level", level).addProperty("code", code).addProperty("description",
                 description));// stream id
 
-        return new RtmpCommandMessage(result);
+        return RtmpCommandMessage.encodedOnce(result);
     }
 
 }
@@ -1,11 +1,16 @@
 package com.longyb.mylive.server.handlers.http;
 
 import com.longyb.mylive.server.manager.StreamManager;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.*;
 import lombok.AccessLevel;
 import lombok.Getter;
 
+import java.nio.charset.StandardCharsets;
 import java.util.Map;
 
 public abstract class AbstractHttpRouterHandler {
@@ -18,7 +23,81 @@ public abstract class AbstractHttpRouterHandler {
         this.streamManager = streamManager;
     }
 
+    /**
+     * fired through the pipeline once the last content of a response is
+     * written, the router holds the requests pipelined behind it until then
+     */
+    public enum ResponseComplete {
+        INSTANCE
+    }
+
+    /**
+     * handlers are shared by all connections and may run on any thread
+     */
     public abstract void handle(ChannelHandlerContext ctx, HttpRequest req, Map<String, String> pathVariables) throws Exception;
 
+    /**
+     * writes a complete response and keeps the connection open for the next
+     * request if the client asked for it, closes it otherwise
+     */
+    public static void sendResponse(ChannelHandlerContext ctx, HttpRequest req, FullHttpResponse response) {
+        boolean keepAlive = HttpUtil.isKeepAlive(req);
+        HttpUtil.setKeepAlive(response, keepAlive);
+        ChannelFuture future = ctx.writeAndFlush(response);
+        if (!keepAlive) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+        complete(future);
+    }
+
+    /**
+     * fires {@link ResponseComplete} when the write of a response's last
+     * content is done, whether it succeeded or not. Listeners that close the
+     * connection go on the future first. A handler that writes
+     * that content itself must pass the future here, a route that never ends
+     * its response, like a live stream, keeps the connection to itself.
+     */
+    public static ChannelFuture complete(ChannelFuture lastContent) {
+        return lastContent.addListener(
+                future -> lastContent.channel().pipeline().fireUserEventTriggered(ResponseComplete.INSTANCE));
+    }
+
+    /**
+     * a 200 with content the client may cache for as long as cacheControl says,
+     * sent like {@link #sendResponse}
+     */
+    public static void sendContent(ChannelHandlerContext ctx, HttpRequest req, ByteBuf content, String contentType,
+            String cacheControl) {
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, contentType);
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
+        response.headers().set(HttpHeaderNames.CACHE_CONTROL, cacheControl);
+        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+        sendResponse(ctx, req, response);
+    }
+
+    /**
+     * a plain text response such as a 404, sent like {@link #sendResponse}
+     */
+    public static void sendText(ChannelHandlerContext ctx, HttpRequest req, HttpResponseStatus status, String message) {
+        ByteBuf body = Unpooled.copiedBuffer(message, StandardCharsets.UTF_8);
+        FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, status, body);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; charset=UTF-8");
+        response.headers().set(HttpHeaderNames.CONTENT_LENGTH, body.readableBytes());
+        sendResponse(ctx, req, response);
+    }
+
+    /**
+     * ends a response written in parts, whose head went out with
+     * {@link HttpUtil#setKeepAlive} set from the request. The connection stays
+     * open like with {@link #sendResponse}
+     */
+    public static void endResponse(ChannelHandlerContext ctx, HttpRequest req) {
+        ChannelFuture future = ctx.writeAndFlush(LastHttpContent.EMPTY_LAST_CONTENT);
+        if (!HttpUtil.isKeepAlive(req)) {
+            future.addListener(ChannelFutureListener.CLOSE);
+        }
+        complete(future);
+    }
 
 }
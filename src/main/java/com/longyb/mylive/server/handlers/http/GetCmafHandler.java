@@ -0,0 +1,184 @@
+package com.longyb.mylive.server.handlers.http;
+
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.entities.Stream;
+import com.longyb.mylive.server.entities.StreamName;
+import com.longyb.mylive.server.hls.CmafPackager;
+import com.longyb.mylive.server.hls.CmafPackager.Track;
+import com.longyb.mylive.server.manager.StreamManager;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.*;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * The low latency hls playlist, the dash manifest and the fragmented mp4 of a
+ * stream's cmaf packager:
+ * /cmaf/{app}/{stream}.m3u8, /cmaf/{app}/{stream}.mpd and
+ * /cmaf/{app}/{stream}/{track}/{file}, where file is init.mp4, a segment
+ * {sequence}.m4s or a part {sequence}.{part}.m4s.
+ * <p>
+ * A playlist request with _HLS_msn (and _HLS_part), or a request for the part
+ * of the preload hint, is parked with the packager until that part exists. It
+ * holds no thread while parked and is answered with 503 after three target
+ * durations.
+ */
+public class GetCmafHandler extends AbstractHttpRouterHandler {
+
+    public GetCmafHandler(StreamManager streamManager) {
+        super(streamManager);
+    }
+
+    @Override
+    public void handle(ChannelHandlerContext ctx, HttpRequest req, Map<String, String> pathVariables) throws Exception {
+        Stream stream = getStreamManager().getStream(
+                new StreamName(pathVariables.get("app"), pathVariables.get("stream"), false));
+        CmafPackager cmaf = stream == null ? null : stream.getCmaf();
+        if (cmaf == null) {
+            sendText(ctx, req, HttpResponseStatus.NOT_FOUND, "cmaf [" + req.uri() + "] not exist");
+            return;
+        }
+
+        QueryStringDecoder query = new QueryStringDecoder(req.uri());
+        String file = pathVariables.get("file");
+        if (file == null) {
+            if (query.path().endsWith(".mpd")) {
+                byte[] manifest = cmaf.getManifest();
+                respond(ctx, req, manifest, "application/dash+xml", "no-cache");
+            } else {
+                playlist(ctx, req, cmaf, query);
+            }
+            return;
+        }
+
+        Track track = Track.of(pathVariables.get("track"));
+        if (track == null) {
+            sendText(ctx, req, HttpResponseStatus.NOT_FOUND, "cmaf [" + req.uri() + "] not exist");
+            return;
+        }
+        if (file.equals("init.mp4")) {
+            respond(ctx, req, cmaf.init(track), "video/mp4", "max-age=60");
+            return;
+        }
+        if (!file.endsWith(".m4s")) {
+            sendText(ctx, req, HttpResponseStatus.NOT_FOUND, "cmaf [" + req.uri() + "] not exist");
+            return;
+        }
+        String[] numbers = file.substring(0, file.length() - 4).split("\\.");
+        long sequence;
+        int part;
+        try {
+            sequence = Long.parseLong(numbers[0]);
+            part = numbers.length == 2 && track == Track.MUXED ? Integer.parseInt(numbers[1]) : -1;
+        } catch (NumberFormatException e) {
+            sendText(ctx, req, HttpResponseStatus.NOT_FOUND, "cmaf [" + req.uri() + "] not exist");
+            return;
+        }
+        if (numbers.length > 2 || numbers.length == 2 && part < 0) {
+            sendText(ctx, req, HttpResponseStatus.NOT_FOUND, "cmaf [" + req.uri() + "] not exist");
+            return;
+        }
+        if (part < 0) {
+            respond(ctx, req, cmaf.segment(sequence, track), "video/mp4", "max-age=60");
+            return;
+        }
+        // the preload hint names a part before it exists
+        if (sequence > cmaf.getLiveSequence() + 1) {
+            sendText(ctx, req, HttpResponseStatus.NOT_FOUND, "cmaf [" + req.uri() + "] not exist");
+            return;
+        }
+        whenAvailable(ctx, req, cmaf, sequence, part,
+                () -> respond(ctx, req, cmaf.part(sequence, part), "video/mp4", "max-age=60"));
+    }
+
+    private void playlist(ChannelHandlerContext ctx, HttpRequest req, CmafPackager cmaf, QueryStringDecoder query) {
+        long sequence;
+        int part;
+        try {
+            sequence = Long.parseLong(first(query, "_HLS_msn", "-1"));
+            part = Integer.parseInt(first(query, "_HLS_part", "-1"));
+        } catch (NumberFormatException e) {
+            sendText(ctx, req, HttpResponseStatus.BAD_REQUEST, "invalid _HLS_msn or _HLS_part");
+            return;
+        }
+        if (sequence < 0) {
+            respond(ctx, req, cmaf.getPlaylist(), "application/vnd.apple.mpegurl", "no-cache");
+            return;
+        }
+        // further ahead than a client following the playlist can ask for
+        if (sequence > cmaf.getLiveSequence() + 2) {
+            sendText(ctx, req, HttpResponseStatus.BAD_REQUEST, "_HLS_msn is too far ahead");
+            return;
+        }
+        // every parked request gets the same bytes
+        whenAvailable(ctx, req, cmaf, sequence, part,
+                () -> respond(ctx, req, cmaf.getPlaylist(), "application/vnd.apple.mpegurl", "no-cache"));
+    }
+
+    private static String first(QueryStringDecoder query, String name, String defaultValue) {
+        List<String> values = query.parameters().get(name);
+        return values == null || values.isEmpty() ? defaultValue : values.get(0);
+    }
+
+    /**
+     * answers right away, or once the packager has the part, or with 503 when
+     * it takes too long, whichever comes first
+     */
+    private static void whenAvailable(ChannelHandlerContext ctx, HttpRequest req, CmafPackager cmaf, long sequence,
+            int part, Runnable answer) {
+        Parked parked = new Parked(answer);
+        if (cmaf.await(sequence, part, parked)) {
+            answer.run();
+            return;
+        }
+        long holdMillis = 3L * ApplicationServerConfig.INSTANCE.getCmaf().getTargetDurationMillis();
+        parked.timeout = ctx.executor().schedule(() -> {
+            if (parked.answered.compareAndSet(false, true)) {
+                sendText(ctx, req, HttpResponseStatus.SERVICE_UNAVAILABLE, "part not available in time");
+            }
+        }, holdMillis, TimeUnit.MILLISECONDS);
+        // a viewer that gives up is not answered
+        ctx.channel().closeFuture().addListener(future -> parked.answered.set(true));
+    }
+
+    private static final class Parked implements Runnable {
+        final AtomicBoolean answered = new AtomicBoolean();
+        final Runnable answer;
+        volatile ScheduledFuture<?> timeout;
+
+        Parked(Runnable answer) {
+            this.answer = answer;
+        }
+
+        @Override
+        public void run() {
+            if (answered.compareAndSet(false, true)) {
+                ScheduledFuture<?> pending = timeout;
+                if (pending != null) {
+                    pending.cancel(false);
+                }
+                answer.run();
+            }
+        }
+    }
+
+    private static void respond(ChannelHandlerContext ctx, HttpRequest req, byte[] content, String contentType,
+            String cacheControl) {
+        respond(ctx, req, content == null ? null : Unpooled.wrappedBuffer(content), contentType, cacheControl);
+    }
+
+    private static void respond(ChannelHandlerContext ctx, HttpRequest req, ByteBuf content, String contentType,
+            String cacheControl) {
+        if (content == null) {
+            sendText(ctx, req, HttpResponseStatus.NOT_FOUND, "cmaf [" + req.uri() + "] not exist");
+            return;
+        }
+        sendContent(ctx, req, content, contentType, cacheControl);
+    }
+}
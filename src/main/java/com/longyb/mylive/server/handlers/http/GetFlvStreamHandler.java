@@ -1,15 +1,14 @@
 
 package com.longyb.mylive.server.handlers.http;
 
+import com.longyb.mylive.server.cfg.JoinMode;
 import com.longyb.mylive.server.entities.Stream;
 import com.longyb.mylive.server.entities.StreamName;
 import com.longyb.mylive.server.manager.StreamManager;
-import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
 
+import java.util.List;
 import java.util.Map;
 
 public class GetFlvStreamHandler extends AbstractHttpRouterHandler {
@@ -34,7 +33,7 @@ public class GetFlvStreamHandler extends AbstractHttpRouterHandler {
         Stream stream = getStreamManager().getStream(sn);
 
         if (stream == null) {
-            httpResponseStreamNotExist(ctx, uri);
+            sendText(ctx, req, HttpResponseStatus.NOT_FOUND, "stream [" + uri + "] not exist");
             return;
         }
 
@@ -43,14 +42,7 @@ public class GetFlvStreamHandler extends AbstractHttpRouterHandler {
         response.headers().set(HttpHeaderNames.TRANSFER_ENCODING, "chunked");
         response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
         ctx.writeAndFlush(response);
-        stream.addHttpFlvSubscriber(ctx.channel());
-    }
-
-
-    private void httpResponseStreamNotExist(ChannelHandlerContext ctx, String uri) {
-        ByteBuf body = Unpooled.wrappedBuffer(("stream [" + uri + "] not exist").getBytes());
-        DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.NOT_FOUND, body);
-        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain");
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        List<String> join = new QueryStringDecoder(uri).parameters().get("join");
+        stream.addHttpFlvSubscriber(ctx.channel(), join == null ? null : JoinMode.fromParameter(join.get(0)));
     }
 }
@@ -0,0 +1,66 @@
+package com.longyb.mylive.server.handlers.http;
+
+import com.longyb.mylive.server.entities.Stream;
+import com.longyb.mylive.server.entities.StreamName;
+import com.longyb.mylive.server.hls.HlsPackager;
+import com.longyb.mylive.server.manager.StreamManager;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.*;
+
+import java.util.Map;
+
+/**
+ * The playlist and segments of a stream's hls packager:
+ * /hls/{app}/{stream}.m3u8 and /hls/{app}/{stream}/{segment}.ts
+ * <p>
+ * Every response shares the bytes the packager keeps, nothing is copied per
+ * request.
+ */
+public class GetHlsHandler extends AbstractHttpRouterHandler {
+
+    public GetHlsHandler(StreamManager streamManager) {
+        super(streamManager);
+    }
+
+    @Override
+    public void handle(ChannelHandlerContext ctx, HttpRequest req, Map<String, String> pathVariables) throws Exception {
+        Stream stream = getStreamManager().getStream(
+                new StreamName(pathVariables.get("app"), pathVariables.get("stream"), false));
+        HlsPackager hls = stream == null ? null : stream.getHls();
+        if (hls == null) {
+            notFound(ctx, req);
+            return;
+        }
+
+        String segment = pathVariables.get("segment");
+        if (segment == null) {
+            byte[] playlist = hls.getPlaylist();
+            if (playlist == null) {
+                notFound(ctx, req);
+                return;
+            }
+            // the playlist changes with every segment
+            sendContent(ctx, req, Unpooled.wrappedBuffer(playlist), "application/vnd.apple.mpegurl", "no-cache");
+            return;
+        }
+
+        ByteBuf data = null;
+        try {
+            data = hls.segment(Long.parseLong(segment));
+        } catch (NumberFormatException e) {
+            // not one of ours
+        }
+        if (data == null) {
+            notFound(ctx, req);
+            return;
+        }
+        // a segment never changes once it is listed
+        sendContent(ctx, req, data, "video/mp2t", "max-age=60");
+    }
+
+    private static void notFound(ChannelHandlerContext ctx, HttpRequest req) {
+        sendText(ctx, req, HttpResponseStatus.NOT_FOUND, "hls [" + req.uri() + "] not exist");
+    }
+}
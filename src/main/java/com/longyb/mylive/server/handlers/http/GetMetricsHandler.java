@@ -0,0 +1,123 @@
+package com.longyb.mylive.server.handlers.http;
+
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.manager.StreamManager;
+import com.longyb.mylive.server.metrics.MetricsRenderer;
+import com.longyb.mylive.server.metrics.PrometheusWriter;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.stream.ChunkedInput;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayDeque;
+import java.util.Map;
+
+/**
+ * Serves /metrics in the prometheus text format. The body is rendered as
+ * the ChunkedWriteHandler pulls it, a chunk at a time while the connection
+ * is writable, so a scrape holds a few kilobytes however many streams there
+ * are and however slowly the scraper reads.
+ */
+@Slf4j
+public class GetMetricsHandler extends AbstractHttpRouterHandler {
+
+    private static final int CHUNK_SIZE = 8 * 1024;
+
+    public GetMetricsHandler(StreamManager streamManager) {
+        super(streamManager);
+    }
+
+    @Override
+    public void handle(ChannelHandlerContext ctx, HttpRequest req, Map<String, String> pathVariables) throws Exception {
+        MetricsRenderer renderer = new MetricsRenderer(getStreamManager(), ApplicationServerConfig.INSTANCE.getMetrics());
+        HttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK);
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "text/plain; version=0.0.4; charset=utf-8");
+        HttpUtil.setTransferEncodingChunked(response, true);
+        boolean keepAlive = HttpUtil.isKeepAlive(req);
+        HttpUtil.setKeepAlive(response, keepAlive);
+        ctx.write(response);
+        ChannelFuture scrape = ctx.writeAndFlush(new Scrape(ctx.alloc(), renderer));
+        scrape.addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                // the status is out, all that is left is to cut the body short
+                log.error("rendering metrics failed", future.cause());
+                future.channel().close();
+            } else if (!keepAlive) {
+                future.channel().close();
+            }
+        });
+        complete(scrape);
+    }
+
+    /**
+     * renders steps until a chunk is full, the last chunk is the
+     * LastHttpContent
+     */
+    private static final class Scrape implements ChunkedInput<HttpContent> {
+
+        private final MetricsRenderer renderer;
+        private final ArrayDeque<ByteBuf> chunks = new ArrayDeque<>(2);
+        private final PrometheusWriter out;
+        private boolean rendered;
+        private boolean ended;
+        private long progress;
+
+        Scrape(ByteBufAllocator alloc, MetricsRenderer renderer) {
+            this.renderer = renderer;
+            this.out = new PrometheusWriter(alloc, CHUNK_SIZE, chunks::add);
+        }
+
+        @Override
+        public boolean isEndOfInput() {
+            return ended;
+        }
+
+        @Override
+        public void close() {
+            out.discard();
+            for (ByteBuf chunk; (chunk = chunks.poll()) != null;) {
+                chunk.release();
+            }
+        }
+
+        @Deprecated
+        @Override
+        public HttpContent readChunk(ChannelHandlerContext ctx) {
+            return readChunk(ctx.alloc());
+        }
+
+        @Override
+        public HttpContent readChunk(ByteBufAllocator allocator) {
+            while (chunks.isEmpty() && !rendered) {
+                if (!renderer.renderNext(out)) {
+                    out.finish();
+                    rendered = true;
+                }
+            }
+            ByteBuf chunk = chunks.poll();
+            if (chunk != null) {
+                progress += chunk.readableBytes();
+                return new DefaultHttpContent(chunk);
+            }
+            if (ended) {
+                return null;
+            }
+            ended = true;
+            return LastHttpContent.EMPTY_LAST_CONTENT;
+        }
+
+        @Override
+        public long length() {
+            return -1;
+        }
+
+        @Override
+        public long progress() {
+            return progress;
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.longyb.mylive.server.handlers.http;
+
+import com.longyb.mylive.server.ServerTransport;
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.flv.FlvSplice;
+import com.longyb.mylive.server.flv.KeyframeIndex;
+import com.longyb.mylive.server.manager.StreamManager;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.stream.ChunkedNioFile;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Serves the recordings in saveFlVFilePath: /vod/flv/{file}
+ * <p>
+ * Bodies are sent as {@link DefaultFileRegion}s, the kernel copies them from
+ * the page cache to the socket. io_uring can not send a file region, there the
+ * file is read in chunks into pooled direct buffers instead.
+ * <p>
+ * A single byte range is answered with 206, more than one with the whole file.
+ * ?start=seconds seeks to the last key frame at or before that time: an
+ * {@link FlvSplice} followed by everything from the found key frame on. Such a
+ * response has its own ETag but is not rangeable, Range is ignored and it
+ * says Accept-Ranges: none. The key frame index comes from the recording's
+ * sidecar while it is still recorded, else from its onMetaData, and is cached
+ * per file version together with the splice.
+ */
+@Slf4j
+public class GetRecordingHandler extends AbstractHttpRouterHandler {
+
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d{0,18})-(\\d{0,18})");
+    private static final int CHUNK_SIZE = 64 * 1024;
+    private static final int MAX_CACHED_INDEXES = 1024;
+
+    private record CachedIndex(String etag, KeyframeIndex index, FlvSplice splice) {
+    }
+
+    private static final Map<Path, CachedIndex> INDEXES = new ConcurrentHashMap<>();
+
+    public GetRecordingHandler(StreamManager streamManager) {
+        super(streamManager);
+    }
+
+    @Override
+    public void handle(ChannelHandlerContext ctx, HttpRequest req, Map<String, String> pathVariables) throws Exception {
+        if (req.method() != HttpMethod.GET && req.method() != HttpMethod.HEAD) {
+            sendText(ctx, req, HttpResponseStatus.METHOD_NOT_ALLOWED, "only GET and HEAD are supported");
+            return;
+        }
+        Path file = resolve(pathVariables.get("file"));
+        BasicFileAttributes attributes;
+        try {
+            attributes = file == null ? null : Files.readAttributes(file, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            attributes = null;
+        }
+        if (attributes == null || !attributes.isRegularFile()) {
+            sendText(ctx, req, HttpResponseStatus.NOT_FOUND, "recording [" + req.uri() + "] not exist");
+            return;
+        }
+        long size = attributes.size();
+        String etag = "\"" + Long.toHexString(size) + "-" + Long.toHexString(attributes.lastModifiedTime().toMillis())
+                + "\"";
+        HttpHeaders headers = req.headers();
+
+        List<String> start = new QueryStringDecoder(req.uri()).parameters().get("start");
+        long keyFrame = start == null ? 0 : seek(file, etag, start.get(0));
+        if (keyFrame > 0) {
+            // another representation than the whole file
+            etag = etag.substring(0, etag.length() - 1) + "-" + Long.toHexString(keyFrame) + "\"";
+        }
+
+        if (etag.equals(headers.get(HttpHeaderNames.IF_NONE_MATCH))) {
+            DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                    HttpResponseStatus.NOT_MODIFIED);
+            response.headers().set(HttpHeaderNames.ETAG, etag);
+            sendResponse(ctx, req, response);
+            return;
+        }
+
+        if (keyFrame > 0) {
+            FlvSplice splice = cached(file, etag).splice();
+            DefaultHttpResponse response = response(req, HttpResponseStatus.OK);
+            response.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.NONE);
+            response.headers().set(HttpHeaderNames.ETAG, etag);
+            HttpUtil.setContentLength(response, splice.length(keyFrame, size));
+            ctx.write(response);
+            if (req.method() == HttpMethod.GET) {
+                ctx.write(Unpooled.wrappedBuffer(splice.head()));
+                writeFile(ctx, file, splice.configStart(), splice.configEnd() - splice.configStart());
+                writeFile(ctx, file, keyFrame, size - keyFrame);
+            }
+            endResponse(ctx, req);
+            return;
+        }
+
+        long from = 0;
+        long length = size;
+        HttpResponseStatus status = HttpResponseStatus.OK;
+        String range = headers.get(HttpHeaderNames.RANGE);
+        String ifRange = headers.get(HttpHeaderNames.IF_RANGE);
+        Matcher matcher = range == null ? null : RANGE.matcher(range.trim());
+        // bytes=- names no range at all and is ignored like any invalid one
+        if (matcher != null && matcher.matches() && !(matcher.group(1).isEmpty() && matcher.group(2).isEmpty())
+                && (ifRange == null || ifRange.equals(etag))) {
+            String first = matcher.group(1);
+            String last = matcher.group(2);
+            if (first.isEmpty() && !last.isEmpty()) {
+                // the last n bytes
+                from = Math.max(0, size - Long.parseLong(last));
+            } else if (!first.isEmpty()) {
+                from = Long.parseLong(first);
+            }
+            long to = first.isEmpty() || last.isEmpty() ? size - 1 : Math.min(size - 1, Long.parseLong(last));
+            if (from >= size || to < from) {
+                DefaultFullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1,
+                        HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE);
+                response.headers().set(HttpHeaderNames.CONTENT_RANGE, "bytes */" + size);
+                response.headers().set(HttpHeaderNames.CONTENT_LENGTH, 0);
+                sendResponse(ctx, req, response);
+                return;
+            }
+            length = to - from + 1;
+            status = HttpResponseStatus.PARTIAL_CONTENT;
+        }
+
+        DefaultHttpResponse response = response(req, status);
+        response.headers().set(HttpHeaderNames.ETAG, etag);
+        HttpUtil.setContentLength(response, length);
+        if (status == HttpResponseStatus.PARTIAL_CONTENT) {
+            response.headers().set(HttpHeaderNames.CONTENT_RANGE,
+                    "bytes " + from + "-" + (from + length - 1) + "/" + size);
+        }
+        ctx.write(response);
+        if (req.method() == HttpMethod.GET && length > 0) {
+            writeFile(ctx, file, from, length);
+        }
+        endResponse(ctx, req);
+    }
+
+    /**
+     * null unless name is a recording right in saveFlVFilePath
+     */
+    private static Path resolve(String name) {
+        String directory = ApplicationServerConfig.INSTANCE.getSaveFlVFilePath();
+        if (directory == null || name == null || !name.endsWith(".flv") || name.startsWith(".")
+                || name.contains("/") || name.contains("\\")) {
+            return null;
+        }
+        Path dir = Path.of(directory).toAbsolutePath().normalize();
+        Path file = dir.resolve(name).normalize();
+        return dir.equals(file.getParent()) ? file : null;
+    }
+
+    /**
+     * the head of a response whose body follows in parts, ended with
+     * {@link #endResponse}
+     */
+    private static DefaultHttpResponse response(HttpRequest req, HttpResponseStatus status) {
+        DefaultHttpResponse response = new DefaultHttpResponse(HttpVersion.HTTP_1_1, status);
+        HttpUtil.setKeepAlive(response, HttpUtil.isKeepAlive(req));
+        response.headers().set(HttpHeaderNames.CONTENT_TYPE, "video/x-flv");
+        response.headers().set(HttpHeaderNames.ACCEPT_RANGES, HttpHeaderValues.BYTES);
+        response.headers().set(HttpHeaderNames.ACCESS_CONTROL_ALLOW_ORIGIN, "*");
+        return response;
+    }
+
+    private static void writeFile(ChannelHandlerContext ctx, Path file, long position, long count) throws IOException {
+        if (ServerTransport.supportsFileRegion(ctx.channel())) {
+            ctx.write(new DefaultFileRegion(file.toFile(), position, count));
+        } else {
+            ctx.write(new ChunkedNioFile(FileChannel.open(file), position, count, CHUNK_SIZE));
+        }
+    }
+
+    /**
+     * @return where to continue from, 0 for the whole file
+     */
+    private static long seek(Path file, String etag, String seconds) throws IOException {
+        double start;
+        try {
+            start = Double.parseDouble(seconds);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+        KeyframeIndex index = cached(file, etag).index();
+        int i = index.floor((int) (start * 1000));
+        return i > 0 ? index.position(i) : 0;
+    }
+
+    private static CachedIndex cached(Path file, String etag) throws IOException {
+        CachedIndex cached = INDEXES.get(file);
+        if (cached == null || !cached.etag().equals(etag)) {
+            if (INDEXES.size() >= MAX_CACHED_INDEXES) {
+                INDEXES.clear();
+            }
+            KeyframeIndex index = KeyframeIndex.load(file);
+            // without key frames there is nothing to seek to
+            FlvSplice splice = index.size() > 0 ? FlvSplice.of(file, index.position(0)) : null;
+            cached = new CachedIndex(etag, index, splice);
+            INDEXES.put(file, cached);
+        }
+        return cached;
+    }
+}
@@ -1,50 +1,124 @@
 package com.longyb.mylive.server.handlers.http;
 
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.cfg.JoinMode;
+import com.longyb.mylive.server.entities.GopCacheStats;
 import com.longyb.mylive.server.entities.Stream;
 import com.longyb.mylive.server.entities.StreamName;
+import com.longyb.mylive.server.entities.StreamStats;
+import com.longyb.mylive.server.entities.Subscriber;
+import com.longyb.mylive.server.flv.RecorderStats;
 import com.longyb.mylive.server.manager.StreamManager;
 import io.netty.buffer.ByteBuf;
 import io.netty.buffer.Unpooled;
-import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.handler.codec.http.*;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 
-import java.nio.charset.StandardCharsets;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * /api/streams lists every stream, /api/streams/{app}/{stream} returns one.
+ * <p>
+ * Pollers get serialized json that is rebuilt at most once per stats
+ * interval, whatever the number of dashboards. Building it reads the stream's
+ * sampled stats, its gop cache generation and its subscriber sets, none of
+ * which takes the stream's monitor.
+ */
 public class GetStreamsHandler extends AbstractHttpRouterHandler {
     private final ObjectMapper objectMapper = new ObjectMapper();
 
+    private volatile Cached all;
+    private final ConcurrentHashMap<StreamName, Cached> byStream = new ConcurrentHashMap<>();
+
     public GetStreamsHandler(StreamManager streamManager) {
         super(streamManager);
     }
 
     @Override
     public void handle(ChannelHandlerContext ctx, HttpRequest req, Map<String, String> pathVariables) throws Exception {
-        // Retrieve all streams from the manager
-        Map<StreamName, Stream> streams = getStreamManager().getAllStreams();
-
-        // Convert to a list of GetStreamsResponseItem
-        List<GetStreamsResponseItem> responseItems = streams.keySet().stream()
-                .map(stream -> new GetStreamsResponseItem(stream.getApp(), stream.getName()))
-                .toList();
-
-        // Serialize to JSON
-        String jsonResponse = objectMapper.writeValueAsString(responseItems);
+        long now = System.nanoTime();
+        long maxAge = TimeUnit.MILLISECONDS.toNanos(ApplicationServerConfig.INSTANCE.getStats().getIntervalMillis());
+        byte[] json;
+        if (pathVariables.get("stream") == null) {
+            json = allStreams(now, maxAge);
+        } else {
+            json = oneStream(new StreamName(pathVariables.get("app"), pathVariables.get("stream"), false), now, maxAge);
+            if (json == null) {
+                notFound(ctx, req);
+                return;
+            }
+        }
 
         // Create HTTP response
-        ByteBuf content = Unpooled.copiedBuffer(jsonResponse, StandardCharsets.UTF_8);
+        ByteBuf content = Unpooled.wrappedBuffer(json);
         FullHttpResponse response = new DefaultFullHttpResponse(HttpVersion.HTTP_1_1, HttpResponseStatus.OK, content);
         response.headers().set(HttpHeaderNames.CONTENT_TYPE, "application/json; charset=UTF-8");
         response.headers().set(HttpHeaderNames.CONTENT_LENGTH, content.readableBytes());
 
-        // Write the response and close the connection
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        // pollers keep their connection
+        sendResponse(ctx, req, response);
+    }
+
+    /**
+     * callers racing past an expired entry each rebuild it, the last one wins
+     */
+    private byte[] allStreams(long now, long maxAge) throws JsonProcessingException {
+        Cached cached = all;
+        if (cached != null && cached.isFresh(now, maxAge)) {
+            return cached.json();
+        }
+        Map<StreamName, Stream> streams = getStreamManager().getAllStreams();
+        List<GetStreamsResponseItem> responseItems = streams.entrySet().stream()
+                .map(e -> item(e.getKey(), e.getValue()))
+                .toList();
+        byte[] json = objectMapper.writeValueAsBytes(responseItems);
+        all = new Cached(now, json);
+        // forget streams that are gone
+        byStream.keySet().retainAll(streams.keySet());
+        return json;
+    }
+
+    /**
+     * @return null if there is no such stream
+     */
+    private byte[] oneStream(StreamName name, long now, long maxAge) throws JsonProcessingException {
+        Stream stream = getStreamManager().getStream(name);
+        if (stream == null) {
+            byStream.remove(name);
+            return null;
+        }
+        Cached cached = byStream.get(name);
+        if (cached != null && cached.isFresh(now, maxAge)) {
+            return cached.json();
+        }
+        byte[] json = objectMapper.writeValueAsBytes(item(name, stream));
+        byStream.put(name, new Cached(now, json));
+        return json;
+    }
+
+    private static GetStreamsResponseItem item(StreamName name, Stream stream) {
+        return new GetStreamsResponseItem(name.getApp(), name.getName(), stream.getStats(),
+                stream.getGopCacheStats(), stream.getRecorderStats(), subscriberStats(stream));
+    }
+
+    private static void notFound(ChannelHandlerContext ctx, HttpRequest req) {
+        sendText(ctx, req, HttpResponseStatus.NOT_FOUND, "stream [" + req.uri() + "] not exist");
+    }
+
+    private static List<SubscriberStats> subscriberStats(Stream stream) {
+        return java.util.stream.Stream.concat(stream.getSubscribers().stream(), stream.getHttpFLvSubscribers().stream())
+                .map(s -> new SubscriberStats(String.valueOf(s.getChannel().remoteAddress()), s.getProtocol(),
+                        s.getWrites(), s.getFlushes(), s.getWrites() - s.getFlushes(), s.getDroppedFrames(),
+                        s.getSkips(), s.getJoinMode(), s.getTimeToFirstFrameMicros(), s.getJoinDelayMillis()))
+                .toList();
     }
 
     @Data
@@ -55,5 +129,62 @@ public class GetStreamsHandler extends AbstractHttpRouterHandler {
 
         @JsonProperty("stream")
         private String stream;
+
+        // rates as of the last sample, zero before the first one
+        @JsonProperty("stats")
+        private StreamStats stats;
+
+        @JsonProperty("gopCache")
+        private GopCacheStats gopCache;
+
+        // null if the stream is not recorded
+        @JsonProperty("recorder")
+        private RecorderStats recorder;
+
+        @JsonProperty("subscribers")
+        private List<SubscriberStats> subscribers;
+    }
+
+    @Data
+    @AllArgsConstructor
+    private static class SubscriberStats {
+        @JsonProperty("remoteAddress")
+        private String remoteAddress;
+
+        @JsonProperty("protocol")
+        private Subscriber.Protocol protocol;
+
+        @JsonProperty("writes")
+        private long writes;
+
+        @JsonProperty("flushes")
+        private long flushes;
+
+        // every write beyond the flushes is a syscall the coalescing saved
+        @JsonProperty("flushesSaved")
+        private long flushesSaved;
+
+        @JsonProperty("droppedFrames")
+        private long droppedFrames;
+
+        @JsonProperty("skips")
+        private long skips;
+
+        @JsonProperty("joinMode")
+        private JoinMode joinMode;
+
+        // -1 while the viewer still waits for a key frame
+        @JsonProperty("timeToFirstFrameMicros")
+        private long timeToFirstFrameMicros;
+
+        // how far behind live the first frame was
+        @JsonProperty("joinDelayMillis")
+        private int joinDelayMillis;
+    }
+
+    private record Cached(long builtAtNanos, byte[] json) {
+        boolean isFresh(long now, long maxAge) {
+            return now - builtAtNanos < maxAge;
+        }
     }
 }
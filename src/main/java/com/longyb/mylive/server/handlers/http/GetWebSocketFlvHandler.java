@@ -0,0 +1,76 @@
+package com.longyb.mylive.server.handlers.http;
+
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.cfg.JoinMode;
+import com.longyb.mylive.server.cfg.WebSocketConfig;
+import com.longyb.mylive.server.entities.Stream;
+import com.longyb.mylive.server.entities.StreamName;
+import com.longyb.mylive.server.manager.StreamManager;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.http.*;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshakerFactory;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * websocket-flv: the http-flv stream in binary frames, for players behind
+ * proxies that buffer chunked responses. /ws/flv/{app}/{stream}
+ * <p>
+ * Once upgraded the viewer is an ordinary flv subscriber of the stream, it
+ * shares the encoded tags and the slow viewer handling with http-flv.
+ */
+@Slf4j
+public class GetWebSocketFlvHandler extends AbstractHttpRouterHandler {
+
+    public GetWebSocketFlvHandler(StreamManager streamManager) {
+        super(streamManager);
+    }
+
+    @Override
+    public void handle(ChannelHandlerContext ctx, HttpRequest req, Map<String, String> pathVariables) throws Exception {
+        String streamName = pathVariables.get("stream");
+        if (streamName.endsWith(".flv")) {
+            streamName = streamName.substring(0, streamName.length() - ".flv".length());
+        }
+        Stream stream = getStreamManager().getStream(new StreamName(pathVariables.get("app"), streamName, false));
+        if (stream == null) {
+            sendText(ctx, req, HttpResponseStatus.NOT_FOUND, "stream [" + req.uri() + "] not exist");
+            return;
+        }
+        if (!req.headers().containsValue(HttpHeaderNames.CONNECTION, HttpHeaderValues.UPGRADE, true)
+                || !req.headers().contains(HttpHeaderNames.UPGRADE, HttpHeaderValues.WEBSOCKET, true)) {
+            sendText(ctx, req, HttpResponseStatus.UPGRADE_REQUIRED, "websocket upgrade required");
+            return;
+        }
+
+        WebSocketConfig config = ApplicationServerConfig.INSTANCE.getWebSocket();
+        String location = "ws://" + req.headers().get(HttpHeaderNames.HOST) + req.uri();
+        WebSocketServerHandshaker handshaker = new WebSocketServerHandshakerFactory(location, null,
+                config.isDeflate(), config.getMaxFramePayloadLength()).newHandshaker(req);
+        Channel channel = ctx.channel();
+        if (handshaker == null) {
+            complete(WebSocketServerHandshakerFactory.sendUnsupportedVersionResponse(channel));
+            return;
+        }
+
+        List<String> join = new QueryStringDecoder(req.uri()).parameters().get("join");
+        JoinMode joinMode = join == null ? null : JoinMode.fromParameter(join.get(0));
+        // an upgrade request has no body, the decoder's empty last content is dropped
+        FullHttpRequest upgrade = new DefaultFullHttpRequest(req.protocolVersion(), req.method(), req.uri(),
+                Unpooled.EMPTY_BUFFER, req.headers(), EmptyHttpHeaders.INSTANCE);
+        handshaker.handshake(channel, upgrade).addListener(future -> {
+            if (!future.isSuccess()) {
+                log.warn("websocket handshake with {} failed", channel, future.cause());
+                channel.close();
+                return;
+            }
+            ctx.pipeline().replace(ctx.handler(), "wsFlv", new WebSocketFlvFrameHandler(handshaker));
+            stream.addWebSocketFlvSubscriber(channel, joinMode);
+        });
+    }
+}
@@ -0,0 +1,53 @@
+package com.longyb.mylive.server.handlers.http;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelDuplexHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPromise;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.websocketx.BinaryWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.CloseWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PingWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.PongWebSocketFrame;
+import io.netty.handler.codec.http.websocketx.WebSocketCloseStatus;
+import io.netty.handler.codec.http.websocketx.WebSocketServerHandshaker;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Takes the place of the router once a websocket-flv viewer is upgraded.
+ * <p>
+ * The flv header and tags the stream writes become binary frames around the
+ * very same buffers the http-flv viewers get, the end of the stream a close
+ * frame. Of what the viewer sends only ping and close matter.
+ */
+public class WebSocketFlvFrameHandler extends ChannelDuplexHandler {
+
+    private final WebSocketServerHandshaker handshaker;
+
+    public WebSocketFlvFrameHandler(WebSocketServerHandshaker handshaker) {
+        this.handshaker = handshaker;
+    }
+
+    @Override
+    public void write(ChannelHandlerContext ctx, Object msg, ChannelPromise promise) throws Exception {
+        if (msg instanceof ByteBuf tag) {
+            ctx.write(new BinaryWebSocketFrame(tag), promise);
+        } else if (msg instanceof LastHttpContent) {
+            ReferenceCountUtil.release(msg);
+            ctx.write(new CloseWebSocketFrame(WebSocketCloseStatus.NORMAL_CLOSURE, "stream ended"), promise);
+        } else {
+            ctx.write(msg, promise);
+        }
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg) throws Exception {
+        if (msg instanceof CloseWebSocketFrame close) {
+            handshaker.close(ctx.channel(), close);
+        } else if (msg instanceof PingWebSocketFrame ping) {
+            ctx.writeAndFlush(new PongWebSocketFrame(ping.content()));
+        } else {
+            ReferenceCountUtil.release(msg);
+        }
+    }
+}
@@ -0,0 +1,623 @@
+package com.longyb.mylive.server.hls;
+
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.function.Supplier;
+
+import com.longyb.mylive.server.cfg.CmafConfig;
+import com.longyb.mylive.server.rtmp.messages.AudioMessage;
+import com.longyb.mylive.server.rtmp.messages.RtmpMediaMessage;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Packages a stream's flv media as CMAF: fragmented mp4 parts that make up the
+ * segments of a low latency hls playlist and of a dash manifest.
+ * <p>
+ * Unlike {@link HlsPackager} nothing is rewritten, the AVC samples keep their
+ * length prefixes and the AAC frames need no header, the payloads are copied
+ * once into the mdat. Every part has one fragment per track: hls lists the
+ * parts with both tracks, dash the segments of each track.
+ * <p>
+ * A part ends before it would exceed the part target, a segment at the first
+ * key frame after the target duration. Requests for a part that does not exist
+ * yet register a callback with {@link #await} instead of holding a thread;
+ * whoever completes the part runs the callbacks that can be answered, and all
+ * of them answer with the same playlist bytes.
+ * <p>
+ * {@link #add} and {@link #close} are called by the publisher only, everything
+ * else by anyone.
+ */
+@Slf4j
+public class CmafPackager {
+
+	/**
+	 * what a segment or init segment holds, by its path element
+	 */
+	public enum Track {
+		MUXED("av"), VIDEO("v"), AUDIO("a");
+
+		private final String path;
+
+		Track(String path) {
+			this.path = path;
+		}
+
+		/**
+		 * null if there is no such track
+		 */
+		public static Track of(String path) {
+			for (Track track : values()) {
+				if (track.path.equals(path)) {
+					return track;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static final int CODEC_AVC = 7;
+	private static final int SOUND_FORMAT_AAC = 10;
+	private static final int AAC_FRAME_SAMPLES = 1024;
+	private static final int[] SAMPLE_RATES = { 96000, 88200, 64000, 48000, 44100, 32000, 24000, 22050, 16000,
+			12000, 11025, 8000, 7350 };
+
+	private final String name;
+	private final CmafConfig config;
+	private final Supplier<Map<String, Object>> metadata;
+	private final ByteBufAllocator alloc = ByteBufAllocator.DEFAULT;
+
+	// publisher only
+	private byte[] avcConfig;
+	private byte[] audioConfig;
+	private int audioObjectType;
+	private int sampleRate;
+	private int channels;
+	private boolean started;
+	private boolean withVideo;
+	private boolean withAudio;
+	private final TrackRun videoRun = new TrackRun();
+	private final TrackRun audioRun = new TrackRun();
+	// a video sample's duration is known with the next one
+	private ByteBuf pending;
+	private int pendingTimestamp;
+	private int pendingOffset;
+	private boolean pendingKeyFrame;
+	private int frameMillis;
+	private long audioDecodeTime = -1;
+	private CmafSegment current;
+	private int partStart;
+	private boolean partIndependent;
+	private int fragmentSequence = 1;
+	private long nextSequence;
+	private int maxDurationMillis;
+	private long availabilityStart;
+	private boolean closed;
+
+	// guarded by ring
+	private final ArrayDeque<CmafSegment> ring = new ArrayDeque<>();
+	private List<Waiter> waiters = new ArrayList<>();
+	private boolean ended;
+
+	private volatile byte[] playlist;
+	private volatile byte[] manifest;
+	private volatile byte[] init;
+	private volatile byte[] videoInit;
+	private volatile byte[] audioInit;
+	private volatile long liveSequence = -1;
+
+	/**
+	 * the segments of a stream, the last one is still being filled
+	 */
+	private static final class CmafSegment {
+		final long sequence;
+		final int startMillis;
+		final List<CmafPart> parts = new ArrayList<>();
+		int durationMillis;
+		boolean complete;
+
+		CmafSegment(long sequence, int startMillis) {
+			this.sequence = sequence;
+			this.startMillis = startMillis;
+		}
+
+		int bytes(Track track) {
+			int bytes = 0;
+			for (CmafPart part : parts) {
+				if (track != Track.AUDIO && part.video() != null) {
+					bytes += part.video().readableBytes();
+				}
+				if (track != Track.VIDEO && part.audio() != null) {
+					bytes += part.audio().readableBytes();
+				}
+			}
+			return bytes;
+		}
+	}
+
+	private record Waiter(long sequence, int part, Runnable ready) {
+	}
+
+	/**
+	 * @param name     the stream's name, uris are relative to the playlist
+	 * @param metadata the stream's metadata, for the picture size
+	 */
+	public CmafPackager(String name, CmafConfig config, Supplier<Map<String, Object>> metadata) {
+		this.name = name;
+		this.config = config;
+		this.metadata = metadata;
+	}
+
+	/**
+	 * msg is borrowed
+	 */
+	public void add(RtmpMediaMessage msg) {
+		if (closed) {
+			return;
+		}
+		int timestamp = msg.getTimestamp() == null ? 0 : msg.getTimestamp();
+		if (msg instanceof VideoMessage vm) {
+			addVideo(vm.content(), timestamp);
+		} else if (msg instanceof AudioMessage am) {
+			addAudio(am.content(), timestamp);
+		}
+	}
+
+	private void addVideo(ByteBuf payload, int timestamp) {
+		int index = payload.readerIndex();
+		int end = payload.writerIndex();
+		if (end - index < 5 || (payload.getByte(index) & 0x0f) != CODEC_AVC) {
+			return;
+		}
+		boolean keyFrame = (payload.getByte(index) & 0xf0) == 0x10;
+		int packetType = payload.getByte(index + 1);
+		if (packetType == 0) {
+			// the init segment is written once, later configurations are ignored
+			if (!started) {
+				avcConfig = ByteBufUtil.getBytes(payload, index + 5, end - index - 5);
+			}
+			return;
+		}
+		if (packetType != 1 || avcConfig == null) {
+			return;
+		}
+		if (!started) {
+			if (!keyFrame) {
+				return;
+			}
+			start(timestamp);
+		}
+		if (!withVideo) {
+			return;
+		}
+		if (pending != null) {
+			int duration = Math.max(0, timestamp - pendingTimestamp);
+			if (duration > 0) {
+				frameMillis = duration;
+			}
+			videoRun.add(90L * pendingTimestamp, 90 * duration,
+					pendingKeyFrame ? Fmp4Writer.SYNC_SAMPLE : Fmp4Writer.NON_SYNC_SAMPLE, 90 * pendingOffset, pending);
+			pending = null;
+		}
+		cut(timestamp, keyFrame);
+		pending = payload.retainedSlice(index + 5, end - index - 5);
+		pendingTimestamp = timestamp;
+		// composition time offset, signed 24 bits
+		pendingOffset = payload.getMedium(index + 2) << 8 >> 8;
+		pendingKeyFrame = keyFrame;
+	}
+
+	private void addAudio(ByteBuf payload, int timestamp) {
+		int index = payload.readerIndex();
+		int end = payload.writerIndex();
+		if (end - index < 2 || (payload.getUnsignedByte(index) >> 4) != SOUND_FORMAT_AAC) {
+			return;
+		}
+		if (payload.getByte(index + 1) == 0) {
+			if (!started && end - index >= 4) {
+				int asc = payload.getUnsignedShort(index + 2);
+				int sampleRateIndex = asc >> 7 & 0x0f;
+				if (sampleRateIndex < SAMPLE_RATES.length) {
+					audioConfig = ByteBufUtil.getBytes(payload, index + 2, end - index - 2);
+					audioObjectType = asc >> 11;
+					sampleRate = SAMPLE_RATES[sampleRateIndex];
+					channels = asc >> 3 & 0x0f;
+				}
+			}
+			return;
+		}
+		if (audioConfig == null) {
+			return;
+		}
+		if (!started) {
+			if (avcConfig != null) {
+				// waits for the first key frame
+				return;
+			}
+			start(timestamp);
+		}
+		if (!withAudio) {
+			return;
+		}
+		if (!withVideo) {
+			// audio only, every frame is a key frame
+			cut(timestamp, true);
+		}
+		long decodeTime = (long) timestamp * sampleRate / 1000;
+		if (Math.abs(decodeTime - audioDecodeTime) > AAC_FRAME_SAMPLES) {
+			// first frame or a gap, otherwise the frames follow each other
+			audioDecodeTime = decodeTime;
+		}
+		audioRun.add(audioDecodeTime, AAC_FRAME_SAMPLES, Fmp4Writer.SYNC_SAMPLE, 0,
+				payload.retainedSlice(index + 2, end - index - 2));
+		audioDecodeTime += AAC_FRAME_SAMPLES;
+	}
+
+	/**
+	 * the tracks and the init segments are fixed from here on
+	 */
+	private void start(int timestamp) {
+		started = true;
+		withVideo = avcConfig != null;
+		withAudio = audioConfig != null;
+		int width = 0;
+		int height = 0;
+		Map<String, Object> md = metadata == null ? null : metadata.get();
+		if (md != null && md.get("width") instanceof Number w && md.get("height") instanceof Number h) {
+			width = w.intValue();
+			height = h.intValue();
+		}
+		init = writeInit(avcConfig, width, height, audioConfig);
+		videoInit = withVideo ? writeInit(avcConfig, width, height, null) : null;
+		audioInit = withAudio ? writeInit(null, 0, 0, audioConfig) : null;
+		if (!withVideo) {
+			frameMillis = AAC_FRAME_SAMPLES * 1000 / sampleRate;
+		}
+		availabilityStart = System.currentTimeMillis() - timestamp;
+		startSegment(timestamp);
+	}
+
+	private byte[] writeInit(byte[] video, int width, int height, byte[] audio) {
+		ByteBuf out = Unpooled.buffer(1024);
+		Fmp4Writer.writeInit(out, video, width, height, audio, sampleRate, channels);
+		return ByteBufUtil.getBytes(out);
+	}
+
+	/**
+	 * ends the part, and the segment, before the frame at timestamp
+	 */
+	private void cut(int timestamp, boolean keyFrame) {
+		if (keyFrame && timestamp - current.startMillis >= config.getTargetDurationMillis()) {
+			finishPart(timestamp, true);
+			startSegment(timestamp);
+		} else if (timestamp > partStart && timestamp + frameMillis - partStart > config.getPartTargetMillis()) {
+			finishPart(timestamp, false);
+			partStart = timestamp;
+			partIndependent = keyFrame;
+		}
+	}
+
+	private void startSegment(int timestamp) {
+		current = new CmafSegment(nextSequence++, timestamp);
+		partStart = timestamp;
+		partIndependent = true;
+		synchronized (ring) {
+			ring.addLast(current);
+			liveSequence = current.sequence;
+		}
+	}
+
+	private void finishPart(int timestamp, boolean endSegment) {
+		ByteBuf video = fragment(videoRun, Fmp4Writer.VIDEO_TRACK);
+		ByteBuf audio = fragment(audioRun, Fmp4Writer.AUDIO_TRACK);
+		List<Waiter> ready;
+		synchronized (ring) {
+			if (video != null || audio != null) {
+				current.parts.add(new CmafPart(timestamp - partStart, partIndependent, video, audio));
+			}
+			if (endSegment) {
+				current.durationMillis = timestamp - current.startMillis;
+				current.complete = true;
+				maxDurationMillis = Math.max(maxDurationMillis, current.durationMillis);
+				while (ring.size() > Math.max(1, config.getSegments())) {
+					ring.removeFirst().parts.forEach(CmafPart::release);
+				}
+				manifest = buildManifest();
+			}
+			playlist = buildPlaylist();
+			ready = takeReady();
+		}
+		for (Waiter waiter : ready) {
+			waiter.ready().run();
+		}
+	}
+
+	private ByteBuf fragment(TrackRun run, int trackId) {
+		if (run.count == 0) {
+			return null;
+		}
+		ByteBuf out = alloc.directBuffer(256 + 16 * run.count + run.data().readableBytes());
+		Fmp4Writer.writeFragment(out, fragmentSequence++, trackId, run);
+		run.clear();
+		return out;
+	}
+
+	/**
+	 * guarded by ring
+	 */
+	private List<Waiter> takeReady() {
+		if (waiters.isEmpty()) {
+			return List.of();
+		}
+		List<Waiter> ready = new ArrayList<>();
+		waiters.removeIf(waiter -> available(waiter.sequence(), waiter.part()) && ready.add(waiter));
+		return ready;
+	}
+
+	/**
+	 * guarded by ring. A part past the end of a complete segment is the first
+	 * part of the next one.
+	 */
+	private boolean available(long sequence, int part) {
+		CmafSegment last = ring.peekLast();
+		if (last == null) {
+			return false;
+		}
+		if (sequence != last.sequence) {
+			return sequence < last.sequence;
+		}
+		return part < 0 ? last.complete : part < last.parts.size();
+	}
+
+	/**
+	 * guarded by ring
+	 */
+	private byte[] buildPlaylist() {
+		CmafSegment last = ring.peekLast();
+		int target = (Math.max(maxDurationMillis, config.getTargetDurationMillis()) + 999) / 1000;
+		StringBuilder sb = new StringBuilder(512);
+		sb.append("#EXTM3U\n#EXT-X-VERSION:9\n#EXT-X-TARGETDURATION:").append(target).append('\n');
+		sb.append("#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=")
+				.append(seconds(3 * config.getPartTargetMillis())).append('\n');
+		sb.append("#EXT-X-PART-INF:PART-TARGET=").append(seconds(config.getPartTargetMillis())).append('\n');
+		sb.append("#EXT-X-MEDIA-SEQUENCE:").append(ring.peekFirst().sequence).append('\n');
+		sb.append("#EXT-X-MAP:URI=\"").append(name).append("/av/init.mp4\"\n");
+		for (CmafSegment segment : ring) {
+			// only the parts near the live edge are listed
+			if (segment.sequence + 3 > last.sequence) {
+				for (int i = 0; i < segment.parts.size(); i++) {
+					CmafPart part = segment.parts.get(i);
+					sb.append("#EXT-X-PART:DURATION=").append(seconds(part.durationMillis())).append(",URI=\"")
+							.append(name).append("/av/").append(segment.sequence).append('.').append(i)
+							.append(".m4s\"");
+					if (part.independent()) {
+						sb.append(",INDEPENDENT=YES");
+					}
+					sb.append('\n');
+				}
+			}
+			if (segment.complete) {
+				sb.append("#EXTINF:").append(seconds(segment.durationMillis)).append(",\n");
+				sb.append(name).append("/av/").append(segment.sequence).append(".m4s\n");
+			}
+		}
+		long hintSequence = last.complete ? last.sequence + 1 : last.sequence;
+		int hintPart = last.complete ? 0 : last.parts.size();
+		sb.append("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"").append(name).append("/av/").append(hintSequence)
+				.append('.').append(hintPart).append(".m4s\"\n");
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * guarded by ring, the complete segments of each track
+	 */
+	private byte[] buildManifest() {
+		List<CmafSegment> complete = new ArrayList<>(ring.size());
+		int totalMillis = 0;
+		for (CmafSegment segment : ring) {
+			if (segment.complete) {
+				complete.add(segment);
+				totalMillis += segment.durationMillis;
+			}
+		}
+		StringBuilder sb = new StringBuilder(1024);
+		sb.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+		sb.append("<MPD xmlns=\"urn:mpeg:dash:schema:mpd:2011\" profiles=\"urn:mpeg:dash:profile:isoff-live:2011\"");
+		sb.append(" type=\"dynamic\" availabilityStartTime=\"").append(Instant.ofEpochMilli(availabilityStart));
+		sb.append("\" publishTime=\"").append(Instant.now().truncatedTo(ChronoUnit.MILLIS));
+		sb.append("\" minimumUpdatePeriod=\"").append(duration(config.getTargetDurationMillis()));
+		sb.append("\" minBufferTime=\"").append(duration(config.getTargetDurationMillis()));
+		sb.append("\" timeShiftBufferDepth=\"").append(duration(totalMillis));
+		sb.append("\" maxSegmentDuration=\"").append(duration(maxDurationMillis)).append("\">\n");
+		sb.append("  <Period id=\"0\" start=\"PT0S\">\n");
+		if (withVideo) {
+			StringBuilder attributes = new StringBuilder();
+			attributes.append(" codecs=\"avc1.")
+					.append(ByteBufUtil.hexDump(avcConfig, 1, Math.min(3, avcConfig.length - 1))).append('"');
+			Map<String, Object> md = metadata == null ? null : metadata.get();
+			if (md != null && md.get("width") instanceof Number w && md.get("height") instanceof Number h) {
+				attributes.append(" width=\"").append(w.intValue()).append("\" height=\"").append(h.intValue())
+						.append('"');
+			}
+			appendAdaptationSet(sb, Track.VIDEO, "video", attributes, complete, totalMillis);
+		}
+		if (withAudio) {
+			StringBuilder attributes = new StringBuilder();
+			attributes.append(" codecs=\"mp4a.40.").append(audioObjectType).append("\" audioSamplingRate=\"")
+					.append(sampleRate).append('"');
+			appendAdaptationSet(sb, Track.AUDIO, "audio", attributes, complete, totalMillis);
+		}
+		sb.append("  </Period>\n</MPD>\n");
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	private void appendAdaptationSet(StringBuilder sb, Track track, String type, CharSequence attributes,
+			List<CmafSegment> segments, int totalMillis) {
+		long bytes = 0;
+		for (CmafSegment segment : segments) {
+			bytes += segment.bytes(track);
+		}
+		sb.append("    <AdaptationSet contentType=\"").append(type).append("\" mimeType=\"").append(type)
+				.append("/mp4\" segmentAlignment=\"true\" startWithSAP=\"1\">\n");
+		sb.append("      <Representation id=\"").append(track.path).append("\" bandwidth=\"")
+				.append(totalMillis == 0 ? 0 : bytes * 8000 / totalMillis).append('"').append(attributes)
+				.append(">\n");
+		String base = name + "/" + track.path + "/";
+		sb.append("        <SegmentTemplate timescale=\"1000\" initialization=\"").append(base)
+				.append("init.mp4\" media=\"").append(base).append("$Number$.m4s\" startNumber=\"")
+				.append(segments.get(0).sequence).append("\">\n");
+		sb.append("          <SegmentTimeline>\n");
+		int next = Integer.MIN_VALUE;
+		for (CmafSegment segment : segments) {
+			sb.append("            <S ");
+			if (segment.startMillis != next) {
+				sb.append("t=\"").append(segment.startMillis).append("\" ");
+			}
+			sb.append("d=\"").append(segment.durationMillis).append("\"/>\n");
+			next = segment.startMillis + segment.durationMillis;
+		}
+		sb.append("          </SegmentTimeline>\n");
+		sb.append("        </SegmentTemplate>\n      </Representation>\n    </AdaptationSet>\n");
+	}
+
+	private static String seconds(int millis) {
+		return String.format(Locale.ROOT, "%.3f", millis / 1000.0);
+	}
+
+	private static String duration(int millis) {
+		return "PT" + seconds(millis) + "S";
+	}
+
+	/**
+	 * null until the first part is complete
+	 */
+	public byte[] getPlaylist() {
+		return playlist;
+	}
+
+	/**
+	 * null until the first segment is complete
+	 */
+	public byte[] getManifest() {
+		return manifest;
+	}
+
+	/**
+	 * the sequence of the segment being filled, -1 before the first
+	 */
+	public long getLiveSequence() {
+		return liveSequence;
+	}
+
+	/**
+	 * null before the first segment or if the stream has no such track
+	 */
+	public byte[] init(Track track) {
+		return switch (track) {
+		case MUXED -> init;
+		case VIDEO -> videoInit;
+		case AUDIO -> audioInit;
+		};
+	}
+
+	/**
+	 * the fragments of a complete segment, the caller releases them. null if
+	 * there is no such segment (any more)
+	 */
+	public ByteBuf segment(long sequence, Track track) {
+		synchronized (ring) {
+			for (CmafSegment segment : ring) {
+				if (segment.sequence == sequence && segment.complete) {
+					return join(segment.parts, track);
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * a part with both tracks, the caller releases it. null if there is no such
+	 * part (any more)
+	 */
+	public ByteBuf part(long sequence, int index) {
+		synchronized (ring) {
+			for (CmafSegment segment : ring) {
+				if (segment.sequence == sequence && index >= 0 && index < segment.parts.size()) {
+					return join(segment.parts.subList(index, index + 1), Track.MUXED);
+				}
+			}
+		}
+		return null;
+	}
+
+	private ByteBuf join(List<CmafPart> parts, Track track) {
+		CompositeByteBuf joined = alloc.compositeBuffer(Math.max(2, parts.size() * 2));
+		for (CmafPart part : parts) {
+			if (track != Track.AUDIO && part.video() != null) {
+				joined.addComponent(true, part.video().retainedDuplicate());
+			}
+			if (track != Track.VIDEO && part.audio() != null) {
+				joined.addComponent(true, part.audio().retainedDuplicate());
+			}
+		}
+		return joined;
+	}
+
+	/**
+	 * Calls ready once part of segment sequence, or the whole segment if part
+	 * is negative, is listed in the playlist, or the stream ends. Never blocks,
+	 * ready runs on whichever thread completes the part.
+	 *
+	 * @return true if that is the case already, ready is not called then
+	 */
+	public boolean await(long sequence, int part, Runnable ready) {
+		synchronized (ring) {
+			if (ended || available(sequence, part)) {
+				return true;
+			}
+			waiters.add(new Waiter(sequence, part, ready));
+			return false;
+		}
+	}
+
+	/**
+	 * publisher only, drops everything and answers whoever still waits
+	 */
+	public void close() {
+		closed = true;
+		if (pending != null) {
+			pending.release();
+			pending = null;
+		}
+		videoRun.release();
+		audioRun.release();
+		List<Waiter> left;
+		synchronized (ring) {
+			ended = true;
+			for (CmafSegment segment : ring) {
+				segment.parts.forEach(CmafPart::release);
+			}
+			ring.clear();
+			playlist = null;
+			manifest = null;
+			left = waiters;
+			waiters = new ArrayList<>();
+		}
+		for (Waiter waiter : left) {
+			waiter.ready().run();
+		}
+	}
+
+}
@@ -0,0 +1,23 @@
+package com.longyb.mylive.server.hls;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * a complete part of a cmaf segment, owned by the packager's ring
+ *
+ * @param durationMillis up to the start of the next part
+ * @param independent    starts with a key frame
+ * @param video          moof and mdat of the video track, null if it has none
+ * @param audio          moof and mdat of the audio track, null if it has none
+ */
+public record CmafPart(int durationMillis, boolean independent, ByteBuf video, ByteBuf audio) {
+
+	void release() {
+		if (video != null) {
+			video.release();
+		}
+		if (audio != null) {
+			audio.release();
+		}
+	}
+}
@@ -0,0 +1,251 @@
+package com.longyb.mylive.server.hls;
+
+import java.nio.charset.StandardCharsets;
+import java.util.function.Consumer;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * Writes the boxes of fragmented mp4 as CMAF uses them: an init segment with
+ * the sample descriptions and empty sample tables, then a moof and mdat per
+ * track and fragment.
+ * <p>
+ * Video is AVC with the decoder configuration record as avcC, the samples
+ * keep their length prefixed NAL units. Audio is AAC with the audio specific
+ * config in an esds.
+ */
+public final class Fmp4Writer {
+
+	static final int VIDEO_TRACK = 1;
+	static final int AUDIO_TRACK = 2;
+
+	static final int VIDEO_TIMESCALE = 90_000;
+
+	/**
+	 * sample_depends_on 2: a key frame
+	 */
+	static final int SYNC_SAMPLE = 0x0200_0000;
+	/**
+	 * sample_depends_on 1 and sample_is_non_sync_sample
+	 */
+	static final int NON_SYNC_SAMPLE = 0x0101_0000;
+
+	private static final int[] MATRIX = { 0x0001_0000, 0, 0, 0, 0x0001_0000, 0, 0, 0, 0x4000_0000 };
+
+	private static final int TFHD_DEFAULT_BASE_IS_MOOF = 0x02_0000;
+	private static final int TRUN_DATA_OFFSET = 0x000001;
+	private static final int TRUN_SAMPLE_DURATION = 0x000100;
+	private static final int TRUN_SAMPLE_SIZE = 0x000200;
+	private static final int TRUN_SAMPLE_FLAGS = 0x000400;
+	private static final int TRUN_SAMPLE_COMPOSITION_OFFSET = 0x000800;
+
+	private Fmp4Writer() {
+	}
+
+	/**
+	 * the video track needs the decoder configuration record, the audio track
+	 * the audio specific config, a track whose config is null is left out
+	 */
+	public static void writeInit(ByteBuf out, byte[] avcConfig, int width, int height, byte[] audioConfig,
+			int sampleRate, int channels) {
+		int ftyp = begin(out, "ftyp");
+		out.writeInt(type("iso6")).writeInt(0);
+		out.writeInt(type("iso6")).writeInt(type("cmfc")).writeInt(type("mp41"));
+		end(out, ftyp);
+
+		int moov = begin(out, "moov");
+		int mvhd = beginFull(out, "mvhd", 0, 0);
+		out.writeInt(0).writeInt(0); // creation and modification time
+		out.writeInt(1000).writeInt(0); // timescale, duration
+		out.writeInt(0x0001_0000).writeShort(0x0100); // rate, volume
+		out.writeZero(2 + 8);
+		writeMatrix(out);
+		out.writeZero(24);
+		out.writeInt(AUDIO_TRACK + 1); // next track id
+		end(out, mvhd);
+
+		if (avcConfig != null) {
+			writeTrack(out, VIDEO_TRACK, width, height, VIDEO_TIMESCALE, "vide", "VideoHandler", o -> {
+				int vmhd = beginFull(o, "vmhd", 0, 1);
+				o.writeZero(8); // graphics mode, op color
+				end(o, vmhd);
+			}, o -> {
+				int avc1 = begin(o, "avc1");
+				o.writeZero(6).writeShort(1); // data reference index
+				o.writeZero(16);
+				o.writeShort(width).writeShort(height);
+				o.writeInt(0x0048_0000).writeInt(0x0048_0000); // 72 dpi
+				o.writeInt(0).writeShort(1); // frame count
+				o.writeZero(32); // compressor name
+				o.writeShort(0x0018).writeShort(-1);
+				int avcC = begin(o, "avcC");
+				o.writeBytes(avcConfig);
+				end(o, avcC);
+				end(o, avc1);
+			});
+		}
+		if (audioConfig != null) {
+			writeTrack(out, AUDIO_TRACK, 0, 0, sampleRate, "soun", "SoundHandler", o -> {
+				int smhd = beginFull(o, "smhd", 0, 0);
+				o.writeShort(0).writeShort(0); // balance
+				end(o, smhd);
+			}, o -> {
+				int mp4a = begin(o, "mp4a");
+				o.writeZero(6).writeShort(1);
+				o.writeZero(8);
+				o.writeShort(channels).writeShort(16); // channel count, sample size
+				o.writeZero(4);
+				o.writeInt(sampleRate << 16);
+				int esds = beginFull(o, "esds", 0, 0);
+				// ES_Descriptor > DecoderConfigDescriptor > DecoderSpecificInfo, then SLConfigDescriptor
+				o.writeByte(0x03).writeByte(3 + 2 + 13 + 2 + audioConfig.length + 3);
+				o.writeShort(0).writeByte(0); // es id, flags
+				o.writeByte(0x04).writeByte(13 + 2 + audioConfig.length);
+				o.writeByte(0x40).writeByte(0x15); // mpeg-4 audio, audio stream
+				o.writeMedium(0).writeInt(0).writeInt(0); // buffer size, max and average bitrate
+				o.writeByte(0x05).writeByte(audioConfig.length).writeBytes(audioConfig);
+				o.writeByte(0x06).writeByte(1).writeByte(0x02);
+				end(o, esds);
+				end(o, mp4a);
+			});
+		}
+
+		int mvex = begin(out, "mvex");
+		if (avcConfig != null) {
+			writeTrex(out, VIDEO_TRACK, 0);
+		}
+		if (audioConfig != null) {
+			writeTrex(out, AUDIO_TRACK, SYNC_SAMPLE);
+		}
+		end(out, mvex);
+		end(out, moov);
+	}
+
+	/**
+	 * a trak with empty sample tables, the media header and the sample entry
+	 * are up to the caller
+	 */
+	private static void writeTrack(ByteBuf out, int trackId, int width, int height, int timescale, String handler,
+			String name, Consumer<ByteBuf> mediaHeader, Consumer<ByteBuf> sampleEntry) {
+		int trak = begin(out, "trak");
+		int tkhd = beginFull(out, "tkhd", 0, 3); // enabled, in movie
+		out.writeInt(0).writeInt(0);
+		out.writeInt(trackId).writeInt(0);
+		out.writeInt(0); // duration
+		out.writeZero(8);
+		out.writeShort(0).writeShort(0); // layer, alternate group
+		out.writeShort(handler.equals("soun") ? 0x0100 : 0).writeShort(0); // volume of audio tracks
+		writeMatrix(out);
+		out.writeInt(width << 16).writeInt(height << 16);
+		end(out, tkhd);
+
+		int mdia = begin(out, "mdia");
+		int mdhd = beginFull(out, "mdhd", 0, 0);
+		out.writeInt(0).writeInt(0);
+		out.writeInt(timescale).writeInt(0);
+		out.writeShort(0x55c4).writeShort(0); // und
+		end(out, mdhd);
+		int hdlr = beginFull(out, "hdlr", 0, 0);
+		out.writeInt(0).writeInt(type(handler)).writeZero(12);
+		out.writeBytes(name.getBytes(StandardCharsets.US_ASCII)).writeByte(0);
+		end(out, hdlr);
+
+		int minf = begin(out, "minf");
+		mediaHeader.accept(out);
+		int dinf = begin(out, "dinf");
+		int dref = beginFull(out, "dref", 0, 0);
+		out.writeInt(1);
+		int url = beginFull(out, "url ", 0, 1); // media in the same file
+		end(out, url);
+		end(out, dref);
+		end(out, dinf);
+
+		int stbl = begin(out, "stbl");
+		int stsd = beginFull(out, "stsd", 0, 0);
+		out.writeInt(1);
+		sampleEntry.accept(out);
+		end(out, stsd);
+		for (String table : new String[] { "stts", "stsc", "stco" }) {
+			int box = beginFull(out, table, 0, 0);
+			out.writeInt(0);
+			end(out, box);
+		}
+		int stsz = beginFull(out, "stsz", 0, 0);
+		out.writeInt(0).writeInt(0);
+		end(out, stsz);
+		end(out, stbl);
+		end(out, minf);
+		end(out, mdia);
+		end(out, trak);
+	}
+
+	private static void writeTrex(ByteBuf out, int trackId, int defaultFlags) {
+		int trex = beginFull(out, "trex", 0, 0);
+		out.writeInt(trackId).writeInt(1); // sample description index
+		out.writeInt(0).writeInt(0).writeInt(defaultFlags);
+		end(out, trex);
+	}
+
+	/**
+	 * a moof and mdat with the samples of one track, run is left as it was
+	 */
+	public static void writeFragment(ByteBuf out, int sequence, int trackId, TrackRun run) {
+		int moof = begin(out, "moof");
+		int mfhd = beginFull(out, "mfhd", 0, 0);
+		out.writeInt(sequence);
+		end(out, mfhd);
+		int traf = begin(out, "traf");
+		int tfhd = beginFull(out, "tfhd", 0, TFHD_DEFAULT_BASE_IS_MOOF);
+		out.writeInt(trackId);
+		end(out, tfhd);
+		int tfdt = beginFull(out, "tfdt", 1, 0);
+		out.writeLong(run.baseDecodeTime);
+		end(out, tfdt);
+		// version 1, composition offsets are signed
+		int trun = beginFull(out, "trun", 1, TRUN_DATA_OFFSET | TRUN_SAMPLE_DURATION | TRUN_SAMPLE_SIZE
+				| TRUN_SAMPLE_FLAGS | TRUN_SAMPLE_COMPOSITION_OFFSET);
+		out.writeInt(run.count);
+		int dataOffset = out.writerIndex();
+		out.writeInt(0);
+		for (int i = 0; i < run.count; i++) {
+			out.writeInt(run.durations[i]).writeInt(run.sizes[i]);
+			out.writeInt(run.flags[i]).writeInt(run.compositionOffsets[i]);
+		}
+		end(out, trun);
+		end(out, traf);
+		end(out, moof);
+		// from the start of the moof to the first sample
+		out.setInt(dataOffset, out.writerIndex() - moof + 8);
+
+		ByteBuf data = run.data();
+		out.writeInt(8 + data.readableBytes()).writeInt(type("mdat"));
+		out.writeBytes(data, data.readerIndex(), data.readableBytes());
+	}
+
+	private static void writeMatrix(ByteBuf out) {
+		for (int value : MATRIX) {
+			out.writeInt(value);
+		}
+	}
+
+	private static int begin(ByteBuf out, String type) {
+		int start = out.writerIndex();
+		out.writeInt(0).writeInt(type(type));
+		return start;
+	}
+
+	private static int beginFull(ByteBuf out, String type, int version, int flags) {
+		int start = begin(out, type);
+		out.writeInt(version << 24 | flags);
+		return start;
+	}
+
+	private static void end(ByteBuf out, int start) {
+		out.setInt(start, out.writerIndex() - start);
+	}
+
+	static int type(String type) {
+		return type.charAt(0) << 24 | type.charAt(1) << 16 | type.charAt(2) << 8 | type.charAt(3);
+	}
+
+}
@@ -0,0 +1,346 @@
+package com.longyb.mylive.server.hls;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Locale;
+
+import com.longyb.mylive.server.cfg.HlsConfig;
+import com.longyb.mylive.server.rtmp.messages.AudioMessage;
+import com.longyb.mylive.server.rtmp.messages.RtmpMediaMessage;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Remuxes a stream's flv media into MPEG-TS segments for hls.
+ * <p>
+ * Video goes from AVCC to annex-b: length prefixes become start codes, every
+ * access unit starts with an access unit delimiter, and every key frame is
+ * preceded by the SPS and PPS from the decoder configuration. AAC frames get
+ * an ADTS header built from the audio specific config. The payloads are
+ * sliced, not copied, until they are written into the TS packets.
+ * <p>
+ * A segment ends at the first key frame after the target duration, the
+ * segments of an audio only stream at the first audio frame after it. Its
+ * PAT/PMT lists the streams whose configuration was known when it started,
+ * media of a stream it does not list waits for the next segment. A key frame
+ * ends a segment without video at once, so a stream whose audio came before
+ * the avc configuration gets its video in the segment after, marked as a
+ * discontinuity. The last segments are kept in a bounded ring, requesters get
+ * a duplicate of the same bytes. The playlist is rebuilt whenever a segment
+ * completes.
+ * <p>
+ * {@link #add} and {@link #close} are called by the publisher only, the
+ * segments and the playlist are read by anyone.
+ */
+@Slf4j
+public class HlsPackager {
+
+	private static final byte[] START_CODE = { 0, 0, 0, 1 };
+	private static final byte[] ACCESS_UNIT_DELIMITER = { 0, 0, 0, 1, 0x09, (byte) 0xf0 };
+	private static final int NAL_TYPE_AUD = 9;
+	private static final int CODEC_AVC = 7;
+	private static final int SOUND_FORMAT_AAC = 10;
+
+	// keeps the pcr of the first segment above 0, 700 ms in 90 kHz
+	private static final long TIMESTAMP_OFFSET = 63_000;
+	private static final long TIMESTAMP_MASK = 0x1_ffff_ffffL;
+
+	private final String name;
+	private final HlsConfig config;
+	private final ByteBufAllocator alloc = ByteBufAllocator.DEFAULT;
+	private final TsMuxer muxer = new TsMuxer();
+
+	// publisher only
+	private byte[] parameterSets;
+	private int nalLengthSize;
+	private int aacObjectType;
+	private int aacSampleRateIndex;
+	private int aacChannels;
+	private boolean hasAac;
+	private ByteBuf current;
+	private int segmentStart;
+	// the streams the current segment's PMT lists
+	private boolean segmentVideo;
+	private boolean segmentAudio;
+	private boolean segmentDiscontinuity;
+	private long nextSequence;
+	private int maxDurationMillis;
+	private boolean closed;
+
+	// guarded by itself
+	private final ArrayDeque<HlsSegment> ring = new ArrayDeque<>();
+	// discontinuities that fell out of the ring, guarded by ring
+	private long discontinuitySequence;
+
+	private volatile byte[] playlist;
+
+	/**
+	 * @param name the stream's name, segment uris are relative to the playlist
+	 */
+	public HlsPackager(String name, HlsConfig config) {
+		this.name = name;
+		this.config = config;
+	}
+
+	/**
+	 * msg is borrowed
+	 */
+	public void add(RtmpMediaMessage msg) {
+		if (closed) {
+			return;
+		}
+		int timestamp = msg.getTimestamp() == null ? 0 : msg.getTimestamp();
+		if (msg instanceof VideoMessage vm) {
+			addVideo(vm.content(), timestamp);
+		} else if (msg instanceof AudioMessage am) {
+			addAudio(am.content(), timestamp);
+		}
+	}
+
+	private void addVideo(ByteBuf payload, int timestamp) {
+		int index = payload.readerIndex();
+		int end = payload.writerIndex();
+		if (end - index < 5 || (payload.getByte(index) & 0x0f) != CODEC_AVC) {
+			return;
+		}
+		boolean keyFrame = (payload.getByte(index) & 0xf0) == 0x10;
+		int packetType = payload.getByte(index + 1);
+		if (packetType == 0) {
+			readDecoderConfiguration(payload, index + 5, end);
+			return;
+		}
+		if (packetType != 1 || parameterSets == null) {
+			return;
+		}
+		if (keyFrame && (current == null || !segmentVideo
+				|| timestamp - segmentStart >= config.getTargetDurationMillis())) {
+			startSegment(timestamp);
+		}
+		if (current == null || !segmentVideo) {
+			// nothing decodes before the first key frame
+			return;
+		}
+		// composition time offset, signed 24 bits
+		int cts = payload.getMedium(index + 2) << 8 >> 8;
+
+		CompositeByteBuf es = alloc.compositeBuffer(64);
+		try {
+			es.addComponent(true, Unpooled.wrappedBuffer(ACCESS_UNIT_DELIMITER));
+			if (keyFrame) {
+				es.addComponent(true, Unpooled.wrappedBuffer(parameterSets));
+			}
+			int position = index + 5;
+			while (position + nalLengthSize <= end) {
+				int length = readNalLength(payload, position);
+				position += nalLengthSize;
+				if (length <= 0 || position + length > end) {
+					break;
+				}
+				if ((payload.getByte(position) & 0x1f) != NAL_TYPE_AUD) {
+					es.addComponent(true, Unpooled.wrappedBuffer(START_CODE));
+					es.addComponent(true, payload.retainedSlice(position, length));
+				}
+				position += length;
+			}
+			long dts = 90L * timestamp + TIMESTAMP_OFFSET;
+			long pts = dts + 90L * cts;
+			muxer.writeVideo(current, pts & TIMESTAMP_MASK, dts & TIMESTAMP_MASK, keyFrame, es);
+		} finally {
+			es.release();
+		}
+	}
+
+	private int readNalLength(ByteBuf payload, int position) {
+		return switch (nalLengthSize) {
+		case 1 -> payload.getUnsignedByte(position);
+		case 2 -> payload.getUnsignedShort(position);
+		case 3 -> payload.getUnsignedMedium(position);
+		default -> payload.getInt(position);
+		};
+	}
+
+	/**
+	 * keeps the SPS and PPS as annex-b, ready to be put before key frames
+	 */
+	private void readDecoderConfiguration(ByteBuf payload, int position, int end) {
+		if (end - position < 7) {
+			return;
+		}
+		nalLengthSize = (payload.getByte(position + 4) & 0x03) + 1;
+		ByteArrayOutputStream sets = new ByteArrayOutputStream();
+		position += 5;
+		// the SPS, then the PPS
+		for (int kind = 0; kind < 2 && position < end; kind++) {
+			int count = payload.getUnsignedByte(position++) & (kind == 0 ? 0x1f : 0xff);
+			for (int i = 0; i < count && position + 2 <= end; i++) {
+				int length = payload.getUnsignedShort(position);
+				position += 2;
+				if (position + length > end) {
+					return;
+				}
+				sets.writeBytes(START_CODE);
+				byte[] set = new byte[length];
+				payload.getBytes(position, set);
+				sets.writeBytes(set);
+				position += length;
+			}
+		}
+		parameterSets = sets.toByteArray();
+	}
+
+	private void addAudio(ByteBuf payload, int timestamp) {
+		int index = payload.readerIndex();
+		int end = payload.writerIndex();
+		if (end - index < 2 || (payload.getUnsignedByte(index) >> 4) != SOUND_FORMAT_AAC) {
+			return;
+		}
+		if (payload.getByte(index + 1) == 0) {
+			if (end - index >= 4) {
+				int config = payload.getUnsignedShort(index + 2);
+				aacObjectType = config >> 11;
+				aacSampleRateIndex = config >> 7 & 0x0f;
+				aacChannels = config >> 3 & 0x0f;
+				hasAac = true;
+			}
+			return;
+		}
+		if (!hasAac) {
+			return;
+		}
+		if (parameterSets == null
+				&& (current == null || timestamp - segmentStart >= config.getTargetDurationMillis())) {
+			// audio only, every frame is a key frame
+			startSegment(timestamp);
+		}
+		if (current == null || !segmentAudio) {
+			return;
+		}
+		int length = end - index - 2;
+		int frameLength = length + 7;
+		// main, lc, ssr and ltp map to their profile, everything else is sent as lc
+		int profile = aacObjectType >= 1 && aacObjectType <= 4 ? aacObjectType - 1 : 1;
+		byte[] adts = { (byte) 0xff, (byte) 0xf1,
+				(byte) (profile << 6 | aacSampleRateIndex << 2 | aacChannels >> 2),
+				(byte) ((aacChannels & 0x03) << 6 | frameLength >> 11), (byte) (frameLength >> 3),
+				(byte) ((frameLength & 0x07) << 5 | 0x1f), (byte) 0xfc };
+		CompositeByteBuf es = alloc.compositeBuffer(2);
+		try {
+			es.addComponent(true, Unpooled.wrappedBuffer(adts));
+			es.addComponent(true, payload.retainedSlice(index + 2, length));
+			muxer.writeAudio(current, (90L * timestamp + TIMESTAMP_OFFSET) & TIMESTAMP_MASK, es);
+		} finally {
+			es.release();
+		}
+	}
+
+	private void startSegment(int timestamp) {
+		int capacity = 64 * 1024;
+		boolean video = parameterSets != null;
+		boolean discontinuity = false;
+		if (current != null) {
+			capacity = Math.max(capacity, current.readableBytes() + current.readableBytes() / 8);
+			publish(new HlsSegment(nextSequence++, timestamp - segmentStart, current, segmentDiscontinuity));
+			discontinuity = video != segmentVideo || hasAac != segmentAudio;
+		}
+		current = alloc.directBuffer(capacity);
+		segmentStart = timestamp;
+		segmentVideo = video;
+		segmentAudio = hasAac;
+		segmentDiscontinuity = discontinuity;
+		muxer.writeTables(current, video, hasAac);
+	}
+
+	private void publish(HlsSegment segment) {
+		maxDurationMillis = Math.max(maxDurationMillis, segment.durationMillis());
+		synchronized (ring) {
+			ring.addLast(segment);
+			while (ring.size() > Math.max(1, config.getSegments())) {
+				HlsSegment dropped = ring.removeFirst();
+				dropped.data().release();
+				if (dropped.discontinuity()) {
+					discontinuitySequence++;
+				}
+			}
+			playlist = buildPlaylist();
+		}
+	}
+
+	private byte[] buildPlaylist() {
+		int listed = Math.max(1, Math.min(config.getPlaylistSegments(), ring.size()));
+		int skip = ring.size() - listed;
+		long discontinuities = discontinuitySequence;
+		int target = (Math.max(maxDurationMillis, config.getTargetDurationMillis()) + 999) / 1000;
+		StringBuilder sb = new StringBuilder(128 + listed * 48);
+		sb.append("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-TARGETDURATION:").append(target).append('\n');
+		boolean first = true;
+		for (HlsSegment segment : ring) {
+			if (skip-- > 0) {
+				if (segment.discontinuity()) {
+					discontinuities++;
+				}
+				continue;
+			}
+			if (first) {
+				sb.append("#EXT-X-MEDIA-SEQUENCE:").append(segment.sequence()).append('\n');
+				if (discontinuities > 0) {
+					sb.append("#EXT-X-DISCONTINUITY-SEQUENCE:").append(discontinuities).append('\n');
+				}
+				first = false;
+			}
+			if (segment.discontinuity()) {
+				sb.append("#EXT-X-DISCONTINUITY\n");
+			}
+			sb.append("#EXTINF:").append(String.format(Locale.ROOT, "%.3f", segment.durationMillis() / 1000.0))
+					.append(",\n");
+			sb.append(name).append('/').append(segment.sequence()).append(".ts\n");
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * null until the first segment is complete
+	 */
+	public byte[] getPlaylist() {
+		return playlist;
+	}
+
+	/**
+	 * the bytes of a segment still in the ring, the caller releases them. null if
+	 * there is no such segment (any more)
+	 */
+	public ByteBuf segment(long sequence) {
+		synchronized (ring) {
+			for (HlsSegment segment : ring) {
+				if (segment.sequence() == sequence) {
+					return segment.data().retainedDuplicate();
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * publisher only, drops everything
+	 */
+	public void close() {
+		closed = true;
+		if (current != null) {
+			current.release();
+			current = null;
+		}
+		synchronized (ring) {
+			for (HlsSegment segment : ring) {
+				segment.data().release();
+			}
+			ring.clear();
+			playlist = null;
+		}
+	}
+
+}
@@ -0,0 +1,14 @@
+package com.longyb.mylive.server.hls;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * a complete MPEG-TS segment, owned by the packager's ring
+ *
+ * @param sequence       its media sequence number
+ * @param durationMillis up to the start of the next segment
+ * @param data           the TS packets, handed out as retained duplicates
+ * @param discontinuity  its program has other streams than the segment before
+ */
+public record HlsSegment(long sequence, int durationMillis, ByteBuf data, boolean discontinuity) {
+}
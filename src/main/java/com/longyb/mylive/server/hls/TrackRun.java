@@ -0,0 +1,64 @@
+package com.longyb.mylive.server.hls;
+
+import java.util.Arrays;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.CompositeByteBuf;
+
+/**
+ * the samples of one track collected for the next fragment, reused from one
+ * fragment to the next
+ */
+final class TrackRun {
+
+	long baseDecodeTime;
+	int count;
+	int[] durations = new int[64];
+	int[] sizes = new int[64];
+	int[] flags = new int[64];
+	int[] compositionOffsets = new int[64];
+
+	private final CompositeByteBuf data = ByteBufAllocator.DEFAULT.compositeBuffer(Integer.MAX_VALUE);
+
+	/**
+	 * @param sample taken over
+	 */
+	void add(long decodeTime, int duration, int flag, int compositionOffset, ByteBuf sample) {
+		if (count == 0) {
+			baseDecodeTime = decodeTime;
+		}
+		if (count == durations.length) {
+			int length = count * 2;
+			durations = Arrays.copyOf(durations, length);
+			sizes = Arrays.copyOf(sizes, length);
+			flags = Arrays.copyOf(flags, length);
+			compositionOffsets = Arrays.copyOf(compositionOffsets, length);
+		}
+		durations[count] = duration;
+		sizes[count] = sample.readableBytes();
+		flags[count] = flag;
+		compositionOffsets[count] = compositionOffset;
+		count++;
+		data.addComponent(true, sample);
+	}
+
+	/**
+	 * the sample data, in order
+	 */
+	ByteBuf data() {
+		return data;
+	}
+
+	void clear() {
+		count = 0;
+		data.removeComponents(0, data.numComponents());
+		data.clear();
+	}
+
+	void release() {
+		clear();
+		data.release();
+	}
+
+}
@@ -0,0 +1,213 @@
+package com.longyb.mylive.server.hls;
+
+import java.util.Arrays;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * Writes one program of h264 and adts aac as MPEG-TS packets.
+ * <p>
+ * Every segment starts with a PAT and a PMT, every access unit is one PES
+ * packet. The PCR rides on the video PID, or the audio PID of an audio only
+ * program, in the first packet of each PES.
+ * <p>
+ * Not thread safe, the continuity counters carry over from one segment to the
+ * next.
+ */
+public class TsMuxer {
+
+	public static final int PACKET_SIZE = 188;
+	private static final int PAYLOAD_SIZE = PACKET_SIZE - 4;
+
+	static final int PAT_PID = 0;
+	static final int PMT_PID = 0x1000;
+	static final int VIDEO_PID = 0x100;
+	static final int AUDIO_PID = 0x101;
+
+	private static final int STREAM_TYPE_H264 = 0x1b;
+	private static final int STREAM_TYPE_AAC_ADTS = 0x0f;
+	private static final int STREAM_ID_VIDEO = 0xe0;
+	private static final int STREAM_ID_AUDIO = 0xc0;
+
+	/**
+	 * how far the pcr runs ahead of the decoding time stamps, 100 ms
+	 */
+	static final long PCR_DELAY = 9000;
+
+	private static final byte[] FILL = new byte[PACKET_SIZE];
+	private static final int[] CRC_TABLE = new int[256];
+
+	static {
+		Arrays.fill(FILL, (byte) 0xff);
+		for (int i = 0; i < 256; i++) {
+			int crc = i << 24;
+			for (int j = 0; j < 8; j++) {
+				crc = (crc & 0x80000000) != 0 ? (crc << 1) ^ 0x04c11db7 : crc << 1;
+			}
+			CRC_TABLE[i] = crc;
+		}
+	}
+
+	private int patCounter;
+	private int pmtCounter;
+	private int videoCounter;
+	private int audioCounter;
+
+	// which pid carries the pcr, set by the last PMT
+	private int pcrPid = VIDEO_PID;
+
+	// the PES header being written, at most 19 bytes
+	private final ByteBuf header = Unpooled.wrappedBuffer(new byte[19]);
+
+	/**
+	 * PAT and PMT, listing the streams the program has
+	 */
+	public void writeTables(ByteBuf out, boolean video, boolean audio) {
+		// program 1 on the PMT pid
+		int start = beginSection(out, PAT_PID, patCounter++);
+		out.writeByte(0x00); // table id
+		out.writeShort(0xb000 | 13); // section syntax, length
+		out.writeShort(1); // transport stream id
+		out.writeByte(0xc1); // version 0, current
+		out.writeByte(0).writeByte(0); // section numbers
+		out.writeShort(1).writeShort(0xe000 | PMT_PID);
+		endSection(out, start);
+
+		pcrPid = video ? VIDEO_PID : AUDIO_PID;
+		start = beginSection(out, PMT_PID, pmtCounter++);
+		out.writeByte(0x02);
+		out.writeShort(0xb000 | (13 + (video ? 5 : 0) + (audio ? 5 : 0)));
+		out.writeShort(1); // program number
+		out.writeByte(0xc1);
+		out.writeByte(0).writeByte(0);
+		out.writeShort(0xe000 | pcrPid);
+		out.writeShort(0xf000); // no program info
+		if (video) {
+			out.writeByte(STREAM_TYPE_H264).writeShort(0xe000 | VIDEO_PID).writeShort(0xf000);
+		}
+		if (audio) {
+			out.writeByte(STREAM_TYPE_AAC_ADTS).writeShort(0xe000 | AUDIO_PID).writeShort(0xf000);
+		}
+		endSection(out, start);
+	}
+
+	private static int beginSection(ByteBuf out, int pid, int counter) {
+		out.writeByte(0x47);
+		out.writeShort(0x4000 | pid);
+		out.writeByte(0x10 | (counter & 0x0f));
+		out.writeByte(0); // pointer field
+		return out.writerIndex();
+	}
+
+	private static void endSection(ByteBuf out, int start) {
+		out.writeInt(crc32(out, start, out.writerIndex() - start));
+		int packetEnd = start - 5 + PACKET_SIZE;
+		out.writeBytes(FILL, 0, packetEnd - out.writerIndex());
+	}
+
+	static int crc32(ByteBuf buf, int index, int length) {
+		int crc = 0xffffffff;
+		for (int i = index; i < index + length; i++) {
+			crc = (crc << 8) ^ CRC_TABLE[((crc >>> 24) ^ buf.getByte(i)) & 0xff];
+		}
+		return crc;
+	}
+
+	/**
+	 * one access unit of annex-b h264, es is consumed
+	 *
+	 * @param pts 90 kHz
+	 * @param dts 90 kHz
+	 */
+	public void writeVideo(ByteBuf out, long pts, long dts, boolean keyFrame, ByteBuf es) {
+		boolean withDts = pts != dts;
+		header.clear();
+		header.writeMedium(0x000001).writeByte(STREAM_ID_VIDEO);
+		// unbounded, video access units may exceed 64k
+		header.writeShort(0);
+		header.writeByte(0x84); // data alignment
+		header.writeByte(withDts ? 0xc0 : 0x80);
+		header.writeByte(withDts ? 10 : 5);
+		writeTimestamp(header, withDts ? 0x3 : 0x2, pts);
+		if (withDts) {
+			writeTimestamp(header, 0x1, dts);
+		}
+		long pcr = pcrPid == VIDEO_PID ? dts - PCR_DELAY : -1;
+		videoCounter = packetize(out, VIDEO_PID, videoCounter, header, es, keyFrame, pcr);
+	}
+
+	/**
+	 * one or more adts frames, es is consumed
+	 *
+	 * @param pts 90 kHz
+	 */
+	public void writeAudio(ByteBuf out, long pts, ByteBuf es) {
+		header.clear();
+		int length = 3 + 5 + es.readableBytes();
+		header.writeMedium(0x000001).writeByte(STREAM_ID_AUDIO);
+		header.writeShort(length > 0xffff ? 0 : length);
+		header.writeByte(0x80);
+		header.writeByte(0x80);
+		header.writeByte(5);
+		writeTimestamp(header, 0x2, pts);
+		long pcr = pcrPid == AUDIO_PID ? pts - PCR_DELAY : -1;
+		audioCounter = packetize(out, AUDIO_PID, audioCounter, header, es, pcr >= 0, pcr);
+	}
+
+	private static void writeTimestamp(ByteBuf out, int prefix, long ts) {
+		out.writeByte(prefix << 4 | (int) (ts >> 29) & 0x0e | 1);
+		out.writeShort((int) (ts >> 14) & 0xfffe | 1);
+		out.writeShort((int) (ts << 1) & 0xfffe | 1);
+	}
+
+	/**
+	 * splits the PES into packets, the last one padded with adaptation field
+	 * stuffing
+	 *
+	 * @param pcr -1 for none
+	 * @return the next continuity counter
+	 */
+	private static int packetize(ByteBuf out, int pid, int counter, ByteBuf header, ByteBuf es, boolean randomAccess,
+			long pcr) {
+		boolean first = true;
+		while (first || es.isReadable()) {
+			int headerLength = first ? header.readableBytes() : 0;
+			// adaptation field content after its length byte
+			int fields = first && (randomAccess || pcr >= 0) ? 1 + (pcr >= 0 ? 6 : 0) : 0;
+			int fieldsLength = fields == 0 ? 0 : 1 + fields;
+			int room = PAYLOAD_SIZE - fieldsLength - headerLength;
+			int data = Math.min(room, es.readableBytes());
+			int stuffing = room - data;
+
+			out.writeByte(0x47);
+			out.writeShort((first ? 0x4000 : 0) | pid);
+			boolean adaptation = fieldsLength + stuffing > 0;
+			out.writeByte((adaptation ? 0x30 : 0x10) | (counter & 0x0f));
+			counter++;
+			if (fields > 0) {
+				out.writeByte(fields + stuffing);
+				out.writeByte((randomAccess ? 0x40 : 0) | (pcr >= 0 ? 0x10 : 0));
+				if (pcr >= 0) {
+					out.writeInt((int) (pcr >> 1));
+					out.writeByte((int) (pcr << 7) & 0x80 | 0x7e);
+					out.writeByte(0);
+				}
+				out.writeBytes(FILL, 0, stuffing);
+			} else if (stuffing > 0) {
+				out.writeByte(stuffing - 1);
+				if (stuffing > 1) {
+					out.writeByte(0);
+					out.writeBytes(FILL, 0, stuffing - 2);
+				}
+			}
+			if (first) {
+				out.writeBytes(header, header.readerIndex(), headerLength);
+			}
+			out.writeBytes(es, data);
+			first = false;
+		}
+		return counter;
+	}
+
+}
@@ -0,0 +1,56 @@
+package com.longyb.mylive.server.manager;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.longyb.mylive.server.cfg.StatsConfig;
+import com.longyb.mylive.server.entities.Stream;
+
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Samples the counters of every stream once per interval on a thread of its
+ * own, so neither the publishers nor the api callers do the arithmetic.
+ */
+@Slf4j
+public class StreamStatsSampler implements AutoCloseable {
+
+	private final StreamManager streamManager;
+	private final StatsConfig config;
+	private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+		Thread thread = new Thread(r, "stream-stats");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	public StreamStatsSampler(StreamManager streamManager, StatsConfig config) {
+		this.streamManager = streamManager;
+		this.config = config;
+	}
+
+	public void start() {
+		long interval = config.getIntervalMillis();
+		timer.scheduleAtFixedRate(this::sample, interval, interval, TimeUnit.MILLISECONDS);
+		log.info("sampling stream stats every {} ms", interval);
+	}
+
+	/**
+	 * one tick, the timer thread only
+	 */
+	void sample() {
+		for (Stream stream : streamManager.getAllStreams().values()) {
+			try {
+				stream.sampleStats(config.getHistory());
+			} catch (RuntimeException e) {
+				// a stream going wrong must not stop the timer
+				log.warn("sampling stats of {} failed", stream.getStreamName(), e);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		timer.shutdownNow();
+	}
+}
@@ -0,0 +1,120 @@
+package com.longyb.mylive.server.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Latencies in microseconds, counted into log-linear buckets the way an HDR
+ * histogram does: values below 16 us exactly, above that 16 buckets per power
+ * of two, so a percentile is off by at most 1/16. Anything beyond about an
+ * hour lands in the last bucket.
+ * <p>
+ * Recording is one atomic increment and takes no lock, any number of event
+ * loops record into the same histogram. The percentiles are those of the
+ * values recorded since the previous {@link #interval()}, which only one
+ * thread, the stats sampler, calls.
+ */
+public final class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int MAX_EXPONENT = 31;
+	static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+	private final LongAdder count = new LongAdder();
+	private final LongAdder sumMicros = new LongAdder();
+
+	// interval only
+	private final long[] previous = new long[BUCKETS];
+
+	/**
+	 * what {@link #interval()} reports
+	 *
+	 * @param count         values in the interval, the percentiles are 0 if there were none
+	 * @param totalCount    values since the histogram was created
+	 * @param totalMicros   their sum
+	 */
+	public record Percentiles(long count, long p50Micros, long p99Micros, long p999Micros, long maxMicros,
+			long totalCount, long totalMicros) {
+
+		public static final Percentiles EMPTY = new Percentiles(0, 0, 0, 0, 0, 0, 0);
+	}
+
+	public void recordNanos(long nanos) {
+		long micros = TimeUnit.NANOSECONDS.toMicros(Math.max(0, nanos));
+		counts.incrementAndGet(bucket(micros));
+		count.increment();
+		sumMicros.add(micros);
+	}
+
+	/**
+	 * values recorded since the histogram was created
+	 */
+	public long count() {
+		return count.sum();
+	}
+
+	public long sumMicros() {
+		return sumMicros.sum();
+	}
+
+	/**
+	 * the percentiles of what was recorded since the previous call, a single
+	 * thread calls this
+	 */
+	public Percentiles interval() {
+		long[] delta = new long[BUCKETS];
+		long total = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			long current = counts.get(i);
+			delta[i] = current - previous[i];
+			previous[i] = current;
+			total += delta[i];
+		}
+		if (total == 0) {
+			return new Percentiles(0, 0, 0, 0, 0, count(), sumMicros());
+		}
+		int max = BUCKETS - 1;
+		while (delta[max] == 0) {
+			max--;
+		}
+		return new Percentiles(total, percentile(delta, total, 0.5), percentile(delta, total, 0.99),
+				percentile(delta, total, 0.999), highestValue(max), count(), sumMicros());
+	}
+
+	private static long percentile(long[] delta, long total, double quantile) {
+		long rank = Math.max(1, (long) Math.ceil(total * quantile));
+		long seen = 0;
+		for (int i = 0; i < BUCKETS; i++) {
+			seen += delta[i];
+			if (seen >= rank) {
+				return highestValue(i);
+			}
+		}
+		return highestValue(BUCKETS - 1);
+	}
+
+	static int bucket(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		int exponent = Math.min(63 - Long.numberOfLeadingZeros(micros), MAX_EXPONENT);
+		int shift = exponent - SUB_BUCKET_BITS;
+		long sub = Math.min(micros >>> shift, 2 * SUB_BUCKETS - 1);
+		return (shift + 1) * SUB_BUCKETS + (int) (sub - SUB_BUCKETS);
+	}
+
+	/**
+	 * the largest value that falls into bucket, percentiles err on the high side
+	 */
+	static long highestValue(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket;
+		}
+		int shift = bucket / SUB_BUCKETS - 1;
+		long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+		return ((sub + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,356 @@
+package com.longyb.mylive.server.metrics;
+
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+import com.longyb.mylive.server.cfg.MetricsConfig;
+import com.longyb.mylive.server.entities.Stream;
+import com.longyb.mylive.server.entities.StreamName;
+import com.longyb.mylive.server.entities.StreamStats;
+import com.longyb.mylive.server.entities.Subscriber;
+import com.longyb.mylive.server.flv.RecorderStats;
+import com.longyb.mylive.server.manager.StreamManager;
+import com.longyb.mylive.server.metrics.LatencyHistogram.Percentiles;
+import com.longyb.mylive.server.metrics.ServerMetrics.AppTraffic;
+import com.longyb.mylive.server.metrics.ServerMetrics.Role;
+import com.longyb.mylive.server.rtmp.Constants;
+
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.PooledByteBufAllocatorMetric;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.EventExecutorGroup;
+import io.netty.util.concurrent.SingleThreadEventExecutor;
+
+/**
+ * Renders one scrape. Counters come from {@link ServerMetrics}, everything
+ * else is read where it lives without taking a stream's monitor: the gop
+ * cache generation, the recorder's volatile stats and the subscribers'
+ * outbound buffers.
+ * <p>
+ * The first streamLabelLimit streams, in name order so the selection does
+ * not flap between scrapes, get series of their own. The rest of each app is
+ * summed up under stream="_other".
+ * <p>
+ * The scrape is rendered a step at a time, a family header or one row's
+ * samples of a family, so whoever sends it can stop between steps while the
+ * connection drains.
+ */
+public final class MetricsRenderer {
+
+	private static final String OTHER = "_other";
+
+	private final StreamManager streamManager;
+	private final MetricsConfig config;
+	private final Deque<Consumer<PrometheusWriter>> steps = new ArrayDeque<>();
+
+	public MetricsRenderer(StreamManager streamManager, MetricsConfig config) {
+		this.streamManager = streamManager;
+		this.config = config;
+		ServerMetrics metrics = ServerMetrics.INSTANCE;
+		steps.add(out -> connections(out, metrics));
+		steps.add(out -> rtmp(out, metrics));
+		steps.add(out -> traffic(out, metrics));
+		steps.add(this::streams);
+		steps.add(out -> netty(out, metrics));
+		steps.add(MetricsRenderer::jvm);
+	}
+
+	/**
+	 * renders the whole scrape
+	 */
+	public void render(PrometheusWriter out) {
+		while (renderNext(out)) {
+		}
+	}
+
+	/**
+	 * renders the next step, false once there was none left
+	 */
+	public boolean renderNext(PrometheusWriter out) {
+		Consumer<PrometheusWriter> step = steps.poll();
+		if (step == null) {
+			return false;
+		}
+		step.accept(out);
+		return true;
+	}
+
+	private static void connections(PrometheusWriter out, ServerMetrics metrics) {
+		out.family("mylive_connections", "gauge", "open connections by server");
+		for (Role role : Role.values()) {
+			out.sample("mylive_connections").label("role", name(role)).value(metrics.connections(role));
+		}
+	}
+
+	private static void rtmp(PrometheusWriter out, ServerMetrics metrics) {
+		out.family("mylive_rtmp_handshakes_total", "counter", "rtmp handshakes by how far they got");
+		out.sample("mylive_rtmp_handshakes_total").label("state", "started").value(metrics.handshakesStarted());
+		out.sample("mylive_rtmp_handshakes_total").label("state", "completed").value(metrics.handshakesCompleted());
+
+		out.family("mylive_rtmp_messages_decoded_total", "counter", "rtmp messages decoded by type");
+		for (int type = 0; type <= ServerMetrics.MESSAGE_TYPES; type++) {
+			String name = messageType(type);
+			if (name != null) {
+				out.sample("mylive_rtmp_messages_decoded_total").label("type", name).value(metrics.decodedCount(type));
+			}
+		}
+	}
+
+	private static void traffic(PrometheusWriter out, ServerMetrics metrics) {
+		Map<String, AppTraffic> apps = metrics.apps();
+		out.family("mylive_ingress_bytes_total", "counter", "media payload bytes published by app");
+		apps.forEach((app, t) -> out.sample("mylive_ingress_bytes_total").label("app", app).value(t.ingressBytes()));
+		out.family("mylive_egress_bytes_total", "counter", "media bytes written to viewers by app");
+		apps.forEach((app, t) -> out.sample("mylive_egress_bytes_total").label("app", app).value(t.egressBytes()));
+		out.family("mylive_dropped_frames_total", "counter", "frames skipped by viewers that fell behind, by app");
+		apps.forEach((app, t) -> out.sample("mylive_dropped_frames_total").label("app", app).value(t.droppedFrames()));
+	}
+
+	private void streams(PrometheusWriter out) {
+		List<Map.Entry<StreamName, Stream>> streams = new ArrayList<>(streamManager.getAllStreams().entrySet());
+		streams.sort(Comparator.comparing((Map.Entry<StreamName, Stream> e) -> e.getKey().getApp())
+				.thenComparing(e -> e.getKey().getName()));
+		int limit = Math.max(0, config.getStreamLabelLimit());
+
+		List<Row> rows = new ArrayList<>(Math.min(streams.size(), limit) + 1);
+		Map<String, Row> others = new TreeMap<>();
+		for (int i = 0; i < streams.size(); i++) {
+			StreamName name = streams.get(i).getKey();
+			Row row;
+			if (i < limit) {
+				row = new Row(name.getApp(), name.getName());
+				rows.add(row);
+			} else {
+				row = others.computeIfAbsent(name.getApp(), app -> new Row(app, OTHER));
+			}
+			row.add(streams.get(i).getValue());
+			if (i < limit) {
+				row.latency = streams.get(i).getValue().getStats().latency();
+			}
+		}
+		rows.addAll(others.values());
+
+		out.family("mylive_streams", "gauge", "streams, with or without a publisher");
+		out.sample("mylive_streams").value(streams.size());
+
+		// ahead of the families after the streams
+		List<Consumer<PrometheusWriter>> more = rowSteps(rows);
+		for (int i = more.size() - 1; i >= 0; i--) {
+			steps.addFirst(more.get(i));
+		}
+	}
+
+	private static List<Consumer<PrometheusWriter>> rowSteps(List<Row> rows) {
+		List<Consumer<PrometheusWriter>> more = new ArrayList<>();
+		perRow(more, rows, "mylive_stream_publishers", "gauge", "publishing connections",
+				(out, r) -> out.sample("mylive_stream_publishers").label("app", r.app).label("stream", r.stream)
+						.value(r.publishers));
+		perRow(more, rows, "mylive_stream_subscribers", "gauge", "viewers by protocol", (out, r) -> {
+			for (Subscriber.Protocol protocol : Subscriber.Protocol.values()) {
+				out.sample("mylive_stream_subscribers").label("app", r.app).label("stream", r.stream)
+						.label("protocol", protocol.name().toLowerCase()).value(r.subscribers[protocol.ordinal()]);
+			}
+		});
+		perRow(more, rows, "mylive_gop_cache_bytes", "gauge", "payload bytes held by the gop cache",
+				(out, r) -> out.sample("mylive_gop_cache_bytes").label("app", r.app).label("stream", r.stream)
+						.value(r.gopCacheBytes));
+		perRow(more, rows, "mylive_outbound_pending_bytes", "gauge", "bytes queued in the viewers' outbound buffers",
+				(out, r) -> out.sample("mylive_outbound_pending_bytes").label("app", r.app).label("stream", r.stream)
+						.value(r.pendingBytes));
+		perRow(more, rows, "mylive_recorder_lag_seconds", "gauge", "how long the last batch waited for the flv recorder",
+				(out, r) -> out.sample("mylive_recorder_lag_seconds").label("app", r.app).label("stream", r.stream)
+						.thousandths(r.recorderLagMillis));
+		perRow(more, rows, "mylive_recorder_queued_bytes", "gauge", "payload waiting for the flv recorder",
+				(out, r) -> out.sample("mylive_recorder_queued_bytes").label("app", r.app).label("stream", r.stream)
+						.value(r.recorderQueuedBytes));
+		latency(more, rows);
+		return more;
+	}
+
+	private static void perRow(List<Consumer<PrometheusWriter>> steps, List<Row> rows, String name, String type,
+			String help, BiConsumer<PrometheusWriter, Row> samples) {
+		steps.add(out -> out.family(name, type, help));
+		for (Row r : rows) {
+			steps.add(out -> samples.accept(out, r));
+		}
+	}
+
+	/**
+	 * Summaries of the timed messages, the quantiles are those of the last
+	 * stats interval. Percentiles can not be summed up, the streams past the
+	 * limit have none.
+	 */
+	private static void latency(List<Consumer<PrometheusWriter>> steps, List<Row> rows) {
+		List<Row> timed = rows.stream().filter(r -> r.latency != null).toList();
+		perRow(steps, timed, "mylive_ingest_latency_seconds", "summary",
+				"from the first chunk to decoding, and from decoding to the stream", (out, r) -> {
+					summary(out, "mylive_ingest_latency_seconds", r, "stage", "decode", r.latency.decode());
+					summary(out, "mylive_ingest_latency_seconds", r, "stage", "handoff", r.latency.handoff());
+				});
+		perRow(steps, timed, "mylive_egress_latency_seconds", "summary",
+				"from the stream to a viewer's write completing",
+				(out, r) -> r.latency.egress().forEach((protocol, p) -> summary(out, "mylive_egress_latency_seconds",
+						r, "protocol", protocol.name().toLowerCase(), p)));
+		perRow(steps, timed, "mylive_end_to_end_latency_seconds", "summary",
+				"from the first chunk to a viewer's write completing",
+				(out, r) -> r.latency.endToEnd().forEach((protocol, p) -> summary(out,
+						"mylive_end_to_end_latency_seconds", r, "protocol", protocol.name().toLowerCase(), p)));
+	}
+
+	private static void summary(PrometheusWriter out, String name, Row r, String label, String value, Percentiles p) {
+		out.sample(name).label("app", r.app).label("stream", r.stream).label(label, value).label("quantile", "0.5")
+				.millionths(p.p50Micros());
+		out.sample(name).label("app", r.app).label("stream", r.stream).label(label, value).label("quantile", "0.99")
+				.millionths(p.p99Micros());
+		out.sample(name).label("app", r.app).label("stream", r.stream).label(label, value).label("quantile", "0.999")
+				.millionths(p.p999Micros());
+		out.sample(name + "_sum").label("app", r.app).label("stream", r.stream).label(label, value)
+				.millionths(p.totalMicros());
+		out.sample(name + "_count").label("app", r.app).label("stream", r.stream).label(label, value)
+				.value(p.totalCount());
+	}
+
+	private static void netty(PrometheusWriter out, ServerMetrics metrics) {
+		PooledByteBufAllocatorMetric allocator = PooledByteBufAllocator.DEFAULT.metric();
+		out.family("mylive_netty_allocator_used_bytes", "gauge", "memory the pooled allocator holds");
+		out.sample("mylive_netty_allocator_used_bytes").label("memory", "direct").value(allocator.usedDirectMemory());
+		out.sample("mylive_netty_allocator_used_bytes").label("memory", "heap").value(allocator.usedHeapMemory());
+		out.family("mylive_netty_allocator_pinned_bytes", "gauge", "pooled memory in buffers that are in use");
+		out.sample("mylive_netty_allocator_pinned_bytes").label("memory", "direct")
+				.value(PooledByteBufAllocator.DEFAULT.pinnedDirectMemory());
+		out.sample("mylive_netty_allocator_pinned_bytes").label("memory", "heap")
+				.value(PooledByteBufAllocator.DEFAULT.pinnedHeapMemory());
+		out.family("mylive_netty_allocator_thread_caches", "gauge", "threads with a cache of the pooled allocator");
+		out.sample("mylive_netty_allocator_thread_caches").value(allocator.numThreadLocalCaches());
+
+		out.family("mylive_event_loop_pending_tasks", "gauge", "tasks waiting for an event loop or handler thread");
+		for (Map.Entry<String, EventExecutorGroup> group : metrics.executors().entrySet()) {
+			int i = 0;
+			for (EventExecutor executor : group.getValue()) {
+				if (executor instanceof SingleThreadEventExecutor single) {
+					out.sample("mylive_event_loop_pending_tasks").label("group", group.getKey()).label("loop", i)
+							.value(single.pendingTasks());
+				}
+				i++;
+			}
+		}
+	}
+
+	private static void jvm(PrometheusWriter out) {
+		MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+		MemoryUsage nonHeap = ManagementFactory.getMemoryMXBean().getNonHeapMemoryUsage();
+		out.family("jvm_memory_used_bytes", "gauge", "used jvm memory");
+		out.sample("jvm_memory_used_bytes").label("area", "heap").value(heap.getUsed());
+		out.sample("jvm_memory_used_bytes").label("area", "nonheap").value(nonHeap.getUsed());
+		out.family("jvm_memory_max_bytes", "gauge", "jvm memory limit, -1 if there is none");
+		out.sample("jvm_memory_max_bytes").label("area", "heap").value(heap.getMax());
+		out.sample("jvm_memory_max_bytes").label("area", "nonheap").value(nonHeap.getMax());
+
+		out.family("jvm_buffer_pool_used_bytes", "gauge", "direct and mapped buffers, netty's pool included");
+		for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+			out.sample("jvm_buffer_pool_used_bytes").label("pool", pool.getName()).value(pool.getMemoryUsed());
+		}
+
+		List<GarbageCollectorMXBean> collectors = ManagementFactory.getGarbageCollectorMXBeans();
+		out.family("jvm_gc_collections_total", "counter", "collections by collector");
+		for (GarbageCollectorMXBean gc : collectors) {
+			out.sample("jvm_gc_collections_total").label("gc", gc.getName()).value(gc.getCollectionCount());
+		}
+		out.family("jvm_gc_collection_seconds_total", "counter", "time spent collecting by collector");
+		for (GarbageCollectorMXBean gc : collectors) {
+			out.sample("jvm_gc_collection_seconds_total").label("gc", gc.getName()).thousandths(gc.getCollectionTime());
+		}
+
+		out.family("jvm_threads_current", "gauge", "live threads, not counting virtual threads");
+		out.sample("jvm_threads_current").value(ManagementFactory.getThreadMXBean().getThreadCount());
+		out.family("process_uptime_seconds", "gauge", "time since the jvm started");
+		out.sample("process_uptime_seconds").thousandths(ManagementFactory.getRuntimeMXBean().getUptime());
+	}
+
+	private static String name(Role role) {
+		return role == Role.RTMP ? "rtmp" : "http";
+	}
+
+	/**
+	 * null for the ids rtmp does not use
+	 */
+	private static String messageType(int type) {
+		return switch (type) {
+		case Constants.MSG_SET_CHUNK_SIZE -> "set_chunk_size";
+		case Constants.MSG_ABORT_MESSAGE -> "abort";
+		case Constants.MSG_ACKNOWLEDGEMENT -> "acknowledgement";
+		case Constants.MSG_USER_CONTROL_MESSAGE_EVENTS -> "user_control";
+		case Constants.MSG_WINDOW_ACKNOWLEDGEMENT_SIZE -> "window_acknowledgement_size";
+		case Constants.MSG_SET_PEER_BANDWIDTH -> "set_peer_bandwidth";
+		case Constants.MSG_TYPE_AUDIO_MESSAGE -> "audio";
+		case Constants.MSG_TYPE_VIDEO_MESSAGE -> "video";
+		case Constants.MSG_TYPE_DATA_MESSAGE_AMF3 -> "data_amf3";
+		case Constants.MSG_TYPE_SHARED_OBJECT_MESSAGE_AMF3 -> "shared_object_amf3";
+		case Constants.MSG_TYPE_COMMAND_AMF3 -> "command_amf3";
+		case Constants.MSG_TYPE_DATA_MESSAGE_AMF0 -> "data_amf0";
+		case Constants.MSG_TYPE_SHARED_OBJECT_MESSAGE_AMF0 -> "shared_object_amf0";
+		case Constants.MSG_TYPE_COMMAND_AMF0 -> "command_amf0";
+		case Constants.MSG_TYPE_AGGREGATE_MESSAGE -> "aggregate";
+		case ServerMetrics.MESSAGE_TYPES -> "other";
+		default -> null;
+		};
+	}
+
+	/**
+	 * the gauges of one stream, or summed up over the streams past the limit
+	 */
+	private static final class Row {
+		final String app;
+		final String stream;
+		long publishers;
+		final long[] subscribers = new long[Subscriber.Protocol.values().length];
+		long gopCacheBytes;
+		long pendingBytes;
+		long recorderLagMillis;
+		long recorderQueuedBytes;
+		// of a single stream
+		StreamStats.Latency latency;
+
+		Row(String app, String stream) {
+			this.app = app;
+			this.stream = stream;
+		}
+
+		void add(Stream s) {
+			if (s.getPublisher() != null) {
+				publishers++;
+			}
+			gopCacheBytes += s.getGopCacheStats().bytes();
+			count(s.getSubscribers());
+			count(s.getHttpFLvSubscribers());
+			RecorderStats recorder = s.getRecorderStats();
+			if (recorder != null) {
+				// the worst one of the row
+				recorderLagMillis = Math.max(recorderLagMillis, recorder.lagMillis());
+				recorderQueuedBytes += recorder.queuedBytes();
+			}
+		}
+
+		private void count(Iterable<Subscriber> viewers) {
+			for (Subscriber subscriber : viewers) {
+				subscribers[subscriber.getProtocol().ordinal()]++;
+				ChannelOutboundBuffer buffer = subscriber.getChannel().unsafe().outboundBuffer();
+				if (buffer != null) {
+					pendingBytes += buffer.totalPendingWriteBytes();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,183 @@
+package com.longyb.mylive.server.metrics;
+
+import java.util.function.Consumer;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+
+/**
+ * Writes the prometheus text format straight into buffers of about
+ * chunkSize bytes, each full one is handed to the sink while the rest is
+ * still being rendered. A scrape holds one buffer at a time, and a sample
+ * allocates nothing: names and labels are copied as they are, numbers are
+ * written digit by digit.
+ *
+ * <pre>
+ * out.family("mylive_connections", "gauge", "open connections")
+ *    .sample("mylive_connections").label("role", "rtmp").value(3);
+ * </pre>
+ */
+public final class PrometheusWriter {
+
+	private final ByteBufAllocator alloc;
+	private final int chunkSize;
+	private final Consumer<ByteBuf> sink;
+	private final byte[] digits = new byte[20];
+
+	private ByteBuf buf;
+	private boolean labels;
+
+	/**
+	 * @param sink takes over every buffer it is given
+	 */
+	public PrometheusWriter(ByteBufAllocator alloc, int chunkSize, Consumer<ByteBuf> sink) {
+		this.alloc = alloc;
+		this.chunkSize = chunkSize;
+		this.sink = sink;
+		this.buf = alloc.buffer(chunkSize);
+	}
+
+	public PrometheusWriter family(String name, String type, String help) {
+		ascii("# HELP ").ascii(name).buf.writeByte(' ');
+		ByteBufUtil.writeUtf8(buf, help);
+		ascii("\n# TYPE ").ascii(name).buf.writeByte(' ');
+		ascii(type).buf.writeByte('\n');
+		return this;
+	}
+
+	public PrometheusWriter sample(String name) {
+		ascii(name);
+		labels = false;
+		return this;
+	}
+
+	public PrometheusWriter label(String name, String value) {
+		buf.writeByte(labels ? ',' : '{');
+		labels = true;
+		ascii(name).ascii("=\"");
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '\\' || c == '"') {
+				buf.writeByte('\\').writeByte(c);
+			} else if (c == '\n') {
+				buf.writeByte('\\').writeByte('n');
+			} else if (c < 0x80) {
+				buf.writeByte(c);
+			} else {
+				// one code point at a time, so what follows is still escaped
+				int end = Character.isHighSurrogate(c) && i + 1 < value.length()
+						&& Character.isLowSurrogate(value.charAt(i + 1)) ? i + 2 : i + 1;
+				ByteBufUtil.writeUtf8(buf, value, i, end);
+				i = end - 1;
+			}
+		}
+		buf.writeByte('"');
+		return this;
+	}
+
+	public PrometheusWriter label(String name, long value) {
+		buf.writeByte(labels ? ',' : '{');
+		labels = true;
+		ascii(name).ascii("=\"");
+		digits(value);
+		buf.writeByte('"');
+		return this;
+	}
+
+	/**
+	 * ends the sample
+	 */
+	public void value(long value) {
+		if (labels) {
+			buf.writeByte('}');
+		}
+		buf.writeByte(' ');
+		digits(value);
+		endLine();
+	}
+
+	/**
+	 * ends the sample with thousandths written as a decimal, such as
+	 * milliseconds as seconds
+	 */
+	public void thousandths(long value) {
+		decimal(value, 1000);
+	}
+
+	/**
+	 * ends the sample with millionths written as a decimal, such as
+	 * microseconds as seconds
+	 */
+	public void millionths(long value) {
+		decimal(value, 1000_000);
+	}
+
+	private void decimal(long value, int scale) {
+		if (labels) {
+			buf.writeByte('}');
+		}
+		buf.writeByte(' ');
+		if (value < 0) {
+			buf.writeByte('-');
+			value = -value;
+		}
+		digits(value / scale);
+		buf.writeByte('.');
+		long fraction = value % scale;
+		for (int unit = scale / 10; unit > 0; unit /= 10) {
+			buf.writeByte('0' + (int) (fraction / unit % 10));
+		}
+		endLine();
+	}
+
+	/**
+	 * hands the last buffer to the sink, the writer is done
+	 */
+	public void finish() {
+		ByteBuf last = buf;
+		buf = null;
+		sink.accept(last);
+	}
+
+	/**
+	 * releases what was not handed over yet, for a scrape that failed halfway
+	 */
+	public void discard() {
+		if (buf != null) {
+			buf.release();
+			buf = null;
+		}
+	}
+
+	private void endLine() {
+		buf.writeByte('\n');
+		if (buf.readableBytes() >= chunkSize) {
+			ByteBuf full = buf;
+			buf = alloc.buffer(chunkSize);
+			sink.accept(full);
+		}
+	}
+
+	private PrometheusWriter ascii(String s) {
+		ByteBufUtil.writeAscii(buf, s);
+		return this;
+	}
+
+	private void digits(long value) {
+		if (value == Long.MIN_VALUE) {
+			ascii("-9223372036854775808");
+			return;
+		}
+		if (value < 0) {
+			buf.writeByte('-');
+			value = -value;
+		}
+		int i = digits.length;
+		do {
+			digits[--i] = (byte) ('0' + value % 10);
+			value /= 10;
+		} while (value != 0);
+		buf.writeBytes(digits, i, digits.length - i);
+	}
+}
@@ -0,0 +1,148 @@
+package com.longyb.mylive.server.metrics;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import io.netty.channel.Channel;
+import io.netty.util.concurrent.EventExecutorGroup;
+
+/**
+ * Process wide counters for /metrics. Everything is a {@link LongAdder}
+ * bumped on the path that sees the event, the scrape sums them up. Gauges
+ * that exist elsewhere, such as the gop cache or the outbound buffers, are
+ * read at scrape time instead of being tracked here.
+ */
+public final class ServerMetrics {
+
+	public static final ServerMetrics INSTANCE = new ServerMetrics();
+
+	public enum Role {
+		RTMP, HTTP
+	}
+
+	/**
+	 * rtmp message type ids are below this, anything else counts as other
+	 */
+	static final int MESSAGE_TYPES = 23;
+
+	private final LongAdder[] connections = adders(Role.values().length);
+	private final LongAdder handshakesStarted = new LongAdder();
+	private final LongAdder handshakesCompleted = new LongAdder();
+	private final LongAdder[] decoded = adders(MESSAGE_TYPES + 1);
+
+	private final ConcurrentHashMap<String, AppTraffic> apps = new ConcurrentHashMap<>();
+
+	private final ConcurrentHashMap<String, EventExecutorGroup> executors = new ConcurrentHashMap<>();
+
+	private ServerMetrics() {
+	}
+
+	private static LongAdder[] adders(int n) {
+		LongAdder[] adders = new LongAdder[n];
+		for (int i = 0; i < n; i++) {
+			adders[i] = new LongAdder();
+		}
+		return adders;
+	}
+
+	/**
+	 * counts channel as open until it closes
+	 */
+	public void connected(Role role, Channel channel) {
+		LongAdder open = connections[role.ordinal()];
+		open.increment();
+		channel.closeFuture().addListener(f -> open.decrement());
+	}
+
+	public void handshakeStarted() {
+		handshakesStarted.increment();
+	}
+
+	public void handshakeCompleted() {
+		handshakesCompleted.increment();
+	}
+
+	public void decoded(int messageTypeId) {
+		decoded[messageTypeId >= 0 && messageTypeId < MESSAGE_TYPES ? messageTypeId : MESSAGE_TYPES].increment();
+	}
+
+	/**
+	 * the traffic of all streams of app, past and present
+	 */
+	public AppTraffic app(String app) {
+		AppTraffic traffic = apps.get(app);
+		return traffic != null ? traffic : apps.computeIfAbsent(app, a -> new AppTraffic());
+	}
+
+	/**
+	 * reports the pending tasks of group's executors under name
+	 */
+	public void register(String name, EventExecutorGroup group) {
+		executors.put(name, group);
+	}
+
+	public void unregister(String name, EventExecutorGroup group) {
+		executors.remove(name, group);
+	}
+
+	long connections(Role role) {
+		return connections[role.ordinal()].sum();
+	}
+
+	long handshakesStarted() {
+		return handshakesStarted.sum();
+	}
+
+	long handshakesCompleted() {
+		return handshakesCompleted.sum();
+	}
+
+	/**
+	 * @param messageTypeId MESSAGE_TYPES for the unknown ones
+	 */
+	long decodedCount(int messageTypeId) {
+		return decoded[messageTypeId].sum();
+	}
+
+	Map<String, AppTraffic> apps() {
+		return apps;
+	}
+
+	Map<String, EventExecutorGroup> executors() {
+		return executors;
+	}
+
+	/**
+	 * counters that outlive the streams of an app, so they never go backwards
+	 */
+	public static final class AppTraffic {
+		private final LongAdder ingressBytes = new LongAdder();
+		private final LongAdder egressBytes = new LongAdder();
+		private final LongAdder droppedFrames = new LongAdder();
+
+		public void received(long bytes) {
+			ingressBytes.add(bytes);
+		}
+
+		public void sent(long bytes) {
+			egressBytes.add(bytes);
+		}
+
+		public void dropped() {
+			droppedFrames.increment();
+		}
+
+		long ingressBytes() {
+			return ingressBytes.sum();
+		}
+
+		long egressBytes() {
+			return egressBytes.sum();
+		}
+
+		long droppedFrames() {
+			return droppedFrames.sum();
+		}
+	}
+}
@@ -2,10 +2,9 @@ package com.longyb.mylive.server.rtmp;
 
 import static com.longyb.mylive.server.rtmp.Constants.*;
 
-import java.util.List;
-
-import com.longyb.mylive.amf.AMF0;
+import com.longyb.mylive.amf.LazyAmf0List;
 import com.longyb.mylive.server.handlers.RtmpHeader;
+import com.longyb.mylive.server.metrics.ServerMetrics;
 import com.longyb.mylive.server.rtmp.messages.Abort;
 import com.longyb.mylive.server.rtmp.messages.Acknowledgement;
 import com.longyb.mylive.server.rtmp.messages.AudioMessage;
@@ -32,6 +31,7 @@ public class RtmpMessageDecoder {
 
 		RtmpMessage result = null;
 		short messageTypeId = header.getMessageTypeId();
+		ServerMetrics.INSTANCE.decoded(messageTypeId);
 
 		switch (messageTypeId) {
 			case MSG_SET_CHUNK_SIZE -> {
@@ -60,8 +60,8 @@ public class RtmpMessageDecoder {
 				result = new SetPeerBandwidth(ackSize, type);
 			}
 			case MSG_TYPE_COMMAND_AMF0 -> {
-				List<Object> decode = AMF0.decodeAll(payload);
-				result = new RtmpCommandMessage(decode);
+				// the name and the transaction id, the arguments are decoded when read
+				result = new RtmpCommandMessage(LazyAmf0List.decode(payload, 2));
 
 			}
 			case MSG_USER_CONTROL_MESSAGE_EVENTS -> {
@@ -71,9 +71,8 @@ public class RtmpMessageDecoder {
 			}
 			case MSG_TYPE_AUDIO_MESSAGE -> {
 				AudioMessage am = new AudioMessage();
-
-				byte[] data = readAll(payload);
-				am.setAudioData(data);
+				// the message keeps its own reference, the caller still releases the payload
+				am.setAudioData(payload.retain());
 
 				if (header.getFmt() == Constants.CHUNK_FMT_0) {
 					am.setTimestamp(header.getTimestamp());
@@ -84,9 +83,7 @@ public class RtmpMessageDecoder {
 			}
 			case MSG_TYPE_VIDEO_MESSAGE -> {
 				VideoMessage vm = new VideoMessage();
-				byte[] data = readAll(payload);
-
-				vm.setVideoData(data);
+				vm.setVideoData(payload.retain());
 
 				if (header.getFmt() == Constants.CHUNK_FMT_0) {
 					vm.setTimestamp(header.getTimestamp());
@@ -96,7 +93,7 @@ public class RtmpMessageDecoder {
 				result = vm;
 			}
 			case MSG_TYPE_DATA_MESSAGE_AMF0 -> {
-				result = new RtmpDataMessage(AMF0.decodeAll(payload));
+				result = new RtmpDataMessage(LazyAmf0List.decode(payload, 1));
 			}
 			default -> log.info("message type id {} payload {}", messageTypeId, payload);
 		}
@@ -110,10 +107,4 @@ public class RtmpMessageDecoder {
 			return null;
 		}
 	}
-
-	private static byte[] readAll(ByteBuf payload) {
-		byte[] all=new byte[payload.readableBytes()];
-		payload.readBytes(all);
-		return all;
-	}
 }
@@ -1,11 +1,8 @@
 package com.longyb.mylive.server.rtmp.messages;
 
-import java.util.Arrays;
-
 import com.longyb.mylive.server.rtmp.Constants;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import lombok.*;
 
 @EqualsAndHashCode(callSuper = true)
@@ -13,7 +10,7 @@ import lombok.*;
 @AllArgsConstructor
 @NoArgsConstructor
 public class AudioMessage extends RtmpMediaMessage {
-	byte[] audioData;
+	ByteBuf audioData;
 
 	@Override
 	public int getOutboundCsid() {
@@ -22,7 +19,7 @@ public class AudioMessage extends RtmpMediaMessage {
 
 	@Override
 	public ByteBuf encodePayload() {
-		return Unpooled.wrappedBuffer(audioData);
+		return audioData.duplicate();
 	}
 
 	@Override
@@ -31,18 +28,34 @@ public class AudioMessage extends RtmpMediaMessage {
 	}
 
 	@Override
-	public byte[] raw() {
+	public ByteBuf content() {
 
 		return audioData;
 	}
 
+	@Override
+	public AudioMessage retainedDuplicate() {
+		AudioMessage duplicate = new AudioMessage(audioData.retainedDuplicate());
+		duplicate.setTimestamp(timestamp);
+		duplicate.setTimestampDelta(timestampDelta);
+		return duplicate;
+	}
+
+	@Override
+	public AudioMessage copy() {
+		AudioMessage copy = new AudioMessage(audioData.copy());
+		copy.setTimestamp(timestamp);
+		copy.setTimestampDelta(timestampDelta);
+		return copy;
+	}
+
 	public boolean isAACAudioSpecificConfig(){
-		return audioData.length>1 && audioData[1]==0;
+		return audioData.readableBytes()>1 && audioData.getByte(audioData.readerIndex()+1)==0;
 	}
 
 	@Override
 	public String toString() {
-		return "AudioMessage [audioData=" + Arrays.toString(audioData) + ", timestampDelta=" + timestampDelta
+		return "AudioMessage [audioData=" + audioData + ", timestampDelta=" + timestampDelta
 				+ ", timestamp=" + timestamp + ", inboundHeaderLength=" + inboundHeaderLength + ", inboundBodyLength="
 				+ inboundBodyLength + "]";
 	}
@@ -1,16 +1,21 @@
 package com.longyb.mylive.server.rtmp.messages;
 
+import java.util.ArrayList;
 import java.util.List;
 
 import com.longyb.mylive.amf.AMF0;
 import com.longyb.mylive.server.rtmp.Constants;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
-import lombok.AllArgsConstructor;
+import lombok.AccessLevel;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import lombok.Getter;
 import lombok.NoArgsConstructor;
+import lombok.Setter;
+import lombok.ToString;
 
 /**
  * These messages have been assigned message type value of 20 for AMF0 encoding
@@ -20,11 +25,52 @@ import lombok.NoArgsConstructor;
  **/
 @EqualsAndHashCode(callSuper = true)
 @Data
-@AllArgsConstructor
 @NoArgsConstructor
 public class RtmpCommandMessage extends RtmpMessage {
 	List<Object> command;
 
+	// the payload of a message that is encoded once, see encodedOnce
+	@Getter(AccessLevel.NONE)
+	@Setter(AccessLevel.NONE)
+	@ToString.Exclude
+	@EqualsAndHashCode.Exclude
+	private byte[] encoded;
+
+	public RtmpCommandMessage(List<Object> command) {
+		this.command = command;
+	}
+
+	/**
+	 * a reply that never changes, encoded right here. The message may be written
+	 * to any number of channels
+	 */
+	public static RtmpCommandMessage encodedOnce(List<Object> command) {
+		RtmpCommandMessage msg = new RtmpCommandMessage(command);
+		ByteBuf payload = Unpooled.buffer();
+		AMF0.encode(payload, command);
+		msg.encoded = ByteBufUtil.getBytes(payload);
+		return msg;
+	}
+
+	/**
+	 * this message as the reply to another transaction, its encoded payload is
+	 * copied with the transaction id patched in. An id that is not a number,
+	 * such as null from a sloppy client, is echoed back by a full encode.
+	 */
+	public RtmpCommandMessage withTransactionId(Object transactionId) {
+		List<Object> reply = new ArrayList<>(command);
+		reply.set(1, transactionId);
+		RtmpCommandMessage msg = new RtmpCommandMessage(reply);
+		if (encoded != null && transactionId instanceof Number number) {
+			ByteBuf payload = Unpooled.wrappedBuffer(encoded.clone());
+			// string marker, length and name, then the number marker
+			int offset = 1 + 2 + payload.getUnsignedShort(1) + 1;
+			payload.setDouble(offset, number.doubleValue());
+			msg.encoded = payload.array();
+		}
+		return msg;
+	}
+
 	@Override
 	public int getOutboundCsid() {
 		return 3;
@@ -33,6 +79,9 @@ public class RtmpCommandMessage extends RtmpMessage {
 
 	@Override
 	public ByteBuf encodePayload() {
+		if (encoded != null) {
+			return Unpooled.wrappedBuffer(encoded);
+		}
 		ByteBuf buffer = Unpooled.buffer();
 		AMF0.encode(buffer, command);
 		return buffer;
@@ -1,17 +1,76 @@
 package com.longyb.mylive.server.rtmp.messages;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.util.ReferenceCounted;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.NoArgsConstructor;
 
+/**
+ * Media messages own their payload, a reference counted buffer usually sliced
+ * from the pooled inbound buffer. Whoever keeps a message beyond the call it
+ * was handed in (gop cache, subscriber writes, recorder) retains it and
+ * releases it when done.
+ */
 @EqualsAndHashCode(callSuper = true)
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
-public abstract class RtmpMediaMessage  extends RtmpMessage{
+public abstract class RtmpMediaMessage  extends RtmpMessage implements ReferenceCounted {
 	Integer timestampDelta;
 	Integer timestamp;
 	
-	public abstract byte[] raw() ;
+	public abstract ByteBuf content();
+
+	/**
+	 * a new message sharing this one's payload, with its own timestamps so a
+	 * single subscriber can restamp it without touching the shared original
+	 */
+	public abstract RtmpMediaMessage retainedDuplicate();
+
+	/**
+	 * a new message with a copy of the payload in a buffer of its own size, for
+	 * keeping it long after the inbound buffer it was sliced from was read
+	 */
+	public abstract RtmpMediaMessage copy();
+
+	@Override
+	public int refCnt() {
+		return content().refCnt();
+	}
+
+	@Override
+	public RtmpMediaMessage retain() {
+		content().retain();
+		return this;
+	}
+
+	@Override
+	public RtmpMediaMessage retain(int increment) {
+		content().retain(increment);
+		return this;
+	}
+
+	@Override
+	public RtmpMediaMessage touch() {
+		content().touch();
+		return this;
+	}
+
+	@Override
+	public RtmpMediaMessage touch(Object hint) {
+		content().touch(hint);
+		return this;
+	}
+
+	@Override
+	public boolean release() {
+		return content().release();
+	}
+
+	@Override
+	public boolean release(int decrement) {
+		return content().release(decrement);
+	}
 }
@@ -14,6 +14,11 @@ public abstract class RtmpMessage {
 	int inboundHeaderLength;
 	int inboundBodyLength;
 
+	// System.nanoTime() of the read that brought the first chunk and of the one
+	// that completed the message, 0 for messages not read from a connection
+	long receivedNanos;
+	long decodedNanos;
+
 //	public RtmpMessage attachInboundHeader(RtmpHeader theHeader) {
 //		inboundHeader = theHeader;
 //		return this;
@@ -0,0 +1,70 @@
+package com.longyb.mylive.server.rtmp.messages;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.longyb.mylive.server.handlers.ChunkEncoder;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.util.AbstractReferenceCounted;
+import lombok.Getter;
+
+/**
+ * A media message written to many rtmp subscribers at once.
+ * <p>
+ * Subscribers only differ in their chunk size and whether this is the first
+ * message of its type on the channel. The chunk bytes of each such combination
+ * are encoded once, by whichever subscriber needs them first, and every
+ * subscriber writes a retained duplicate of them.
+ * <p>
+ * Each write hands one reference to the channel, {@link ChunkEncoder} releases
+ * it once the encoded bytes are taken.
+ */
+public class SharedMediaMessage extends AbstractReferenceCounted {
+
+	@Getter
+	private final RtmpMediaMessage message;
+
+	private final List<EncodedChunks> encoded = new ArrayList<>(2);
+
+	public SharedMediaMessage(RtmpMediaMessage message) {
+		message.retain();
+		this.message = message;
+	}
+
+	/**
+	 * @return the chunk stream of the message, the caller owns the returned buffer
+	 */
+	public synchronized ByteBuf chunks(int chunkSize, boolean firstOfType, ByteBufAllocator alloc) {
+		for (EncodedChunks e : encoded) {
+			if (e.chunkSize() == chunkSize && e.firstOfType() == firstOfType) {
+				return e.chunks().retainedDuplicate();
+			}
+		}
+		int payloadLength = message.content().readableBytes();
+		// message header plus one basic header for every further chunk
+		ByteBuf chunks = alloc.ioBuffer(payloadLength + 18 + payloadLength / chunkSize * 7);
+		ChunkEncoder.encodeMedia(message, firstOfType, chunkSize, chunks);
+		encoded.add(new EncodedChunks(chunkSize, firstOfType, chunks));
+		return chunks.retainedDuplicate();
+	}
+
+	@Override
+	protected synchronized void deallocate() {
+		for (EncodedChunks e : encoded) {
+			e.chunks().release();
+		}
+		encoded.clear();
+		message.release();
+	}
+
+	@Override
+	public SharedMediaMessage touch(Object hint) {
+		message.touch(hint);
+		return this;
+	}
+
+	private record EncodedChunks(int chunkSize, boolean firstOfType, ByteBuf chunks) {
+	}
+}
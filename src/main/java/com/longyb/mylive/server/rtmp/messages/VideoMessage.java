@@ -3,7 +3,6 @@ package com.longyb.mylive.server.rtmp.messages;
 import com.longyb.mylive.server.rtmp.Constants;
 
 import io.netty.buffer.ByteBuf;
-import io.netty.buffer.Unpooled;
 import lombok.*;
 
 @EqualsAndHashCode(callSuper = true)
@@ -11,12 +10,12 @@ import lombok.*;
 @AllArgsConstructor
 @NoArgsConstructor
 public class VideoMessage extends RtmpMediaMessage {
-	byte[] videoData;
+	ByteBuf videoData;
 
 	@Override
 	public ByteBuf encodePayload() {
 
-		return Unpooled.wrappedBuffer(videoData);
+		return videoData.duplicate();
 	}
 
 	@Override
@@ -31,18 +30,34 @@ public class VideoMessage extends RtmpMediaMessage {
 	}
 
 	public boolean isH264KeyFrame() {
-		return videoData.length > 1 && videoData[0] == 0x17;
+		return videoData.readableBytes() > 1 && videoData.getByte(videoData.readerIndex()) == 0x17;
 	}
 
 	public boolean isAVCDecoderConfigurationRecord() {
-		return isH264KeyFrame() && videoData.length > 2 && videoData[1] == 0x00;
+		return isH264KeyFrame() && videoData.readableBytes() > 2 && videoData.getByte(videoData.readerIndex() + 1) == 0x00;
 	}
 
 	@Override
-	public byte[] raw() {
+	public ByteBuf content() {
 		return videoData;
 	}
 
+	@Override
+	public VideoMessage retainedDuplicate() {
+		VideoMessage duplicate = new VideoMessage(videoData.retainedDuplicate());
+		duplicate.setTimestamp(timestamp);
+		duplicate.setTimestampDelta(timestampDelta);
+		return duplicate;
+	}
+
+	@Override
+	public VideoMessage copy() {
+		VideoMessage copy = new VideoMessage(videoData.copy());
+		copy.setTimestamp(timestamp);
+		copy.setTimestampDelta(timestampDelta);
+		return copy;
+	}
+
 	@Override
 	public String toString() {
 		return "VideoMessage [timestampDelta=" + timestampDelta + ", timestamp=" + timestamp + ", inboundHeaderLength="
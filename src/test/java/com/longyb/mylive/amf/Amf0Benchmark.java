@@ -0,0 +1,115 @@
+package com.longyb.mylive.amf;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.longyb.mylive.server.rtmp.messages.RtmpCommandMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * The rewritten codec against {@link LegacyAmf0} on the messages of a
+ * connection setup: encoding an onStatus reply, answering connect from the
+ * encoded once reply and decoding the connect command of OBS.
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark.includes=Amf0Benchmark
+ * </pre>
+ **/
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Amf0Benchmark {
+
+	static final List<Object> ON_STATUS = Arrays.asList("onStatus", 0, null, new Amf0Object()
+			.addProperty("level", "status").addProperty("code", "NetStream.Publish.Start")
+			.addProperty("description", "Start publishing"));
+
+	static final List<Object> CONNECT_RESULT = List.of("_result", 1,
+			new Amf0Object().addProperty("fmsVer", "FMS/3,0,1,123").addProperty("capabilities", 31),
+			new Amf0Object().addProperty("level", "status").addProperty("code", "NetConnection.Connect.Success")
+					.addProperty("description", "Connection succeeded").addProperty("objectEncoding", 0));
+
+	static final RtmpCommandMessage CONNECT_RESULT_ONCE = RtmpCommandMessage.encodedOnce(CONNECT_RESULT);
+
+	ByteBuf out;
+	ByteBuf connect;
+
+	@Setup(Level.Trial)
+	public void setUp() {
+		out = PooledByteBufAllocator.DEFAULT.heapBuffer(1024);
+		connect = PooledByteBufAllocator.DEFAULT.heapBuffer(1024);
+		AMF0.encode(connect, List.of("connect", 1.0, new Amf0Object().addProperty("app", "live")
+				.addProperty("type", "nonprivate").addProperty("flashVer", "FMLE/3.0 (compatible; FMSc/1.0)")
+				.addProperty("swfUrl", "rtmp://127.0.0.1:1935/live").addProperty("tcUrl", "rtmp://127.0.0.1:1935/live")));
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() {
+		out.release();
+		connect.release();
+	}
+
+	@Benchmark
+	public int encodeOnStatusLegacy() {
+		out.clear();
+		LegacyAmf0.encode(out, ON_STATUS);
+		return out.writerIndex();
+	}
+
+	@Benchmark
+	public int encodeOnStatus() {
+		out.clear();
+		AMF0.encode(out, ON_STATUS);
+		return out.writerIndex();
+	}
+
+	@Benchmark
+	public int connectResultLegacy() {
+		out.clear();
+		List<Object> reply = Arrays.asList(CONNECT_RESULT.toArray());
+		reply.set(1, 2.0);
+		LegacyAmf0.encode(out, reply);
+		return out.writerIndex();
+	}
+
+	@Benchmark
+	public ByteBuf connectResultEncodedOnce() {
+		return CONNECT_RESULT_ONCE.withTransactionId(2.0).encodePayload();
+	}
+
+	@Benchmark
+	public Object decodeConnectLegacy() {
+		return LegacyAmf0.decodeAll(connect.duplicate());
+	}
+
+	@Benchmark
+	public Object decodeConnect() {
+		return AMF0.decodeAll(connect.duplicate());
+	}
+
+	@Benchmark
+	public Object decodeConnectNameAndTransaction() {
+		Amf0Reader reader = new Amf0Reader(connect.duplicate());
+		String name = reader.readString();
+		return name.length() + reader.readNumber();
+	}
+}
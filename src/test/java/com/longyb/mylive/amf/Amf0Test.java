@@ -0,0 +1,108 @@
+package com.longyb.mylive.amf;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.longyb.mylive.server.rtmp.messages.RtmpCommandMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+public class Amf0Test {
+
+	@Test
+	public void testRoundTrip() {
+		Map<String, Object> ecmaArray = new LinkedHashMap<>();
+		ecmaArray.put("width", 1920.0);
+		ecmaArray.put("encoder", "obs-output module (libobs version 30.0.0)");
+		List<Object> values = Arrays.asList("onStatus", 3.0, null, true,
+				new Amf0Object().addProperty("description", "Übertragung läuft 直播").addProperty("level", "status"),
+				ecmaArray, new Date(1_700_000_000_000L), "x".repeat(70_000));
+
+		ByteBuf buf = Unpooled.buffer();
+		AMF0.encode(buf, values);
+		List<Object> decoded = AMF0.decodeAll(buf);
+
+		assertEquals(values.size(), decoded.size());
+		for (int i = 0; i < values.size(); i++) {
+			assertEquals(values.get(i), decoded.get(i));
+		}
+		assertEquals(Amf0Object.class, decoded.get(4).getClass());
+		assertEquals(LinkedHashMap.class, decoded.get(5).getClass());
+	}
+
+	@Test
+	public void testEncodesLikeTheLegacyCodec() {
+		List<Object> values = List.of("_result", 1, new Amf0Object().addProperty("fmsVer", "FMS/3,0,1,123")
+				.addProperty("capabilities", 31), new Object[] { "a", 2.5 });
+		ByteBuf expected = Unpooled.buffer();
+		LegacyAmf0.encode(expected, values);
+		ByteBuf actual = Unpooled.buffer();
+		AMF0.encode(actual, values);
+		assertEquals(expected, actual);
+	}
+
+	@Test
+	public void testLazyListDecodesOnlyTheHead() {
+		ByteBuf buf = Unpooled.buffer();
+		AMF0.encode(buf, List.of("connect", 1.0, new Amf0Object().addProperty("app", "live")));
+
+		LazyAmf0List command = LazyAmf0List.decode(buf, 2);
+		assertEquals("connect", command.get(0));
+		assertEquals(1.0, command.get(1));
+		assertTrue(command.toString().endsWith("bytes>]"), command.toString());
+
+		assertEquals("live", ((Map<?, ?>) command.get(2)).get("app"));
+		assertEquals(3, command.size());
+		assertEquals("[connect, 1.0, {app=live}]", command.toString());
+	}
+
+	@Test
+	public void testReaderStopsAnywhere() {
+		ByteBuf buf = Unpooled.buffer();
+		AMF0.encode(buf, Arrays.asList("play", 4.0, null, "stream"));
+
+		Amf0Reader reader = new Amf0Reader(buf);
+		assertEquals(AMF0.Type.STRING, reader.peekType());
+		assertEquals("play", reader.readString());
+		assertEquals(4.0, reader.readNumber());
+		assertNull(reader.readString());
+		assertEquals("stream", reader.readString());
+		assertTrue(!reader.isReadable());
+	}
+
+	@Test
+	public void testEncodedOnceReplyWithTransactionId() {
+		RtmpCommandMessage template = RtmpCommandMessage
+				.encodedOnce(Arrays.asList("_result", 1, null, new Amf0Object().addProperty("code", "ok")));
+		RtmpCommandMessage reply = template.withTransactionId(7.0);
+
+		List<Object> decoded = AMF0.decodeAll(reply.encodePayload());
+		assertEquals(7.0, decoded.get(1));
+		assertEquals(new ArrayList<>(reply.getCommand()).toString(), decoded.toString());
+
+		// the template is left alone
+		ByteBuf fresh = Unpooled.buffer();
+		AMF0.encode(fresh, template.getCommand());
+		assertArrayEquals(ByteBufUtil.getBytes(fresh), ByteBufUtil.getBytes(template.encodePayload()));
+
+		// not a number, echoed back as it came
+		for (Object id : new Object[] { null, "7" }) {
+			decoded = AMF0.decodeAll(template.withTransactionId(id).encodePayload());
+			assertEquals(id, decoded.get(1));
+			assertEquals("_result", decoded.get(0));
+		}
+	}
+}
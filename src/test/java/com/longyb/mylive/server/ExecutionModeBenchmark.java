@@ -0,0 +1,232 @@
+package com.longyb.mylive.server;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.longyb.mylive.amf.Amf0Object;
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.cfg.ExecutionMode;
+import com.longyb.mylive.server.cfg.TransportConfig;
+import com.longyb.mylive.server.entities.Stream;
+import com.longyb.mylive.server.entities.StreamName;
+import com.longyb.mylive.server.handlers.ChunkDecoder;
+import com.longyb.mylive.server.handlers.ChunkEncoder;
+import com.longyb.mylive.server.manager.StreamManager;
+import com.longyb.mylive.server.rtmp.messages.RtmpCommandMessage;
+import com.longyb.mylive.server.rtmp.messages.SetChunkSize;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.ByteToMessageDecoder;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * One publisher and {@value #VIEWERS} rtmp viewers on a real server, for each
+ * {@link ExecutionMode}. "frame" is the ingest latency of a single frame, from
+ * the publisher's write until every viewer has read it. "burst" is the fan-out
+ * throughput in frames per second when the publisher writes 32 at once.
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark.includes=ExecutionModeBenchmark
+ * </pre>
+ **/
+@State(Scope.Benchmark)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ExecutionModeBenchmark {
+
+	private static final int VIEWERS = 16;
+	private static final int BURST = 32;
+	private static final int GOP_SIZE = 120;
+	private static final int FRAME_SIZE = 16_000;
+
+	@Param({ "INLINE", "POOL", "ORDERED_VIRTUAL" })
+	ExecutionMode mode;
+
+	ServerTransport transport;
+	RtmpServer server;
+	StreamManager streamManager;
+	NioEventLoopGroup clients;
+
+	Channel publisher;
+	final List<Channel> viewers = new ArrayList<>();
+	final Semaphore received = new Semaphore(0);
+
+	ByteBuf keyFrame;
+	ByteBuf interFrame;
+	int frame;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		ApplicationServerConfig.INSTANCE = new ApplicationServerConfig();
+		int port;
+		try (ServerSocket socket = new ServerSocket(0)) {
+			port = socket.getLocalPort();
+		}
+		transport = new ServerTransport(new TransportConfig());
+		streamManager = new StreamManager();
+		server = new RtmpServer(port, transport, streamManager, mode, 8);
+		server.run();
+		clients = new NioEventLoopGroup(2);
+
+		keyFrame = frame(0x17, 0x01);
+		interFrame = frame(0x27, 0x01);
+
+		publisher = connect(port, new Discard());
+		publisher.write(command("connect", 1, new Amf0Object().addProperty("app", "live")));
+		publisher.write(command("createStream", 2, null));
+		publisher.write(command("publish", 3, null, "bench", "live"));
+		publisher.write(new SetChunkSize(4096));
+		publisher.writeAndFlush(new VideoMessage(frame(0x17, 0x00)));
+		publish(keyFrame);
+
+		Stream stream = awaitStream();
+		for (int i = 0; i < VIEWERS; i++) {
+			Channel viewer = connect(port, new SkipHandshake(), new ChunkDecoder(), new CountFrames());
+			viewer.write(command("connect", 1, new Amf0Object().addProperty("app", "live")));
+			viewer.write(command("createStream", 2, null));
+			viewer.writeAndFlush(command("play", 3, null, "bench"));
+			viewers.add(viewer);
+		}
+		while (stream.getSubscribers().size() < VIEWERS) {
+			Thread.sleep(10);
+		}
+		// the replayed key frame
+		received.acquire(VIEWERS);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		publisher.close().sync();
+		for (Channel viewer : viewers) {
+			viewer.close().sync();
+		}
+		clients.shutdownGracefully().sync();
+		server.close();
+		transport.close();
+		keyFrame.release();
+		interFrame.release();
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public void frame() throws InterruptedException {
+		publishNext();
+		received.acquire(VIEWERS);
+	}
+
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	@OperationsPerInvocation(BURST)
+	public void burst() throws InterruptedException {
+		for (int i = 0; i < BURST; i++) {
+			publishNext();
+		}
+		received.acquire(VIEWERS * BURST);
+	}
+
+	private void publishNext() {
+		publish(++frame % GOP_SIZE == 0 ? keyFrame : interFrame);
+	}
+
+	private void publish(ByteBuf payload) {
+		VideoMessage vm = new VideoMessage(payload.retainedDuplicate());
+		vm.setTimestampDelta(33);
+		publisher.writeAndFlush(vm);
+	}
+
+	private Stream awaitStream() throws InterruptedException {
+		StreamName name = new StreamName("live", "bench", false);
+		Stream stream;
+		while ((stream = streamManager.getStream(name)) == null) {
+			Thread.sleep(10);
+		}
+		return stream;
+	}
+
+	private Channel connect(int port, ChannelHandler... inbound) throws InterruptedException {
+		Channel ch = new Bootstrap().group(clients).channel(NioSocketChannel.class)
+				.handler(new ChannelInitializer<Channel>() {
+					@Override
+					protected void initChannel(Channel ch) {
+						ch.pipeline().addLast(inbound).addLast(new ChunkEncoder());
+					}
+				}).connect("127.0.0.1", port).sync().channel();
+		// c0, c1 and c2 at once, the server does not check them
+		ByteBuf handshake = Unpooled.buffer(1 + 1536 * 2);
+		handshake.writeByte(3).writeZero(1536 * 2);
+		ch.write(handshake);
+		return ch;
+	}
+
+	private static RtmpCommandMessage command(Object... command) {
+		return new RtmpCommandMessage(new ArrayList<>(Arrays.asList(command)));
+	}
+
+	private static ByteBuf frame(int frameType, int packetType) {
+		ByteBuf payload = PooledByteBufAllocator.DEFAULT.directBuffer(FRAME_SIZE);
+		return payload.writeByte(frameType).writeByte(packetType).writeZero(FRAME_SIZE - 2);
+	}
+
+	/**
+	 * drops s0, s1 and s2
+	 */
+	static class SkipHandshake extends ByteToMessageDecoder {
+		@Override
+		protected void decode(ChannelHandlerContext ctx, ByteBuf in, List<Object> out) {
+			if (in.readableBytes() >= 1 + 1536 * 2) {
+				in.skipBytes(1 + 1536 * 2);
+				ctx.pipeline().remove(this);
+			}
+		}
+	}
+
+	class CountFrames extends ChannelInboundHandlerAdapter {
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			if (msg instanceof VideoMessage) {
+				received.release();
+			}
+			ReferenceCountUtil.release(msg);
+		}
+	}
+
+	static class Discard extends ChannelInboundHandlerAdapter {
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			ReferenceCountUtil.release(msg);
+		}
+	}
+}
@@ -0,0 +1,187 @@
+package com.longyb.mylive.server;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.cfg.HttpConfig;
+import com.longyb.mylive.server.entities.Stream;
+import com.longyb.mylive.server.entities.StreamName;
+import com.longyb.mylive.server.handlers.HttpRouterHandler;
+import com.longyb.mylive.server.manager.StreamManager;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.Http2ChannelDuplexHandler;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2FrameCodec;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2FrameStream;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2MultiplexHandler;
+import io.netty.handler.codec.http2.Http2StreamFrame;
+import io.netty.handler.flush.FlushConsolidationHandler;
+import io.netty.handler.stream.ChunkedWriteHandler;
+import io.netty.util.ReferenceCountUtil;
+
+public class HttpChannelInitializerTest {
+
+	/**
+	 * what the client received, data as strings
+	 */
+	private static final class Client extends Http2ChannelDuplexHandler {
+		final List<Http2StreamFrame> headers = new ArrayList<>();
+		final List<Integer> dataStreams = new ArrayList<>();
+		final List<ByteBuf> data = new ArrayList<>();
+		final List<Boolean> dataEnds = new ArrayList<>();
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			if (msg instanceof Http2HeadersFrame frame) {
+				headers.add(frame);
+			} else if (msg instanceof Http2DataFrame frame) {
+				dataStreams.add(frame.stream().id());
+				data.add(Unpooled.copiedBuffer(frame.content()));
+				dataEnds.add(frame.isEndStream());
+			}
+			ReferenceCountUtil.release(msg);
+		}
+
+		void clear() {
+			headers.clear();
+			dataStreams.clear();
+			data.clear();
+			dataEnds.clear();
+		}
+	}
+
+	private static void exchange(EmbeddedChannel client, EmbeddedChannel server) {
+		for (boolean moved = true; moved;) {
+			moved = false;
+			for (Object msg; (msg = client.readOutbound()) != null; moved = true) {
+				server.writeInbound(msg);
+			}
+			server.runPendingTasks();
+			for (Object msg; (msg = server.readOutbound()) != null; moved = true) {
+				client.writeInbound(msg);
+			}
+		}
+	}
+
+	private static Http2FrameStream get(EmbeddedChannel client, Client frames, String path) {
+		Http2FrameStream stream = frames.newStream();
+		client.writeAndFlush(new DefaultHttp2HeadersFrame(
+				new DefaultHttp2Headers().method("GET").scheme("http").authority("localhost").path(path), true)
+				.stream(stream));
+		return stream;
+	}
+
+	@Test
+	public void testStreamsShareOneConnection() {
+		ApplicationServerConfig.INSTANCE = new ApplicationServerConfig();
+		StreamManager streamManager = new StreamManager();
+		StreamName name = new StreamName("live", "test", false);
+		Stream stream = new Stream(name);
+		streamManager.newStream(name, stream);
+
+		// prior knowledge, the client starts with the connection preface
+		EmbeddedChannel server = new EmbeddedChannel(
+				new HttpChannelInitializer(new HttpRouterHandler(streamManager), new HttpConfig(), null));
+		Client frames = new Client();
+		EmbeddedChannel client = new EmbeddedChannel(Http2FrameCodecBuilder.forClient().build(), frames);
+
+		Http2FrameStream one = get(client, frames, "/stream/flv/live/test.flv");
+		Http2FrameStream other = get(client, frames, "/stream/flv/live/test.flv?join=live-edge");
+		Http2FrameStream api = get(client, frames, "/api/streams");
+		exchange(client, server);
+
+		assertEquals(3, frames.headers.size());
+		assertHttp2Pipeline(server);
+		for (Http2StreamFrame frame : frames.headers) {
+			Http2HeadersFrame headers = (Http2HeadersFrame) frame;
+			assertEquals("200", headers.headers().status().toString());
+			// no connection specific headers on HTTP/2
+			assertNull(headers.headers().get("transfer-encoding"));
+		}
+		for (int i = 0; i < frames.data.size(); i++) {
+			String body = frames.data.get(i).toString(StandardCharsets.ISO_8859_1);
+			int id = frames.dataStreams.get(i);
+			if (id == api.id()) {
+				assertTrue(body.contains("\"subscribers\""), body);
+				assertTrue(frames.dataEnds.get(i));
+			} else {
+				assertTrue(id == one.id() || id == other.id());
+				assertTrue(body.startsWith("FLV"), body);
+				assertFalse(frames.dataEnds.get(i));
+			}
+		}
+		frames.clear();
+
+		// one tag reaches both viewers, each on its own stream
+		VideoMessage frame = new VideoMessage(Unpooled.buffer().writeByte(0x17).writeByte(1).writeZero(10));
+		frame.setTimestamp(0);
+		stream.addContent(frame);
+		frame.release();
+		exchange(client, server);
+		assertEquals(List.of(one.id(), other.id()), frames.dataStreams.stream().sorted().toList());
+		assertEquals(11 + 12 + 4, frames.data.get(0).readableBytes());
+		frames.clear();
+
+		stream.sendEofToAllSubscriberAndClose();
+		exchange(client, server);
+		assertEquals(List.of(true, true), frames.dataEnds);
+		// the connection outlives its streams
+		assertTrue(server.isOpen());
+
+		client.finishAndReleaseAll();
+		server.finishAndReleaseAll();
+	}
+
+	@Test
+	public void testUpgradeGetsTheSameHandlers() {
+		ApplicationServerConfig.INSTANCE = new ApplicationServerConfig();
+		EmbeddedChannel server = new EmbeddedChannel(
+				new HttpChannelInitializer(new HttpRouterHandler(new StreamManager()), new HttpConfig(), null));
+		// max concurrent streams 100
+		server.writeInbound(Unpooled.copiedBuffer("""
+				GET /api/streams HTTP/1.1\r
+				Host: localhost\r
+				Connection: Upgrade, HTTP2-Settings\r
+				Upgrade: h2c\r
+				HTTP2-Settings: AAMAAABk\r
+				\r
+				""", StandardCharsets.US_ASCII));
+		server.runPendingTasks();
+		ByteBuf switching = server.readOutbound();
+		assertTrue(switching.toString(StandardCharsets.US_ASCII).startsWith("HTTP/1.1 101 Switching Protocols"));
+		switching.release();
+		assertHttp2Pipeline(server);
+		server.finishAndReleaseAll();
+	}
+
+	private static void assertHttp2Pipeline(EmbeddedChannel server) {
+		ChannelPipeline pipeline = server.pipeline();
+		assertNotNull(pipeline.get(Http2FrameCodec.class));
+		assertNotNull(pipeline.get(FlushConsolidationHandler.class));
+		assertNotNull(pipeline.get(Http2MultiplexHandler.class));
+		// the streams have their own
+		assertNull(pipeline.get(HttpRouterHandler.class));
+		assertNull(pipeline.get(ChunkedWriteHandler.class));
+	}
+
+}
@@ -0,0 +1,263 @@
+package com.longyb.mylive.server;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.cfg.HttpConfig;
+import com.longyb.mylive.server.entities.Stream;
+import com.longyb.mylive.server.entities.StreamName;
+import com.longyb.mylive.server.handlers.HttpRouterHandler;
+import com.longyb.mylive.server.manager.StreamManager;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFuture;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpClientCodec;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http2.DefaultHttp2Headers;
+import io.netty.handler.codec.http2.DefaultHttp2HeadersFrame;
+import io.netty.handler.codec.http2.DefaultHttp2WindowUpdateFrame;
+import io.netty.handler.codec.http2.Http2ChannelDuplexHandler;
+import io.netty.handler.codec.http2.Http2CodecUtil;
+import io.netty.handler.codec.http2.Http2DataFrame;
+import io.netty.handler.codec.http2.Http2FrameCodecBuilder;
+import io.netty.handler.codec.http2.Http2HeadersFrame;
+import io.netty.handler.codec.http2.Http2Settings;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * http-flv fan-out of one stream to many viewers, over HTTP/1.1 with a
+ * connection per viewer against h2c with streamsPerConnection viewers on
+ * each connection. An operation publishes one 20 kB frame and waits until
+ * every viewer has read it. Compare the scores and the time the trial setup
+ * logs for connecting and joining all viewers.
+ * <p>
+ * HTTP/1.1 opens one loopback socket per viewer on each side, raise the open
+ * files limit first (ulimit -n 65536).
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark.includes=HttpFlvFanoutBenchmark
+ * </pre>
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HttpFlvFanoutBenchmark {
+
+	private static final int FRAME_SIZE = 20_000;
+	// tag header and previous tag size around the payload
+	private static final int TAG_SIZE = 11 + FRAME_SIZE + 4;
+	private static final int STREAM_WINDOW = 6 * 1024 * 1024;
+	private static final int CONNECTION_WINDOW = 15 * 1024 * 1024;
+	private static final String PATH = "/stream/flv/live/bench.flv?join=live-edge";
+
+	public enum Protocol {
+		HTTP_1_1, H2C
+	}
+
+	@Param({ "HTTP_1_1", "H2C" })
+	Protocol protocol;
+
+	@Param({ "10000" })
+	int viewers;
+
+	@Param({ "9" })
+	int streamsPerConnection;
+
+	// 0 for the cost of timing writes against none
+	@Param({ "32" })
+	int latencySampleEvery;
+
+	NioEventLoopGroup serverGroup;
+	NioEventLoopGroup clientGroup;
+	Channel server;
+	List<Channel> connections = new ArrayList<>();
+
+	Stream stream;
+	final AtomicLong received = new AtomicLong();
+	final AtomicInteger joined = new AtomicInteger();
+	long expected;
+	int frame;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		ApplicationServerConfig.INSTANCE = new ApplicationServerConfig();
+		ApplicationServerConfig.INSTANCE.getStats().setLatencySampleEvery(latencySampleEvery);
+		StreamManager streamManager = new StreamManager();
+		StreamName name = new StreamName("live", "bench", false);
+		stream = new Stream(name);
+		streamManager.newStream(name, stream);
+
+		serverGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors() / 2);
+		clientGroup = new NioEventLoopGroup(Runtime.getRuntime().availableProcessors() / 2);
+		server = new ServerBootstrap().group(serverGroup).channel(NioServerSocketChannel.class)
+				.childHandler(new HttpChannelInitializer(new HttpRouterHandler(streamManager), new HttpConfig(), null))
+				.bind("127.0.0.1", 0).sync().channel();
+
+		long start = System.nanoTime();
+		Bootstrap client = new Bootstrap().group(clientGroup).channel(NioSocketChannel.class)
+				.handler(new ChannelInitializer<Channel>() {
+					@Override
+					protected void initChannel(Channel ch) {
+						if (protocol == Protocol.HTTP_1_1) {
+							ch.pipeline().addLast(new HttpClientCodec(), new Http1Viewer());
+						} else {
+							// windows as large as a browser's
+							ch.pipeline().addLast(Http2FrameCodecBuilder.forClient()
+									.initialSettings(Http2Settings.defaultSettings().initialWindowSize(STREAM_WINDOW)).build(),
+									new Http2Viewers());
+						}
+					}
+				});
+		int count = protocol == Protocol.HTTP_1_1 ? viewers : (viewers + streamsPerConnection - 1) / streamsPerConnection;
+		List<ChannelFuture> connects = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			connects.add(client.connect(server.localAddress()));
+		}
+		for (ChannelFuture connect : connects) {
+			connections.add(connect.sync().channel());
+		}
+		while (joined.get() < viewers) {
+			Thread.sleep(10);
+		}
+		// the subscribers are registered right after their response went out
+		Thread.sleep(500);
+		System.out.printf("%n%d viewers on %d connections joined in %d ms%n", viewers, connections.size(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		expected = received.get();
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		stream.sendEofToAllSubscriberAndClose();
+		for (Channel connection : connections) {
+			connection.close();
+		}
+		server.close().sync();
+		clientGroup.shutdownGracefully().sync();
+		serverGroup.shutdownGracefully().sync();
+	}
+
+	@Benchmark
+	public void fanout() {
+		ByteBuf payload = PooledByteBufAllocator.DEFAULT.directBuffer(FRAME_SIZE);
+		payload.writeByte(frame++ == 0 ? 0x17 : 0x27).writeByte(0x01).writeZero(FRAME_SIZE - 2);
+		VideoMessage vm = new VideoMessage(payload);
+		vm.setTimestampDelta(33);
+		stream.addContent(vm);
+		vm.release();
+		expected += (long) viewers * TAG_SIZE;
+		while (received.get() < expected) {
+			Thread.onSpinWait();
+		}
+	}
+
+	/**
+	 * counts the body bytes of one HTTP/1.1 viewer
+	 */
+	private final class Http1Viewer extends ChannelInboundHandlerAdapter {
+		boolean started;
+
+		@Override
+		public void channelActive(ChannelHandlerContext ctx) {
+			ctx.writeAndFlush(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, PATH));
+		}
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			if (msg instanceof HttpResponse) {
+				joined.incrementAndGet();
+			}
+			if (msg instanceof HttpContent content) {
+				countBody(content.content());
+			}
+			ReferenceCountUtil.release(msg);
+		}
+
+		private void countBody(ByteBuf body) {
+			// the flv header and metadata of the join are not part of a frame
+			if (started) {
+				received.addAndGet(body.readableBytes());
+			} else {
+				started = true;
+			}
+		}
+	}
+
+	/**
+	 * streamsPerConnection viewers on one HTTP/2 connection
+	 */
+	private final class Http2Viewers extends Http2ChannelDuplexHandler {
+		final Set<Integer> started = new HashSet<>();
+
+		@Override
+		public void channelActive(ChannelHandlerContext ctx) {
+			ctx.write(new DefaultHttp2WindowUpdateFrame(CONNECTION_WINDOW - Http2CodecUtil.DEFAULT_WINDOW_SIZE));
+			for (int i = 0; i < streamsPerConnection; i++) {
+				ctx.write(new DefaultHttp2HeadersFrame(new DefaultHttp2Headers().method("GET").scheme("http")
+						.authority("localhost").path(PATH), true).stream(newStream()));
+			}
+			ctx.flush();
+		}
+
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			if (msg instanceof Http2HeadersFrame) {
+				joined.incrementAndGet();
+			} else if (msg instanceof Http2DataFrame data) {
+				if (!started.add(data.stream().id())) {
+					received.addAndGet(data.content().readableBytes());
+				}
+				// what a player does once it consumed the bytes
+				if (data.initialFlowControlledBytes() > 0) {
+					ctx.write(new DefaultHttp2WindowUpdateFrame(data.initialFlowControlledBytes())
+							.stream(data.stream()));
+				}
+			}
+			ReferenceCountUtil.release(msg);
+		}
+
+		@Override
+		public void channelReadComplete(ChannelHandlerContext ctx) {
+			ctx.flush();
+		}
+	}
+
+}
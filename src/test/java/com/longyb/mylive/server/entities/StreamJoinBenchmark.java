@@ -0,0 +1,185 @@
+package com.longyb.mylive.server.entities;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadInfo;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.handlers.ChunkEncoder;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.DefaultEventLoopGroup;
+import io.netty.channel.local.LocalAddress;
+import io.netty.channel.local.LocalChannel;
+import io.netty.channel.local.LocalServerChannel;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Publisher latency of {@link Stream#addContent} while viewers join and leave.
+ * Compare the publish score of the "quiet" group with the one of the
+ * "joinStorm" group, where three threads keep joining and leaving a stream
+ * that holds a full gop. The blockedMillis and blockedTimes counters show
+ * how often the publisher had to wait for a viewer.
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark.includes=StreamJoinBenchmark
+ * </pre>
+ **/
+@State(Scope.Group)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StreamJoinBenchmark {
+
+	private static final int GOP_SIZE = 120;
+
+	DefaultEventLoopGroup group;
+	Channel server;
+	LocalAddress address;
+	Bootstrap client;
+
+	Stream stream;
+	int frame;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		ApplicationServerConfig.INSTANCE = new ApplicationServerConfig();
+		group = new DefaultEventLoopGroup(4);
+		address = new LocalAddress("join-benchmark-" + System.nanoTime());
+		server = new ServerBootstrap().group(group).channel(LocalServerChannel.class)
+				.childHandler(new Discard()).bind(address).sync().channel();
+		client = new Bootstrap().group(group).channel(LocalChannel.class).handler(new ChannelInitializer<Channel>() {
+			@Override
+			protected void initChannel(Channel ch) {
+				ch.pipeline().addLast(new ChunkEncoder());
+			}
+		});
+
+		stream = new Stream(new StreamName("live", "bench", false));
+		publish(0x17, 0x00);
+		for (int i = 0; i < GOP_SIZE; i++) {
+			publish(i == 0 ? 0x17 : 0x27, 0x01);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		stream.sendEofToAllSubscriberAndClose();
+		server.close().sync();
+		group.shutdownGracefully().sync();
+	}
+
+	@Benchmark
+	@Group("quiet")
+	@GroupThreads(1)
+	public void publishQuiet(Contention contention) {
+		publishNext();
+		contention.sample();
+	}
+
+	@Benchmark
+	@Group("joinStorm")
+	@GroupThreads(1)
+	public void publish(Contention contention) {
+		publishNext();
+		contention.sample();
+	}
+
+	@Benchmark
+	@Group("joinStorm")
+	@GroupThreads(3)
+	public void joinAndLeave() throws Exception {
+		Channel viewer = client.connect(address).sync().channel();
+		stream.addSubscriber(viewer);
+		viewer.close().sync();
+	}
+
+	private void publishNext() {
+		publish(++frame % GOP_SIZE == 0 ? 0x17 : 0x27, 0x01);
+	}
+
+	private void publish(int frameType, int packetType) {
+		ByteBuf payload = PooledByteBufAllocator.DEFAULT.directBuffer(20_000);
+		payload.writeByte(frameType).writeByte(packetType).writeZero(19_998);
+		VideoMessage vm = new VideoMessage(payload);
+		vm.setTimestampDelta(33);
+		stream.addContent(vm);
+		vm.release();
+	}
+
+	/**
+	 * How long the publishing thread spent blocked on a monitor during the
+	 * iteration. Unlike the latency percentiles it does not depend on how many
+	 * cores the joining threads compete for.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class Contention {
+		private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+
+		public long blockedMillis;
+		public long blockedTimes;
+
+		private long baseMillis;
+		private long baseTimes;
+		private int calls;
+
+		@Setup(Level.Iteration)
+		public void start() {
+			THREADS.setThreadContentionMonitoringEnabled(true);
+			ThreadInfo info = THREADS.getThreadInfo(Thread.currentThread().threadId());
+			baseMillis = info.getBlockedTime();
+			baseTimes = info.getBlockedCount();
+			blockedMillis = 0;
+			blockedTimes = 0;
+		}
+
+		void sample() {
+			if ((++calls & 0xff) == 0) {
+				ThreadInfo info = THREADS.getThreadInfo(Thread.currentThread().threadId());
+				blockedMillis = info.getBlockedTime() - baseMillis;
+				blockedTimes = info.getBlockedCount() - baseTimes;
+			}
+		}
+	}
+
+	/**
+	 * stands in for the viewer's socket
+	 */
+	@Sharable
+	static class Discard extends ChannelInboundHandlerAdapter {
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			ReferenceCountUtil.release(msg);
+		}
+	}
+
+}
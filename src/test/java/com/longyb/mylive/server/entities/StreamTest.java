@@ -0,0 +1,455 @@
+package com.longyb.mylive.server.entities;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.cfg.FlushConfig;
+import com.longyb.mylive.server.cfg.FlushConfig.Profile;
+import com.longyb.mylive.server.cfg.GopCacheConfig;
+import com.longyb.mylive.server.cfg.JoinMode;
+import com.longyb.mylive.server.handlers.ChunkEncoder;
+import com.longyb.mylive.server.rtmp.messages.AudioMessage;
+import com.longyb.mylive.server.rtmp.messages.RtmpMediaMessage;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+public class StreamTest {
+
+	private final List<ByteBuf> payloads = new ArrayList<>();
+
+	@BeforeAll
+	public static void setUpConfig() {
+		ApplicationServerConfig.INSTANCE = new ApplicationServerConfig();
+	}
+
+	@Test
+	public void testPayloadsAreReleased() {
+		Stream stream = new Stream(new StreamName("live", "test", false));
+		EmbeddedChannel subscriber = new EmbeddedChannel(new ChunkEncoder());
+
+		publish(stream, video(0, 0x17, 0x00));
+		publish(stream, audio(0, 0x00));
+		ByteBuf firstKeyFrame = publish(stream, video(0, 0x17, 0x01));
+		publish(stream, video(40, 0x27, 0x01));
+
+		stream.addSubscriber(subscriber);
+		publish(stream, video(80, 0x27, 0x01));
+		drain(subscriber);
+		// everything written to the subscriber is released by its encoder, the
+		// gop cache keeps a copy and not the publisher's buffer
+		assertEquals(0, firstKeyFrame.refCnt());
+		assertEquals(3, stream.getGopCacheStats().messages());
+
+		publish(stream, video(120, 0x17, 0x01));
+		drain(subscriber);
+		// the next key frame evicts the previous gop
+		assertEquals(1, stream.getGopCacheStats().messages());
+
+		stream.sendEofToAllSubscriberAndClose();
+		drain(subscriber);
+		for (ByteBuf payload : payloads) {
+			assertEquals(0, payload.refCnt(), "leaked payload " + payload);
+		}
+		assertTrue(subscriber.finishAndReleaseAll() || !subscriber.isOpen());
+	}
+
+	@Test
+	public void testBroadcastIsChunkedOnce() {
+		Stream stream = new Stream(new StreamName("live", "shared", false));
+		EmbeddedChannel first = new EmbeddedChannel(new ChunkEncoder());
+		EmbeddedChannel second = new EmbeddedChannel(new ChunkEncoder());
+
+		publish(stream, video(0, 0x17, 0x00));
+		publish(stream, video(0, 0x17, 0x01));
+		stream.addSubscriber(first);
+		stream.addSubscriber(second);
+		drain(first);
+		drain(second);
+
+		publish(stream, video(40, 0x27, 0x01));
+		ByteBuf a = first.readOutbound();
+		ByteBuf b = second.readOutbound();
+		assertEquals(a, b);
+		// both are duplicates of the same encoded buffer
+		assertSame(root(a), root(b));
+		a.release();
+		b.release();
+
+		stream.sendEofToAllSubscriberAndClose();
+		drain(first);
+		drain(second);
+		for (ByteBuf payload : payloads) {
+			assertEquals(0, payload.refCnt(), "leaked payload " + payload);
+		}
+	}
+
+	@Test
+	public void testJoinReplaysConfigAndGop() {
+		Stream stream = new Stream(new StreamName("live", "join", false));
+		EmbeddedChannel subscriber = new EmbeddedChannel(new ChunkEncoder());
+
+		publish(stream, video(0, 0x17, 0x00));
+		publish(stream, audio(0, 0x00));
+		publish(stream, video(0, 0x17, 0x01));
+		publish(stream, audio(20, 0x01));
+		publish(stream, video(40, 0x27, 0x01));
+
+		stream.addSubscriber(subscriber);
+		// both configuration records, then the three frames of the gop
+		assertEquals(5, drain(subscriber));
+
+		publish(stream, video(80, 0x27, 0x01));
+		assertEquals(1, drain(subscriber));
+
+		stream.sendEofToAllSubscriberAndClose();
+		drain(subscriber);
+		assertFalse(subscriber.isOpen());
+
+		// joining a closed stream ends the subscriber right away
+		EmbeddedChannel late = new EmbeddedChannel(new ChunkEncoder());
+		stream.addSubscriber(late);
+		assertEquals(1, drain(late));
+		assertFalse(late.isOpen());
+
+		for (ByteBuf payload : payloads) {
+			assertEquals(0, payload.refCnt(), "leaked payload " + payload);
+		}
+	}
+
+	@Test
+	public void testSlowSubscriberSkipsToKeyFrame() {
+		Stream stream = new Stream(new StreamName("live", "slow", false));
+		EmbeddedChannel channel = new EmbeddedChannel(new ChunkEncoder());
+
+		publish(stream, video(0, 0x17, 0x00));
+		publish(stream, video(0, 0x17, 0x01));
+		stream.addSubscriber(channel);
+		drain(channel);
+		Subscriber subscriber = stream.getSubscribers().iterator().next();
+
+		channel.unsafe().outboundBuffer().setUserDefinedWritability(1, false);
+		publish(stream, video(40, 0x27, 0x01));
+		publish(stream, audio(60, 0x01));
+		assertEquals(0, drain(channel));
+
+		// writable again, but an inter frame is no point to resume at
+		channel.unsafe().outboundBuffer().setUserDefinedWritability(1, true);
+		publish(stream, video(80, 0x27, 0x01));
+		assertEquals(0, drain(channel));
+		assertEquals(3, subscriber.getDroppedFrames());
+		assertEquals(1, subscriber.getSkips());
+
+		publish(stream, video(120, 0x17, 0x01));
+		ByteBuf keyFrame = channel.readOutbound();
+		// fmt 0 on csid 12 with the absolute timestamp, the skipped deltas are lost
+		assertEquals(12, keyFrame.getByte(0));
+		assertEquals(120, keyFrame.getMedium(1));
+		keyFrame.release();
+
+		publish(stream, video(160, 0x27, 0x01));
+		assertEquals(1, drain(channel));
+
+		stream.sendEofToAllSubscriberAndClose();
+		drain(channel);
+		for (ByteBuf payload : payloads) {
+			assertEquals(0, payload.refCnt(), "leaked payload " + payload);
+		}
+	}
+
+	@Test
+	public void testThroughputProfileCoalescesFlushes() {
+		ApplicationServerConfig.INSTANCE.getAppFlush().put("batched", new FlushConfig(Profile.THROUGHPUT, 50));
+		Stream stream = new Stream(new StreamName("batched", "test", false));
+		EmbeddedChannel channel = new EmbeddedChannel(new ChunkEncoder());
+		channel.freezeTime();
+
+		publish(stream, video(0, 0x17, 0x00));
+		publish(stream, video(0, 0x17, 0x01));
+		stream.addSubscriber(channel);
+		drain(channel);
+		Subscriber subscriber = stream.getSubscribers().iterator().next();
+		long flushes = subscriber.getFlushes();
+
+		publish(stream, video(40, 0x27, 0x01));
+		publish(stream, audio(60, 0x01));
+		publish(stream, video(80, 0x27, 0x01));
+		// written, but not flushed before the flush window is over
+		assertEquals(0, drain(channel));
+		channel.advanceTimeBy(50, TimeUnit.MILLISECONDS);
+		assertEquals(3, drain(channel));
+		assertEquals(flushes + 1, subscriber.getFlushes());
+
+		stream.sendEofToAllSubscriberAndClose();
+		drain(channel);
+		ApplicationServerConfig.INSTANCE.getAppFlush().remove("batched");
+		for (ByteBuf payload : payloads) {
+			assertEquals(0, payload.refCnt(), "leaked payload " + payload);
+		}
+	}
+
+	@Test
+	public void testCacheKeepsLatestGopsWithinLimits() {
+		ApplicationServerConfig.INSTANCE.setGopCache(new GopCacheConfig(2, 1024, 30_000));
+		Stream stream = new Stream(new StreamName("live", "bounded", false));
+
+		publish(stream, video(0, 0x17, 0x00));
+		// nothing before the first key frame can be decoded
+		publish(stream, video(0, 0x27, 0x01));
+		publish(stream, audio(10, 0x01));
+		assertEquals(0, stream.getGopCacheStats().messages());
+
+		for (int gop = 0; gop < 3; gop++) {
+			publish(stream, video(gop * 80, 0x17, 0x01));
+			publish(stream, video(gop * 80 + 40, 0x27, 0x01));
+		}
+		GopCacheStats stats = stream.getGopCacheStats();
+		assertEquals(4, stats.messages());
+		assertEquals(2, stats.gops());
+		assertEquals(5 * 64, stats.bytes());
+		assertEquals(120, stats.durationMillis());
+
+		EmbeddedChannel subscriber = new EmbeddedChannel(new ChunkEncoder());
+		stream.addSubscriber(subscriber);
+		assertEquals(5, drain(subscriber));
+
+		// a gop beyond maxBytes is not cached at all, until the next key frame
+		ApplicationServerConfig.INSTANCE.setGopCache(new GopCacheConfig(2, 200, 30_000));
+		publish(stream, video(240, 0x17, 0x01));
+		for (int i = 1; i <= 4; i++) {
+			publish(stream, video(240 + i * 40, 0x27, 0x01));
+		}
+		assertEquals(0, stream.getGopCacheStats().messages());
+		publish(stream, video(480, 0x17, 0x01));
+		assertEquals(1, stream.getGopCacheStats().gops());
+
+		stream.sendEofToAllSubscriberAndClose();
+		drain(subscriber);
+		ApplicationServerConfig.INSTANCE.setGopCache(new GopCacheConfig());
+		for (ByteBuf payload : payloads) {
+			assertEquals(0, payload.refCnt(), "leaked payload " + payload);
+		}
+	}
+
+	@Test
+	public void testAudioOnlyCacheSlides() {
+		ApplicationServerConfig.INSTANCE.setGopCache(new GopCacheConfig(1, 1 << 20, 1000));
+		Stream stream = new Stream(new StreamName("live", "radio", false));
+
+		publish(stream, audio(0, 0x00));
+		for (int timestamp = 0; timestamp <= 3000; timestamp += 20) {
+			publish(stream, audio(timestamp, 0x01));
+			assertTrue(stream.getGopCacheStats().durationMillis() <= 1000);
+		}
+		GopCacheStats stats = stream.getGopCacheStats();
+		assertTrue(stats.durationMillis() >= 750, "window of " + stats.durationMillis());
+
+		EmbeddedChannel subscriber = new EmbeddedChannel(new ChunkEncoder());
+		stream.addSubscriber(subscriber);
+		// the audio config, then the window
+		assertEquals(stats.messages() + 1, drain(subscriber));
+
+		stream.sendEofToAllSubscriberAndClose();
+		drain(subscriber);
+		ApplicationServerConfig.INSTANCE.setGopCache(new GopCacheConfig());
+		for (ByteBuf payload : payloads) {
+			assertEquals(0, payload.refCnt(), "leaked payload " + payload);
+		}
+	}
+
+	@Test
+	public void testJoinModes() {
+		Stream stream = new Stream(new StreamName("live", "modes", false));
+		publish(stream, video(0, 0x17, 0x00));
+		publish(stream, audio(0, 0x00));
+		publish(stream, video(1000, 0x17, 0x01));
+		for (int timestamp = 1040; timestamp <= 5000; timestamp += 40) {
+			publish(stream, video(timestamp, 0x27, 0x01));
+		}
+
+		EmbeddedChannel full = new EmbeddedChannel(new ChunkEncoder());
+		stream.addSubscriber(full, JoinMode.FULL_GOP);
+		assertEquals(2 + 101, drain(full));
+		Subscriber fullSubscriber = subscriber(stream, full);
+		assertEquals(4000, fullSubscriber.getJoinDelayMillis());
+		assertTrue(fullSubscriber.getTimeToFirstFrameMicros() >= 0);
+
+		EmbeddedChannel burst = new EmbeddedChannel(new ChunkEncoder());
+		stream.addSubscriber(burst, JoinMode.LATEST_KEYFRAME_BURST);
+		burst.runPendingTasks();
+		ByteBuf avc = burst.readOutbound();
+		// the configuration starts at the squeezed key frame, fmt 0 on csid 12
+		assertEquals(12, avc.getByte(0));
+		assertEquals(4800, avc.getMedium(1));
+		avc.release();
+		assertEquals(1 + 101, drain(burst));
+		Subscriber burstSubscriber = subscriber(stream, burst);
+		assertEquals(200, burstSubscriber.getJoinDelayMillis());
+
+		EmbeddedChannel edge = new EmbeddedChannel(new ChunkEncoder());
+		stream.addSubscriber(edge, JoinMode.LIVE_EDGE);
+		assertEquals(2, drain(edge));
+		Subscriber edgeSubscriber = subscriber(stream, edge);
+		publish(stream, video(5040, 0x27, 0x01));
+		publish(stream, audio(5050, 0x01));
+		// nothing until the next key frame
+		assertEquals(0, drain(edge));
+		assertEquals(-1, edgeSubscriber.getTimeToFirstFrameMicros());
+		publish(stream, video(5080, 0x17, 0x01));
+		ByteBuf keyFrame = edge.readOutbound();
+		assertEquals(5080, keyFrame.getMedium(1));
+		keyFrame.release();
+		assertEquals(0, edgeSubscriber.getJoinDelayMillis());
+		assertTrue(edgeSubscriber.getTimeToFirstFrameMicros() >= 0);
+
+		stream.sendEofToAllSubscriberAndClose();
+		drain(full);
+		drain(burst);
+		drain(edge);
+		for (ByteBuf payload : payloads) {
+			assertEquals(0, payload.refCnt(), "leaked payload " + payload);
+		}
+	}
+
+	private static Subscriber subscriber(Stream stream, EmbeddedChannel channel) {
+		return stream.getSubscribers().stream().filter(s -> s.getChannel() == channel).findFirst().orElseThrow();
+	}
+
+	@Test
+	public void testStatsAreSampled() {
+		Stream stream = new Stream(new StreamName("live", "stats", false));
+		assertSame(StreamStats.EMPTY, stream.getStats());
+		EmbeddedChannel viewer = new EmbeddedChannel(new ChunkEncoder());
+
+		publish(stream, video(0, 0x17, 0x00));
+		publish(stream, audio(0, 0x00));
+		publish(stream, video(0, 0x17, 0x01));
+		publish(stream, video(40, 0x27, 0x01));
+		publish(stream, audio(21, 0x01));
+		stream.addSubscriber(viewer);
+		drain(viewer);
+		publish(stream, video(80, 0x27, 0x01));
+		publish(stream, video(120, 0x17, 0x01));
+		drain(viewer);
+
+		StreamStats stats = stream.sampleStats(2);
+		assertSame(stats, stream.getStats());
+		// the configuration records are not frames
+		assertTrue(stats.videoFps() > 0);
+		assertEquals(120, stats.gopMillis());
+		assertEquals(3, stats.gopFrames());
+		assertEquals(120 - 21, stats.avDriftMillis());
+		assertEquals(1, stats.subscribers().get(Subscriber.Protocol.RTMP));
+		assertEquals(0, stats.subscribers().get(Subscriber.Protocol.HTTP_FLV));
+		// 2 config records, 3 replayed and 2 live frames of 64 bytes each
+		assertEquals(7 * 64, stats.egressBytes());
+
+		stream.sampleStats(2);
+		stats = stream.sampleStats(2);
+		// nothing was published since, and the history keeps the last 2
+		assertEquals(0, stats.ingressKbps());
+		assertEquals(2, stats.history().size());
+
+		stream.sendEofToAllSubscriberAndClose();
+		drain(viewer);
+		viewer.finishAndReleaseAll();
+	}
+
+	@Test
+	public void testLatencyOfTimedMessages() {
+		ApplicationServerConfig.INSTANCE.getStats().setLatencySampleEvery(2);
+		try {
+			Stream stream = new Stream(new StreamName("live", "latency", false));
+			EmbeddedChannel viewer = new EmbeddedChannel(new ChunkEncoder());
+			publish(stream, video(0, 0x17, 0x00));
+			publish(stream, video(0, 0x17, 0x01));
+			stream.addSubscriber(viewer);
+			drain(viewer);
+
+			long now = System.nanoTime();
+			for (int i = 1; i <= 8; i++) {
+				VideoMessage vm = video(i * 40, 0x27, 0x01);
+				vm.setReceivedNanos(now - 3_000_000);
+				vm.setDecodedNanos(now - 1_000_000);
+				publish(stream, vm);
+			}
+			drain(viewer);
+
+			StreamStats.Latency latency = stream.sampleStats(1).latency();
+			// every second message is timed
+			assertEquals(4, latency.decode().count());
+			assertTrue(latency.decode().p50Micros() >= 2000 && latency.decode().p50Micros() < 2000 * 17 / 16);
+			assertTrue(latency.handoff().p99Micros() >= 1000);
+			assertEquals(4, latency.egress().get(Subscriber.Protocol.RTMP).count());
+			assertTrue(latency.endToEnd().get(Subscriber.Protocol.RTMP).p50Micros() >= 3000);
+			assertEquals(0, latency.egress().get(Subscriber.Protocol.HTTP_FLV).count());
+
+			// the next interval starts empty, the totals carry on
+			latency = stream.sampleStats(1).latency();
+			assertEquals(0, latency.decode().count());
+			assertEquals(4, latency.decode().totalCount());
+
+			stream.sendEofToAllSubscriberAndClose();
+			drain(viewer);
+			viewer.finishAndReleaseAll();
+		} finally {
+			ApplicationServerConfig.INSTANCE = new ApplicationServerConfig();
+		}
+	}
+
+	private ByteBuf publish(Stream stream, RtmpMediaMessage msg) {
+		stream.addContent(msg);
+		// the rtmp handler releases what it read once the stream returns
+		msg.release();
+		return msg.content();
+	}
+
+	private VideoMessage video(int timestamp, int frameType, int packetType) {
+		VideoMessage vm = new VideoMessage(payload(frameType, packetType));
+		vm.setTimestamp(timestamp);
+		return vm;
+	}
+
+	private AudioMessage audio(int timestamp, int packetType) {
+		AudioMessage am = new AudioMessage(payload(0xaf, packetType));
+		am.setTimestamp(timestamp);
+		return am;
+	}
+
+	private ByteBuf payload(int first, int second) {
+		ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(64);
+		buf.writeByte(first).writeByte(second).writeZero(62);
+		payloads.add(buf);
+		return buf;
+	}
+
+	private static ByteBuf root(ByteBuf buf) {
+		while (buf.unwrap() != null) {
+			buf = buf.unwrap();
+		}
+		return buf;
+	}
+
+	private static int drain(EmbeddedChannel channel) {
+		channel.runPendingTasks();
+		int written = 0;
+		ByteBuf out;
+		while ((out = channel.readOutbound()) != null) {
+			out.release();
+			written++;
+		}
+		return written;
+	}
+}
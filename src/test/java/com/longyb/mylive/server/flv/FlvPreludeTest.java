@@ -0,0 +1,66 @@
+package com.longyb.mylive.server.flv;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.longyb.mylive.server.rtmp.Constants;
+import com.longyb.mylive.server.rtmp.messages.AudioMessage;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+public class FlvPreludeTest {
+
+	@Test
+	public void testStampedLikeEncodedPerJoin() {
+		Map<String, Object> metadata = new LinkedHashMap<>();
+		metadata.put("width", 1280.0);
+		VideoMessage avc = new VideoMessage(Unpooled.wrappedBuffer(new byte[] { 0x17, 0, 0, 0, 0, 1, 0x64 }));
+		AudioMessage aac = new AudioMessage(Unpooled.wrappedBuffer(new byte[] { (byte) 0xaf, 0, 0x12, 0x10 }));
+
+		FlvPrelude prelude = FlvPrelude.of(metadata, avc, aac);
+		assertEquals(3, prelude.tagCount());
+		assertTrue(prelude.isFor(metadata, avc, aac));
+		// a new @setDataFrame or sequence header makes it stale
+		assertFalse(prelude.isFor(new LinkedHashMap<>(metadata), avc, aac));
+		assertFalse(prelude.isFor(metadata, avc, null));
+
+		int timestamp = 0x01020304;
+		ByteBuf expected = ByteBufAllocator.DEFAULT.buffer();
+		for (ByteBuf part : new ByteBuf[] {
+				FlvWriter.encodeHeaderAndMetadata(ByteBufAllocator.DEFAULT, metadata, timestamp),
+				FlvWriter.encodeMediaTag(ByteBufAllocator.DEFAULT, avc, timestamp),
+				FlvWriter.encodeMediaTag(ByteBufAllocator.DEFAULT, aac, timestamp) }) {
+			expected.writeBytes(part);
+			part.release();
+		}
+		ByteBuf stamped = prelude.stamped(timestamp);
+		assertArrayEquals(ByteBufUtil.getBytes(expected), ByteBufUtil.getBytes(stamped));
+		stamped.release();
+
+		// unstamped, every viewer writes the same bytes
+		ByteBuf one = prelude.stamped(0);
+		ByteBuf other = prelude.stamped(0);
+		assertEquals(one.array(), other.array());
+		int avcTag = expected.readableBytes() - (11 + 4 + 4) - (11 + 7 + 4);
+		assertEquals(Constants.MSG_TYPE_VIDEO_MESSAGE, one.getByte(avcTag));
+		assertEquals(0, one.getInt(avcTag + 4));
+		one.release();
+		other.release();
+
+		expected.release();
+		avc.release();
+		aac.release();
+	}
+
+}
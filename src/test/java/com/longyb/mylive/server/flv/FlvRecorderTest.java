@@ -0,0 +1,304 @@
+package com.longyb.mylive.server.flv;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.stream.Stream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.longyb.mylive.amf.AMF0;
+import com.longyb.mylive.server.cfg.RecorderConfig;
+import com.longyb.mylive.server.rtmp.Constants;
+import com.longyb.mylive.server.rtmp.messages.AudioMessage;
+import com.longyb.mylive.server.rtmp.messages.RtmpMediaMessage;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+public class FlvRecorderTest {
+
+	@TempDir
+	Path dir;
+
+	// the writer runs whenever the test says so
+	final Queue<Runnable> tasks = new ArrayDeque<>();
+
+	private FlvRecorder recorder(RecorderConfig config) {
+		return new FlvRecorder(dir, "live_test", LinkedHashMap::new, config, tasks::add, tasks::add);
+	}
+
+	private void runWriter() {
+		Runnable task;
+		while ((task = tasks.poll()) != null) {
+			task.run();
+		}
+	}
+
+	private final List<RtmpMediaMessage> published = new ArrayList<>();
+
+	private void record(FlvRecorder recorder, RtmpMediaMessage msg, int timestamp) {
+		msg.setTimestamp(timestamp);
+		recorder.record(msg);
+		published.add(msg);
+	}
+
+	private static VideoMessage video(int frameType, int packetType, int size) {
+		ByteBuf payload = Unpooled.directBuffer(size).writeByte(frameType).writeByte(packetType).writeZero(size - 2);
+		return new VideoMessage(payload);
+	}
+
+	private static AudioMessage audio(int packetType) {
+		return new AudioMessage(Unpooled.directBuffer(10).writeByte(0xaf).writeByte(packetType).writeZero(8));
+	}
+
+	private void assertReleased() {
+		for (RtmpMediaMessage msg : published) {
+			assertEquals(1, msg.refCnt());
+			msg.release();
+		}
+		published.clear();
+	}
+
+	private List<Path> segments() throws IOException {
+		try (Stream<Path> files = Files.list(dir)) {
+			return files.sorted().toList();
+		}
+	}
+
+	/**
+	 * type and timestamp of every tag after the header and metadata
+	 */
+	private static List<int[]> tags(Path file) throws IOException {
+		ByteBuf buf = Unpooled.wrappedBuffer(Files.readAllBytes(file));
+		byte[] header = new byte[FlvWriter.FLV_HEADER.length];
+		buf.readBytes(header);
+		assertArrayEquals(FlvWriter.FLV_HEADER, header);
+		assertEquals(0, buf.readInt());
+		List<int[]> tags = new ArrayList<>();
+		while (buf.isReadable()) {
+			int type = buf.readByte();
+			int size = buf.readMedium();
+			int timestamp = buf.readMedium() | buf.readByte() << 24;
+			buf.skipBytes(3 + size);
+			assertEquals(size + 11, buf.readInt());
+			if (type != FlvWriter.TAG_TYPE_SCRIPT) {
+				tags.add(new int[] { type, timestamp });
+			}
+		}
+		return tags;
+	}
+
+	private static Map<String, Object> metadata(Path file) throws IOException {
+		ByteBuf buf = Unpooled.wrappedBuffer(Files.readAllBytes(file));
+		buf.skipBytes(FlvWriter.FLV_HEADER.length + 4);
+		assertEquals(FlvWriter.TAG_TYPE_SCRIPT, buf.readByte());
+		int size = buf.readMedium();
+		List<Object> values = AMF0.decodeAll(buf.slice(buf.readerIndex() + 7, size));
+		assertEquals("onMetaData", values.get(0));
+		@SuppressWarnings("unchecked")
+		Map<String, Object> metadata = (Map<String, Object>) values.get(1);
+		return metadata;
+	}
+
+	/**
+	 * the index has the given times and points at key frame tags
+	 */
+	private static void assertKeyFrames(Path file, double... times) throws IOException {
+		Map<?, ?> keyframes = (Map<?, ?>) metadata(file).get("keyframes");
+		Object[] positions = (Object[]) keyframes.get("filepositions");
+		assertArrayEquals(Arrays.stream(times).boxed().toArray(), (Object[]) keyframes.get("times"));
+		byte[] bytes = Files.readAllBytes(file);
+		for (Object position : positions) {
+			int tag = ((Double) position).intValue();
+			assertEquals(Constants.MSG_TYPE_VIDEO_MESSAGE, bytes[tag]);
+			assertEquals(0x17, bytes[tag + 11]);
+			assertEquals(0x01, bytes[tag + 12]);
+		}
+	}
+
+	@Test
+	public void testSegmentsStartAtKeyFrames() throws Exception {
+		RecorderConfig config = new RecorderConfig();
+		config.setSegmentMaxDurationMillis(1000);
+		FlvRecorder recorder = recorder(config);
+
+		record(recorder, video(0x17, 0x00, 20), 500);
+		record(recorder, audio(0x00), 500);
+		// nothing decodes before the first key frame
+		record(recorder, video(0x27, 0x01, 100), 520);
+		record(recorder, video(0x17, 0x01, 100), 540);
+		record(recorder, audio(0x01), 560);
+		// past the limit, but no key frame to cut at
+		record(recorder, video(0x27, 0x01, 100), 1600);
+		record(recorder, video(0x17, 0x01, 100), 1700);
+		record(recorder, video(0x27, 0x01, 100), 1740);
+		assertEquals(1, tasks.size());
+		runWriter();
+
+		CompletableFuture<Void> closed = recorder.close();
+		runWriter();
+		assertTrue(closed.isDone());
+		assertEquals(2, recorder.getSegments());
+		assertEquals(0, recorder.getQueuedBytes());
+
+		List<Path> files = segments();
+		assertEquals(2, files.size());
+		List<int[]> first = tags(files.get(0));
+		assertEquals(5, first.size());
+		assertArrayEquals(new int[] { Constants.MSG_TYPE_VIDEO_MESSAGE, 0 }, first.get(0));
+		assertArrayEquals(new int[] { Constants.MSG_TYPE_AUDIO_MESSAGE, 0 }, first.get(1));
+		assertArrayEquals(new int[] { Constants.MSG_TYPE_VIDEO_MESSAGE, 0 }, first.get(2));
+		assertArrayEquals(new int[] { Constants.MSG_TYPE_AUDIO_MESSAGE, 20 }, first.get(3));
+		assertArrayEquals(new int[] { Constants.MSG_TYPE_VIDEO_MESSAGE, 1060 }, first.get(4));
+
+		// the configurations are repeated and time starts over
+		List<int[]> second = tags(files.get(1));
+		assertEquals(4, second.size());
+		assertArrayEquals(new int[] { Constants.MSG_TYPE_VIDEO_MESSAGE, 0 }, second.get(0));
+		assertArrayEquals(new int[] { Constants.MSG_TYPE_AUDIO_MESSAGE, 0 }, second.get(1));
+		assertArrayEquals(new int[] { Constants.MSG_TYPE_VIDEO_MESSAGE, 0 }, second.get(2));
+		assertArrayEquals(new int[] { Constants.MSG_TYPE_VIDEO_MESSAGE, 40 }, second.get(3));
+
+		// finalized with an index players can seek with, the sidecars are gone
+		Path file = files.get(0);
+		Map<String, Object> metadata = metadata(file);
+		assertEquals(1.06, metadata.get("duration"));
+		assertEquals((double) Files.size(file), metadata.get("filesize"));
+		assertKeyFrames(file, 0.0);
+		assertKeyFrames(files.get(1), 0.0);
+		assertReleased();
+	}
+
+	@Test
+	public void testIndexWrittenIntoPaddingOrFileRewritten() throws Exception {
+		for (int padding : new int[] { 32768, 20 }) {
+			RecorderConfig config = new RecorderConfig();
+			config.setMetadataPaddingBytes(padding);
+			FlvRecorder recorder = recorder(config);
+			record(recorder, video(0x17, 0x00, 20), 0);
+			record(recorder, video(0x17, 0x01, 1000), 0);
+			record(recorder, video(0x17, 0x01, 1000), 1000);
+			record(recorder, video(0x17, 0x01, 1000), 2000);
+			runWriter();
+			Path file = recorder.getSegment();
+			long recorded = Files.size(file);
+
+			recorder.close();
+			runWriter();
+			Map<String, Object> metadata = metadata(file);
+			assertEquals(2.0, metadata.get("duration"));
+			assertEquals((double) Files.size(file), metadata.get("filesize"));
+			assertKeyFrames(file, 0.0, 1.0, 2.0);
+			assertEquals(4, tags(file).size());
+			if (padding > 20) {
+				// patched where it was
+				assertEquals(recorded, Files.size(file));
+				assertTrue(metadata.containsKey(FlvFinalizer.PADDING));
+			} else {
+				assertFalse(metadata.containsKey(FlvFinalizer.PADDING));
+			}
+			Files.delete(file);
+		}
+		assertReleased();
+	}
+
+	@Test
+	public void testRecoversCrashedRecording() throws Exception {
+		RecorderConfig config = new RecorderConfig();
+		config.setIndexCheckpointMillis(0);
+		FlvRecorder recorder = recorder(config);
+		record(recorder, video(0x17, 0x00, 20), 0);
+		record(recorder, video(0x17, 0x01, 1000), 0);
+		record(recorder, video(0x27, 0x01, 100), 40);
+		record(recorder, video(0x17, 0x01, 1000), 1000);
+		runWriter();
+		record(recorder, video(0x27, 0x01, 100), 1040);
+		record(recorder, video(0x17, 0x01, 1000), 2000);
+		record(recorder, video(0x27, 0x01, 100), 2040);
+		runWriter();
+
+		// what the crash left behind, the last tag only partly written and the
+		// sidecar lagging one key frame behind
+		Path crashed = dir.resolve("crashed");
+		Files.createDirectory(crashed);
+		Path file = crashed.resolve("test.flv");
+		Files.copy(recorder.getSegment(), file);
+		Files.copy(KeyframeIndex.sidecarOf(recorder.getSegment()), KeyframeIndex.sidecarOf(file));
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 50);
+		}
+		try (FileChannel channel = FileChannel.open(KeyframeIndex.sidecarOf(file), StandardOpenOption.WRITE)) {
+			channel.truncate(channel.size() - 12);
+		}
+
+		FlvRecovery.Result result = FlvRecovery.recover(file);
+		assertEquals(3, result.keyFrames());
+		assertEquals(2000, result.durationMillis());
+		assertEquals(11 + 100 + 4 - 50, result.droppedBytes());
+		assertEquals(6, tags(file).size());
+		assertEquals(2.0, metadata(file).get("duration"));
+		assertKeyFrames(file, 0.0, 1.0, 2.0);
+		assertFalse(Files.exists(KeyframeIndex.sidecarOf(file)));
+
+		recorder.close();
+		runWriter();
+		assertKeyFrames(recorder.getSegment(), 0.0, 1.0, 2.0);
+		assertReleased();
+	}
+
+	@Test
+	public void testDropsUntilKeyFrameWhenBehind() throws Exception {
+		RecorderConfig config = new RecorderConfig();
+		config.setMaxQueuedBytes(300);
+		FlvRecorder recorder = recorder(config);
+
+		record(recorder, video(0x17, 0x00, 20), 0);
+		record(recorder, video(0x17, 0x01, 100), 0);
+		record(recorder, video(0x27, 0x01, 100), 40);
+		// the queue is full
+		record(recorder, video(0x27, 0x01, 100), 80);
+		assertEquals(1, recorder.getDroppedFrames());
+		runWriter();
+
+		// there is room again, but the frames depend on the one dropped
+		record(recorder, video(0x27, 0x01, 100), 120);
+		// configurations are never dropped
+		record(recorder, audio(0x00), 140);
+		record(recorder, video(0x17, 0x01, 100), 160);
+		record(recorder, video(0x27, 0x01, 100), 200);
+		assertEquals(2, recorder.getDroppedFrames());
+		runWriter();
+
+		recorder.close();
+		runWriter();
+		// closed recorders take nothing
+		record(recorder, video(0x27, 0x01, 100), 240);
+		assertTrue(tasks.isEmpty());
+
+		List<int[]> tags = tags(segments().get(0));
+		assertEquals(6, tags.size());
+		assertEquals(Constants.MSG_TYPE_AUDIO_MESSAGE, tags.get(3)[0]);
+		assertEquals(160, tags.get(4)[1]);
+		assertEquals(200, tags.get(5)[1]);
+		assertReleased();
+	}
+
+}
@@ -0,0 +1,61 @@
+package com.longyb.mylive.server.flv;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.LinkedHashMap;
+
+import org.junit.jupiter.api.Test;
+
+import com.longyb.mylive.server.rtmp.Constants;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+
+public class FlvWriterTest {
+
+	@Test
+	public void testMediaTagSharesPayload() {
+		ByteBuf payload = Unpooled.directBuffer(100).writeByte(0x27).writeZero(99);
+		VideoMessage vm = new VideoMessage(payload);
+		vm.setTimestamp(0x01020304);
+
+		ByteBuf tag = FlvWriter.encodeMediaTag(ByteBufAllocator.DEFAULT, vm);
+		assertEquals(11 + 100 + 4, tag.readableBytes());
+		assertEquals(Constants.MSG_TYPE_VIDEO_MESSAGE, tag.getByte(0));
+		assertEquals(100, tag.getMedium(1));
+		// lower 24 bits first, then the extended byte
+		assertEquals(0x020304, tag.getMedium(4));
+		assertEquals(0x01, tag.getByte(7));
+		assertEquals(0, tag.getMedium(8));
+		assertEquals(111, tag.getInt(111));
+
+		// the tag refers to the payload instead of copying it
+		assertEquals(2, payload.refCnt());
+		payload.setByte(1, 0x42);
+		assertEquals(0x42, tag.getByte(12));
+		// and does not move its reader index
+		assertEquals(0, payload.readerIndex());
+
+		tag.release();
+		assertEquals(1, payload.refCnt());
+		vm.release();
+	}
+
+	@Test
+	public void testHeaderAndMetadata() {
+		ByteBuf buf = FlvWriter.encodeHeaderAndMetadata(ByteBufAllocator.DEFAULT, new LinkedHashMap<>(), 0);
+		byte[] header = new byte[FlvWriter.FLV_HEADER.length];
+		buf.readBytes(header);
+		assertArrayEquals(FlvWriter.FLV_HEADER, header);
+		assertEquals(0, buf.readInt());
+		assertEquals(FlvWriter.TAG_TYPE_SCRIPT, buf.readByte());
+		int dataSize = buf.readMedium();
+		buf.skipBytes(7 + dataSize);
+		assertEquals(dataSize + 11, buf.readInt());
+		assertEquals(0, buf.readableBytes());
+		buf.release();
+	}
+}
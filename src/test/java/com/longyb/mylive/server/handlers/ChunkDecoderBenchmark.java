@@ -0,0 +1,105 @@
+package com.longyb.mylive.server.handlers;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import com.longyb.mylive.server.rtmp.messages.AudioMessage;
+import com.longyb.mylive.server.rtmp.messages.SetChunkSize;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.ReferenceCountUtil;
+
+/**
+ * Ingest throughput of {@link ChunkDecoder}: one invocation decodes a stream of
+ * ~1 second of 8 Mbps video plus AAC audio, fed in socket-sized reads.
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark.includes=ChunkDecoderBenchmark
+ * </pre>
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ChunkDecoderBenchmark {
+
+	@Param({ "128", "4096" })
+	int chunkSize;
+
+	@Param({ "16384" })
+	int readSize;
+
+	byte[] wire;
+
+	@Setup
+	public void setUp() {
+		EmbeddedChannel encoder = new EmbeddedChannel(new ChunkEncoder());
+		encoder.writeOutbound(new SetChunkSize(chunkSize));
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < 30; i++) {
+			byte[] video = new byte[i == 0 ? 120_000 : 30_000];
+			random.nextBytes(video);
+			video[0] = (byte) (i == 0 ? 0x17 : 0x27);
+			VideoMessage vm = new VideoMessage(Unpooled.wrappedBuffer(video));
+			vm.setTimestampDelta(33);
+			encoder.writeOutbound(vm);
+
+			for (int j = 0; j < 2; j++) {
+				byte[] audio = new byte[380];
+				random.nextBytes(audio);
+				AudioMessage am = new AudioMessage(Unpooled.wrappedBuffer(audio));
+				am.setTimestampDelta(21);
+				encoder.writeOutbound(am);
+			}
+		}
+
+		ByteBuf all = PooledByteBufAllocator.DEFAULT.heapBuffer();
+		ByteBuf chunk;
+		while ((chunk = encoder.readOutbound()) != null) {
+			all.writeBytes(chunk);
+			chunk.release();
+		}
+		wire = new byte[all.readableBytes()];
+		all.readBytes(wire);
+		all.release();
+		encoder.finishAndReleaseAll();
+	}
+
+	@Benchmark
+	public void decode(Blackhole bh) {
+		EmbeddedChannel channel = new EmbeddedChannel(new ChunkDecoder());
+		for (int offset = 0; offset < wire.length; offset += readSize) {
+			int length = Math.min(readSize, wire.length - offset);
+			ByteBuf read = PooledByteBufAllocator.DEFAULT.directBuffer(length);
+			read.writeBytes(wire, offset, length);
+			channel.writeInbound(read);
+
+			Object msg;
+			while ((msg = channel.readInbound()) != null) {
+				bh.consume(msg);
+				ReferenceCountUtil.release(msg);
+			}
+		}
+		channel.finishAndReleaseAll();
+	}
+
+}
@@ -0,0 +1,100 @@
+package com.longyb.mylive.server.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+import com.longyb.mylive.server.rtmp.Constants;
+import com.longyb.mylive.server.rtmp.Tools;
+import com.longyb.mylive.server.rtmp.messages.AudioMessage;
+import com.longyb.mylive.server.rtmp.messages.SetChunkSize;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+public class ChunkDecoderTest {
+
+	@Test
+	public void testDecodeByteByByte() {
+		byte[] video = Tools.generateRandomData(4000);
+		byte[] audio = Tools.generateRandomData(100);
+
+		EmbeddedChannel encoder = new EmbeddedChannel(new ChunkEncoder());
+		encoder.writeOutbound(new SetChunkSize(1500));
+		VideoMessage first = new VideoMessage(Unpooled.wrappedBuffer(video));
+		encoder.writeOutbound(first);
+		VideoMessage second = new VideoMessage(Unpooled.wrappedBuffer(video));
+		second.setTimestampDelta(40);
+		encoder.writeOutbound(second);
+		AudioMessage am = new AudioMessage(Unpooled.wrappedBuffer(audio));
+		encoder.writeOutbound(am);
+
+		EmbeddedChannel decoder = new EmbeddedChannel(new ChunkDecoder());
+		ByteBuf wire;
+		while ((wire = encoder.readOutbound()) != null) {
+			while (wire.isReadable()) {
+				decoder.writeInbound(wire.readRetainedSlice(1));
+			}
+			wire.release();
+		}
+
+		VideoMessage vm = decoder.readInbound();
+		assertArrayEquals(video, ByteBufUtil.getBytes(vm.getVideoData()));
+		assertEquals(4000, vm.getInboundBodyLength());
+		// stamped by the reads of its first and its last byte
+		assertTrue(vm.getReceivedNanos() != 0);
+		assertTrue(vm.getDecodedNanos() - vm.getReceivedNanos() > 0);
+		assertTrue(vm.release());
+
+		vm = decoder.readInbound();
+		assertArrayEquals(video, ByteBufUtil.getBytes(vm.getVideoData()));
+		assertEquals(40, vm.getTimestampDelta());
+		// fmt 1 header
+		assertEquals(8, vm.getInboundHeaderLength());
+		assertTrue(vm.release());
+
+		AudioMessage decodedAudio = decoder.readInbound();
+		assertArrayEquals(audio, ByteBufUtil.getBytes(decodedAudio.getAudioData()));
+		assertTrue(decodedAudio.release());
+
+		assertNull(decoder.readInbound());
+		assertFalse(decoder.finish());
+	}
+
+	@Test
+	public void testExtendedTimestampOnContinuationChunks() {
+		long timestamp = 0x1234_5678L;
+		byte[] video = Tools.generateRandomData(200);
+
+		ByteBuf wire = Unpooled.buffer();
+		// fmt 0, csid 6
+		wire.writeByte(6);
+		wire.writeMedium(Constants.MAX_TIMESTAMP);
+		wire.writeMedium(video.length);
+		wire.writeByte(Constants.MSG_TYPE_VIDEO_MESSAGE);
+		wire.writeIntLE(1);
+		wire.writeInt((int) timestamp);
+		wire.writeBytes(video, 0, 128);
+		// fmt 3, csid 6 repeats the extended timestamp
+		wire.writeByte((3 << 6) | 6);
+		wire.writeInt((int) timestamp);
+		wire.writeBytes(video, 128, video.length - 128);
+
+		EmbeddedChannel decoder = new EmbeddedChannel(new ChunkDecoder());
+		decoder.writeInbound(wire);
+
+		VideoMessage vm = decoder.readInbound();
+		assertArrayEquals(video, ByteBufUtil.getBytes(vm.getVideoData()));
+		assertEquals((int) timestamp, vm.getTimestamp());
+		assertTrue(vm.release());
+		assertNull(decoder.readInbound());
+	}
+
+}
@@ -0,0 +1,128 @@
+package com.longyb.mylive.server.handlers;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import io.netty.bootstrap.Bootstrap;
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandler.Sharable;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.concurrent.Promise;
+
+/**
+ * How many rtmp handshakes a core sustains. "handshake" runs
+ * {@link HandShakeDecoder} alone on one thread, c0+c1 in, s0+s1+s2 out, then
+ * c2. "connectStorm" connects over loopback, handshakes and disconnects, so
+ * it includes what the kernel and the event loops cost per connection.
+ *
+ * <pre>
+ * mvn -Pbenchmark test-compile exec:exec -Dbenchmark.includes=HandShakeBenchmark
+ * </pre>
+ **/
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HandShakeBenchmark {
+
+	private static final int C0C1_LENGTH = HandShakeDecoder.VERSION_LENGTH + HandShakeDecoder.HANDSHAKE_LENGTH;
+	private static final int S0S1S2_LENGTH = C0C1_LENGTH + HandShakeDecoder.HANDSHAKE_LENGTH;
+
+	byte[] c0c1;
+	byte[] c2;
+
+	NioEventLoopGroup group;
+	Channel server;
+	Bootstrap client;
+
+	@Setup(Level.Trial)
+	public void setUp() throws Exception {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		c0c1 = new byte[C0C1_LENGTH];
+		random.nextBytes(c0c1);
+		c0c1[0] = 3;
+		c2 = new byte[HandShakeDecoder.HANDSHAKE_LENGTH];
+		random.nextBytes(c2);
+
+		group = new NioEventLoopGroup(1);
+		server = new ServerBootstrap().group(group).channel(NioServerSocketChannel.class)
+				.childHandler(new ChannelInitializer<Channel>() {
+					@Override
+					protected void initChannel(Channel ch) {
+						ch.pipeline().addLast(new HandShakeDecoder(), new Discard());
+					}
+				}).bind("127.0.0.1", 0).sync().channel();
+		client = new Bootstrap().group(group).channel(NioSocketChannel.class).handler(new Discard());
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws Exception {
+		server.close().sync();
+		group.shutdownGracefully().sync();
+	}
+
+	@Benchmark
+	public void handshake() {
+		EmbeddedChannel channel = new EmbeddedChannel(new HandShakeDecoder());
+		channel.writeInbound(PooledByteBufAllocator.DEFAULT.directBuffer(C0C1_LENGTH).writeBytes(c0c1));
+		ByteBuf s0s1s2 = channel.readOutbound();
+		s0s1s2.release();
+		channel.writeInbound(PooledByteBufAllocator.DEFAULT.directBuffer(c2.length).writeBytes(c2));
+		channel.finishAndReleaseAll();
+	}
+
+	@Benchmark
+	public void connectStorm() throws Exception {
+		Channel ch = client.connect(server.localAddress()).sync().channel();
+		Promise<Void> answered = ch.eventLoop().newPromise();
+		ch.pipeline().addFirst(new ChannelInboundHandlerAdapter() {
+			int received;
+
+			@Override
+			public void channelRead(ChannelHandlerContext ctx, Object msg) {
+				received += ((ByteBuf) msg).readableBytes();
+				ReferenceCountUtil.release(msg);
+				if (received >= S0S1S2_LENGTH) {
+					answered.trySuccess(null);
+				}
+			}
+		});
+		ByteBuf handshake = ch.alloc().directBuffer(c0c1.length + c2.length).writeBytes(c0c1).writeBytes(c2);
+		ch.writeAndFlush(handshake);
+		answered.sync();
+		ch.close().sync();
+	}
+
+	@Sharable
+	static class Discard extends ChannelInboundHandlerAdapter {
+		@Override
+		public void channelRead(ChannelHandlerContext ctx, Object msg) {
+			ReferenceCountUtil.release(msg);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package com.longyb.mylive.server.handlers;
+
+import static com.longyb.mylive.server.hls.MediaFixtures.avcConfig;
+import static com.longyb.mylive.server.hls.MediaFixtures.frame;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import org.junit.jupiter.api.Test;
+
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.cfg.CmafConfig;
+import com.longyb.mylive.server.entities.Stream;
+import com.longyb.mylive.server.entities.StreamName;
+import com.longyb.mylive.server.manager.StreamManager;
+import com.longyb.mylive.server.rtmp.messages.RtmpMediaMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+
+public class HttpRouterHandlerTest {
+
+	private static String outbound(EmbeddedChannel channel) {
+		StringBuilder all = new StringBuilder();
+		for (Object msg; (msg = channel.readOutbound()) != null;) {
+			ByteBuf buf = (ByteBuf) msg;
+			all.append(buf.toString(StandardCharsets.US_ASCII));
+			buf.release();
+		}
+		return all.toString();
+	}
+
+	private static int count(String all, String what) {
+		int n = 0;
+		for (int i = all.indexOf(what); i >= 0; i = all.indexOf(what, i + 1)) {
+			n++;
+		}
+		return n;
+	}
+
+	@Test
+	public void testPipelinedRequestsKeepOrder() {
+		ApplicationServerConfig.INSTANCE = new ApplicationServerConfig();
+		List<Runnable> pool = new ArrayList<>();
+		Executor later = pool::add;
+		// one router for both connections
+		HttpRouterHandler router = new HttpRouterHandler(new StreamManager(), true, Map.of("/api/streams", later));
+		EmbeddedChannel channel = new EmbeddedChannel(new HttpRequestDecoder(), new HttpResponseEncoder(), router);
+		EmbeddedChannel other = new EmbeddedChannel(new HttpRequestDecoder(), new HttpResponseEncoder(), router);
+
+		// the api request runs on the executor, the 404 pipelined behind it waits
+		channel.writeInbound(Unpooled.copiedBuffer("GET /api/streams HTTP/1.1\r\nHost: a\r\n\r\n"
+				+ "GET /nothing HTTP/1.1\r\nHost: a\r\n\r\n", StandardCharsets.US_ASCII));
+		assertEquals("", outbound(channel));
+		assertEquals(1, pool.size());
+		pool.remove(0).run();
+		channel.runPendingTasks();
+		String all = outbound(channel);
+		assertTrue(all.startsWith("HTTP/1.1 200 OK"), all);
+		assertTrue(all.indexOf("HTTP/1.1 404 Not Found") > all.indexOf("[]"), all);
+		assertTrue(channel.isOpen());
+
+		// HTTP/1.0 without keep-alive is answered and closed
+		other.writeInbound(Unpooled.copiedBuffer("GET /api/streams?x=1 HTTP/1.0\r\n\r\n", StandardCharsets.US_ASCII));
+		pool.remove(0).run();
+		other.runPendingTasks();
+		assertEquals(1, count(outbound(other), "HTTP/1.1 200 OK"));
+		assertFalse(other.isOpen());
+
+		// a client that asks for close gets it
+		channel.writeInbound(Unpooled.copiedBuffer("GET /nothing HTTP/1.1\r\nConnection: close\r\n\r\n",
+				StandardCharsets.US_ASCII));
+		assertTrue(outbound(channel).contains("connection: close"));
+		assertFalse(channel.isOpen());
+		assertNull(channel.readOutbound());
+	}
+
+	private static void publish(Stream stream, RtmpMediaMessage msg, int timestamp) {
+		msg.setTimestamp(timestamp);
+		stream.addContent(msg);
+		msg.release();
+	}
+
+	@Test
+	public void testPipelinedRequestWaitsForParkedReload() {
+		ApplicationServerConfig.INSTANCE = new ApplicationServerConfig();
+		ApplicationServerConfig.INSTANCE.setCmaf(new CmafConfig(true, 1000, 200, 4));
+		StreamManager streamManager = new StreamManager();
+		StreamName name = new StreamName("live", "test", false);
+		Stream stream = new Stream(name);
+		streamManager.newStream(name, stream);
+		publish(stream, avcConfig(), 0);
+		// a frame every 40 ms, a key frame every second
+		int timestamp = 0;
+		for (; timestamp < 1200; timestamp += 40) {
+			publish(stream, frame(timestamp % 1000 == 0, 10), timestamp);
+		}
+		long next = stream.getCmaf().getLiveSequence() + 1;
+
+		EmbeddedChannel channel = new EmbeddedChannel(new HttpRequestDecoder(), new HttpResponseEncoder(),
+				new HttpRouterHandler(streamManager));
+		channel.freezeTime();
+		channel.writeInbound(Unpooled.copiedBuffer("GET /cmaf/live/test.m3u8?_HLS_msn=" + next
+				+ " HTTP/1.1\r\nHost: a\r\n\r\n" + "GET /api/streams HTTP/1.1\r\nHost: a\r\n\r\n",
+				StandardCharsets.US_ASCII));
+		// the reload is parked, the api request waits behind it
+		assertEquals("", outbound(channel));
+
+		for (; !channel.outboundMessages().iterator().hasNext() && timestamp < 10000; timestamp += 40) {
+			publish(stream, frame(timestamp % 1000 == 0, 10), timestamp);
+		}
+		String all = outbound(channel);
+		assertTrue(all.startsWith("HTTP/1.1 200 OK"), all);
+		assertTrue(all.contains("#EXTM3U"), all);
+		assertTrue(all.indexOf("application/json") > all.indexOf("#EXTM3U"), all);
+		assertEquals(2, count(all, "HTTP/1.1 200 OK"));
+		assertTrue(channel.isOpen());
+
+		// a request pipelined behind the endless flv body is never answered
+		channel.writeInbound(Unpooled.copiedBuffer("GET /stream/flv/live/test.flv HTTP/1.1\r\nHost: a\r\n\r\n"
+				+ "GET /api/streams HTTP/1.1\r\nHost: a\r\n\r\n", StandardCharsets.US_ASCII));
+		channel.runPendingTasks();
+		all = outbound(channel);
+		assertTrue(all.startsWith("HTTP/1.1 200 OK"), all);
+		assertEquals(1, count(all, "HTTP/1.1 200 OK"));
+		stream.sendEofToAllSubscriberAndClose();
+		channel.finishAndReleaseAll();
+	}
+
+}
@@ -0,0 +1,42 @@
+package com.longyb.mylive.server.handlers;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+public class RouteTrieTest {
+
+	@Test
+	public void testMatchesSegmentsAndSuffixes() {
+		RouteTrie<String> trie = new RouteTrie<>();
+		trie.add("/stream/flv/{app}/{stream}", "flv");
+		trie.add("/stream/flv/{app}/{stream}.flv", "flv.flv");
+		trie.add("/api/streams", "api");
+		trie.add("/hls/{app}/{stream}.m3u8", "playlist");
+		trie.add("/hls/{app}/{stream}/{segment}.ts", "segment");
+
+		RouteTrie.Match<String> match = trie.match("/stream/flv/live/a.flv");
+		// the longer suffix wins
+		assertEquals("flv.flv", match.route().value());
+		assertEquals(Map.of("app", "live", "stream", "a"), match);
+		assertEquals("a.mp4", trie.match("/stream/flv/live/a.mp4").get("stream"));
+
+		match = trie.match("/hls/live/a/12.ts");
+		assertEquals("segment", match.route().value());
+		assertEquals("12", match.get("segment"));
+		assertEquals("a", match.get("stream"));
+		assertEquals(Map.of(), trie.match("/api/streams"));
+
+		// a variable is one non empty segment
+		assertNull(trie.match("/hls/live/.m3u8"));
+		assertNull(trie.match("/hls/live/a/b/1.ts"));
+		assertNull(trie.match("/api/streams/"));
+		assertNull(trie.match("/api"));
+		assertNull(trie.match("api/streams"));
+		assertNull(trie.match(""));
+	}
+
+}
@@ -8,7 +8,9 @@ import io.netty.buffer.Unpooled;
 import io.netty.channel.embedded.EmbeddedChannel;
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
 
 /**
  * @author longyubo 2019年12月10日 下午8:38:45
@@ -51,8 +53,17 @@ public class RtmpHandShakeTest {
 		assertEquals(0, s2Time);
 		assertEquals(0, s2Time2);
 		readOutbound.readBytes(randomBytes);
-
-		System.out.println(readOutbound);
+		// s2 echoes c1
+		assertArrayEquals(generateRandomData, randomBytes);
+		readOutbound.release();
+
+		// c2 completes the handshake, what follows it is passed on
+		ByteBuf c2AndMore = Unpooled.buffer(handshakeSize + 1).writeZero(handshakeSize).writeByte(42);
+		embeddedChannel.writeInbound(c2AndMore);
+		assertNull(embeddedChannel.pipeline().get(HandShakeDecoder.class));
+		ByteBuf more = embeddedChannel.readInbound();
+		assertEquals(42, more.readByte());
+		more.release();
 
 	}
 }
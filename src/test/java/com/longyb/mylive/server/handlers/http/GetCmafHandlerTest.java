@@ -0,0 +1,120 @@
+package com.longyb.mylive.server.handlers.http;
+
+import static com.longyb.mylive.server.hls.MediaFixtures.avcConfig;
+import static com.longyb.mylive.server.hls.MediaFixtures.frame;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.cfg.CmafConfig;
+import com.longyb.mylive.server.entities.Stream;
+import com.longyb.mylive.server.entities.StreamName;
+import com.longyb.mylive.server.handlers.HttpRouterHandler;
+import com.longyb.mylive.server.manager.StreamManager;
+import com.longyb.mylive.server.rtmp.messages.RtmpMediaMessage;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+public class GetCmafHandlerTest {
+
+	StreamManager streamManager;
+	Stream stream;
+	int timestamp;
+
+	@BeforeEach
+	public void setUp() {
+		ApplicationServerConfig.INSTANCE = new ApplicationServerConfig();
+		ApplicationServerConfig.INSTANCE.setCmaf(new CmafConfig(true, 1000, 200, 4));
+		streamManager = new StreamManager();
+		StreamName name = new StreamName("live", "test", false);
+		stream = new Stream(name);
+		streamManager.newStream(name, stream);
+		publish(avcConfig());
+	}
+
+	@AfterEach
+	public void tearDown() {
+		stream.sendEofToAllSubscriberAndClose();
+	}
+
+	private void publish(RtmpMediaMessage msg) {
+		msg.setTimestamp(timestamp);
+		stream.addContent(msg);
+		msg.release();
+	}
+
+	/**
+	 * a frame every 40 ms, a key frame every second
+	 */
+	private void publishFrames(int count) {
+		for (int i = 0; i < count; i++) {
+			publish(frame(timestamp % 1000 == 0, 10));
+			timestamp += 40;
+		}
+	}
+
+	private EmbeddedChannel get(String uri) {
+		EmbeddedChannel channel = new EmbeddedChannel(new HttpRouterHandler(streamManager));
+		channel.freezeTime();
+		channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri));
+		return channel;
+	}
+
+	@Test
+	public void testBlockingReload() {
+		// parts of 200 ms: 0.0 [0, 200), 0.1 [200, 400)
+		publishFrames(6);
+		EmbeddedChannel ready = get("/cmaf/live/test.m3u8?_HLS_msn=0&_HLS_part=0");
+		FullHttpResponse response = ready.readOutbound();
+		assertEquals(HttpResponseStatus.OK, response.status());
+		response.release();
+
+		EmbeddedChannel first = get("/cmaf/live/test.m3u8?_HLS_msn=0&_HLS_part=1");
+		EmbeddedChannel second = get("/cmaf/live/test.m3u8?_HLS_msn=0&_HLS_part=1");
+		EmbeddedChannel hinted = get("/cmaf/live/test/av/0.1.m4s");
+		assertNull(first.readOutbound());
+		assertNull(hinted.readOutbound());
+
+		publishFrames(6);
+		FullHttpResponse one = first.readOutbound();
+		FullHttpResponse other = second.readOutbound();
+		String playlist = one.content().toString(StandardCharsets.UTF_8);
+		assertTrue(playlist.contains("URI=\"test/av/0.1.m4s\"\n#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"test/av/0.2.m4s\""),
+				playlist);
+		// both answers share the playlist's bytes
+		assertSame(one.content().array(), other.content().array());
+		one.release();
+		other.release();
+		response = hinted.readOutbound();
+		assertEquals("video/mp4", response.headers().get("Content-Type"));
+		assertEquals("moof", response.content().toString(4, 4, StandardCharsets.US_ASCII));
+		response.release();
+
+		// nothing comes within three target durations
+		EmbeddedChannel late = get("/cmaf/live/test.m3u8?_HLS_msn=2");
+		late.advanceTimeBy(3000, TimeUnit.MILLISECONDS);
+		late.runScheduledPendingTasks();
+		response = late.readOutbound();
+		assertEquals(HttpResponseStatus.SERVICE_UNAVAILABLE, response.status());
+		response.release();
+
+		response = get("/cmaf/live/test.m3u8?_HLS_msn=9").readOutbound();
+		assertEquals(HttpResponseStatus.BAD_REQUEST, response.status());
+		response.release();
+	}
+
+}
@@ -0,0 +1,87 @@
+package com.longyb.mylive.server.handlers.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.entities.Stream;
+import com.longyb.mylive.server.entities.StreamName;
+import com.longyb.mylive.server.handlers.HttpRouterHandler;
+import com.longyb.mylive.server.manager.StreamManager;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+public class GetMetricsHandlerTest {
+
+	private static Stream newStream(StreamManager streamManager, String app, String name) {
+		StreamName streamName = new StreamName(app, name, false);
+		Stream stream = new Stream(streamName);
+		streamManager.newStream(streamName, stream);
+		return stream;
+	}
+
+	@Test
+	public void testScrape() {
+		ApplicationServerConfig.INSTANCE = new ApplicationServerConfig();
+		ApplicationServerConfig.INSTANCE.getMetrics().setStreamLabelLimit(1);
+		StreamManager streamManager = new StreamManager();
+		Stream first = newStream(streamManager, "metrics", "a");
+		newStream(streamManager, "metrics", "b");
+		newStream(streamManager, "metrics", "c");
+		VideoMessage key = new VideoMessage(Unpooled.buffer().writeByte(0x17).writeByte(1).writeZero(98));
+		key.setTimestamp(0);
+		first.addContent(key);
+		key.release();
+
+		EmbeddedChannel channel = new EmbeddedChannel(new ChunkedWriteHandler(), new HttpRouterHandler(streamManager));
+		channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/metrics"));
+		HttpResponse response = channel.readOutbound();
+		assertEquals(HttpResponseStatus.OK, response.status());
+		assertTrue(HttpUtil.isTransferEncodingChunked(response));
+		StringBuilder text = new StringBuilder();
+		for (Object msg; (msg = channel.readOutbound()) != null;) {
+			HttpContent content = (HttpContent) msg;
+			text.append(content.content().toString(StandardCharsets.UTF_8));
+			content.release();
+			if (msg instanceof LastHttpContent) {
+				break;
+			}
+		}
+		String body = text.toString();
+
+		assertTrue(body.contains("# TYPE mylive_ingress_bytes_total counter\n"), body);
+		assertTrue(body.contains("mylive_ingress_bytes_total{app=\"metrics\"} 100\n"), body);
+		assertTrue(body.contains("mylive_gop_cache_bytes{app=\"metrics\",stream=\"a\"} 100\n"), body);
+		// b and c are past the limit
+		assertTrue(body.contains("mylive_gop_cache_bytes{app=\"metrics\",stream=\"_other\"} 0\n"), body);
+		assertFalse(body.contains("stream=\"b\""), body);
+		assertTrue(body.contains("mylive_rtmp_messages_decoded_total{type=\"video\"} "), body);
+		assertTrue(body.contains("mylive_netty_allocator_used_bytes{memory=\"direct\"} "), body);
+		assertTrue(body.contains("jvm_memory_used_bytes{area=\"heap\"} "), body);
+		for (String line : body.split("\n")) {
+			assertTrue(line.startsWith("#") || line.matches("[a-z_]+(\\{.*\\})? -?[0-9.]+"), line);
+		}
+		// a scraper keeps its connection
+		assertTrue(channel.isOpen());
+
+		first.sendEofToAllSubscriberAndClose();
+		channel.finishAndReleaseAll();
+	}
+
+}
@@ -0,0 +1,216 @@
+package com.longyb.mylive.server.handlers.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertInstanceOf;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.longyb.mylive.amf.AMF0;
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.flv.FlvFinalizer;
+import com.longyb.mylive.server.flv.FlvWriter;
+import com.longyb.mylive.server.flv.KeyframeIndex;
+import com.longyb.mylive.server.handlers.HttpRouterHandler;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultFileRegion;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpRequest;
+import io.netty.handler.codec.http.HttpHeaderNames;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponse;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpUtil;
+import io.netty.handler.codec.http.HttpVersion;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.util.ReferenceCountUtil;
+
+public class GetRecordingHandlerTest {
+
+	@TempDir
+	Path dir;
+
+	Path file;
+	KeyframeIndex index;
+	long size;
+
+	/**
+	 * a finalized recording with key frames at 0, 1 and 2 seconds
+	 */
+	@BeforeEach
+	public void setUp() throws IOException {
+		ApplicationServerConfig.INSTANCE = new ApplicationServerConfig();
+		ApplicationServerConfig.INSTANCE.setSaveFlVFilePath(dir.toString());
+		file = dir.resolve("live_test_1.flv");
+		index = new KeyframeIndex();
+		long bodyStart;
+		try (FileChannel out = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			write(out, FlvWriter.encodeHeaderAndMetadata(ByteBufAllocator.DEFAULT, new LinkedHashMap<>(), 0));
+			bodyStart = out.position();
+			write(out, tag(0x17, 0x00, 0));
+			for (int i = 0; i < 75; i++) {
+				int timestamp = i * 40;
+				if (i % 25 == 0) {
+					index.add(out.position(), timestamp);
+				}
+				write(out, tag(i % 25 == 0 ? 0x17 : 0x27, 0x01, timestamp));
+			}
+			size = out.position();
+		}
+		FlvFinalizer.finish(file, bodyStart, size, null, index, 2960, false);
+		index = KeyframeIndex.load(file);
+		size = Files.size(file);
+	}
+
+	private static ByteBuf tag(int frameType, int packetType, int timestamp) {
+		VideoMessage vm = new VideoMessage(Unpooled.buffer(100).writeByte(frameType).writeByte(packetType).writeZero(98));
+		ByteBuf tag = FlvWriter.encodeMediaTag(ByteBufAllocator.DEFAULT, vm, timestamp);
+		vm.release();
+		return tag;
+	}
+
+	private static void write(FileChannel out, ByteBuf buf) throws IOException {
+		try {
+			out.write(buf.nioBuffers());
+		} finally {
+			buf.release();
+		}
+	}
+
+	private static EmbeddedChannel get(String uri, String header, String value) {
+		EmbeddedChannel channel = new EmbeddedChannel(new HttpRouterHandler(null));
+		FullHttpRequest request = new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri);
+		if (header != null) {
+			request.headers().set(header, value);
+		}
+		channel.writeInbound(request);
+		return channel;
+	}
+
+	private static void assertRegion(Object msg, long position, long count) {
+		DefaultFileRegion region = assertInstanceOf(DefaultFileRegion.class, msg);
+		assertEquals(position, region.position());
+		assertEquals(count, region.count());
+		region.release();
+	}
+
+	@Test
+	public void testWholeFileAndRange() {
+		EmbeddedChannel channel = get("/vod/flv/live_test_1.flv", null, null);
+		HttpResponse response = channel.readOutbound();
+		assertEquals(HttpResponseStatus.OK, response.status());
+		assertEquals(size, HttpUtil.getContentLength(response));
+		String etag = response.headers().get(HttpHeaderNames.ETAG);
+		assertRegion(channel.readOutbound(), 0, size);
+		assertInstanceOf(LastHttpContent.class, channel.readOutbound());
+		// a player seeking around keeps its connection
+		assertTrue(channel.isOpen());
+
+		channel = get("/vod/flv/live_test_1.flv", "Range", "bytes=100-199");
+		response = channel.readOutbound();
+		assertEquals(HttpResponseStatus.PARTIAL_CONTENT, response.status());
+		assertEquals("bytes 100-199/" + size, response.headers().get(HttpHeaderNames.CONTENT_RANGE));
+		assertEquals(100, HttpUtil.getContentLength(response));
+		assertRegion(channel.readOutbound(), 100, 100);
+		ReferenceCountUtil.release(channel.readOutbound());
+
+		channel = get("/vod/flv/live_test_1.flv", "Range", "bytes=-10");
+		response = channel.readOutbound();
+		assertEquals("bytes " + (size - 10) + "-" + (size - 1) + "/" + size,
+				response.headers().get(HttpHeaderNames.CONTENT_RANGE));
+		assertRegion(channel.readOutbound(), size - 10, 10);
+		ReferenceCountUtil.release(channel.readOutbound());
+
+		channel = get("/vod/flv/live_test_1.flv", "Range", "bytes=" + size + "-");
+		response = channel.readOutbound();
+		assertEquals(HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE, response.status());
+		assertEquals("bytes */" + size, response.headers().get(HttpHeaderNames.CONTENT_RANGE));
+		ReferenceCountUtil.release(response);
+
+		channel = get("/vod/flv/live_test_1.flv", "If-None-Match", etag);
+		response = channel.readOutbound();
+		assertEquals(HttpResponseStatus.NOT_MODIFIED, response.status());
+		ReferenceCountUtil.release(response);
+	}
+
+	@Test
+	public void testSeeksToKeyFrame() {
+		assertEquals(3, index.size());
+		long from = index.position(1);
+
+		// a range does not apply to the spliced file
+		EmbeddedChannel channel = get("/vod/flv/live_test_1.flv?start=1.5", "Range", "bytes=0-99");
+		HttpResponse response = channel.readOutbound();
+		assertEquals(HttpResponseStatus.OK, response.status());
+		assertEquals("none", response.headers().get(HttpHeaderNames.ACCEPT_RANGES));
+		String etag = response.headers().get(HttpHeaderNames.ETAG);
+		assertTrue(etag.endsWith("-" + Long.toHexString(from) + "\""), etag);
+		// header and a new onMetaData, the decoder configuration, then the key frame at 1s
+		ByteBuf head = channel.readOutbound();
+		int metadataSize = head.getMedium(FlvWriter.FLV_HEADER.length + 4 + 1);
+		@SuppressWarnings("unchecked")
+		Map<String, Object> metadata = (Map<String, Object>) AMF0
+				.decodeAll(head.slice(FlvWriter.FLV_HEADER.length + 4 + 11, metadataSize)).get(1);
+		assertFalse(metadata.containsKey("keyframes"));
+		assertFalse(metadata.containsKey("duration"));
+		assertFalse(metadata.containsKey("padding"));
+		long config = index.position(0) - 11 - 100 - 4;
+		assertEquals(head.readableBytes() + index.position(0) - config + size - from,
+				HttpUtil.getContentLength(response));
+		head.release();
+		assertRegion(channel.readOutbound(), config, index.position(0) - config);
+		assertRegion(channel.readOutbound(), from, size - from);
+		ReferenceCountUtil.release(channel.readOutbound());
+
+		channel = get("/vod/flv/live_test_1.flv?start=1.5", "If-None-Match", etag);
+		response = channel.readOutbound();
+		assertEquals(HttpResponseStatus.NOT_MODIFIED, response.status());
+		ReferenceCountUtil.release(response);
+
+		// before the second key frame there is nothing to skip
+		channel = get("/vod/flv/live_test_1.flv?start=0.5", null, null);
+		response = channel.readOutbound();
+		assertEquals(size, HttpUtil.getContentLength(response));
+		assertRegion(channel.readOutbound(), 0, size);
+		ReferenceCountUtil.release(channel.readOutbound());
+	}
+
+	@Test
+	public void testEmptyRangeIsIgnored() {
+		EmbeddedChannel channel = get("/vod/flv/live_test_1.flv", "Range", "bytes=-");
+		HttpResponse response = channel.readOutbound();
+		assertEquals(HttpResponseStatus.OK, response.status());
+		assertNull(response.headers().get(HttpHeaderNames.CONTENT_RANGE));
+		assertRegion(channel.readOutbound(), 0, size);
+		ReferenceCountUtil.release(channel.readOutbound());
+	}
+
+	@Test
+	public void testOnlyRecordingsAreServed() throws IOException {
+		Files.writeString(dir.resolve("secret.txt"), "secret");
+		for (String uri : new String[] { "/vod/flv/secret.txt", "/vod/flv/..%2Fsecret.flv", "/vod/flv/none.flv" }) {
+			EmbeddedChannel channel = get(uri, null, null);
+			HttpResponse response = channel.readOutbound();
+			assertEquals(HttpResponseStatus.NOT_FOUND, response.status(), uri);
+			ReferenceCountUtil.release(response);
+		}
+	}
+
+}
@@ -0,0 +1,92 @@
+package com.longyb.mylive.server.handlers.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.entities.Stream;
+import com.longyb.mylive.server.entities.StreamName;
+import com.longyb.mylive.server.handlers.HttpRouterHandler;
+import com.longyb.mylive.server.manager.StreamManager;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.DefaultFullHttpRequest;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpResponseStatus;
+import io.netty.handler.codec.http.HttpVersion;
+
+public class GetStreamsHandlerTest {
+
+	StreamManager streamManager;
+	EmbeddedChannel channel;
+
+	@BeforeEach
+	public void setUp() {
+		ApplicationServerConfig.INSTANCE = new ApplicationServerConfig();
+		streamManager = new StreamManager();
+		channel = new EmbeddedChannel(new HttpRouterHandler(streamManager));
+	}
+
+	private FullHttpResponse get(String uri) {
+		channel.writeInbound(new DefaultFullHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, uri));
+		return channel.readOutbound();
+	}
+
+	private String body(String uri) {
+		FullHttpResponse response = get(uri);
+		try {
+			assertEquals(HttpResponseStatus.OK, response.status());
+			return response.content().toString(StandardCharsets.UTF_8);
+		} finally {
+			response.release();
+		}
+	}
+
+	private Stream newStream(String name) {
+		StreamName streamName = new StreamName("live", name, false);
+		Stream stream = new Stream(streamName);
+		streamManager.newStream(streamName, stream);
+		return stream;
+	}
+
+	@Test
+	public void testServedFromCacheWithinInterval() {
+		ApplicationServerConfig.INSTANCE.getStats().setIntervalMillis(60_000);
+		assertEquals("[]", body("/api/streams"));
+		newStream("a");
+		// still the json of the first call
+		assertEquals("[]", body("/api/streams"));
+
+		String one = body("/api/streams/live/a");
+		assertTrue(one.contains("\"stream\":\"a\""), one);
+		assertTrue(one.contains("\"stats\""), one);
+		assertTrue(one.contains("\"subscribers\""), one);
+
+		FullHttpResponse missing = get("/api/streams/live/b");
+		assertEquals(HttpResponseStatus.NOT_FOUND, missing.status());
+		missing.release();
+		// a poller keeps its connection
+		assertTrue(channel.isOpen());
+		channel.finishAndReleaseAll();
+	}
+
+	@Test
+	public void testRebuiltOnceExpired() {
+		ApplicationServerConfig.INSTANCE.getStats().setIntervalMillis(0);
+		assertEquals("[]", body("/api/streams"));
+		Stream stream = newStream("a");
+		assertTrue(body("/api/streams").contains("\"stream\":\"a\""));
+
+		stream.sampleStats(60);
+		String one = body("/api/streams/live/a");
+		assertTrue(one.contains("\"history\":[{"), one);
+		channel.finishAndReleaseAll();
+	}
+
+}
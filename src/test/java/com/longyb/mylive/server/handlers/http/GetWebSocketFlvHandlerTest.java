@@ -0,0 +1,93 @@
+package com.longyb.mylive.server.handlers.http;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import com.longyb.mylive.server.cfg.ApplicationServerConfig;
+import com.longyb.mylive.server.entities.Stream;
+import com.longyb.mylive.server.entities.StreamName;
+import com.longyb.mylive.server.handlers.HttpRouterHandler;
+import com.longyb.mylive.server.manager.StreamManager;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.http.HttpRequestDecoder;
+import io.netty.handler.codec.http.HttpResponseEncoder;
+import io.netty.handler.stream.ChunkedWriteHandler;
+
+public class GetWebSocketFlvHandlerTest {
+
+	private static final String UPGRADE = "GET /ws/flv/live/test.flv HTTP/1.1\r\nHost: localhost\r\n"
+			+ "Connection: Upgrade\r\nUpgrade: websocket\r\nSec-WebSocket-Version: 13\r\n"
+			+ "Sec-WebSocket-Key: dGhlIHNhbXBsZSBub25jZQ==\r\n\r\n";
+
+	/**
+	 * everything written since the last call
+	 */
+	private static ByteBuf outbound(EmbeddedChannel channel) {
+		ByteBuf all = Unpooled.buffer();
+		for (Object msg; (msg = channel.readOutbound()) != null;) {
+			ByteBuf buf = (ByteBuf) msg;
+			all.writeBytes(buf);
+			buf.release();
+		}
+		return all;
+	}
+
+	@Test
+	public void testTagsInBinaryFrames() {
+		ApplicationServerConfig.INSTANCE = new ApplicationServerConfig();
+		StreamManager streamManager = new StreamManager();
+		StreamName name = new StreamName("live", "test", false);
+		Stream stream = new Stream(name);
+		streamManager.newStream(name, stream);
+
+		EmbeddedChannel channel = new EmbeddedChannel(new HttpRequestDecoder(), new HttpResponseEncoder(),
+				new ChunkedWriteHandler(), new HttpRouterHandler(streamManager));
+		channel.writeInbound(Unpooled.copiedBuffer(UPGRADE, StandardCharsets.US_ASCII));
+		ByteBuf out = outbound(channel);
+		String all = out.toString(StandardCharsets.US_ASCII);
+		String response = all.substring(0, all.indexOf("\r\n\r\n") + 4);
+		assertTrue(response.startsWith("HTTP/1.1 101 Switching Protocols"), response);
+		assertTrue(response.contains("s3pPLMBiTxaQ9kYGzzhZRbK+xOo="), response);
+
+		// the flv header and metadata right after the upgrade, in a binary frame
+		out.skipBytes(response.length());
+		assertEquals(0x82, out.readUnsignedByte());
+		int length = out.readUnsignedByte();
+		assertEquals("FLV", out.toString(out.readerIndex(), 3, StandardCharsets.US_ASCII));
+		out.skipBytes(length);
+		assertFalse(out.isReadable());
+		out.release();
+
+		VideoMessage frame = new VideoMessage(Unpooled.buffer().writeByte(0x17).writeByte(1).writeZero(10));
+		frame.setTimestamp(0);
+		stream.addContent(frame);
+		frame.release();
+		out = outbound(channel);
+		assertEquals(0x82, out.readUnsignedByte());
+		// tag header, payload, previous tag size
+		assertEquals(11 + 12 + 4, out.readUnsignedByte());
+		assertEquals(9, out.readUnsignedByte());
+		out.release();
+
+		// a ping is answered, the end of the stream closes the socket
+		channel.writeInbound(Unpooled.wrappedBuffer(new byte[] { (byte) 0x89, (byte) 0x80, 1, 2, 3, 4 }));
+		out = outbound(channel);
+		assertEquals(0x8a, out.readUnsignedByte());
+		out.release();
+		stream.sendEofToAllSubscriberAndClose();
+		out = outbound(channel);
+		assertEquals(0x88, out.readUnsignedByte());
+		out.release();
+		assertFalse(channel.isOpen());
+	}
+
+}
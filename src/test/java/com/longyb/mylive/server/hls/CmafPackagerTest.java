@@ -0,0 +1,138 @@
+package com.longyb.mylive.server.hls;
+
+import static com.longyb.mylive.server.hls.MediaFixtures.add;
+import static com.longyb.mylive.server.hls.MediaFixtures.audio;
+import static com.longyb.mylive.server.hls.MediaFixtures.avcConfig;
+import static com.longyb.mylive.server.hls.MediaFixtures.frame;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+
+import com.longyb.mylive.server.cfg.CmafConfig;
+import com.longyb.mylive.server.hls.CmafPackager.Track;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+public class CmafPackagerTest {
+
+	/**
+	 * video every 40 ms with a key frame every second, audio every 1024
+	 * samples at 44.1 kHz
+	 */
+	private static int feed(CmafPackager cmaf, int from, int to, int audioFrame) {
+		for (int t = from; t <= to; t += 40) {
+			add(cmaf, frame(t % 1000 == 0, 100), t);
+			for (int at; (at = audioFrame * 1024 * 1000 / 44100) < t + 40; audioFrame++) {
+				add(cmaf, audio(false), at);
+			}
+		}
+		return audioFrame;
+	}
+
+	/**
+	 * the types of the boxes one after the other from the reader index
+	 */
+	private static List<String> boxes(ByteBuf buf) {
+		List<String> types = new ArrayList<>();
+		for (int i = buf.readerIndex(); i < buf.writerIndex(); i += buf.getInt(i)) {
+			types.add(buf.toString(i + 4, 4, StandardCharsets.US_ASCII));
+		}
+		return types;
+	}
+
+	private static boolean contains(byte[] data, String type) {
+		return new String(data, StandardCharsets.ISO_8859_1).contains(type);
+	}
+
+	@Test
+	public void testPartsSegmentsAndManifest() {
+		CmafPackager cmaf = new CmafPackager("test", new CmafConfig(true, 1000, 300, 2),
+				() -> Map.of("width", 1280.0, "height", 720.0));
+		add(cmaf, avcConfig(), 0);
+		add(cmaf, audio(true), 0);
+		int audioFrame = feed(cmaf, 0, 3200, 0);
+
+		byte[] init = cmaf.init(Track.MUXED);
+		assertEquals(List.of("ftyp", "moov"), boxes(Unpooled.wrappedBuffer(init)));
+		assertTrue(contains(init, "avcC") && contains(init, "esds"));
+		assertFalse(contains(cmaf.init(Track.VIDEO), "esds"));
+		assertFalse(contains(cmaf.init(Track.AUDIO), "avcC"));
+
+		// parts end before they exceed 300 ms, 0 fell out of the ring
+		String playlist = new String(cmaf.getPlaylist(), StandardCharsets.UTF_8);
+		assertTrue(playlist.contains("#EXT-X-SERVER-CONTROL:CAN-BLOCK-RELOAD=YES,PART-HOLD-BACK=0.900\n"
+				+ "#EXT-X-PART-INF:PART-TARGET=0.300\n#EXT-X-MEDIA-SEQUENCE:1\n#EXT-X-MAP:URI=\"test/av/init.mp4\"\n"
+				+ "#EXT-X-PART:DURATION=0.280,URI=\"test/av/1.0.m4s\",INDEPENDENT=YES\n"
+				+ "#EXT-X-PART:DURATION=0.280,URI=\"test/av/1.1.m4s\"\n"), playlist);
+		assertTrue(playlist.contains("#EXT-X-PART:DURATION=0.160,URI=\"test/av/2.3.m4s\"\n#EXTINF:1.000,\n"
+				+ "test/av/2.m4s\n#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"test/av/3.0.m4s\"\n"), playlist);
+		assertNull(cmaf.segment(0, Track.MUXED));
+		assertNull(cmaf.segment(3, Track.MUXED));
+
+		// a moof and mdat per track, the samples right after the moof
+		ByteBuf part = cmaf.part(1, 0);
+		assertEquals(List.of("moof", "mdat", "moof", "mdat"), boxes(part));
+		int trun = part.readerIndex() + 8 + 16 + 8 + 16 + 20;
+		assertEquals(Fmp4Writer.type("trun"), part.getInt(trun + 4));
+		assertEquals(7, part.getInt(trun + 12));
+		assertEquals(part.getInt(part.readerIndex()) + 8, part.getInt(trun + 16));
+		assertEquals(Fmp4Writer.SYNC_SAMPLE, part.getInt(trun + 20 + 8));
+		assertEquals(Fmp4Writer.NON_SYNC_SAMPLE, part.getInt(trun + 20 + 16 + 8));
+		// tfdt of the video track
+		assertEquals(1000L * 90, part.getLong(trun - 8));
+		part.release();
+
+		ByteBuf video = cmaf.segment(1, Track.VIDEO);
+		assertEquals(List.of("moof", "mdat", "moof", "mdat", "moof", "mdat", "moof", "mdat"), boxes(video));
+		video.release();
+
+		String manifest = new String(cmaf.getManifest(), StandardCharsets.UTF_8);
+		assertTrue(manifest.contains("startNumber=\"1\""), manifest);
+		assertTrue(manifest.contains("<S t=\"1000\" d=\"1000\"/>\n            <S d=\"1000\"/>"), manifest);
+		assertTrue(manifest.contains("codecs=\"avc1.64001f\" width=\"1280\" height=\"720\""), manifest);
+		assertTrue(manifest.contains("codecs=\"mp4a.40.2\" audioSamplingRate=\"44100\""), manifest);
+
+		// the hinted part does not exist yet
+		AtomicInteger answered = new AtomicInteger();
+		assertFalse(cmaf.await(3, 0, answered::incrementAndGet));
+		assertFalse(cmaf.await(3, -1, answered::incrementAndGet));
+		assertTrue(cmaf.await(2, 3, answered::incrementAndGet));
+		feed(cmaf, 3240, 3280, audioFrame);
+		assertEquals(1, answered.get());
+
+		cmaf.close();
+		assertEquals(2, answered.get());
+		assertNull(cmaf.getPlaylist());
+		assertTrue(cmaf.await(4, 0, answered::incrementAndGet));
+	}
+
+	@Test
+	public void testAudioOnly() {
+		CmafPackager cmaf = new CmafPackager("radio", new CmafConfig(true, 1000, 500, 4), null);
+		add(cmaf, audio(true), 0);
+		for (int i = 0; i < 100; i++) {
+			add(cmaf, audio(false), i * 1024 * 1000 / 44100);
+		}
+		assertNull(cmaf.init(Track.VIDEO));
+		String playlist = new String(cmaf.getPlaylist(), StandardCharsets.UTF_8);
+		// every audio frame is independent
+		assertTrue(playlist.contains("#EXT-X-PART:DURATION=0.487,URI=\"radio/av/0.0.m4s\",INDEPENDENT=YES\n"
+				+ "#EXT-X-PART:DURATION=0.488,URI=\"radio/av/0.1.m4s\",INDEPENDENT=YES\n"), playlist);
+		ByteBuf segment = cmaf.segment(0, Track.AUDIO);
+		assertEquals(List.of("moof", "mdat", "moof", "mdat", "moof", "mdat"), boxes(segment));
+		segment.release();
+		assertFalse(new String(cmaf.getManifest(), StandardCharsets.UTF_8).contains("avc1"));
+		cmaf.close();
+	}
+
+}
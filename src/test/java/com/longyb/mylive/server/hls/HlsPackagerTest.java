@@ -0,0 +1,183 @@
+package com.longyb.mylive.server.hls;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static com.longyb.mylive.server.hls.MediaFixtures.add;
+import static com.longyb.mylive.server.hls.MediaFixtures.audio;
+import static com.longyb.mylive.server.hls.MediaFixtures.avcConfig;
+import static com.longyb.mylive.server.hls.MediaFixtures.frame;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+
+import com.longyb.mylive.server.cfg.HlsConfig;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
+import io.netty.buffer.Unpooled;
+
+public class HlsPackagerTest {
+
+	@Test
+	public void testSegmentsOnKeyFrames() {
+		HlsPackager hls = new HlsPackager("test", new HlsConfig(true, 1000, 2, 2));
+		add(hls, avcConfig(), 0);
+		add(hls, audio(true), 0);
+		for (int t = 0; t <= 3200; t += 40) {
+			add(hls, frame(t % 1000 == 0, 300), t);
+			add(hls, audio(false), t + 20);
+		}
+
+		// 0 fell out of the ring, 3 is not complete yet
+		assertEquals("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-TARGETDURATION:1\n#EXT-X-MEDIA-SEQUENCE:1\n"
+				+ "#EXTINF:1.000,\ntest/1.ts\n#EXTINF:1.000,\ntest/2.ts\n",
+				new String(hls.getPlaylist(), StandardCharsets.UTF_8));
+		assertNull(hls.segment(0));
+		assertNull(hls.segment(3));
+
+		ByteBuf segment = hls.segment(1);
+		ByteBuf again = hls.segment(1);
+		// every requester shares the same bytes
+		assertEquals(segment.memoryAddress(), again.memoryAddress());
+		again.release();
+
+		Map<Integer, ByteBuf> streams = demux(segment);
+		segment.release();
+
+		ByteBuf video = streams.get(TsMuxer.VIDEO_PID);
+		assertEquals(0x000001e0, video.readInt());
+		video.skipBytes(4);
+		int headerLength = video.readUnsignedByte();
+		video.skipBytes(headerLength);
+		// delimiter, parameter sets, then the key frame
+		byte[] expected = { 0, 0, 0, 1, 0x09, (byte) 0xf0, 0, 0, 0, 1, 0x67, 1, 2, 3, 0, 0, 0, 1, 0x68, 1, 0, 0, 0,
+				1, 0x65 };
+		byte[] actual = new byte[expected.length];
+		video.readBytes(actual);
+		assertArrayEquals(expected, actual);
+		video.release();
+
+		ByteBuf audio = streams.get(TsMuxer.AUDIO_PID);
+		assertEquals(0x000001c0, audio.readInt());
+		assertEquals(3 + 5 + 7 + 20, audio.readUnsignedShort());
+		audio.skipBytes(3 + 5);
+		// adts: lc, 44.1 kHz, stereo, 27 bytes
+		assertEquals("fff15080037ffc", ByteBufUtil.hexDump(audio, audio.readerIndex(), 7));
+		audio.release();
+
+		hls.close();
+		assertNull(hls.getPlaylist());
+		assertNull(hls.segment(2));
+	}
+
+	@Test
+	public void testAudioOnlySegmentsOnTime() {
+		HlsPackager hls = new HlsPackager("radio", new HlsConfig(true, 1000, 8, 8));
+		add(hls, audio(true), 0);
+		for (int t = 0; t <= 2100; t += 23) {
+			add(hls, audio(false), t);
+		}
+		String playlist = new String(hls.getPlaylist(), StandardCharsets.UTF_8);
+		assertTrue(playlist.contains("#EXTINF:1.012,\nradio/0.ts\n#EXTINF:1.012,\nradio/1.ts\n"), playlist);
+
+		ByteBuf segment = hls.segment(0);
+		Map<Integer, ByteBuf> streams = demux(segment);
+		segment.release();
+		assertNull(streams.get(TsMuxer.VIDEO_PID));
+		assertNotNull(streams.get(TsMuxer.AUDIO_PID));
+		streams.values().forEach(ByteBuf::release);
+		hls.close();
+	}
+
+	@Test
+	public void testVideoAfterAudioStartsSegment() {
+		HlsPackager hls = new HlsPackager("test", new HlsConfig(true, 1000, 8, 8));
+		add(hls, audio(true), 0);
+		for (int t = 0; t < 100; t += 23) {
+			add(hls, audio(false), t);
+		}
+		add(hls, avcConfig(), 80);
+		// no key frame yet, nothing to put in a segment without video
+		add(hls, frame(false, 300), 80);
+		for (int t = 100; t <= 2200; t += 40) {
+			add(hls, frame((t - 100) % 1000 == 0, 300), t);
+			add(hls, audio(false), t + 20);
+		}
+
+		assertEquals("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-TARGETDURATION:1\n#EXT-X-MEDIA-SEQUENCE:0\n"
+				+ "#EXTINF:0.100,\ntest/0.ts\n#EXT-X-DISCONTINUITY\n#EXTINF:1.000,\ntest/1.ts\n"
+				+ "#EXTINF:1.000,\ntest/2.ts\n", new String(hls.getPlaylist(), StandardCharsets.UTF_8));
+
+		ByteBuf segment = hls.segment(0);
+		Map<Integer, ByteBuf> streams = demux(segment);
+		segment.release();
+		assertNull(streams.get(TsMuxer.VIDEO_PID));
+		streams.values().forEach(ByteBuf::release);
+
+		segment = hls.segment(1);
+		streams = demux(segment);
+		segment.release();
+		assertNotNull(streams.get(TsMuxer.VIDEO_PID));
+		assertNotNull(streams.get(TsMuxer.AUDIO_PID));
+		streams.values().forEach(ByteBuf::release);
+		hls.close();
+	}
+
+	@Test
+	public void testDiscontinuitySequence() {
+		HlsPackager hls = new HlsPackager("test", new HlsConfig(true, 1000, 2, 2));
+		add(hls, audio(true), 0);
+		add(hls, audio(false), 0);
+		add(hls, avcConfig(), 40);
+		for (int t = 40; t <= 4100; t += 40) {
+			add(hls, frame((t - 40) % 1000 == 0, 300), t);
+		}
+
+		// the discontinuity before 1 fell out of the playlist
+		assertEquals("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-TARGETDURATION:1\n#EXT-X-MEDIA-SEQUENCE:3\n"
+				+ "#EXT-X-DISCONTINUITY-SEQUENCE:1\n#EXTINF:1.000,\ntest/3.ts\n#EXTINF:1.000,\ntest/4.ts\n",
+				new String(hls.getPlaylist(), StandardCharsets.UTF_8));
+		hls.close();
+	}
+
+	/**
+	 * checks the packets and tables, returns the payload of each elementary
+	 * stream
+	 */
+	private static Map<Integer, ByteBuf> demux(ByteBuf segment) {
+		assertEquals(0, segment.readableBytes() % TsMuxer.PACKET_SIZE);
+		Map<Integer, ByteBuf> streams = new HashMap<>();
+		Map<Integer, Integer> counters = new HashMap<>();
+		for (int packet = segment.readerIndex(); packet < segment.writerIndex(); packet += TsMuxer.PACKET_SIZE) {
+			assertEquals(0x47, segment.getUnsignedByte(packet));
+			int pid = segment.getUnsignedShort(packet + 1) & 0x1fff;
+			int control = segment.getUnsignedByte(packet + 3);
+			Integer last = counters.put(pid, control & 0x0f);
+			if (last != null) {
+				assertEquals((last + 1) & 0x0f, control & 0x0f, "continuity of " + pid);
+			}
+			int payload = packet + 4;
+			if ((control & 0x20) != 0) {
+				payload += 1 + segment.getUnsignedByte(packet + 4);
+			}
+			if (pid == TsMuxer.PAT_PID || pid == TsMuxer.PMT_PID) {
+				int start = payload + 1;
+				int length = segment.getUnsignedShort(start + 1) & 0x0fff;
+				// the crc of a section including its crc is 0
+				assertEquals(0, TsMuxer.crc32(segment, start, 3 + length));
+				continue;
+			}
+			streams.computeIfAbsent(pid, p -> Unpooled.buffer()).writeBytes(segment, payload,
+					packet + TsMuxer.PACKET_SIZE - payload);
+		}
+		assertEquals(2, counters.keySet().stream().filter(p -> p == TsMuxer.PAT_PID || p == TsMuxer.PMT_PID).count());
+		return streams;
+	}
+
+}
@@ -0,0 +1,57 @@
+package com.longyb.mylive.server.hls;
+
+import com.longyb.mylive.server.rtmp.messages.AudioMessage;
+import com.longyb.mylive.server.rtmp.messages.RtmpMediaMessage;
+import com.longyb.mylive.server.rtmp.messages.VideoMessage;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+/**
+ * The h264 and aac messages the packager tests publish.
+ */
+public final class MediaFixtures {
+
+	private MediaFixtures() {
+	}
+
+	static void add(HlsPackager hls, RtmpMediaMessage msg, int timestamp) {
+		msg.setTimestamp(timestamp);
+		hls.add(msg);
+		msg.release();
+	}
+
+	static void add(CmafPackager cmaf, RtmpMediaMessage msg, int timestamp) {
+		msg.setTimestamp(timestamp);
+		cmaf.add(msg);
+		msg.release();
+	}
+
+	/**
+	 * high profile, one sps and one pps
+	 */
+	public static VideoMessage avcConfig() {
+		return new VideoMessage(Unpooled.wrappedBuffer(new byte[] { 0x17, 0, 0, 0, 0, 1, 0x64, 0, 0x1f, (byte) 0xff,
+				(byte) 0xe1, 0, 4, 0x67, 1, 2, 3, 1, 0, 2, 0x68, 1 }));
+	}
+
+	/**
+	 * one nal unit of size bytes, an idr slice if key
+	 */
+	public static VideoMessage frame(boolean key, int size) {
+		ByteBuf payload = Unpooled.buffer();
+		payload.writeByte(key ? 0x17 : 0x27).writeByte(1).writeMedium(0);
+		payload.writeInt(size).writeByte(key ? 0x65 : 0x41).writeZero(size - 1);
+		return new VideoMessage(payload);
+	}
+
+	/**
+	 * the aac lc, 44.1 kHz, stereo config, or a raw frame
+	 */
+	public static AudioMessage audio(boolean config) {
+		if (config) {
+			return new AudioMessage(Unpooled.wrappedBuffer(new byte[] { (byte) 0xaf, 0, 0x12, 0x10 }));
+		}
+		return new AudioMessage(Unpooled.buffer().writeByte(0xaf).writeByte(1).writeZero(20));
+	}
+}
@@ -0,0 +1,50 @@
+package com.longyb.mylive.server.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.longyb.mylive.server.metrics.LatencyHistogram.Percentiles;
+
+public class LatencyHistogramTest {
+
+	@Test
+	public void testBucketsWithinOneSixteenth() {
+		int previous = -1;
+		for (long micros = 0; micros < 1L << 33; micros = micros < 100 ? micros + 1 : micros * 9 / 8) {
+			int bucket = LatencyHistogram.bucket(micros);
+			assertTrue(bucket >= previous && bucket < LatencyHistogram.BUCKETS, "bucket of " + micros);
+			previous = bucket;
+			long highest = LatencyHistogram.highestValue(bucket);
+			if (micros < 1L << 32) {
+				assertTrue(highest >= micros && highest - micros <= micros / 16, micros + " -> " + highest);
+			}
+		}
+	}
+
+	@Test
+	public void testPercentilesPerInterval() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		for (int i = 1; i <= 1000; i++) {
+			histogram.recordNanos(TimeUnit.MICROSECONDS.toNanos(i));
+		}
+		Percentiles p = histogram.interval();
+		assertEquals(1000, p.count());
+		assertTrue(p.p50Micros() >= 500 && p.p50Micros() <= 500 * 17 / 16, "p50 " + p.p50Micros());
+		assertTrue(p.p99Micros() >= 990 && p.p99Micros() <= 990 * 17 / 16, "p99 " + p.p99Micros());
+		assertTrue(p.p999Micros() >= 999 && p.maxMicros() >= 1000, "p999 " + p.p999Micros());
+		assertEquals(500_500, p.totalMicros());
+
+		histogram.recordNanos(TimeUnit.SECONDS.toNanos(2));
+		p = histogram.interval();
+		// only what came since
+		assertEquals(1, p.count());
+		assertTrue(p.p50Micros() >= 2_000_000);
+		assertEquals(1001, p.totalCount());
+		assertEquals(0, histogram.interval().count());
+	}
+
+}
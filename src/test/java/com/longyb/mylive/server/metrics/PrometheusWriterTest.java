@@ -0,0 +1,60 @@
+package com.longyb.mylive.server.metrics;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+
+public class PrometheusWriterTest {
+
+	@Test
+	public void testTextFormatInChunks() {
+		List<ByteBuf> chunks = new ArrayList<>();
+		PrometheusWriter out = new PrometheusWriter(ByteBufAllocator.DEFAULT, 64, chunks::add);
+		out.family("x_total", "counter", "an example");
+		out.sample("x_total").label("app", "li\"ve\\").label("loop", 3).value(-42);
+		out.sample("x_total").value(Long.MAX_VALUE);
+		out.sample("y_seconds").thousandths(1005);
+		out.sample("y_seconds").label("a", "ü").thousandths(-20);
+		out.finish();
+
+		StringBuilder text = new StringBuilder();
+		for (ByteBuf chunk : chunks) {
+			// a chunk is handed over once a line makes it reach the size
+			assertTrue(chunk.readableBytes() < 64 + 40, chunk.toString(StandardCharsets.UTF_8));
+			text.append(chunk.toString(StandardCharsets.UTF_8));
+			chunk.release();
+		}
+		assertTrue(chunks.size() > 1);
+		assertEquals("""
+				# HELP x_total an example
+				# TYPE x_total counter
+				x_total{app="li\\"ve\\\\",loop="3"} -42
+				x_total 9223372036854775807
+				y_seconds 1.005
+				y_seconds{a="ü"} -0.020
+				""", text.toString());
+	}
+
+	@Test
+	public void testEscapesAfterNonAscii() {
+		List<ByteBuf> chunks = new ArrayList<>();
+		PrometheusWriter out = new PrometheusWriter(ByteBufAllocator.DEFAULT, 1024, chunks::add);
+		out.sample("x_total").label("stream", "é\"} 1\nfake_metric 1").label("b", "\uD83C\uDFA5\\").value(1);
+		out.finish();
+
+		assertEquals(1, chunks.size());
+		ByteBuf chunk = chunks.get(0);
+		assertEquals("x_total{stream=\"é\\\"} 1\\nfake_metric 1\",b=\"\uD83C\uDFA5\\\\\"} 1\n",
+				chunk.toString(StandardCharsets.UTF_8));
+		chunk.release();
+	}
+
+}